@@ -0,0 +1,36 @@
+#!/usr/bin/env bash
+
+# Builds the native binary with profile-guided optimization (needs Oracle GraalVM):
+# an instrumented binary extracts a generated backup, then the binary is built again with the profile.
+# On Linux, the G1 collector is used, so that garbage is collected in parallel with the worker threads.
+
+# Usage: packaging/build-native-pgo.sh [FILES]
+
+set -e
+
+FILES="${1:-2000}"
+PGO_DIR="target/pgo"
+THREADS=$(getconf _NPROCESSORS_ONLN)
+
+GC=serial
+if [ "$(uname -s)" = "Linux" ]; then
+  GC=G1
+fi
+
+echo Building the instrumented binary...
+mvn -B clean package -Pnative,pgo-instrument -Dskip.installer=true -Dnative.gc="$GC"
+
+echo Collecting the profile...
+mkdir -p "$PGO_DIR"
+# The self-test decrypts, verifies, scans and lists the backup, the profile is written on exit
+(cd "$PGO_DIR" && ../itunes-backup-decryptor-instrumented selftest -o work --files "$FILES" -t "$THREADS" > training.log)
+rm -rf "$PGO_DIR/work"
+
+if [ ! -f "$PGO_DIR/default.iprof" ]; then
+  echo "No profile was written, see $PGO_DIR/training.log"
+  exit 1
+fi
+
+echo Building the optimized binary...
+mvn -B package -Pnative,pgo -Dskip.installer=true -Dnative.gc="$GC" \
+  -Dnative.pgo.profile="$PWD/$PGO_DIR/default.iprof"
@@ -0,0 +1,74 @@
+#!/usr/bin/env bash
+
+# Compares the native binary with the JVM on the same generated backup: time from process start to the
+# first decrypted file, throughput after that and peak memory (RSS), the best of some runs each.
+# Needs Linux with GNU time. The report is written to target/native-vs-jvm.md.
+
+# Usage: packaging/compare-native.sh JAR NATIVE_BINARY [FILES] [RUNS]
+
+set -e
+
+JAR="$1"
+NATIVE="$2"
+FILES="${3:-4000}"
+RUNS="${4:-3}"
+THREADS=$(getconf _NPROCESSORS_ONLN)
+REPORT="target/native-vs-jvm.md"
+
+if [ ! -f "$JAR" ] || [ ! -x "$NATIVE" ]; then
+  echo "Usage: $0 JAR NATIVE_BINARY [FILES] [RUNS]"
+  exit 1
+fi
+
+WORK_DIR=$(mktemp -d)
+trap 'rm -rf "$WORK_DIR"' EXIT
+
+echo "Generating a backup with $FILES files..."
+java -jar "$JAR" selftest -o "$WORK_DIR/selftest" --files "$FILES" > /dev/null
+
+# Prints time to first file (ms), throughput (MB/s), peak RSS (MB) and decrypted bytes of one extraction
+run_once() {
+  rm -rf "$WORK_DIR/output"
+  local start end
+  start=$(date +%s%N)
+  /usr/bin/time -f "%M" -o "$WORK_DIR/rss" "$@" -b "$WORK_DIR/selftest/backup" -o "$WORK_DIR/output" \
+    -p selftest -t "$THREADS" > "$WORK_DIR/log"
+  end=$(date +%s%N)
+
+  local first bytes
+  first=$(grep -o 'Time to first file: [0-9]*' "$WORK_DIR/log" | grep -o '[0-9]*$')
+  bytes=$(du -sb "$WORK_DIR/output" | cut -f1)
+  awk -v first="$first" -v wall=$(((end - start) / 1000000)) -v bytes="$bytes" -v rss="$(cat "$WORK_DIR/rss")" \
+    'BEGIN { rest = wall - first; if (rest < 1) rest = 1;
+             printf "%d %.1f %.0f %d\n", first, bytes / 1048576 / (rest / 1000), rss / 1024, bytes }'
+}
+
+# Prints the best time to first file, the best throughput, the highest RSS and the decrypted bytes
+measure() {
+  for ((i = 0; i < RUNS; i++)); do
+    run_once "$@"
+  done | awk 'NR == 1 || $1 < first { first = $1 } $2 > rate { rate = $2 } $3 > rss { rss = $3 } { bytes = $4 }
+              END { print first, rate, rss, bytes }'
+}
+
+echo "Measuring the JVM..."
+read -r JVM_FIRST JVM_RATE JVM_RSS BYTES < <(measure java -jar "$JAR")
+echo "Measuring the native binary..."
+read -r NATIVE_FIRST NATIVE_RATE NATIVE_RSS BYTES < <(measure "$NATIVE")
+
+mkdir -p target
+cat > "$REPORT" <<REPORT
+# Native binary vs JVM
+
+- Backup: $FILES generated files, $((BYTES / 1048576)) MB decrypted, $THREADS threads, best of $RUNS runs
+- Machine: $(uname -srm), $(grep -m 1 'model name' /proc/cpuinfo | cut -d: -f2 | sed 's/^ *//')
+- JVM: $(java -version 2>&1 | head -1)
+- Native: $NATIVE
+
+| | Time to first file | Throughput | Peak RSS |
+|---|---|---|---|
+| JVM | $JVM_FIRST ms | $JVM_RATE MB/s | $JVM_RSS MB |
+| Native | $NATIVE_FIRST ms | $NATIVE_RATE MB/s | $NATIVE_RSS MB |
+REPORT
+
+cat "$REPORT"
@@ -0,0 +1,43 @@
+#!/usr/bin/env bash
+
+# Compares the time from process start to the first decrypted file with and without the
+# class data sharing archive of the application (mvn package -Pcds builds both).
+
+# Usage: packaging/measure-startup.sh JAR ARCHIVE [RUNS]
+
+set -e
+
+JAR="$1"
+ARCHIVE="$2"
+RUNS="${3:-10}"
+
+if [ ! -f "$JAR" ] || [ ! -f "$ARCHIVE" ]; then
+  echo "Usage: $0 JAR ARCHIVE [RUNS]"
+  exit 1
+fi
+
+WORK_DIR=$(mktemp -d)
+trap 'rm -rf "$WORK_DIR"' EXIT
+
+# The self-test leaves its generated backup in the work directory
+java -jar "$JAR" selftest -o "$WORK_DIR/selftest" > /dev/null
+
+# Prints the median time to the first file in milliseconds
+measure() {
+  local times=()
+  for ((i = 0; i < RUNS; i++)); do
+    rm -rf "$WORK_DIR/output"
+    local line
+    line=$(java "$@" -jar "$JAR" -b "$WORK_DIR/selftest/backup" -o "$WORK_DIR/output" -p selftest \
+      | grep "Time to first file:")
+    times+=("$(echo "$line" | grep -o '[0-9]* ms' | grep -o '[0-9]*')")
+  done
+  printf '%s\n' "${times[@]}" | sort -n | awk '{ t[NR] = $1 } END { print t[int((NR + 1) / 2)] }'
+}
+
+BEFORE=$(measure -Xshare:auto)
+AFTER=$(measure -XX:SharedArchiveFile="$ARCHIVE")
+
+echo "Time to first decrypted file (median of $RUNS runs):"
+echo "  JDK archive only:  $BEFORE ms"
+echo "  With app archive:  $AFTER ms"
@@ -33,7 +33,7 @@ echo Detected modules: "$DETECTED_MODULES"
 echo Generating runtime image...
 
 "$JAVA_HOME"/bin/jlink \
-  --strip-native-commands \
+  --generate-cds-archive \
   --no-header-files \
   --no-man-pages \
   --compress=zip-6 \
@@ -44,6 +44,9 @@ echo Generating runtime image...
   --include-locales=en,de \
   --output target/runtime-image
 
+# The launchers were only needed to generate the CDS archive of the runtime, the app has its own
+rm -rf target/runtime-image/bin
+
 
 echo Packaging...
 
@@ -56,8 +59,19 @@ echo Packaging...
   --vendor "Maximilian Herczegh" \
   --icon "src/main/resources/hearsay/idevice_decryption/icon.png" \
   --runtime-image "target/runtime-image" \
+  --java-options '-XX:SharedArchiveFile=$APPDIR/app-cds.jsa' \
+  --java-options "-XX:+AutoCreateSharedArchive" \
   --module "$MAIN_MODULE/$MAIN_CLASS"
 
+
+echo Training the class data sharing archive...
+
+# The self-test decrypts a generated backup, the JVM archives every class it loaded when it exits
+"target/app-image/$APP_NAME/bin/$APP_NAME" selftest > target/cds-training.log 2>&1 || {
+  echo "Self-test failed, see target/cds-training.log"
+  exit 1
+}
+
 "$JAVA_HOME"/bin/jpackage \
     --dest "target/installer" \
     --name "$APP_NAME" \
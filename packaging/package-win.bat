@@ -38,7 +38,7 @@ echo Detected modules: %DETECTED_MODULES%
 echo Generating runtime image...
 
 CALL "%JAVA_HOME%\bin\jlink" ^
-    --strip-native-commands ^
+    --generate-cds-archive ^
     --no-header-files ^
     --no-man-pages ^
     --compress=zip-6 ^
@@ -49,6 +49,9 @@ CALL "%JAVA_HOME%\bin\jlink" ^
     --include-locales=en,de ^
     --output target/runtime-image
 
+REM The launchers were only needed to generate the CDS archive of the runtime, the app has its own
+RMDIR /S /Q target\runtime-image\bin
+
 
 echo Packaging...
 
@@ -61,8 +64,20 @@ CALL "%JAVA_HOME%\bin\jpackage" ^
     --vendor "Maximilian Herczegh" ^
     --icon "src\main\resources\hearsay\idevice_decryption\icon.ico" ^
     --runtime-image "target\runtime-image" ^
+    --java-options "-XX:SharedArchiveFile=$APPDIR\app-cds.jsa" ^
+    --java-options "-XX:+AutoCreateSharedArchive" ^
     --module "%MAIN_MODULE%/%MAIN_CLASS%"
 
+
+echo Training the class data sharing archive...
+
+REM The self-test decrypts a generated backup, the JVM archives every class it loaded when it exits
+CALL "target\app-image\%APP_NAME%\%APP_NAME%.exe" selftest > target\cds-training.log 2>&1
+IF ERRORLEVEL 1 (
+    echo Self-test failed, see target\cds-training.log
+    EXIT /B 1
+)
+
 CALL "%JAVA_HOME%\bin\jpackage" ^
     --type msi ^
     --dest "target\installer" ^
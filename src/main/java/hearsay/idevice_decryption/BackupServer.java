@@ -0,0 +1,470 @@
+package hearsay.idevice_decryption;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import hearsay.idevice_decryption.api.BackupFile;
+import hearsay.idevice_decryption.api.BackupReadException;
+import hearsay.idevice_decryption.api.FileQuery;
+import hearsay.idevice_decryption.api.FileRule;
+import hearsay.idevice_decryption.api.ITunesBackup;
+import hearsay.idevice_decryption.api.ManifestEntry;
+import hearsay.idevice_decryption.api.PartlyDecryptedException;
+import hearsay.idevice_decryption.api.PathIndex;
+import hearsay.idevice_decryption.api.PathSearch;
+import hearsay.idevice_decryption.api.RandomAccessContent;
+import hearsay.idevice_decryption.util.ContentType;
+import hearsay.idevice_decryption.util.JsonUtils;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.OptionalInt;
+import java.util.concurrent.Executors;
+import java.util.function.Consumer;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+/**
+ * Serves the decrypted files of an unlocked backup over HTTP, without extracting anything:
+ * <ul>
+ *   <li><code>GET /file/FILE_ID</code> - the content of a file by its ID</li>
+ *   <li><code>GET /path/DOMAIN/RELATIVE_PATH</code> - the content of a file by domain and path</li>
+ *   <li><code>GET /list?domain=GLOB&amp;path=GLOB&amp;limit=N</code> - the matching files as a JSON array</li>
+ *   <li><code>GET /tree/[DOMAIN/RELATIVE_PATH]</code> - the children of a directory with the sizes of their
+ *   subtrees as a JSON array, from the {@link PathIndex} built on the first request</li>
+ *   <li><code>GET /search?contains=TEXT|glob=GLOB|regex=REGEX&amp;limit=N</code> - the files whose
+ *   <code>DOMAIN/RELATIVE_PATH</code> matches as a JSON array, from the {@link PathSearch} index; <code>regex</code> only if allowed, since
+ *   a pattern that backtracks badly keeps a thread busy for as long as it runs</li>
+ * </ul>
+ * Content is decrypted on demand in chunks with random access (see {@link RandomAccessContent}), so
+ * <code>Range</code> requests only decrypt the chunks they touch. Recently used chunks are kept in a
+ * cache bounded by size. Every request runs on its own virtual thread and queries the database on its own
+ * read-only connection.
+ */
+class BackupServer {
+  static final int CHUNK_SIZE = 64 * 1024;
+  private static final int DEFAULT_LIST_LIMIT = 1000;
+  private static final Pattern RANGE = Pattern.compile("bytes=(\\d*)-(\\d*)");
+
+  private final ITunesBackup backup;
+  private final HttpServer server;
+  private final ChunkCache cache;
+  private final boolean allowRegex;
+  private final Consumer<String> log;
+
+  /**
+   * @param cacheSize  bytes of decrypted chunks to keep, 0 for none
+   * @param allowRegex whether /search takes regular expressions from clients
+   * @param log        receives one line per request
+   */
+  BackupServer(ITunesBackup backup, InetSocketAddress address, long cacheSize, boolean allowRegex,
+      Consumer<String> log) throws IOException {
+    this.backup = backup;
+    this.cache = new ChunkCache(cacheSize);
+    this.allowRegex = allowRegex;
+    this.log = log;
+    this.server = HttpServer.create(address, 0);
+    this.server.setExecutor(Executors.newVirtualThreadPerTaskExecutor());
+    this.server.createContext("/file/", exchange -> handle(exchange, () -> serveFile(exchange,
+        findFile(() -> backup.getFileById(decode(exchange, "/file/"))))));
+    this.server.createContext("/path/", exchange -> handle(exchange, () -> {
+      String path = decode(exchange, "/path/");
+      int slash = path.indexOf('/');
+      if (slash == -1) {
+        throw new HttpError(404, "Expected /path/DOMAIN/RELATIVE_PATH");
+      }
+      serveFile(exchange, findFile(() -> backup.getFile(path.substring(0, slash), path.substring(slash + 1))));
+    }));
+    this.server.createContext("/list", exchange -> handle(exchange, () -> serveList(exchange)));
+    this.server.createContext("/tree/", exchange -> handle(exchange, () -> serveTree(exchange)));
+    this.server.createContext("/search", exchange -> handle(exchange, () -> serveSearch(exchange)));
+  }
+
+  InetSocketAddress getAddress() {
+    return server.getAddress();
+  }
+
+  void start() {
+    server.start();
+  }
+
+  void stop() {
+    server.stop(1);
+  }
+
+  private interface Handler {
+    void handle() throws Exception;
+  }
+
+  private interface Lookup {
+    Optional<BackupFile> find() throws Exception;
+  }
+
+  /**
+   * An answer other than 200 with a plain text message.
+   */
+  private static class HttpError extends Exception {
+    private static final long serialVersionUID = 1L;
+
+    final int status;
+
+    HttpError(int status, String message) {
+      super(message);
+      this.status = status;
+    }
+  }
+
+  private void handle(HttpExchange exchange, Handler handler) {
+    try {
+      if (!exchange.getRequestMethod().equals("GET") && !exchange.getRequestMethod().equals("HEAD")) {
+        throw new HttpError(405, "Only GET and HEAD are supported");
+      }
+      handler.handle();
+      log.accept(exchange.getRequestMethod() + " " + exchange.getRequestURI() + " " + exchange.getResponseCode());
+    } catch (HttpError e) {
+      sendError(exchange, e.status, e.getMessage());
+    } catch (Exception e) {
+      sendError(exchange, 500, e.getMessage() != null ? e.getMessage() : e.toString());
+    } finally {
+      exchange.close();
+    }
+  }
+
+  private void sendError(HttpExchange exchange, int status, String message) {
+    log.accept(exchange.getRequestMethod() + " " + exchange.getRequestURI() + " " + status + " " + message);
+    try {
+      byte[] body = (message + "\n").getBytes(StandardCharsets.UTF_8);
+      exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+      exchange.sendResponseHeaders(status, body.length);
+      exchange.getResponseBody().write(body);
+    } catch (IOException e) {
+      // The response was already started or the client is gone
+    }
+  }
+
+  private static String decode(HttpExchange exchange, String prefix) {
+    // The raw path, so that an encoded slash in a relative path is not mistaken for a separator
+    String path = exchange.getRequestURI().getRawPath().substring(prefix.length());
+    return URLDecoder.decode(path.replace("+", "%2B"), StandardCharsets.UTF_8);
+  }
+
+  private BackupFile findFile(Lookup lookup) throws Exception {
+    Optional<BackupFile> file;
+    try {
+      file = lookup.find();
+    } catch (BackupReadException e) {
+      throw new HttpError(404, e.getMessage());
+    }
+    if (file.isEmpty()) {
+      throw new HttpError(404, "No such file");
+    }
+    if (file.get().getFileType() != BackupFile.FileType.FILE) {
+      throw new HttpError(404, "Not a file: " + file.get().getFileType());
+    }
+    return file.get();
+  }
+
+  /**
+   * @return the byte position of a range, positions beyond any file as {@link Long#MAX_VALUE}
+   */
+  private static long parsePosition(String digits) {
+    try {
+      return Long.parseLong(digits);
+    } catch (NumberFormatException e) {
+      // Only digits are matched, so it is too large
+      return Long.MAX_VALUE;
+    }
+  }
+
+  private void serveFile(HttpExchange exchange, BackupFile file) throws Exception {
+    RandomAccessContent opened;
+    try {
+      opened = file.openRandomAccess();
+    } catch (PartlyDecryptedException e) {
+      // Neither ciphertext nor plaintext until --replace finishes the interrupted decryption
+      throw new HttpError(409, e.getMessage());
+    }
+    try (RandomAccessContent content = opened) {
+      long length = content.length();
+      long start = 0;
+      long end = length - 1;
+      int status = 200;
+
+      String range = exchange.getRequestHeaders().getFirst("Range");
+      if (range != null) {
+        Matcher matcher = RANGE.matcher(range.trim());
+        // Other units and multiple ranges are answered with the whole file, which is allowed
+        if (matcher.matches() && !(matcher.group(1).isEmpty() && matcher.group(2).isEmpty())) {
+          if (matcher.group(1).isEmpty()) {
+            // The last n bytes
+            start = Math.max(0, length - parsePosition(matcher.group(2)));
+          } else {
+            start = parsePosition(matcher.group(1));
+            if (!matcher.group(2).isEmpty()) {
+              end = Math.min(end, parsePosition(matcher.group(2)));
+            }
+          }
+          if (start >= length || start > end) {
+            exchange.getResponseHeaders().set("Content-Range", "bytes */" + length);
+            throw new HttpError(416, "Range not satisfiable, the file has " + length + " bytes");
+          }
+          status = 206;
+          exchange.getResponseHeaders().set("Content-Range", "bytes " + start + "-" + end + "/" + length);
+        }
+      }
+
+      byte[] firstChunk = length > 0 ? getChunk(file, content, 0) : new byte[0];
+      exchange.getResponseHeaders().set("Content-Type",
+          ContentType.detect(firstChunk, Math.min(firstChunk.length, ContentType.HEAD_SIZE)).mimeType);
+      exchange.getResponseHeaders().set("Accept-Ranges", "bytes");
+      long count = length == 0 ? 0 : end - start + 1;
+      if (exchange.getRequestMethod().equals("HEAD")) {
+        exchange.getResponseHeaders().set("Content-Length", String.valueOf(count));
+        exchange.sendResponseHeaders(status, -1);
+        return;
+      }
+      exchange.sendResponseHeaders(status, count == 0 ? -1 : count);
+
+      OutputStream body = exchange.getResponseBody();
+      long position = start;
+      while (position <= end && count > 0) {
+        long chunkIndex = position / CHUNK_SIZE;
+        byte[] chunk = chunkIndex == 0 ? firstChunk : getChunk(file, content, chunkIndex);
+        int offset = (int) (position - chunkIndex * CHUNK_SIZE);
+        int part = (int) Math.min(chunk.length - offset, end - position + 1);
+        body.write(chunk, offset, part);
+        position += part;
+      }
+    }
+  }
+
+  private byte[] getChunk(BackupFile file, RandomAccessContent content, long index) throws IOException {
+    String key = file.fileID + ":" + index;
+    byte[] chunk = cache.get(key);
+    if (chunk != null) {
+      return chunk;
+    }
+
+    long position = index * CHUNK_SIZE;
+    byte[] buffer = new byte[(int) Math.min(CHUNK_SIZE, content.length() - position)];
+    int filled = 0;
+    while (filled < buffer.length) {
+      int read = content.read(position + filled, buffer, filled, buffer.length - filled);
+      if (read <= 0) {
+        break;
+      }
+      filled += read;
+    }
+    cache.put(key, buffer);
+    return buffer;
+  }
+
+  private void serveList(HttpExchange exchange) throws Exception {
+    Map<String, String> parameters = parseQuery(exchange.getRequestURI().getRawQuery());
+    int limit = DEFAULT_LIST_LIMIT;
+    try {
+      if (parameters.containsKey("limit")) {
+        limit = Integer.parseInt(parameters.get("limit"));
+      }
+    } catch (NumberFormatException e) {
+      throw new HttpError(400, "Invalid limit: " + parameters.get("limit"));
+    }
+
+    FileQuery query = new FileQuery();
+    if (parameters.containsKey("domain")) {
+      query.domains(List.of(parameters.get("domain")));
+    }
+    if (parameters.containsKey("path")) {
+      query.include(new FileRule(null, parameters.get("path"), null));
+    }
+
+    exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+    if (exchange.getRequestMethod().equals("HEAD")) {
+      exchange.sendResponseHeaders(200, -1);
+      return;
+    }
+    exchange.sendResponseHeaders(200, 0);
+
+    Writer writer = new BufferedWriter(new OutputStreamWriter(exchange.getResponseBody(), StandardCharsets.UTF_8));
+    int max = limit;
+    int[] count = {0};
+    IOException[] failure = {null};
+    writer.write("[");
+    backup.queryRows(query, (fileID, domain, relativePath, flags, data) -> {
+      if (count[0] >= max || failure[0] != null) {
+        return;
+      }
+      try {
+        ManifestEntry entry = ManifestEntry.parse(fileID, domain, relativePath, flags, data);
+        writer.write((count[0] == 0 ? "\n" : ",\n") + "{\"fileID\":" + JsonUtils.quote(entry.fileID)
+            + ",\"domain\":" + JsonUtils.quote(entry.domain)
+            + ",\"relativePath\":" + JsonUtils.quote(entry.relativePath)
+            + ",\"type\":" + JsonUtils.quote(entry.fileType.name())
+            + ",\"size\":" + entry.size
+            + ",\"lastModified\":" + entry.lastModified + "}");
+        count[0]++;
+      } catch (BackupReadException e) {
+        // Not listed, it could not be served either
+      } catch (IOException e) {
+        // The client is gone, the rest of the rows are skipped
+        failure[0] = e;
+      }
+    });
+    if (failure[0] != null) {
+      throw failure[0];
+    }
+    writer.write("\n]\n");
+    writer.flush();
+  }
+
+  private void serveTree(HttpExchange exchange) throws Exception {
+    String path = decode(exchange, "/tree/");
+    if (path.endsWith("/")) {
+      path = path.substring(0, path.length() - 1);
+    }
+    PathIndex index = backup.getPathIndex();
+    int node = PathIndex.ROOT;
+    if (!path.isEmpty()) {
+      int slash = path.indexOf('/');
+      OptionalInt found = slash == -1 ? index.find(path, "") : index.find(path.substring(0, slash),
+          path.substring(slash + 1));
+      node = found.orElseThrow(() -> new HttpError(404, "No such directory"));
+    }
+
+    StringBuilder json = new StringBuilder("[");
+    for (int child : index.getChildren(node)) {
+      json.append(json.length() == 1 ? "\n" : ",\n")
+          .append("{\"name\":").append(JsonUtils.quote(index.getName(child)))
+          .append(",\"fileID\":").append(index.getFileID(child).map(JsonUtils::quote).orElse("null"))
+          .append(",\"type\":").append(JsonUtils.quote(index.getFileType(child).name()))
+          .append(",\"size\":").append(index.getSize(child))
+          .append(",\"subtreeSize\":").append(index.getSubtreeSize(child))
+          .append(",\"subtreeFiles\":").append(index.getSubtreeFileCount(child))
+          .append(",\"children\":").append(index.getChildCount(child)).append('}');
+    }
+    json.append("\n]\n");
+
+    byte[] body = json.toString().getBytes(StandardCharsets.UTF_8);
+    exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+    if (exchange.getRequestMethod().equals("HEAD")) {
+      exchange.sendResponseHeaders(200, -1);
+      return;
+    }
+    exchange.sendResponseHeaders(200, body.length);
+    exchange.getResponseBody().write(body);
+  }
+
+  private void serveSearch(HttpExchange exchange) throws Exception {
+    Map<String, String> parameters = parseQuery(exchange.getRequestURI().getRawQuery());
+    int limit = DEFAULT_LIST_LIMIT;
+    try {
+      if (parameters.containsKey("limit")) {
+        limit = Integer.parseInt(parameters.get("limit"));
+      }
+    } catch (NumberFormatException e) {
+      throw new HttpError(400, "Invalid limit: " + parameters.get("limit"));
+    }
+
+    PathSearch search = backup.getPathSearch();
+    int[] nodes;
+    if (parameters.containsKey("contains")) {
+      nodes = search.findSubstring(parameters.get("contains"));
+    } else if (parameters.containsKey("glob")) {
+      nodes = search.findGlob(parameters.get("glob"));
+    } else if (parameters.containsKey("regex")) {
+      if (!allowRegex) {
+        throw new HttpError(403, "Regular expressions are off, start serve with --allow-regex");
+      }
+      try {
+        nodes = search.findRegex(Pattern.compile(parameters.get("regex")));
+      } catch (PatternSyntaxException e) {
+        throw new HttpError(400, "Invalid regex: " + e.getDescription());
+      }
+    } else {
+      throw new HttpError(400, allowRegex ? "Expected contains, glob or regex" : "Expected contains or glob");
+    }
+
+    PathIndex index = search.getPathIndex();
+    StringBuilder json = new StringBuilder("[");
+    for (int i = 0; i < nodes.length && i < limit; i++) {
+      int node = nodes[i];
+      json.append(i == 0 ? "\n" : ",\n")
+          .append("{\"fileID\":").append(JsonUtils.quote(index.getFileID(node).orElseThrow()))
+          .append(",\"domain\":").append(JsonUtils.quote(index.getDomain(node)))
+          .append(",\"relativePath\":").append(JsonUtils.quote(index.getRelativePath(node)))
+          .append(",\"type\":").append(JsonUtils.quote(index.getFileType(node).name()))
+          .append(",\"size\":").append(index.getSize(node)).append('}');
+    }
+    json.append("\n]\n");
+
+    byte[] body = json.toString().getBytes(StandardCharsets.UTF_8);
+    exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+    exchange.getResponseHeaders().set("X-Total-Count", String.valueOf(nodes.length));
+    if (exchange.getRequestMethod().equals("HEAD")) {
+      exchange.sendResponseHeaders(200, -1);
+      return;
+    }
+    exchange.sendResponseHeaders(200, body.length);
+    exchange.getResponseBody().write(body);
+  }
+
+  private static Map<String, String> parseQuery(String query) {
+    Map<String, String> parameters = new HashMap<>();
+    if (query == null) {
+      return parameters;
+    }
+    for (String parameter : query.split("&")) {
+      int equals = parameter.indexOf('=');
+      if (equals > 0) {
+        parameters.put(URLDecoder.decode(parameter.substring(0, equals), StandardCharsets.UTF_8),
+            URLDecoder.decode(parameter.substring(equals + 1), StandardCharsets.UTF_8));
+      }
+    }
+    return parameters;
+  }
+
+  /**
+   * Decrypted chunks by file ID and index, the least recently used are dropped when the size is exceeded.
+   */
+  private static class ChunkCache {
+    private final long maxSize;
+    private final LinkedHashMap<String, byte[]> chunks = new LinkedHashMap<>(16, 0.75f, true);
+    private long size = 0;
+
+    ChunkCache(long maxSize) {
+      this.maxSize = maxSize;
+    }
+
+    synchronized byte[] get(String key) {
+      return chunks.get(key);
+    }
+
+    synchronized void put(String key, byte[] chunk) {
+      if (chunk.length > maxSize) {
+        return;
+      }
+      byte[] previous = chunks.put(key, chunk);
+      if (previous != null) {
+        size -= previous.length;
+      }
+      size += chunk.length;
+      Iterator<Map.Entry<String, byte[]>> eldest = chunks.entrySet().iterator();
+      while (size > maxSize && eldest.hasNext()) {
+        size -= eldest.next().getValue().length;
+        eldest.remove();
+      }
+    }
+  }
+}
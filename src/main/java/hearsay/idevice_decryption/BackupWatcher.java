@@ -0,0 +1,196 @@
+package hearsay.idevice_decryption;
+
+import com.dd.plist.NSDictionary;
+import com.dd.plist.PropertyListParser;
+import hearsay.idevice_decryption.util.UtilDict;
+
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+/**
+ * Follows a backup directory while a backup is being written into it.
+ * Content files are reported once they have not changed for the settle time, so that files still
+ * being written are not decrypted. Changes of the manifest files are reported the same way.
+ * <p>
+ * Not thread-safe, it is meant to be polled from a single loop.
+ */
+class BackupWatcher implements AutoCloseable {
+  private static final Pattern FILE_ID = Pattern.compile("[0-9a-f]{40}");
+  private static final Pattern SHARD_DIR = Pattern.compile("[0-9a-f]{2}");
+  private static final Set<String> MANIFEST_FILES = Set.of("Manifest.db", "Manifest.plist", "Status.plist",
+      "Info.plist");
+
+  private final Path backupDir;
+  private final long settleNanos;
+  private final WatchService watchService;
+  private final Map<WatchKey, Path> watchedDirs = new HashMap<>();
+  private final Map<String, Long> changedFiles = new HashMap<>();
+  private long manifestChangedAt = 0;
+  private boolean manifestChanged = false;
+  private boolean overflow = false;
+  private long lastEventAt;
+
+  /**
+   * @param settleMillis how long a file must stay unchanged before it is reported
+   */
+  BackupWatcher(Path backupDir, long settleMillis) throws IOException {
+    this.backupDir = backupDir;
+    this.settleNanos = TimeUnit.MILLISECONDS.toNanos(settleMillis);
+    this.watchService = backupDir.getFileSystem().newWatchService();
+    this.lastEventAt = System.nanoTime();
+
+    register(backupDir);
+    try (DirectoryStream<Path> dirs = Files.newDirectoryStream(backupDir, Files::isDirectory)) {
+      for (Path dir : dirs) {
+        if (SHARD_DIR.matcher(dir.getFileName().toString()).matches()) {
+          register(dir);
+        }
+      }
+    }
+  }
+
+  private void register(Path dir) throws IOException {
+    WatchKey key = dir.register(watchService, StandardWatchEventKinds.ENTRY_CREATE,
+        StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_DELETE);
+    watchedDirs.put(key, dir);
+  }
+
+  /**
+   * Waits up to the given time for changes and records them.
+   */
+  void poll(long timeoutMillis) throws IOException, InterruptedException {
+    WatchKey key;
+    try {
+      key = watchService.poll(timeoutMillis, TimeUnit.MILLISECONDS);
+    } catch (ClosedWatchServiceException e) {
+      return;
+    }
+
+    while (key != null) {
+      Path dir = watchedDirs.get(key);
+      long now = System.nanoTime();
+      for (WatchEvent<?> event : key.pollEvents()) {
+        lastEventAt = now;
+        if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+          // Events were lost, every file has to be compared
+          overflow = true;
+          continue;
+        }
+
+        String name = event.context().toString();
+        if (dir == null) {
+          continue;
+        }
+        if (dir.equals(backupDir)) {
+          if (MANIFEST_FILES.contains(name) || name.startsWith("Manifest.db-")) {
+            manifestChanged = true;
+            manifestChangedAt = now;
+          } else if (event.kind() == StandardWatchEventKinds.ENTRY_CREATE && SHARD_DIR.matcher(name).matches()
+              && Files.isDirectory(backupDir.resolve(name))) {
+            register(backupDir.resolve(name));
+            // Files may have been created before the directory was registered
+            try (DirectoryStream<Path> files = Files.newDirectoryStream(backupDir.resolve(name))) {
+              for (Path file : files) {
+                recordFile(file.getFileName().toString(), now);
+              }
+            }
+          }
+        } else {
+          recordFile(name, now);
+        }
+      }
+      if (!key.reset()) {
+        watchedDirs.remove(key);
+      }
+      key = watchService.poll();
+    }
+  }
+
+  private void recordFile(String name, long now) {
+    if (FILE_ID.matcher(name).matches()) {
+      changedFiles.put(name, now);
+    }
+  }
+
+  /**
+   * @return the IDs of the content files that changed but have not changed for the settle time;
+   * they are not reported again unless they change again
+   */
+  Set<String> takeSettledFiles() {
+    long now = System.nanoTime();
+    Set<String> settled = new HashSet<>();
+    Iterator<Map.Entry<String, Long>> entries = changedFiles.entrySet().iterator();
+    while (entries.hasNext()) {
+      Map.Entry<String, Long> entry = entries.next();
+      if (now - entry.getValue() >= settleNanos) {
+        settled.add(entry.getKey());
+        entries.remove();
+      }
+    }
+    return settled;
+  }
+
+  /**
+   * @return true once if the manifest files changed and have not changed for the settle time since
+   */
+  boolean takeSettledManifest() {
+    if (manifestChanged && System.nanoTime() - manifestChangedAt >= settleNanos) {
+      manifestChanged = false;
+      return true;
+    }
+    return false;
+  }
+
+  /**
+   * @return true once if events were lost since the last call
+   */
+  boolean takeOverflow() {
+    boolean lost = overflow;
+    overflow = false;
+    return lost;
+  }
+
+  boolean hasPendingChanges() {
+    return !changedFiles.isEmpty() || manifestChanged;
+  }
+
+  long getIdleMillis() {
+    return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - lastEventAt);
+  }
+
+  /**
+   * @return true if <code>Status.plist</code> says that the backup is complete
+   */
+  boolean isBackupFinished() {
+    Path status = backupDir.resolve("Status.plist");
+    if (!Files.exists(status)) {
+      return false;
+    }
+    try {
+      UtilDict dict = new UtilDict((NSDictionary) PropertyListParser.parse(status.toFile()));
+      return dict.getString("SnapshotState").map("finished"::equals).orElse(false);
+    } catch (Exception e) {
+      // Probably being written right now
+      return false;
+    }
+  }
+
+  @Override
+  public void close() throws IOException {
+    watchService.close();
+  }
+}
@@ -0,0 +1,350 @@
+package hearsay.idevice_decryption;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryNotEmptyException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+/**
+ * Runs jobs from a spool directory in one long-running process, so that JVM startup, JIT warmup
+ * and the loading of the SQLite driver are paid once instead of once per backup.
+ * <p>
+ * A job is a file <code>NAME.job</code> in the spool directory with the command line of one run,
+ * one option per line, e.g.
+ * <pre>
+ * scan
+ * -b /backups/device1
+ * -p secret
+ * --report /reports/device1.tsv
+ * </pre>
+ * Lines are split into option and value at the first space; empty lines and lines starting with
+ * <code>#</code> are ignored. Jobs should be written under another name and renamed, so that they
+ * are not picked up half written. Jobs are started in the order of their names.
+ * <p>
+ * A job is claimed by moving it to <code>running/HOST-PID/</code>, the directory of the daemon,
+ * so several daemons can share a spool directory. Its log and its result (a properties file) are
+ * written to <code>results/</code>, then the job file is deleted because it may contain a password.
+ * A job that cannot be moved, e.g. for lack of permissions, counts as failed and is tried again on every poll.
+ * When a daemon starts, it queues the jobs of daemons on the same host that are no longer running
+ * again; jobs of daemons on other hosts are left alone, since it cannot tell whether they are
+ * still running. A file named
+ * <code>STOP</code> in the spool directory lets the daemon finish the running jobs and exit.
+ */
+class BatchDaemon {
+  static final String JOB_SUFFIX = ".job";
+  static final String RESULT_SUFFIX = ".result";
+  static final String LOG_SUFFIX = ".log";
+  static final String STOP_FILE = "STOP";
+  private static final long POLL_MILLIS = 1000;
+
+  enum Status {
+    OK,
+    /** The job ran, but found damaged files (exit code 2 of scan) */
+    DAMAGED,
+    /** The job could not be run or was aborted by an error */
+    FAILED
+  }
+
+  static class JobResult {
+    final Status status;
+    final int files;
+    final int errors;
+    final long bytes;
+    final String message;
+
+    JobResult(Status status, int files, int errors, long bytes, String message) {
+      this.status = status;
+      this.files = files;
+      this.errors = errors;
+      this.bytes = bytes;
+      this.message = message;
+    }
+
+    static JobResult failed(String message) {
+      return new JobResult(Status.FAILED, 0, 0, 0, message);
+    }
+
+    int getExitCode() {
+      return status == Status.OK ? 0 : (status == Status.DAMAGED ? 2 : 1);
+    }
+  }
+
+  interface JobRunner {
+    /**
+     * @param arguments the command line of the job
+     * @param logFile   where the job should write its log
+     */
+    JobResult run(String[] arguments, Path logFile) throws Exception;
+  }
+
+  private final Path spoolDir;
+  private final Path runningDir;
+  private final String host;
+  private final Path claimDir;
+  private final Path resultsDir;
+  private final int jobs;
+  private final JobRunner runner;
+  private final Consumer<String> log;
+  private final LongAdder finishedJobs = new LongAdder();
+  private final LongAdder failedJobs = new LongAdder();
+
+  /**
+   * @param jobs number of jobs that run at the same time
+   */
+  BatchDaemon(Path spoolDir, int jobs, JobRunner runner, Consumer<String> log) throws IOException {
+    this.spoolDir = spoolDir;
+    this.runningDir = spoolDir.resolve("running");
+    this.host = getHostName();
+    this.claimDir = runningDir.resolve(host + "-" + ProcessHandle.current().pid());
+    this.resultsDir = spoolDir.resolve("results");
+    this.jobs = jobs;
+    this.runner = runner;
+    this.log = log;
+    Files.createDirectories(runningDir);
+    Files.createDirectories(resultsDir);
+  }
+
+  private static String getHostName() {
+    try {
+      return InetAddress.getLocalHost().getHostName();
+    } catch (UnknownHostException e) {
+      return "localhost";
+    }
+  }
+
+  /**
+   * Runs jobs until a stop file appears.
+   *
+   * @param once true to exit as soon as the spool directory is empty and all jobs are finished
+   */
+  void run(boolean once) throws IOException, InterruptedException {
+    requeueInterrupted();
+
+    ExecutorService executor = Executors.newFixedThreadPool(jobs);
+    Semaphore slots = new Semaphore(jobs);
+    Set<Path> unclaimable = new HashSet<>();
+    try {
+      while (true) {
+        if (Files.exists(spoolDir.resolve(STOP_FILE))) {
+          log.accept("Stop file found, finishing the running jobs");
+          break;
+        }
+
+        List<Path> waiting = listJobs(spoolDir);
+        for (Path job : waiting) {
+          if (!slots.tryAcquire()) {
+            break;
+          }
+          Path claimed;
+          try {
+            claimed = claim(job);
+          } catch (IOException e) {
+            // Tried again on the next poll, but only reported once
+            slots.release();
+            if (unclaimable.add(job)) {
+              failedJobs.increment();
+              log.accept("Job " + getJobName(job) + " could not be claimed: " + e);
+            }
+            continue;
+          }
+          if (claimed == null) {
+            // Taken by another daemon
+            slots.release();
+            continue;
+          }
+          executor.execute(() -> {
+            try {
+              process(claimed);
+            } finally {
+              slots.release();
+            }
+          });
+        }
+
+        if (once && unclaimable.containsAll(waiting) && slots.availablePermits() == jobs) {
+          break;
+        }
+        Thread.sleep(POLL_MILLIS);
+      }
+    } finally {
+      executor.shutdown();
+      executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+      try {
+        Files.deleteIfExists(claimDir);
+      } catch (DirectoryNotEmptyException e) {
+        // A job that could not be finished, queued again by the next daemon on this host
+      }
+    }
+  }
+
+  long getFinishedJobs() {
+    return finishedJobs.sum();
+  }
+
+  long getFailedJobs() {
+    return failedJobs.sum();
+  }
+
+  private void process(Path job) {
+    String name = getJobName(job);
+    Instant started = Instant.now();
+    log.accept("Job " + name + " started");
+
+    JobResult result;
+    try {
+      result = runner.run(readArguments(job), resultsDir.resolve(name + LOG_SUFFIX));
+    } catch (Exception e) {
+      result = JobResult.failed(e.getMessage() != null ? e.getMessage() : e.toString());
+    }
+
+    long duration = System.currentTimeMillis() - started.toEpochMilli();
+    try {
+      writeResult(name, result, started, duration);
+      Files.deleteIfExists(job);
+    } catch (IOException e) {
+      log.accept("Job " + name + ": result cannot be written: " + e.getMessage());
+    }
+
+    finishedJobs.increment();
+    if (result.status == Status.FAILED) {
+      failedJobs.increment();
+      log.accept("Job " + name + " failed: " + result.message);
+    } else {
+      log.accept("Job " + name + " finished: " + result.status + ", " + result.files + " files, "
+          + result.errors + " errors in " + duration + " ms");
+    }
+  }
+
+  private void writeResult(String name, JobResult result, Instant started, long duration) throws IOException {
+    Properties properties = new Properties();
+    properties.setProperty("job", name);
+    properties.setProperty("status", result.status.name());
+    properties.setProperty("exitCode", String.valueOf(result.getExitCode()));
+    properties.setProperty("files", String.valueOf(result.files));
+    properties.setProperty("errors", String.valueOf(result.errors));
+    properties.setProperty("bytes", String.valueOf(result.bytes));
+    properties.setProperty("started", started.toString());
+    properties.setProperty("durationMillis", String.valueOf(duration));
+    if (result.message != null) {
+      properties.setProperty("message", result.message);
+    }
+
+    // Whoever waits for the result never sees it half written
+    Path temp = resultsDir.resolve(name + RESULT_SUFFIX + ".tmp");
+    try (Writer writer = Files.newBufferedWriter(temp, StandardCharsets.UTF_8)) {
+      properties.store(writer, null);
+    }
+    Files.move(temp, resultsDir.resolve(name + RESULT_SUFFIX), StandardCopyOption.REPLACE_EXISTING,
+        StandardCopyOption.ATOMIC_MOVE);
+  }
+
+  /**
+   * Queues the jobs of daemons on this host that ended without finishing them, including an earlier
+   * process with the same ID as this one, and creates the directory of this daemon.
+   */
+  private void requeueInterrupted() throws IOException {
+    List<Path> owners = new ArrayList<>();
+    try (DirectoryStream<Path> dirs = Files.newDirectoryStream(runningDir, Files::isDirectory)) {
+      dirs.forEach(owners::add);
+    }
+    for (Path owner : owners) {
+      String name = owner.getFileName().toString();
+      int dash = name.lastIndexOf('-');
+      if (dash == -1 || !name.substring(0, dash).equals(host)) {
+        continue;
+      }
+      long pid;
+      try {
+        pid = Long.parseLong(name.substring(dash + 1));
+      } catch (NumberFormatException e) {
+        continue;
+      }
+      if (!owner.equals(claimDir) && ProcessHandle.of(pid).map(ProcessHandle::isAlive).orElse(false)) {
+        continue;
+      }
+
+      for (Path job : listJobs(owner)) {
+        log.accept("Job " + getJobName(job) + " was interrupted, queuing it again");
+        Files.move(job, spoolDir.resolve(job.getFileName()), StandardCopyOption.REPLACE_EXISTING);
+      }
+      if (!owner.equals(claimDir)) {
+        try {
+          Files.delete(owner);
+        } catch (IOException e) {
+          log.accept("Directory of an ended daemon cannot be removed: " + e.getMessage());
+        }
+      }
+    }
+    Files.createDirectories(claimDir);
+  }
+
+  /**
+   * @return the job in the directory of this daemon, null if another daemon claimed it first
+   */
+  private Path claim(Path job) throws IOException {
+    Path claimed = claimDir.resolve(job.getFileName());
+    try {
+      return Files.move(job, claimed, StandardCopyOption.ATOMIC_MOVE);
+    } catch (NoSuchFileException e) {
+      return null;
+    }
+  }
+
+  private static List<Path> listJobs(Path dir) throws IOException {
+    List<Path> jobs = new ArrayList<>();
+    try (DirectoryStream<Path> files = Files.newDirectoryStream(dir, "*" + JOB_SUFFIX)) {
+      for (Path file : files) {
+        if (Files.isRegularFile(file)) {
+          jobs.add(file);
+        }
+      }
+    }
+    jobs.sort(null);
+    return jobs;
+  }
+
+  private static String getJobName(Path job) {
+    String fileName = job.getFileName().toString();
+    return fileName.substring(0, fileName.length() - JOB_SUFFIX.length());
+  }
+
+  /**
+   * Reads the command line of a job, one option and its value per line.
+   */
+  static String[] readArguments(Path job) throws IOException {
+    List<String> arguments = new ArrayList<>();
+    for (String line : Files.readAllLines(job, StandardCharsets.UTF_8)) {
+      String text = line.strip();
+      if (text.isEmpty() || text.startsWith("#")) {
+        continue;
+      }
+      int space = text.indexOf(' ');
+      if (space == -1) {
+        arguments.add(text);
+      } else {
+        arguments.add(text.substring(0, space));
+        arguments.add(text.substring(space + 1).strip());
+      }
+    }
+    return arguments.toArray(new String[0]);
+  }
+}
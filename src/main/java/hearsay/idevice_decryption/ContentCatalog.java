@@ -0,0 +1,70 @@
+package hearsay.idevice_decryption;
+
+import hearsay.idevice_decryption.api.BackupFile;
+import hearsay.idevice_decryption.util.ContentType;
+import hearsay.idevice_decryption.util.JsonUtils;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+/**
+ * Catalog of the content types of the decrypted files, one JSON object per line (NDJSON), e.g.
+ * <pre>
+ * {"fileID":"3d0d7e5f...","domain":"HomeDomain","relativePath":"Library/SMS/sms.db","size":1048576,"type":"SQLITE","mimeType":"application/vnd.sqlite3"}
+ * </pre>
+ * The type is detected from the first decrypted bytes while the file is written, see {@link ContentType}.
+ */
+class ContentCatalog {
+  private final Path path;
+  private final BufferedWriter writer;
+  private final Map<ContentType, LongAdder> counts = new EnumMap<>(ContentType.class);
+
+  ContentCatalog(Path path) throws IOException {
+    this.path = path;
+    this.writer = Files.newBufferedWriter(path, StandardCharsets.UTF_8);
+    for (ContentType type : ContentType.values()) {
+      counts.put(type, new LongAdder());
+    }
+  }
+
+  Path getPath() {
+    return path;
+  }
+
+  void add(BackupFile file, long size, ContentType type) throws IOException {
+    counts.get(type).increment();
+    String line = "{\"fileID\":" + JsonUtils.quote(file.fileID)
+        + ",\"domain\":" + JsonUtils.quote(file.domain)
+        + ",\"relativePath\":" + JsonUtils.quote(file.relativePath)
+        + ",\"size\":" + size
+        + ",\"type\":" + JsonUtils.quote(type.name())
+        + ",\"mimeType\":" + JsonUtils.quote(type.mimeType) + "}";
+    synchronized (writer) {
+      writer.write(line);
+      writer.newLine();
+    }
+  }
+
+  /**
+   * Writes the number of files of every type that occurred, most frequent first.
+   */
+  void reportCounts(Consumer<String> log) {
+    counts.entrySet().stream()
+        .filter(entry -> entry.getValue().sum() > 0)
+        .sorted((a, b) -> Long.compare(b.getValue().sum(), a.getValue().sum()))
+        .forEach(entry -> log.accept("  " + entry.getKey() + ": " + entry.getValue().sum() + " files"));
+  }
+
+  void close() throws IOException {
+    synchronized (writer) {
+      writer.close();
+    }
+  }
+}
@@ -0,0 +1,141 @@
+package hearsay.idevice_decryption;
+
+import hearsay.idevice_decryption.api.BackupFile;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.Comparator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+/**
+ * Time and byte limits for a partial extraction.
+ * Files are only started while the budget lasts, files already being decrypted are always finished,
+ * so the output never contains truncated files. Everything that was left out is counted per domain
+ * and optionally written to a tab-separated report.
+ */
+class ExtractionBudget {
+  static final String REASON_TIME = "time budget exhausted";
+  static final String REASON_BYTES = "byte budget exhausted";
+
+  private final long deadline;
+  private final long byteBudget;
+  private final AtomicLong reservedBytes = new AtomicLong(0);
+  private final AtomicInteger skippedFiles = new AtomicInteger(0);
+  private final AtomicLong skippedBytes = new AtomicLong(0);
+  private final Map<String, LongAdder> skippedByDomain = new ConcurrentHashMap<>();
+  private final PrintWriter report;
+
+  /**
+   * @param timeBudget maximum time from now on to start new files, null for no limit
+   * @param byteBudget maximum number of bytes to extract, 0 for no limit
+   * @param reportPath file to list skipped files in, null for none
+   */
+  ExtractionBudget(Duration timeBudget, long byteBudget, Path reportPath) throws IOException {
+    this.deadline = timeBudget == null ? Long.MAX_VALUE : System.nanoTime() + timeBudget.toNanos();
+    this.byteBudget = byteBudget;
+    if (reportPath != null) {
+      this.report = new PrintWriter(Files.newBufferedWriter(reportPath));
+      this.report.println("fileID\tdomain\trelativePath\tsize\treason");
+    } else {
+      this.report = null;
+    }
+  }
+
+  static ExtractionBudget unlimited() {
+    try {
+      return new ExtractionBudget(null, 0, null);
+    } catch (IOException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  boolean isLimited() {
+    return deadline != Long.MAX_VALUE || byteBudget > 0;
+  }
+
+  boolean isTimeExceeded() {
+    return deadline != Long.MAX_VALUE && System.nanoTime() - deadline > 0;
+  }
+
+  /**
+   * Reserves the size of a file before it is handed to a worker.
+   *
+   * @return the reason why the file has to be skipped, or null if it may be extracted
+   */
+  String reserve(BackupFile file) {
+    if (isTimeExceeded()) {
+      return REASON_TIME;
+    }
+    if (byteBudget <= 0) {
+      return null;
+    }
+
+    long size = file.getSize();
+    long reserved;
+    do {
+      reserved = reservedBytes.get();
+      // Smaller files further down the list may still fit
+      if (reserved + size > byteBudget) {
+        return REASON_BYTES;
+      }
+    } while (!reservedBytes.compareAndSet(reserved, reserved + size));
+    return null;
+  }
+
+  /**
+   * Gives back the reservation of a file that was not extracted after all.
+   */
+  void cancel(BackupFile file) {
+    if (byteBudget > 0) {
+      reservedBytes.addAndGet(-file.getSize());
+    }
+  }
+
+  void skip(BackupFile file, String reason) {
+    skippedFiles.incrementAndGet();
+    skippedBytes.addAndGet(file.getSize());
+    skippedByDomain.computeIfAbsent(file.domain, domain -> new LongAdder()).increment();
+
+    if (report != null) {
+      synchronized (report) {
+        report.println(file.fileID + "\t" + file.domain + "\t" + file.relativePath.replace('\t', ' ') + "\t"
+            + file.getSize() + "\t" + reason);
+      }
+    }
+  }
+
+  int getSkippedFiles() {
+    return skippedFiles.get();
+  }
+
+  long getSkippedBytes() {
+    return skippedBytes.get();
+  }
+
+  /**
+   * Logs the number of skipped files of the domains with the most skipped files.
+   */
+  void reportSkippedDomains(int limit, Consumer<String> log) {
+    skippedByDomain.entrySet().stream()
+        .sorted(Map.Entry.<String, LongAdder>comparingByValue(Comparator.comparingLong(LongAdder::sum)).reversed())
+        .limit(limit)
+        .forEach(entry -> log.accept("  " + entry.getKey() + ": " + entry.getValue().sum() + " files"));
+    if (skippedByDomain.size() > limit) {
+      log.accept("  ... and " + (skippedByDomain.size() - limit) + " more domains");
+    }
+  }
+
+  void close() {
+    if (report != null) {
+      report.close();
+    }
+  }
+}
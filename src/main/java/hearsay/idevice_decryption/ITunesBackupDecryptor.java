@@ -1,20 +1,66 @@
 package hearsay.idevice_decryption;
 
 import hearsay.idevice_decryption.api.*;
+import hearsay.idevice_decryption.util.ArchiveWriter;
+import hearsay.idevice_decryption.util.BackupFilePaddingFixer;
+import hearsay.idevice_decryption.util.BufferPool;
+import hearsay.idevice_decryption.util.ByteSizeUtils;
+import hearsay.idevice_decryption.util.ContentStore;
+import hearsay.idevice_decryption.util.ContentType;
+import hearsay.idevice_decryption.util.CryptoProviders;
 import hearsay.idevice_decryption.util.DualLogger;
+import hearsay.idevice_decryption.util.IoGovernor;
+import hearsay.idevice_decryption.util.JsonUtils;
+import hearsay.idevice_decryption.util.PaddingFixingOutputStream;
+import hearsay.idevice_decryption.util.SyntheticBackup;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.io.File;
-import java.io.IOException;
+import java.io.*;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.nio.file.StandardCopyOption;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.security.DigestInputStream;
+import java.security.DigestOutputStream;
 import java.security.InvalidKeyException;
+import java.security.MessageDigest;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Properties;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+
+import javax.crypto.IllegalBlockSizeException;
 
 /**
  * Command-line tool to decrypt all files from an iTunes backup.
@@ -25,18 +71,226 @@ import java.util.concurrent.atomic.AtomicLong;
 public class ITunesBackupDecryptor {
   private static final Logger logger = LoggerFactory.getLogger(ITunesBackupDecryptor.class);
 
+  // Working memory of one worker, see KeyBag#decrypt
+  private static final int WORKER_BUFFER_SIZE = 256 * 1024;
+  // Rough heap size of a parsed BackupFile including its property list
+  private static final int MANIFEST_ENTRY_SIZE = 4 * 1024;
+  private static final int READ_AHEAD_PER_WORKER = 256;
+  private static final long MIN_MEMORY_BUDGET = 2L * WORKER_BUFFER_SIZE;
+  private static final String UNASSIGNED_APPLICATION_DIR = "_unassigned";
+  private static final String APPLICATION_INDEX_FILE = "Applications.tsv";
+  private static final String STORE_MANIFEST_FILE = "Store-Manifest.tsv";
+  private static final String OUTPUT_MANIFEST_FILE = "Output-Manifest.tsv";
+  // Archive entries up to this size are decrypted into a second worker buffer, so that they can be compressed
+  // in parallel; the rest of the buffer leaves room for the padding
+  private static final int ARCHIVE_SPOOL_SIZE = WORKER_BUFFER_SIZE - 16;
+  private static final String COMMAND_DECRYPT = "decrypt";
+  private static final String COMMAND_SCAN = "scan";
+  private static final String COMMAND_LIST = "list";
+  private static final String COMMAND_BATCH = "batch";
+  private static final String COMMAND_MERGE = "merge";
+  private static final String COMMAND_SERVE = "serve";
+  private static final String COMMAND_SELFTEST = "selftest";
+  private static final String DEFAULT_LISTEN_ADDRESS = "127.0.0.1:8080";
+  private static final long DEFAULT_SERVE_CACHE = 64L * 1024 * 1024;
+  private static final String MERGE_REPORT_FILE = "Merge-Report.tsv";
+  // A content file must be unchanged this long before it is decrypted in watch mode
+  private static final long WATCH_SETTLE_MILLIS = 2000;
+  private static final long WATCH_POLL_MILLIS = 1000;
+  private static final int WATCH_QUERY_BATCH = 500;
+  private static final Duration DEFAULT_WATCH_IDLE = Duration.ofMinutes(30);
+  // Manifest rows decoded by one task of the list command
+  private static final int LIST_BATCH_SIZE = 2048;
+  private static final int SELFTEST_FILES = 400;
+  private static final long SELFTEST_SEED = 20250101L;
+  private static final String SELFTEST_PASSWORD = "selftest";
+
   private final boolean verbose;
   private final DualLogger dualLogger;
+  private int threads = 0;
+  private long memoryBudget = 0;
+  private IoGovernor ioGovernor = IoGovernor.unlimited();
+  private Path ioControlFile;
+  private boolean passwordPrompt = true;
+  private FileQuery fileQuery = new FileQuery();
+  private Duration timeBudget;
+  private long byteBudget = 0;
+  private Path skippedReportFile;
+  private BufferPool bufferPool;
+  private boolean perApplication = false;
+  private List<String> selectedApplications = new ArrayList<>();
+  private ArchiveWriter.Format archiveFormat;
+  private ArchiveWriter archive;
+  // Charged to the memory budget while the archive is written
+  private long archiveMemory = 0;
+  private Path archivePath;
+  private Path contentStorePath;
+  private boolean linkToContentStore = true;
+  private ContentStore contentStore;
+  private PrintWriter storeManifest;
+  private boolean writeOutputManifest = false;
+  private OutputManifest outputManifest;
+  private Path contentCatalogPath;
+  private ContentCatalog contentCatalog;
+  private ShardPlan shard;
   private final AtomicInteger processedFiles = new AtomicInteger(0);
   private final AtomicInteger skippedFiles = new AtomicInteger(0);
   private final AtomicInteger errorFiles = new AtomicInteger(0);
   private final AtomicLong totalBytes = new AtomicLong(0);
+  // When the first file was written, to measure startup (0 until then)
+  private final AtomicLong firstFileMillis = new AtomicLong(0);
+  private boolean verify = false;
+  private boolean replaceDirect = false;
+  // The password the backup was unlocked with, to open the manifest again in watch mode
+  private String unlockPassword;
+  private final AtomicInteger verifiedFiles = new AtomicInteger(0);
+  private final AtomicInteger verifiedBySize = new AtomicInteger(0);
+  private final AtomicInteger integrityErrors = new AtomicInteger(0);
 
   public ITunesBackupDecryptor(boolean verbose, String logFilePath) throws IOException {
     this.verbose = verbose;
     this.dualLogger = new DualLogger(logFilePath);
   }
 
+  /**
+   * @param threads number of files that are decrypted concurrently, 0 to choose automatically
+   *                (1 without memory budget, otherwise as many as the budget and the CPUs allow)
+   */
+  public void setThreads(int threads) {
+    if (threads < 0)
+      throw new IllegalArgumentException("Thread count must not be negative");
+    this.threads = threads;
+  }
+
+  /**
+   * Limits the memory used for decryption buffers and for manifest entries read ahead of the workers.
+   *
+   * @param memoryBudget budget in bytes, 0 for no limit
+   */
+  public void setMemoryBudget(long memoryBudget) {
+    if (memoryBudget != 0 && memoryBudget < MIN_MEMORY_BUDGET)
+      throw new IllegalArgumentException("Memory budget must be at least " + formatBytes(MIN_MEMORY_BUDGET));
+    this.memoryBudget = memoryBudget;
+  }
+
+  /**
+   * @param fileQuery selects the files to decrypt and the order in which they are decrypted
+   */
+  public void setFileQuery(FileQuery fileQuery) {
+    this.fileQuery = fileQuery;
+  }
+
+  /**
+   * Stops starting new files once the time or the number of bytes is used up.
+   * Files that are already being decrypted are finished.
+   *
+   * @param timeBudget        maximum duration of the decryption phase, null for no limit
+   * @param byteBudget        maximum number of bytes to decrypt, 0 for no limit
+   * @param skippedReportFile tab-separated list of files left out, null for none
+   */
+  public void setExtractionBudget(Duration timeBudget, long byteBudget, Path skippedReportFile) {
+    this.timeBudget = timeBudget;
+    this.byteBudget = byteBudget;
+    this.skippedReportFile = skippedReportFile;
+  }
+
+  /**
+   * @param ioGovernor limiter shared by all workers for reading the backup and writing the output
+   */
+  public void setIoGovernor(IoGovernor ioGovernor) {
+    this.ioGovernor = ioGovernor;
+  }
+
+  /**
+   * @param ioControlFile properties file that is polled for new I/O limits while decrypting, see
+   *                      {@link IoGovernor#loadControlFile(Path)}
+   */
+  public void setIoControlFile(Path ioControlFile) {
+    this.ioControlFile = ioControlFile;
+  }
+
+  /**
+   * @param passwordPrompt false to fail on encrypted backups without a password instead of asking on the terminal,
+   *                       e.g. for batch jobs, whose terminal belongs to the daemon
+   */
+  public void setPasswordPrompt(boolean passwordPrompt) {
+    this.passwordPrompt = passwordPrompt;
+  }
+
+  /**
+   * Extracts the files of every application into its own directory instead of the backup structure.
+   *
+   * @param applications bundle ids of the applications to extract, empty for all
+   */
+  public void setPerApplication(boolean perApplication, List<String> applications) {
+    this.perApplication = perApplication;
+    this.selectedApplications = new ArrayList<>(applications);
+  }
+
+  /**
+   * Writes all files into a single archive at the output path instead of a directory.
+   *
+   * @param archiveFormat the archive format, null for a directory
+   */
+  public void setArchiveFormat(ArchiveWriter.Format archiveFormat) {
+    this.archiveFormat = archiveFormat;
+  }
+
+  /**
+   * Stores every distinct content once in a content-addressed store shared by many extractions.
+   *
+   * @param contentStorePath the store directory, null to write the files directly
+   * @param link             true to create the output tree as hard links into the store,
+   *                         false to only write a manifest that points into the store
+   */
+  public void setContentStore(Path contentStorePath, boolean link) {
+    this.contentStorePath = contentStorePath;
+    this.linkToContentStore = link;
+  }
+
+  /**
+   * Checks every extracted file against the SHA-1 digest of its content file in the database,
+   * or against its size if there is no digest. The digest is calculated while decrypting.
+   */
+  public void setVerify(boolean verify) {
+    this.verify = verify;
+  }
+
+  /**
+   * Decrypts each file within its content file when replacing, instead of through a temporary copy,
+   * see {@link BackupFile#decryptInPlace}.
+   */
+  public void setReplaceDirect(boolean replaceDirect) {
+    this.replaceDirect = replaceDirect;
+  }
+
+  /**
+   * Calculates the SHA-256 of every file while it is written and lists it in an output manifest
+   * together with file ID, domain, path, size and modification date.
+   */
+  public void setOutputManifest(boolean writeOutputManifest) {
+    this.writeOutputManifest = writeOutputManifest;
+  }
+
+  /**
+   * Detects the type of every file from its first decrypted bytes and writes it to a catalog.
+   *
+   * @param contentCatalogPath the NDJSON file to write, null for none
+   */
+  public void setContentCatalog(Path contentCatalogPath) {
+    this.contentCatalogPath = contentCatalogPath;
+  }
+
+  /**
+   * Extracts only one shard of the files, so that several processes can extract a backup together.
+   * The shard always writes its own output manifest and a completion record for {@link #mergeShards}.
+   *
+   * @param shard the shard, null to extract all files
+   */
+  public void setShard(ShardPlan shard) {
+    this.shard = shard;
+  }
+
   public static void main(String[] args) {
     try {
       Arguments arguments = parseArguments(args);
@@ -46,30 +300,41 @@ public class ITunesBackupDecryptor {
         System.exit(0);
       }
 
-      // Validate arguments
-      if (arguments.backupPath == null) {
-        System.err.println("Error: Backup path is required.");
-        printHelp();
-        System.exit(1);
-      }
-
-      if (arguments.replace && arguments.outputPath != null) {
-        System.err.println("Error: Cannot use both --output and --replace options together.");
-        printHelp();
-        System.exit(1);
+      if (arguments.command.equals(COMMAND_BATCH)) {
+        String problem = checkBatchArguments(arguments);
+        if (problem != null) {
+          System.err.println("Error: " + problem);
+          printHelp();
+          System.exit(1);
+        }
+        if (!runBatch(arguments)) {
+          System.exit(1);
+        }
+        return;
       }
 
-      if (!arguments.replace && arguments.outputPath == null) {
-        System.err.println("Error: Either --output or --replace option is required.");
+      // Validate arguments
+      String problem = checkArguments(arguments);
+      if (problem != null) {
+        System.err.println("Error: " + problem);
         printHelp();
         System.exit(1);
       }
 
+      boolean intact;
       ITunesBackupDecryptor decryptor = null;
       try {
         decryptor = new ITunesBackupDecryptor(arguments.verbose, arguments.logFilePath);
-        decryptor.decryptBackup(arguments.backupPath, arguments.outputPath, arguments.password, arguments.force,
-            arguments.replace);
+        decryptor.configure(arguments);
+        decryptor.setIoGovernor(new IoGovernor(arguments.maxReadRate, arguments.maxWriteRate, arguments.maxIops));
+        if (arguments.ioControlPath != null) {
+          decryptor.setIoControlFile(Paths.get(arguments.ioControlPath));
+        }
+        if (arguments.command.equals(COMMAND_LIST)) {
+          // The listing may go to standard output
+          decryptor.dualLogger.setConsole(System.err);
+        }
+        intact = decryptor.run(arguments);
       } finally {
         // Close the log file if decryptor was created
         if (decryptor != null) {
@@ -77,6 +342,11 @@ public class ITunesBackupDecryptor {
         }
       }
 
+      if (!intact) {
+        // Lets scripts tell a damaged backup from a failed scan (1)
+        System.exit(2);
+      }
+
     } catch (IllegalArgumentException e) {
       System.err.println("Error: " + e.getMessage());
       printHelp();
@@ -89,6 +359,7 @@ public class ITunesBackupDecryptor {
   }
 
   private static class Arguments {
+    String command = COMMAND_DECRYPT;
     String backupPath;
     String outputPath;
     String password;
@@ -97,12 +368,405 @@ public class ITunesBackupDecryptor {
     boolean force = false;
     boolean help = false;
     boolean replace = false;
+    boolean replaceDirect = false;
+    int threads = 0;
+    long maxMemory = 0;
+    long maxReadRate = 0;
+    long maxWriteRate = 0;
+    long maxIops = 0;
+    String ioControlPath;
+    List<String> priorityRules = new ArrayList<>();
+    String priorityFilePath;
+    Duration timeBudget;
+    long byteBudget = 0;
+    String skippedReportPath;
+    List<String> domains = new ArrayList<>();
+    List<String> includeRules = new ArrayList<>();
+    List<String> excludeRules = new ArrayList<>();
+    List<String> extensions = new ArrayList<>();
+    long minSize = 0;
+    long maxSize = Long.MAX_VALUE;
+    boolean perApplication = false;
+    List<String> applications = new ArrayList<>();
+    ArchiveWriter.Format archiveFormat;
+    String storePath;
+    boolean storeLinks = true;
+    boolean verify = false;
+    String reportPath;
+    boolean outputManifest = false;
+    String catalogPath;
+    ListFormat listFormat;
+    boolean watch = false;
+    Duration watchIdle;
+    String spoolPath;
+    ShardPlan shard;
+    String listenAddress;
+    long serveCache = -1;
+    boolean allowRegex = false;
+    ShardPlan.Strategy shardBy;
+    int jobs = 0;
+    boolean once = false;
+    int selfTestFiles = 0;
+    String cryptoProvider;
+  }
+
+  private enum ListFormat {
+    NDJSON, CSV
+  }
+
+  /**
+   * @param filesOnly true to leave out directories and symbolic links
+   */
+  private static FileQuery buildFileQuery(Arguments arguments, boolean filesOnly) throws IOException {
+    // Directories are created as needed, so their rows don't have to be parsed at all
+    FileQuery query = filesOnly ? new FileQuery().filesOnly() : new FileQuery();
+    query.domains(arguments.domains);
+    query.extensions(arguments.extensions);
+    for (String rule : arguments.includeRules) {
+      query.include(FileRule.parse(rule));
+    }
+    for (String rule : arguments.excludeRules) {
+      query.exclude(FileRule.parse(rule));
+    }
+    if (arguments.minSize > 0 || arguments.maxSize != Long.MAX_VALUE) {
+      query.sizeRange(arguments.minSize, arguments.maxSize);
+    }
+
+    if (arguments.priorityFilePath != null) {
+      for (String line : Files.readAllLines(Paths.get(arguments.priorityFilePath))) {
+        int comment = line.indexOf('#');
+        String rule = (comment == -1 ? line : line.substring(0, comment)).trim();
+        if (!rule.isEmpty()) {
+          query.prioritize(FileRule.parse(rule));
+        }
+      }
+    }
+    for (String rule : arguments.priorityRules) {
+      query.prioritize(FileRule.parse(rule));
+    }
+    return query;
+  }
+
+  /**
+   * Checks that the options of a command fit together.
+   *
+   * @return the problem, null if there is none
+   */
+  private static String checkArguments(Arguments arguments) {
+    if (!arguments.command.equals(COMMAND_BATCH) && (arguments.spoolPath != null || arguments.jobs > 0
+        || arguments.once)) {
+      return "--spool, --jobs and --once can only be used with batch.";
+    }
+
+    if (!arguments.command.equals(COMMAND_SELFTEST) && arguments.selfTestFiles > 0) {
+      return "--files can only be used with selftest.";
+    }
+
+    if (arguments.command.equals(COMMAND_SELFTEST)) {
+      if (arguments.backupPath != null || arguments.password != null || arguments.replace
+          || arguments.archiveFormat != null || arguments.storePath != null || arguments.perApplication
+          || arguments.watch || arguments.shard != null || arguments.listenAddress != null
+          || arguments.reportPath != null) {
+        return "selftest generates its own backup, it only takes -o, --files, -t, -l and -v.";
+      }
+      return null;
+    }
+
+    if (arguments.backupPath == null) {
+      return "Backup path is required.";
+    }
+
+    boolean scan = arguments.command.equals(COMMAND_SCAN);
+    if (scan && (arguments.outputPath != null || arguments.replace || arguments.archiveFormat != null
+        || arguments.storePath != null || arguments.perApplication)) {
+      return "scan writes no files, it cannot be combined with output options.";
+    }
+
+    if (scan && arguments.outputManifest) {
+      return "--output-manifest cannot be used with scan.";
+    }
+
+    boolean list = arguments.command.equals(COMMAND_LIST);
+    if (list && (arguments.replace || arguments.archiveFormat != null || arguments.storePath != null
+        || arguments.perApplication || arguments.verify || arguments.outputManifest || arguments.catalogPath != null)) {
+      return "list only reads the manifest, it cannot be combined with decryption options.";
+    }
+
+    if (!list && arguments.listFormat != null) {
+      return "--format can only be used with list.";
+    }
+
+    if (arguments.watch && (scan || list || arguments.replace || arguments.archiveFormat != null
+        || arguments.storePath != null || arguments.perApplication)) {
+      return "--watch only works with a plain output directory.";
+    }
+
+    boolean serve = arguments.command.equals(COMMAND_SERVE);
+    if (serve && (arguments.outputPath != null || arguments.replace || arguments.archiveFormat != null
+        || arguments.storePath != null || arguments.perApplication || arguments.verify || arguments.outputManifest
+        || arguments.catalogPath != null || arguments.watch || arguments.shard != null)) {
+      return "serve only reads the backup, it cannot be combined with output options.";
+    }
+
+    if (!serve && (arguments.listenAddress != null || arguments.serveCache >= 0 || arguments.allowRegex)) {
+      return "--listen, --cache and --allow-regex can only be used with serve.";
+    }
+
+    boolean merge = arguments.command.equals(COMMAND_MERGE);
+    if (merge && (arguments.replace || arguments.archiveFormat != null || arguments.storePath != null
+        || arguments.perApplication || arguments.verify || arguments.outputManifest || arguments.catalogPath != null
+        || arguments.watch || arguments.shard != null)) {
+      return "merge only checks and combines the shards in the output directory, it takes no output options.";
+    }
+
+    if (arguments.shard != null && (!arguments.command.equals(COMMAND_DECRYPT) || arguments.replace
+        || arguments.archiveFormat != null || arguments.storePath != null || arguments.perApplication
+        || arguments.watch)) {
+      return "--shard only works when decrypting to a plain output directory.";
+    }
+
+    if (arguments.shard == null && arguments.shardBy != null) {
+      return "--shard-by can only be used with --shard.";
+    }
+
+    if (!scan && arguments.reportPath != null) {
+      return "--report can only be used with scan.";
+    }
+
+    if (arguments.replace && arguments.outputPath != null) {
+      return "Cannot use both --output and --replace options together.";
+    }
+
+    if (!scan && !list && !serve && !arguments.replace && arguments.outputPath == null) {
+      return "Either --output or --replace option is required.";
+    }
+
+    if (arguments.replaceDirect && !arguments.replace) {
+      return "--direct can only be used with --replace.";
+    }
+
+    if (arguments.archiveFormat != null && arguments.replace) {
+      return "Cannot use --output-format together with --replace.";
+    }
+
+    if (arguments.storePath != null && (arguments.replace || arguments.archiveFormat != null)) {
+      return "--store can only be used with a directory output.";
+    }
+
+    if (arguments.perApplication && arguments.replace) {
+      return "Cannot use --per-app together with --replace.";
+    }
+
+    if (arguments.perApplication && (!arguments.domains.isEmpty() || !arguments.includeRules.isEmpty()
+        || !arguments.excludeRules.isEmpty() || !arguments.extensions.isEmpty() || arguments.minSize > 0
+        || arguments.maxSize != Long.MAX_VALUE || !arguments.priorityRules.isEmpty()
+        || arguments.priorityFilePath != null)) {
+      return "File filters and priorities cannot be combined with --per-app.";
+    }
+
+    return null;
+  }
+
+  /**
+   * Applies the options of a command, except for the I/O limits.
+   */
+  private void configure(Arguments arguments) throws IOException {
+    if (arguments.cryptoProvider != null) {
+      CryptoProviders.configure(arguments.cryptoProvider);
+      log("Crypto providers: " + CryptoProviders.describe());
+    }
+    setThreads(arguments.threads);
+    setMemoryBudget(arguments.maxMemory);
+    setFileQuery(buildFileQuery(arguments, !arguments.command.equals(COMMAND_LIST)));
+    setExtractionBudget(arguments.timeBudget, arguments.byteBudget,
+        arguments.skippedReportPath != null ? Paths.get(arguments.skippedReportPath) : null);
+    setPerApplication(arguments.perApplication, arguments.applications);
+    setArchiveFormat(arguments.archiveFormat);
+    setVerify(arguments.verify);
+    setReplaceDirect(arguments.replaceDirect);
+    setOutputManifest(arguments.outputManifest);
+    if (arguments.catalogPath != null) {
+      setContentCatalog(Paths.get(arguments.catalogPath));
+    }
+    if (arguments.storePath != null) {
+      setContentStore(Paths.get(arguments.storePath), arguments.storeLinks);
+    }
+    if (arguments.shard != null) {
+      setShard(new ShardPlan(arguments.shard.index, arguments.shard.count,
+          arguments.shardBy != null ? arguments.shardBy : ShardPlan.Strategy.PREFIX));
+    }
+  }
+
+  /**
+   * Runs the command of the arguments.
+   *
+   * @return false if a scan found damaged files or a merge found the output incomplete
+   */
+  private boolean run(Arguments arguments) throws Exception {
+    switch (arguments.command) {
+      case COMMAND_LIST:
+        listBackup(arguments.backupPath, arguments.password, arguments.outputPath,
+            arguments.listFormat != null ? arguments.listFormat : ListFormat.NDJSON, arguments.force);
+        return true;
+      case COMMAND_SERVE:
+        serveBackup(arguments.backupPath, arguments.password,
+            parseListenAddress(arguments.listenAddress != null ? arguments.listenAddress : DEFAULT_LISTEN_ADDRESS),
+            arguments.serveCache >= 0 ? arguments.serveCache : DEFAULT_SERVE_CACHE, arguments.allowRegex);
+        return true;
+      case COMMAND_MERGE:
+        return mergeShards(arguments.backupPath, arguments.outputPath, arguments.password);
+      case COMMAND_SCAN:
+        return scanBackup(arguments.backupPath, arguments.password,
+            arguments.reportPath != null ? Paths.get(arguments.reportPath) : null);
+      case COMMAND_SELFTEST:
+        return selfTest(arguments.outputPath, arguments.selfTestFiles > 0 ? arguments.selfTestFiles : SELFTEST_FILES);
+      default:
+        if (arguments.watch) {
+          watchBackup(arguments.backupPath, arguments.outputPath, arguments.password, arguments.force,
+              arguments.watchIdle != null ? arguments.watchIdle : DEFAULT_WATCH_IDLE);
+        } else {
+          decryptBackup(arguments.backupPath, arguments.outputPath, arguments.password, arguments.force,
+              arguments.replace);
+        }
+        return true;
+    }
+  }
+
+  /**
+   * Parses <code>[HOST:]PORT</code>, without a host only local connections are accepted.
+   */
+  private static InetSocketAddress parseListenAddress(String value) {
+    int colon = value.lastIndexOf(':');
+    String host = colon == -1 ? "127.0.0.1" : value.substring(0, colon);
+    try {
+      int port = Integer.parseInt(value.substring(colon + 1));
+      if (port < 0 || port > 65535)
+        throw new NumberFormatException();
+      return new InetSocketAddress(host, port);
+    } catch (NumberFormatException e) {
+      throw new IllegalArgumentException("Invalid value for --listen: " + value);
+    }
+  }
+
+  private static String checkBatchArguments(Arguments arguments) {
+    if (arguments.spoolPath == null) {
+      return "batch requires --spool.";
+    }
+    if (arguments.backupPath != null || arguments.outputPath != null || arguments.replace
+        || arguments.password != null) {
+      return "Backups, outputs and passwords of batch jobs belong in the job files.";
+    }
+    return null;
+  }
+
+  /**
+   * Checks the options of a batch job beyond {@link #checkArguments(Arguments)}; jobs run without a terminal.
+   */
+  private static String checkJobArguments(Arguments arguments) {
+    if (arguments.command.equals(COMMAND_BATCH)) {
+      return "A batch job cannot start another batch.";
+    }
+    if (arguments.command.equals(COMMAND_SERVE) || arguments.watch) {
+      return "serve and --watch do not finish on their own and would take a job slot for good.";
+    }
+    if (arguments.command.equals(COMMAND_LIST) && arguments.outputPath == null) {
+      return "list needs -o in a batch job.";
+    }
+    if (arguments.replace && !arguments.force) {
+      return "--replace needs --force in a batch job, there is nobody to confirm it.";
+    }
+    if (arguments.maxReadRate > 0 || arguments.maxWriteRate > 0 || arguments.maxIops > 0
+        || arguments.ioControlPath != null) {
+      return "I/O limits are shared by all jobs and set on the batch command.";
+    }
+    if (arguments.cryptoProvider != null) {
+      return "Crypto providers are shared by all jobs and set on the batch command.";
+    }
+    return null;
+  }
+
+  /**
+   * Runs the jobs of a spool directory in this process, under one thread, memory and I/O budget for all jobs.
+   *
+   * @return false if jobs failed
+   */
+  private static boolean runBatch(Arguments arguments) throws Exception {
+    int jobs = arguments.jobs > 0 ? arguments.jobs : 1;
+    int threads = arguments.threads > 0 ? arguments.threads : Runtime.getRuntime().availableProcessors();
+    // Each job gets its share of the budget, a job may ask for less
+    int jobThreads = Math.max(1, threads / jobs);
+    long jobMemory = arguments.maxMemory > 0 ? Math.max(MIN_MEMORY_BUDGET, arguments.maxMemory / jobs) : 0;
+    IoGovernor ioGovernor = new IoGovernor(arguments.maxReadRate, arguments.maxWriteRate, arguments.maxIops);
+    Path ioControlFile = arguments.ioControlPath != null ? Paths.get(arguments.ioControlPath) : null;
+
+    DualLogger batchLogger = new DualLogger(arguments.logFilePath);
+    try {
+      Path spoolDir = Paths.get(arguments.spoolPath);
+      batchLogger.info("Batch spool directory: " + spoolDir);
+      batchLogger.info("Jobs at a time: " + jobs + ", threads per job: " + jobThreads
+          + (jobMemory > 0 ? ", memory per job: " + formatBytes(jobMemory) : ""));
+      if (arguments.cryptoProvider != null) {
+        CryptoProviders.configure(arguments.cryptoProvider);
+        batchLogger.info("Crypto providers: " + CryptoProviders.describe());
+      }
+
+      BatchDaemon daemon = new BatchDaemon(spoolDir, jobs, (jobArguments, logFile) -> {
+        Arguments job = parseArguments(jobArguments);
+        String problem = checkArguments(job);
+        if (problem == null) {
+          problem = checkJobArguments(job);
+        }
+        if (problem != null) {
+          throw new IllegalArgumentException(problem);
+        }
+
+        ITunesBackupDecryptor decryptor = new ITunesBackupDecryptor(job.verbose || arguments.verbose,
+            job.logFilePath != null ? job.logFilePath : logFile.toString());
+        try {
+          // Jobs log to their own files only, the console belongs to the daemon
+          decryptor.dualLogger.setConsole(new PrintStream(OutputStream.nullOutputStream()));
+          decryptor.setPasswordPrompt(false);
+          decryptor.configure(job);
+          decryptor.setThreads(job.threads > 0 ? Math.min(job.threads, jobThreads) : jobThreads);
+          if (jobMemory > 0) {
+            decryptor.setMemoryBudget(job.maxMemory > 0 ? Math.min(job.maxMemory, jobMemory) : jobMemory);
+          }
+          decryptor.setIoGovernor(ioGovernor);
+          decryptor.setIoControlFile(ioControlFile);
+          boolean intact = decryptor.run(job);
+          return new BatchDaemon.JobResult(intact ? BatchDaemon.Status.OK : BatchDaemon.Status.DAMAGED,
+              decryptor.processedFiles.get(), decryptor.errorFiles.get(), decryptor.totalBytes.get(), null);
+        } catch (Exception e) {
+          decryptor.dualLogger.error("Error: " + e.getMessage());
+          throw e;
+        } finally {
+          decryptor.dualLogger.close();
+        }
+      }, batchLogger::info);
+      daemon.run(arguments.once);
+
+      batchLogger.info("Batch finished: " + daemon.getFinishedJobs() + " jobs, " + daemon.getFailedJobs()
+          + " failed");
+      return daemon.getFailedJobs() == 0;
+    } finally {
+      batchLogger.close();
+    }
   }
 
   private static Arguments parseArguments(String[] args) {
     Arguments arguments = new Arguments();
 
-    for (int i = 0; i < args.length; i++) {
+    // An optional command comes first, without it the backup is decrypted
+    int first = 0;
+    if (args.length > 0 && !args[0].startsWith("-")) {
+      arguments.command = args[0];
+      first = 1;
+      if (!List.of(COMMAND_DECRYPT, COMMAND_SCAN, COMMAND_LIST, COMMAND_BATCH, COMMAND_MERGE,
+          COMMAND_SERVE, COMMAND_SELFTEST).contains(arguments.command))
+        throw new IllegalArgumentException("Unknown command: " + arguments.command);
+    }
+
+    for (int i = first; i < args.length; i++) {
       String arg = args[i];
 
       switch (arg) {
@@ -142,240 +806,1771 @@ public class ITunesBackupDecryptor {
         case "--replace":
           arguments.replace = true;
           break;
-        case "-h":
-        case "--help":
-          arguments.help = true;
+        case "--direct":
+          arguments.replaceDirect = true;
           break;
-        default:
-          throw new IllegalArgumentException("Unknown argument: " + arg);
-      }
-    }
-
-    return arguments;
-  }
-
-  private static void printHelp() {
-    System.out.println("iTunes Backup Decryptor - Command Line Tool");
-    System.out.println("Decrypt all files from an iTunes backup");
-    System.out.println();
-    System.out.println("Usage: java -jar itunes-backup-decryptor.jar [OPTIONS]");
-    System.out.println();
-    System.out.println("Options:");
-    System.out.println("  -b, --backup PATH      Path to iTunes backup directory (required)");
-    System.out.println("  -o, --output PATH      Output directory for decrypted files");
-    System.out.println("  -r, --replace          Replace encrypted files in-place with decrypted versions");
-    System.out.println("  -p, --password PASS    Backup password (will prompt if not provided)");
-    System.out.println("  -l, --log PATH         Write logs to specified file (overwrites if exists)");
-    System.out.println("  -v, --verbose          Enable verbose output");
-    System.out.println(
-        "  -f, --force            Overwrite existing files (in output mode) or skip confirmation (in replace mode)");
-    System.out.println("  -h, --help             Show this help message");
-    System.out.println();
-    System.out.println("Note: Either --output or --replace is required, but not both.");
-    System.out.println();
-    System.out.println("Examples:");
-    System.out.println("  # Extract to separate directory (preserves original backup)");
-    System.out.println("  java -jar itunes-backup-decryptor.jar -b /path/to/backup -o /path/to/output");
-    System.out
-        .println("  java -jar itunes-backup-decryptor.jar -b /path/to/backup -o /path/to/output -p mypassword -v");
-    System.out.println();
-    System.out.println("  # Replace encrypted files in-place (modifies original backup)");
-    System.out.println("  java -jar itunes-backup-decryptor.jar -b /path/to/backup -r");
-    System.out.println("  java -jar itunes-backup-decryptor.jar -b /path/to/backup -r -p mypassword -v");
-    System.out.println();
-    System.out.println("Output mode preserves the original backup directory structure with decrypted files:");
-    System.out.println("  output/");
-    System.out.println("    ├── Manifest.db       (database with file mappings)");
-    System.out.println("    ├── Manifest.plist    (backup metadata)");
-    System.out.println("    ├── Info.plist        (device information)");
-    System.out.println("    ├── ab/");
-    System.out.println("    │   ├── ab123456...    (decrypted files)");
-    System.out.println("    ├── cd/");
-    System.out.println("    │   └── cd789abc...    (decrypted files)");
-    System.out.println("    └── ...");
-    System.out.println();
-    System.out.println("Replace mode decrypts files directly in the backup directory, preserving the exact structure.");
-  }
-
-  public void decryptBackup(String backupPath, String outputPath, String password, boolean force, boolean replace)
-      throws Exception {
-
-    log("Starting iTunes backup decryption...");
-    log("Backup path: " + backupPath);
-    if (replace) {
-      log("Mode: In-place replacement");
-    } else {
-      log("Mode: Extract to output directory: " + outputPath);
-    }
-
-    File backupDir = new File(backupPath);
-    if (!backupDir.exists() || !backupDir.isDirectory()) {
-      throw new IllegalArgumentException("Backup directory does not exist: " + backupPath);
-    }
-
-    Path outputDir = null;
-    if (!replace) {
-      outputDir = Paths.get(outputPath);
-      if (!Files.exists(outputDir)) {
-        Files.createDirectories(outputDir);
-        log("Created output directory: " + outputPath);
-      } else if (!force) {
-        File[] files = outputDir.toFile().listFiles();
-        if (files != null && files.length > 0) {
-          throw new IllegalArgumentException("Output directory is not empty. Use --force to overwrite existing files.");
-        }
-      }
-    } else {
-      log("Replace mode: Files will be decrypted in-place in the backup directory");
-      if (!force) {
-        log("WARNING: This will modify the original backup files. Use --force to skip this warning in the future.");
-        System.out.print("Continue? (y/N): ");
-        String response = System.console() != null ? System.console().readLine() : "n";
-        if (!response.toLowerCase().startsWith("y")) {
-          log("Operation cancelled by user.");
-          return;
-        }
-      }
-    }
-
-    log("Loading iTunes backup from: " + backupPath);
-    ITunesBackup backup = new ITunesBackup(backupDir);
-
-    log("Backup Info:");
-    log("  Device: " + backup.manifest.deviceName);
-    log("  Product: " + backup.manifest.productType + " (" + backup.manifest.productVersion + ")");
-    log("  Date: " + backup.manifest.date);
-    log("  Encrypted: " + backup.manifest.encrypted);
-
-    // Handle encryption
-    if (backup.manifest.encrypted) {
-      if (backup.isLocked()) {
-        if (password == null) {
-          System.out.print("Enter backup password: ");
-          password = System.console().readLine();
-        }
-
-        log("Unlocking encrypted backup...");
-        try {
-          backup.manifest.getKeyBag().get().unlock(password);
+        case "-t":
+        case "--threads":
+          if (i + 1 >= args.length)
+            throw new IllegalArgumentException("Missing value for " + arg);
+          arguments.threads = parseCount(arg, args[++i]);
+          break;
+        case "--max-memory":
+          if (i + 1 >= args.length)
+            throw new IllegalArgumentException("Missing value for " + arg);
+          arguments.maxMemory = ByteSizeUtils.parseBytes(args[++i]);
+          break;
+        case "--max-read-rate":
+          if (i + 1 >= args.length)
+            throw new IllegalArgumentException("Missing value for " + arg);
+          arguments.maxReadRate = ByteSizeUtils.parseBytes(args[++i]);
+          break;
+        case "--max-write-rate":
+          if (i + 1 >= args.length)
+            throw new IllegalArgumentException("Missing value for " + arg);
+          arguments.maxWriteRate = ByteSizeUtils.parseBytes(args[++i]);
+          break;
+        case "--max-iops":
+          if (i + 1 >= args.length)
+            throw new IllegalArgumentException("Missing value for " + arg);
+          arguments.maxIops = parseCount(arg, args[++i]);
+          break;
+        case "--io-control":
+          if (i + 1 >= args.length)
+            throw new IllegalArgumentException("Missing value for " + arg);
+          arguments.ioControlPath = args[++i];
+          break;
+        case "-d":
+        case "--domain":
+          if (i + 1 >= args.length)
+            throw new IllegalArgumentException("Missing value for " + arg);
+          arguments.domains.add(args[++i]);
+          break;
+        case "--include":
+          if (i + 1 >= args.length)
+            throw new IllegalArgumentException("Missing value for " + arg);
+          arguments.includeRules.add(args[++i]);
+          break;
+        case "--exclude":
+          if (i + 1 >= args.length)
+            throw new IllegalArgumentException("Missing value for " + arg);
+          arguments.excludeRules.add(args[++i]);
+          break;
+        case "--ext":
+          if (i + 1 >= args.length)
+            throw new IllegalArgumentException("Missing value for " + arg);
+          arguments.extensions.addAll(List.of(args[++i].split("[|,]")));
+          break;
+        case "--min-size":
+          if (i + 1 >= args.length)
+            throw new IllegalArgumentException("Missing value for " + arg);
+          arguments.minSize = ByteSizeUtils.parseBytes(args[++i]);
+          break;
+        case "--max-size":
+          if (i + 1 >= args.length)
+            throw new IllegalArgumentException("Missing value for " + arg);
+          arguments.maxSize = ByteSizeUtils.parseBytes(args[++i]);
+          break;
+        case "--priority":
+          if (i + 1 >= args.length)
+            throw new IllegalArgumentException("Missing value for " + arg);
+          arguments.priorityRules.add(args[++i]);
+          break;
+        case "--priority-file":
+          if (i + 1 >= args.length)
+            throw new IllegalArgumentException("Missing value for " + arg);
+          arguments.priorityFilePath = args[++i];
+          break;
+        case "--time-budget":
+          if (i + 1 >= args.length)
+            throw new IllegalArgumentException("Missing value for " + arg);
+          arguments.timeBudget = parseDuration(arg, args[++i]);
+          break;
+        case "--byte-budget":
+          if (i + 1 >= args.length)
+            throw new IllegalArgumentException("Missing value for " + arg);
+          arguments.byteBudget = ByteSizeUtils.parseBytes(args[++i]);
+          break;
+        case "--skipped-report":
+          if (i + 1 >= args.length)
+            throw new IllegalArgumentException("Missing value for " + arg);
+          arguments.skippedReportPath = args[++i];
+          break;
+        case "--output-format":
+          if (i + 1 >= args.length)
+            throw new IllegalArgumentException("Missing value for " + arg);
+          String format = args[++i];
+          arguments.archiveFormat = format.equalsIgnoreCase("dir") ? null : ArchiveWriter.Format.parse(format);
+          break;
+        case "--verify":
+          arguments.verify = true;
+          break;
+        case "--output-manifest":
+          arguments.outputManifest = true;
+          break;
+        case "--catalog":
+          if (i + 1 >= args.length)
+            throw new IllegalArgumentException("Missing value for " + arg);
+          arguments.catalogPath = args[++i];
+          break;
+        case "--format":
+          if (i + 1 >= args.length)
+            throw new IllegalArgumentException("Missing value for " + arg);
+          String listFormat = args[++i];
+          try {
+            arguments.listFormat = ListFormat.valueOf(listFormat.toUpperCase());
+          } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("Invalid value for " + arg + ": " + listFormat);
+          }
+          break;
+        case "--watch":
+          arguments.watch = true;
+          break;
+        case "--watch-idle":
+          if (i + 1 >= args.length)
+            throw new IllegalArgumentException("Missing value for " + arg);
+          arguments.watchIdle = parseDuration(arg, args[++i]);
+          arguments.watch = true;
+          break;
+        case "--shard":
+          if (i + 1 >= args.length)
+            throw new IllegalArgumentException("Missing value for " + arg);
+          arguments.shard = ShardPlan.parse(args[++i], ShardPlan.Strategy.PREFIX);
+          break;
+        case "--shard-by":
+          if (i + 1 >= args.length)
+            throw new IllegalArgumentException("Missing value for " + arg);
+          String strategy = args[++i];
+          if (strategy.equals("prefix")) {
+            arguments.shardBy = ShardPlan.Strategy.PREFIX;
+          } else if (strategy.equals("size")) {
+            arguments.shardBy = ShardPlan.Strategy.SIZE;
+          } else {
+            throw new IllegalArgumentException("Invalid value for " + arg + ": " + strategy + " (expected prefix or size)");
+          }
+          break;
+        case "--listen":
+          if (i + 1 >= args.length)
+            throw new IllegalArgumentException("Missing value for " + arg);
+          arguments.listenAddress = args[++i];
+          break;
+        case "--cache":
+          if (i + 1 >= args.length)
+            throw new IllegalArgumentException("Missing value for " + arg);
+          arguments.serveCache = ByteSizeUtils.parseBytes(args[++i]);
+          break;
+        case "--allow-regex":
+          arguments.allowRegex = true;
+          break;
+        case "--spool":
+          if (i + 1 >= args.length)
+            throw new IllegalArgumentException("Missing value for " + arg);
+          arguments.spoolPath = args[++i];
+          break;
+        case "--jobs":
+          if (i + 1 >= args.length)
+            throw new IllegalArgumentException("Missing value for " + arg);
+          arguments.jobs = parseCount(arg, args[++i]);
+          break;
+        case "--once":
+          arguments.once = true;
+          break;
+        case "--crypto-provider":
+          if (i + 1 >= args.length)
+            throw new IllegalArgumentException("Missing value for " + arg);
+          arguments.cryptoProvider = args[++i];
+          break;
+        case "--files":
+          if (i + 1 >= args.length)
+            throw new IllegalArgumentException("Missing value for " + arg);
+          arguments.selfTestFiles = parseCount(arg, args[++i]);
+          break;
+        case "--report":
+          if (i + 1 >= args.length)
+            throw new IllegalArgumentException("Missing value for " + arg);
+          arguments.reportPath = args[++i];
+          break;
+        case "--store":
+          if (i + 1 >= args.length)
+            throw new IllegalArgumentException("Missing value for " + arg);
+          arguments.storePath = args[++i];
+          break;
+        case "--store-layout":
+          if (i + 1 >= args.length)
+            throw new IllegalArgumentException("Missing value for " + arg);
+          String layout = args[++i];
+          if (layout.equalsIgnoreCase("link")) {
+            arguments.storeLinks = true;
+          } else if (layout.equalsIgnoreCase("manifest")) {
+            arguments.storeLinks = false;
+          } else {
+            throw new IllegalArgumentException("Invalid value for " + arg + ": " + layout);
+          }
+          break;
+        case "--per-app":
+          arguments.perApplication = true;
+          break;
+        case "--app":
+          if (i + 1 >= args.length)
+            throw new IllegalArgumentException("Missing value for " + arg);
+          arguments.applications.add(args[++i]);
+          arguments.perApplication = true;
+          break;
+        case "-h":
+        case "--help":
+          arguments.help = true;
+          break;
+        default:
+          throw new IllegalArgumentException("Unknown argument: " + arg);
+      }
+    }
+
+    return arguments;
+  }
+
+  /**
+   * Parses durations like 90s, 15m, 2h or a plain number of seconds.
+   */
+  private static Duration parseDuration(String arg, String value) {
+    String text = value.trim().toLowerCase();
+    try {
+      if (text.endsWith("ms")) {
+        return Duration.ofMillis(Long.parseLong(text.substring(0, text.length() - 2)));
+      } else if (text.endsWith("h")) {
+        return Duration.ofHours(Long.parseLong(text.substring(0, text.length() - 1)));
+      } else if (text.endsWith("m")) {
+        return Duration.ofMinutes(Long.parseLong(text.substring(0, text.length() - 1)));
+      } else if (text.endsWith("s")) {
+        return Duration.ofSeconds(Long.parseLong(text.substring(0, text.length() - 1)));
+      } else {
+        return Duration.ofSeconds(Long.parseLong(text));
+      }
+    } catch (NumberFormatException e) {
+      throw new IllegalArgumentException("Invalid duration for " + arg + ": " + value);
+    }
+  }
+
+  private static int parseCount(String arg, String value) {
+    try {
+      int count = Integer.parseInt(value);
+      if (count < 1)
+        throw new IllegalArgumentException("Value for " + arg + " must be at least 1");
+      return count;
+    } catch (NumberFormatException e) {
+      throw new IllegalArgumentException("Invalid number for " + arg + ": " + value);
+    }
+  }
+
+  private static void printHelp() {
+    System.out.println("iTunes Backup Decryptor - Command Line Tool");
+    System.out.println("Decrypt all files from an iTunes backup");
+    System.out.println();
+    System.out.println("Usage: java -jar itunes-backup-decryptor.jar [decrypt] [OPTIONS]");
+    System.out.println("       java -jar itunes-backup-decryptor.jar scan -b PATH [--report PATH] [OPTIONS]");
+    System.out.println("       java -jar itunes-backup-decryptor.jar list -b PATH [-o FILE] [--format ndjson|csv]");
+    System.out.println("       java -jar itunes-backup-decryptor.jar serve -b PATH [--listen [HOST:]PORT] [--cache SIZE] [--allow-regex]");
+    System.out.println("       java -jar itunes-backup-decryptor.jar merge -b PATH -o PATH [OPTIONS]");
+    System.out.println("       java -jar itunes-backup-decryptor.jar batch --spool DIR [--jobs N] [--once] [OPTIONS]");
+    System.out.println("       java -jar itunes-backup-decryptor.jar selftest [-o DIR] [--files N]");
+    System.out.println();
+    System.out.println("Commands:");
+    System.out.println("  decrypt                Decrypt the backup (default)");
+    System.out.println("  scan                   Decrypt every file without writing it, to check that the backup is intact");
+    System.out.println("  list                   List the files of the manifest (to standard output without -o)");
+    System.out.println("  serve                  Serve the decrypted files over HTTP without extracting them");
+    System.out.println("  merge                  Check and combine the shards extracted with --shard into one output");
+    System.out.println("  batch                  Run the jobs of a spool directory, one command line per *.job file");
+    System.out.println("  selftest               Decrypt, scan and list a generated backup and check the results");
+    System.out.println("                         (kept in the -o directory if given, password \"" + SELFTEST_PASSWORD + "\")");
+    System.out.println();
+    System.out.println("Options:");
+    System.out.println("  -b, --backup PATH      Path to iTunes backup directory (required)");
+    System.out.println("  -o, --output PATH      Output directory for decrypted files");
+    System.out.println("  -r, --replace          Replace encrypted files in-place with decrypted versions");
+    System.out.println("  --direct               With --replace, decrypt within each file instead of through a copy");
+    System.out.println("                         (no free space needed, interrupted files are finished on the next run)");
+    System.out.println("  -p, --password PASS    Backup password (will prompt if not provided)");
+    System.out.println("  -l, --log PATH         Write logs to specified file (overwrites if exists)");
+    System.out.println("  -v, --verbose          Enable verbose output");
+    System.out.println("  -t, --threads N        Number of files to decrypt in parallel");
+    System.out.println("                         (default: 1, or as many as --max-memory allows)");
+    System.out.println("  --max-memory SIZE      Memory budget for decryption buffers and manifest entries, e.g. 512m");
+    System.out.println("  --max-read-rate RATE   Limit reading from the backup, e.g. 50m for 50 MiB/s");
+    System.out.println("  --max-write-rate RATE  Limit writing decrypted files, e.g. 20m for 20 MiB/s");
+    System.out.println("  --max-iops N           Limit read and write operations per second");
+    System.out.println("  --io-control PATH      Properties file polled for new limits while running");
+    System.out.println("                         (keys: max-read-rate, max-write-rate, max-iops)");
+    System.out.println("  --crypto-provider SPEC JCE provider for AES-CBC, AES key wrap, SHA-1, SHA-256 and PBKDF2:");
+    System.out.println("                         auto (measure and take the fastest), a provider such as BC or SunJCE,");
+    System.out.println("                         or per primitive, e.g. aes-cbc=BC,sha1=SUN (default: JVM order)");
+    System.out.println(
+        "  -f, --force            Overwrite existing files (in output mode) or skip confirmation (in replace mode)");
+    System.out.println("  -d, --domain GLOB      Only decrypt files in matching domains, can be repeated");
+    System.out.println("  --include RULE         Only decrypt files matching any of the included rules, can be repeated");
+    System.out.println("  --exclude RULE         Leave out files matching the rule, can be repeated");
+    System.out.println("  --ext EXT[|EXT]        Only decrypt files with one of the extensions");
+    System.out.println("  --min-size SIZE        Only decrypt files of at least SIZE bytes");
+    System.out.println("  --max-size SIZE        Only decrypt files of at most SIZE bytes");
+    System.out.println("  --priority RULE        Decrypt files matching RULE first, can be repeated (in order of priority)");
+    System.out.println("  --priority-file PATH   Read priority rules from a file, one per line");
+    System.out.println("  --time-budget TIME     Stop starting new files after TIME, e.g. 90s, 15m, 2h");
+    System.out.println("  --byte-budget SIZE     Decrypt at most SIZE bytes, e.g. 5g");
+    System.out.println("  --skipped-report PATH  Write the files left out because of a budget to a TSV file");
+    System.out.println("  --output-format FORMAT Write to a directory (dir, default), a single tar or zip archive,");
+    System.out.println("                         or an indexed container (pack)");
+    System.out.println("  --verify               Check the SHA-1 digest (or the size) of every file while decrypting");
+    System.out.println("  --output-manifest      List every written file with its SHA-256 in " + OUTPUT_MANIFEST_FILE);
+    System.out.println("  --catalog PATH         Detect the type of every file while decrypting and list it as NDJSON");
+    System.out.println("  --format FORMAT        With list: ndjson (default) or csv");
+    System.out.println("  --watch                Decrypt files while the backup is being written, until it is finished");
+    System.out.println("  --watch-idle TIME      With --watch: finish after TIME without changes (default: 30m)");
+    System.out.println("  --shard I/N            Only extract shard I of N (1 to N), so that N processes share the work");
+    System.out.println("  --shard-by STRATEGY    prefix: by file ID (default), size: same number of bytes per shard");
+    System.out.println("  --listen [HOST:]PORT   With serve: address to listen on (default: " + DEFAULT_LISTEN_ADDRESS + ")");
+    System.out.println("  --cache SIZE           With serve: decrypted data to keep for repeated requests (default: 64m)");
+    System.out.println("  --allow-regex          With serve: let /search take regular expressions, which a client can make run for long");
+    System.out.println("  --files N              With selftest: number of files in the generated backup (default: " + SELFTEST_FILES + ")");
+    System.out.println("  --spool DIR            With batch: directory to take jobs from");
+    System.out.println("  --jobs N               With batch: number of jobs that run at the same time (default: 1),");
+    System.out.println("                         -t, --max-memory and the I/O limits are shared by all jobs");
+    System.out.println("  --once                 With batch: exit when the spool directory is empty");
+    System.out.println("  --report PATH          With scan: write the outcome of every file to a TSV file");
+    System.out.println("  --store PATH           Keep every distinct file content once in a store shared by many backups");
+    System.out.println("  --store-layout LAYOUT  link: output tree of hard links into the store (default),");
+    System.out.println("                         manifest: only " + STORE_MANIFEST_FILE + " pointing into the store");
+    System.out.println("  --per-app              Extract every application to output/<bundle id>/<domain>/<path>");
+    System.out.println("  --app BUNDLE_ID        Only extract this application, can be repeated (implies --per-app)");
+    System.out.println("  -h, --help             Show this help message");
+    System.out.println();
+    System.out.println("Note: Either --output or --replace is required, but not both (except for scan).");
+    System.out.println("Rules combine a domain glob, a relative path glob and extensions, e.g.");
+    System.out.println("  domain=AppDomain-com.apple.*,path=Library/*,ext=db|sqlite");
+    System.out.println("Globs are case-sensitive and * also matches /.");
+    System.out.println();
+    System.out.println("Examples:");
+    System.out.println("  # Extract to separate directory (preserves original backup)");
+    System.out.println("  java -jar itunes-backup-decryptor.jar -b /path/to/backup -o /path/to/output");
+    System.out
+        .println("  java -jar itunes-backup-decryptor.jar -b /path/to/backup -o /path/to/output -p mypassword -v");
+    System.out.println();
+    System.out.println("  # Replace encrypted files in-place (modifies original backup)");
+    System.out.println("  java -jar itunes-backup-decryptor.jar -b /path/to/backup -r");
+    System.out.println("  java -jar itunes-backup-decryptor.jar -b /path/to/backup -r -p mypassword -v");
+    System.out.println();
+    System.out.println("Output mode preserves the original backup directory structure with decrypted files:");
+    System.out.println("  output/");
+    System.out.println("    ├── Manifest.db       (database with file mappings)");
+    System.out.println("    ├── Manifest.plist    (backup metadata)");
+    System.out.println("    ├── Info.plist        (device information)");
+    System.out.println("    ├── ab/");
+    System.out.println("    │   ├── ab123456...    (decrypted files)");
+    System.out.println("    ├── cd/");
+    System.out.println("    │   └── cd789abc...    (decrypted files)");
+    System.out.println("    └── ...");
+    System.out.println();
+    System.out.println("Replace mode decrypts files directly in the backup directory, preserving the exact structure.");
+  }
+
+  public void decryptBackup(String backupPath, String outputPath, String password, boolean force, boolean replace)
+      throws Exception {
+
+    log("Starting iTunes backup decryption...");
+    log("Backup path: " + backupPath);
+    if (replace) {
+      log("Mode: In-place replacement");
+    } else {
+      log("Mode: Extract to output directory: " + outputPath);
+    }
+
+    File backupDir = new File(backupPath);
+    if (!backupDir.exists() || !backupDir.isDirectory()) {
+      throw new IllegalArgumentException("Backup directory does not exist: " + backupPath);
+    }
+
+    Path outputDir = null;
+    if (archiveFormat != null) {
+      // Entries are named relative to the archive, as if it was the output directory
+      outputDir = Paths.get(outputPath).toAbsolutePath();
+      if (Files.isDirectory(outputDir)) {
+        throw new IllegalArgumentException("Output path is a directory, expected an archive file: " + outputPath);
+      } else if (Files.exists(outputDir) && !force) {
+        throw new IllegalArgumentException("Output archive already exists. Use --force to overwrite it.");
+      }
+      if (!outputPath.toLowerCase().endsWith(archiveFormat.getExtension())) {
+        log("Warning: Output file name does not end with " + archiveFormat.getExtension());
+      }
+    } else if (!replace) {
+      outputDir = Paths.get(outputPath);
+      if (!Files.exists(outputDir)) {
+        Files.createDirectories(outputDir);
+        log("Created output directory: " + outputPath);
+      } else if (!force && shard == null) {
+        // Shards share the output directory
+        File[] files = outputDir.toFile().listFiles();
+        if (files != null && files.length > 0) {
+          throw new IllegalArgumentException("Output directory is not empty. Use --force to overwrite existing files.");
+        }
+      }
+    } else {
+      log("Replace mode: Files will be decrypted in-place in the backup directory");
+      if (!force) {
+        log("WARNING: This will modify the original backup files. Use --force to skip this warning in the future.");
+        System.out.print("Continue? (y/N): ");
+        String response = System.console() != null ? System.console().readLine() : "n";
+        if (!response.toLowerCase().startsWith("y")) {
+          log("Operation cancelled by user.");
+          return;
+        }
+      }
+    }
+
+    ITunesBackup backup = openBackup(backupDir, password);
+
+    try {
+      ApplicationDomains applications = perApplication ? findApplicationDomains(backup) : null;
+      int totalFiles;
+      if (applications != null) {
+        if (applications.getAllDomains().isEmpty()) {
+          log("No application domains found in backup");
+        }
+        log("Counting files of " + applications.getDomainsByApplication().size() + " applications...");
+        totalFiles = applications.getAllDomains().isEmpty() ? 0
+            : backup.countFiles(new FileQuery().filesOnly().domains(applications.getAllDomains()));
+      } else if (shard != null && shard.strategy == ShardPlan.Strategy.SIZE) {
+        log("Distributing the files over " + shard.count + " shards by size...");
+        Set<String> assigned = shard.assignBySize(readManifestEntries(backup, fileQuery));
+        fileQuery.fileIdSet(assigned);
+        totalFiles = assigned.size();
+      } else {
+        if (shard != null) {
+          fileQuery.shard(shard.index - 1, shard.count);
+        }
+        log("Counting files in backup database...");
+        totalFiles = backup.countFiles(fileQuery);
+      }
+      String manifestDigest = null;
+      if (shard != null) {
+        // Lets the merge check that all shards worked on the same manifest
+        manifestDigest = ContentStore.hashFile(backup.manifestDBFile.toPath());
+        log("Shard: " + shard + " (by " + shard.strategy.name().toLowerCase(Locale.ROOT) + ")");
+      }
+
+      if (fileQuery.hasSizeRange()) {
+        log("Found up to " + totalFiles + " files to process (size range is checked while decrypting)");
+      } else {
+        log("Found " + totalFiles + " files to process");
+      }
+      log("Starting decryption process...");
+
+      if (replace) {
+        log("Replace mode: Decrypting files in-place");
+      } else if (perApplication) {
+        log("Output structure: one directory per application with the original paths");
+      } else {
+        log("Output structure will preserve original backup format with decrypted files");
+      }
+
+      long startTime = System.currentTimeMillis();
+
+      archiveMemory = 0;
+      if (archiveFormat != null) {
+        int compressionThreads = Runtime.getRuntime().availableProcessors();
+        if (memoryBudget > 0) {
+          // The blocks of streamed entries may take up to a quarter of the budget
+          while (compressionThreads > 1
+              && ArchiveWriter.getStreamingMemory(archiveFormat, compressionThreads) > memoryBudget / 4) {
+            compressionThreads--;
+          }
+          archiveMemory = ArchiveWriter.getStreamingMemory(archiveFormat, compressionThreads);
+        }
+        Files.createDirectories(outputDir.getParent());
+        archive = ArchiveWriter.create(archiveFormat,
+            ioGovernor.throttle(new BufferedOutputStream(Files.newOutputStream(outputDir), 1024 * 1024)),
+            compressionThreads);
+        archivePath = outputDir;
+        log("Writing " + archiveFormat.name().toLowerCase() + " archive: " + outputDir);
+      }
+
+      if (contentStorePath != null) {
+        contentStore = new ContentStore(contentStorePath, getDeviceId(backup), this::log);
+        if (linkToContentStore && !contentStore.supportsLinksTo(outputDir)) {
+          throw new IllegalArgumentException("Cannot create hard links from the output directory into the store"
+              + " (different file system?). Use --store-layout manifest.");
+        }
+        storeManifest = new PrintWriter(Files.newBufferedWriter(outputDir.resolve(STORE_MANIFEST_FILE)));
+        storeManifest.println("fileID\tdomain\trelativePath\tsize\tlastModified\tsha256");
+        log("Content store: " + contentStorePath + (linkToContentStore ? " (linked)" : " (manifest only)"));
+      }
+
+      if (writeOutputManifest || shard != null) {
+        Path manifestPath;
+        if (shard != null) {
+          manifestPath = shard.getManifestPath(outputDir);
+        } else if (archive != null) {
+          // Written next to the archive, since the archive itself is only complete at the end
+          manifestPath = outputDir.resolveSibling(outputDir.getFileName() + ".manifest.tsv");
+        } else if (replace) {
+          manifestPath = backupDir.toPath().resolve(OUTPUT_MANIFEST_FILE);
+        } else {
+          manifestPath = outputDir.resolve(OUTPUT_MANIFEST_FILE);
+        }
+        // Files that already exist are skipped without --force, so they keep their lines from the earlier run
+        outputManifest = new OutputManifest(manifestPath, replace || (archive == null && !force));
+        log("Output manifest: " + manifestPath);
+      }
+
+      openContentCatalog();
+
+      if (!replace && !perApplication && shard == null) {
+        // Copy manifest files to preserve backup structure (only in output mode, for shards the merge does it)
+        copyManifestFiles(backup, outputDir);
+      }
+
+      if (!fileQuery.getPriorities().isEmpty()) {
+        log("Priority order:");
+        for (int i = 0; i < fileQuery.getPriorities().size(); i++) {
+          log("  " + (i + 1) + ". " + fileQuery.getPriorities().get(i));
+        }
+      }
+
+      ExtractionBudget budget = new ExtractionBudget(timeBudget, byteBudget, skippedReportFile);
+      if (timeBudget != null) {
+        log("Time budget: " + formatDuration(timeBudget.toMillis()));
+      }
+      if (byteBudget > 0) {
+        log("Byte budget: " + formatBytes(byteBudget));
+      }
+
+      final Path finalOutputDir = outputDir;
+      Map<String, ApplicationStats> applicationStats = new ConcurrentHashMap<>();
+      try {
+        if (applications != null) {
+          String[] domains = applications.getAllDomains().toArray(new String[0]);
+          runWorkers(totalFiles, budget, consumer -> backup.queryDomainFiles(false, consumer, domains),
+              file -> processApplicationFile(file, finalOutputDir, applications, applicationStats, force));
+        } else {
+          runWorkers(totalFiles, budget, consumer -> backup.queryFiles(fileQuery, consumer), file -> {
+            if (replace) {
+              processFileInPlace(file, force);
+            } else {
+              processFile(file, finalOutputDir, force);
+            }
+          });
+        }
+      } finally {
+        budget.close();
+      }
+
+      if (applications != null) {
+        writeApplicationIndex(outputDir, applications, applicationStats);
+      }
+
+      closeOutputs();
+
+      long duration = System.currentTimeMillis() - startTime;
+      if (shard != null) {
+        Properties record = new Properties();
+        record.setProperty("manifestSha256", manifestDigest);
+        record.setProperty("host", getHostName());
+        record.setProperty("files", String.valueOf(totalFiles));
+        record.setProperty("processed", String.valueOf(processedFiles.get()));
+        record.setProperty("skipped", String.valueOf(skippedFiles.get()));
+        record.setProperty("errors", String.valueOf(errorFiles.get()));
+        record.setProperty("budgetSkipped", String.valueOf(budget.getSkippedFiles()));
+        record.setProperty("bytes", String.valueOf(totalBytes.get()));
+        record.setProperty("durationMillis", String.valueOf(duration));
+        record.setProperty("finished", Instant.now().toString());
+        record.setProperty("complete", String.valueOf(errorFiles.get() == 0 && budget.getSkippedFiles() == 0));
+        shard.writeRecord(outputDir, record);
+        log("Shard completion record: " + shard.getRecordPath(outputDir));
+      }
+
+      // Final report
+      log("\n=== DECRYPTION COMPLETE ===");
+      log("Total files: " + totalFiles);
+      log("Successfully processed: " + processedFiles.get());
+      log("Skipped (already exist or not encrypted): " + skippedFiles.get());
+      log("Errors: " + errorFiles.get());
+      log("Total data processed: " + formatBytes(totalBytes.get()));
+      log("Time taken: " + formatDuration(duration));
+      logTimeToFirstFile();
+
+      if (verify) {
+        log("Verified: " + verifiedFiles.get() + " files (" + verifiedBySize.get() + " by size only, no digest), "
+            + integrityErrors.get() + " failed");
+      }
+
+      if (budget.getSkippedFiles() > 0) {
+        log("Not decrypted (budget exhausted): " + budget.getSkippedFiles() + " files, "
+            + formatBytes(budget.getSkippedBytes()));
+        budget.reportSkippedDomains(10, this::log);
+        if (skippedReportFile != null) {
+          log("Skipped files are listed in: " + skippedReportFile);
+        }
+      }
+
+      if (replace) {
+        log("Mode: In-place replacement in backup directory");
+        log("Location: " + backupPath);
+      } else if (archiveFormat != null) {
+        log("Mode: Extract to " + archiveFormat.name().toLowerCase() + " archive");
+        log("Archive: " + outputPath);
+      } else if (perApplication) {
+        log("Mode: Extract per application");
+        log("Output directory: " + outputPath);
+        log("Applications are listed in: " + outputDir.resolve(APPLICATION_INDEX_FILE));
+      } else {
+        log("Mode: Extract to separate directory");
+        log("Output directory: " + outputPath);
+        log("Structure: Preserved original backup format with decrypted files");
+      }
+
+      if (errorFiles.get() > 0) {
+        log("Warning: " + errorFiles.get() + " files had errors during processing");
+      }
+      if (integrityErrors.get() > 0) {
+        log("Warning: " + integrityErrors.get() + " files failed the integrity check");
+      }
+    } catch (Exception e) {
+      // What was written stays usable: the archive gets its directory, the pack its index, the store its known files
+      try {
+        closeOutputs();
+      } catch (Exception closeException) {
+        e.addSuppressed(closeException);
+      }
+      throw e;
+    } finally {
+      backup.cleanUp();
+    }
+  }
+
+  /**
+   * Finishes the archive, output manifest, content catalog and store of a run. Each is closed once, also
+   * when the run failed; later runs of this decryptor, like the phases of the self-test, open their own.
+   */
+  private void closeOutputs() throws IOException {
+    try {
+      if (archive != null) {
+        ArchiveWriter closing = archive;
+        archive = null;
+        closing.close();
+        log("Archive finished: " + closing.getEntryCount() + " entries, " + formatBytes(closing.getBytesWritten()));
+        List<String> damaged = closing.getDamagedEntries();
+        if (!damaged.isEmpty()) {
+          dualLogger.error("Archive entries filled up with zeros after an error: " + String.join(", ", damaged));
+        }
+      }
+    } finally {
+      try {
+        if (outputManifest != null) {
+          OutputManifest closing = outputManifest;
+          outputManifest = null;
+          closing.close();
+          log("Output manifest: " + closing.getLines() + " files listed in " + closing.getPath());
+        }
+        closeContentCatalog();
+      } finally {
+        if (contentStore != null) {
+          ContentStore closing = contentStore;
+          contentStore = null;
+          storeManifest.close();
+          closing.save();
+          log("Content store: " + closing.getStoredBlobs() + " new blobs (" + formatBytes(closing.getStoredBytes())
+              + "), " + closing.getReusedBlobs() + " reused (" + formatBytes(closing.getReusedBytes()) + ")");
+        }
+      }
+    }
+  }
+
+  /**
+   * Unlocks the backup once and serves its files over HTTP until the process is stopped, see {@link BackupServer}.
+   *
+   * @param cacheSize  bytes of decrypted content to keep for repeated requests
+   * @param allowRegex whether /search takes regular expressions, see {@link BackupServer}
+   */
+  public void serveBackup(String backupPath, String password, InetSocketAddress address, long cacheSize,
+      boolean allowRegex) throws Exception {
+    File backupDir = new File(backupPath);
+    if (!backupDir.exists() || !backupDir.isDirectory()) {
+      throw new IllegalArgumentException("Backup directory does not exist: " + backupPath);
+    }
+    ITunesBackup backup = openBackup(backupDir, password);
+
+    BackupServer server = new BackupServer(backup, address, cacheSize, allowRegex, this::logVerbose);
+    CountDownLatch stopped = new CountDownLatch(1);
+    Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+      server.stop();
+      // Removes the decrypted copy of the database
+      backup.cleanUp();
+      stopped.countDown();
+    }));
+    server.start();
+
+    String url = "http://" + address.getHostString() + ":" + server.getAddress().getPort();
+    log("Serving the backup at " + url + " (cache: " + formatBytes(cacheSize) + "), stop with Ctrl+C");
+    log("  " + url + "/file/FILE_ID");
+    log("  " + url + "/path/DOMAIN/RELATIVE_PATH");
+    log("  " + url + "/list?domain=GLOB&path=GLOB&limit=N");
+    log("  " + url + "/tree/DOMAIN/RELATIVE_PATH");
+    log("  " + url + "/search?contains=TEXT|glob=GLOB" + (allowRegex ? "|regex=REGEX" : "") + "&limit=N");
+    if (!address.getAddress().isLoopbackAddress()) {
+      log("Warning: Decrypted files are served without authentication to everyone who can reach " + url);
+    }
+    stopped.await();
+  }
+
+  /**
+   * Checks the work of the shards of a sharded extraction and combines it: every shard must have
+   * written its completion record for the same manifest, and the output manifests of the shards together
+   * must list every file of the query exactly once. Writes the combined output manifest, a report of
+   * the problems and copies the manifest files.
+   *
+   * @return true if the output is complete
+   */
+  public boolean mergeShards(String backupPath, String outputPath, String password) throws Exception {
+    log("Merging shards in: " + outputPath);
+    File backupDir = new File(backupPath);
+    if (!backupDir.exists() || !backupDir.isDirectory()) {
+      throw new IllegalArgumentException("Backup directory does not exist: " + backupPath);
+    }
+    Path outputDir = Paths.get(outputPath);
+    List<Properties> records = Files.isDirectory(outputDir) ? ShardPlan.readRecords(outputDir) : List.of();
+    if (records.isEmpty()) {
+      throw new IllegalArgumentException("No shard completion records found in " + outputPath);
+    }
+
+    ITunesBackup backup = openBackup(backupDir, password);
+    try {
+      return mergeShards(backup, outputDir, records);
+    } finally {
+      backup.cleanUp();
+    }
+  }
+
+  private boolean mergeShards(ITunesBackup backup, Path outputDir, List<Properties> records) throws Exception {
+    String manifestDigest = ContentStore.hashFile(backup.manifestDBFile.toPath());
+
+    // Records of an earlier split into another number of shards may still be there, the latest split counts
+    Properties latest = Collections.max(records, Comparator.comparing(record -> record.getProperty("finished", "")));
+    int count = ShardPlan.getInt(latest, "shards");
+    String strategy = latest.getProperty("shardBy");
+    List<String> problems = new ArrayList<>();
+    Map<Integer, Properties> shards = new TreeMap<>();
+    for (Properties record : records) {
+      String name = record.getProperty("shard") + "/" + record.getProperty("shards");
+      if (ShardPlan.getInt(record, "shards") != count || !Objects.equals(record.getProperty("shardBy"), strategy)) {
+        problems.add("Shard " + name + " (by " + record.getProperty("shardBy") + ") belongs to another split");
+        continue;
+      }
+      shards.put(ShardPlan.getInt(record, "shard"), record);
+      if (!manifestDigest.equals(record.getProperty("manifestSha256"))) {
+        problems.add("Shard " + name + " was extracted from another version of Manifest.db");
+      }
+      if (!"true".equals(record.getProperty("complete"))) {
+        problems.add("Shard " + name + " is incomplete: " + record.getProperty("errors") + " errors, "
+            + record.getProperty("budgetSkipped", "0") + " files left out by a budget");
+      }
+    }
+    for (int i = 1; i <= count; i++) {
+      if (!shards.containsKey(i)) {
+        problems.add("Shard " + i + "/" + count + " has not finished");
+      }
+    }
+    log("Shards: " + shards.size() + " of " + count + " finished, split by " + strategy);
+
+    // The files the shards should have written between them
+    log("Collecting the files of the backup...");
+    Map<String, String> expected = new HashMap<>();
+    Set<String> withoutContent = new HashSet<>();
+    backup.queryRows(fileQuery, (fileID, domain, relativePath, flags, data) -> {
+      if (fileQuery.hasSizeRange()) {
+        try {
+          if (!fileQuery.matchesSize(ManifestEntry.parse(fileID, domain, relativePath, flags, data))) {
+            return;
+          }
+        } catch (BackupReadException e) {
+          // Cannot have been extracted either
+        }
+      }
+      expected.put(fileID, domain + "\t" + relativePath.replace('\t', ' ').replace('\n', ' '));
+      // No shard can extract a file whose content file is not in the backup
+      if (flags == BackupFile.FileType.FILE.flag
+          && !new File(new File(backup.directory, fileID.substring(0, 2)), fileID).exists()) {
+        withoutContent.add(fileID);
+      }
+    });
+
+    Map<String, Integer> listed = new HashMap<>();
+    Path mergeReport = outputDir.resolve(MERGE_REPORT_FILE);
+    long duplicates = 0;
+    long unexpected = 0;
+    long missing = 0;
+    long missingContent = 0;
+    try (BufferedWriter manifest = Files.newBufferedWriter(outputDir.resolve(OUTPUT_MANIFEST_FILE), StandardCharsets.UTF_8);
+         PrintWriter report = new PrintWriter(Files.newBufferedWriter(mergeReport, StandardCharsets.UTF_8))) {
+      manifest.write(OutputManifest.HEADER);
+      manifest.newLine();
+      report.println("fileID\tdomain\trelativePath\tproblem\tshards");
+
+      for (Map.Entry<Integer, Properties> shard : shards.entrySet()) {
+        Path shardManifest = outputDir.resolve(shard.getValue().getProperty("outputManifest"));
+        if (!Files.exists(shardManifest)) {
+          problems.add("Output manifest of shard " + shard.getKey() + "/" + count + " is missing: " + shardManifest);
+          continue;
+        }
+        try (BufferedReader reader = Files.newBufferedReader(shardManifest, StandardCharsets.UTF_8)) {
+          String line = reader.readLine();
+          while ((line = reader.readLine()) != null) {
+            int tab = line.indexOf('\t');
+            if (tab == -1) {
+              continue;
+            }
+            String fileID = line.substring(0, tab);
+            Integer first = listed.putIfAbsent(fileID, shard.getKey());
+            if (first == null) {
+              manifest.write(line);
+              manifest.newLine();
+              if (!expected.containsKey(fileID)) {
+                unexpected++;
+                report.println(fileID + "\t\t\tUNEXPECTED\t" + shard.getKey());
+              }
+            } else if (!first.equals(shard.getKey())) {
+              // A file written twice by the same shard (e.g. in a second run) is no problem
+              duplicates++;
+              report.println(fileID + "\t" + expected.getOrDefault(fileID, "\t") + "\tDUPLICATE\t" + first + ","
+                  + shard.getKey());
+            }
+          }
+        }
+      }
+
+      for (Map.Entry<String, String> file : expected.entrySet()) {
+        if (listed.containsKey(file.getKey())) {
+          continue;
+        }
+        if (withoutContent.contains(file.getKey())) {
+          missingContent++;
+          report.println(file.getKey() + "\t" + file.getValue() + "\tMISSING_CONTENT\t");
+        } else {
+          missing++;
+          report.println(file.getKey() + "\t" + file.getValue() + "\tMISSING\t");
+        }
+      }
+    }
+
+    copyManifestFiles(backup, outputDir);
+
+    log("\n=== MERGE COMPLETE ===");
+    log("Files in the backup: " + expected.size());
+    log("Files listed by the shards: " + listed.size());
+    log("Missing: " + missing);
+    if (missingContent > 0) {
+      log("Not extractable, the content file is not in the backup: " + missingContent);
+    }
+    log("Listed by more than one shard: " + duplicates);
+    log("Not part of the backup: " + unexpected);
+    for (String problem : problems) {
+      log("Problem: " + problem);
+    }
+    log("Output manifest: " + outputDir.resolve(OUTPUT_MANIFEST_FILE));
+    log("Report: " + mergeReport);
+
+    boolean complete = problems.isEmpty() && missing == 0 && duplicates == 0 && unexpected == 0;
+    if (!complete) {
+      log("Warning: The sharded extraction is not complete");
+    }
+    return complete;
+  }
+
+  /**
+   * Decrypts a backup while it is being written. Content files are decrypted as soon as they have settled and
+   * the manifest knows them; files that arrive before their manifest entry wait until the manifest changes.
+   * Once <code>Status.plist</code> reports the backup as finished (or nothing happened for the idle time),
+   * the final manifest is reconciled with the output: changed files are decrypted again and files that are
+   * no longer in the backup are removed.
+   *
+   * @param idleTimeout how long to wait without any change before finishing anyway
+   */
+  public void watchBackup(String backupPath, String outputPath, String password, boolean force, Duration idleTimeout)
+      throws Exception {
+    log("Watching iTunes backup: " + backupPath);
+    log("Output directory: " + outputPath);
+
+    File backupDir = new File(backupPath);
+    if (!backupDir.exists() || !backupDir.isDirectory()) {
+      throw new IllegalArgumentException("Backup directory does not exist: " + backupPath);
+    }
+    Path outputDir = Paths.get(outputPath);
+    if (!Files.exists(outputDir)) {
+      Files.createDirectories(outputDir);
+      log("Created output directory: " + outputPath);
+    } else if (!force) {
+      File[] files = outputDir.toFile().listFiles();
+      if (files != null && files.length > 0) {
+        throw new IllegalArgumentException("Output directory is not empty. Use --force to overwrite existing files.");
+      }
+    }
+
+    long startTime = System.currentTimeMillis();
+    // Content file size and date each file was decrypted from
+    Map<String, String> extracted = new ConcurrentHashMap<>();
+    Set<String> waiting = new HashSet<>();
+    ITunesBackup backup = null;
+    try (BackupWatcher watcher = new BackupWatcher(backupDir.toPath(), WATCH_SETTLE_MILLIS)) {
+      if (new File(backupDir, "Manifest.db").exists()) {
+        backup = reopenBackup(null, backupDir, password);
+      }
+      if (backup != null) {
+        log("Decrypting the files that are already there...");
+        watchPass(backup, fileQuery, outputDir, extracted, ConcurrentHashMap.newKeySet());
+      }
+
+      while (true) {
+        watcher.poll(WATCH_POLL_MILLIS);
+
+        Set<String> settled = watcher.takeSettledFiles();
+        if (watcher.takeSettledManifest()) {
+          log("Manifest changed, reloading it");
+          backup = reopenBackup(backup, backupDir, password);
+          settled.addAll(waiting);
+          waiting.clear();
+        }
+
+        if (backup == null) {
+          // No manifest yet, nothing can be decrypted
+          waiting.addAll(settled);
+        } else if (watcher.takeOverflow()) {
+          logVerbose("Events were lost, comparing all files");
+          watchPass(backup, fileQuery, outputDir, extracted, ConcurrentHashMap.newKeySet());
+        } else if (!settled.isEmpty()) {
+          List<String> fileIds = new ArrayList<>(settled);
+          for (int i = 0; i < fileIds.size(); i += WATCH_QUERY_BATCH) {
+            List<String> chunk = fileIds.subList(i, Math.min(fileIds.size(), i + WATCH_QUERY_BATCH));
+            Set<String> seen = ConcurrentHashMap.newKeySet();
+            watchPass(backup, fileQuery.withFileIds(chunk), outputDir, extracted, seen);
+            for (String fileID : chunk) {
+              if (!seen.contains(fileID)) {
+                waiting.add(fileID);
+              }
+            }
+          }
+        }
+
+        if (watcher.isBackupFinished() && !watcher.hasPendingChanges()) {
+          log("Backup finished");
+          break;
+        }
+        if (idleTimeout != null && watcher.getIdleMillis() > idleTimeout.toMillis()) {
+          log("No changes for " + formatDuration(idleTimeout.toMillis()) + ", finishing");
+          break;
+        }
+      }
+
+      // Reconcile the output with the final manifest
+      log("Reconciling the output with the final manifest...");
+      backup = reopenBackup(backup, backupDir, password);
+      if (backup == null) {
+        throw new IllegalStateException("The backup has no readable manifest");
+      }
+      Set<String> seen = ConcurrentHashMap.newKeySet();
+      watchPass(backup, fileQuery, outputDir, extracted, seen);
+      int removed = 0;
+      for (String fileID : extracted.keySet()) {
+        if (!seen.contains(fileID)) {
+          // Deleted from the backup while it was written
+          Files.deleteIfExists(outputDir.resolve(fileID.substring(0, 2)).resolve(fileID));
+          extracted.remove(fileID);
+          removed++;
+        }
+      }
+      copyManifestFiles(backup, outputDir);
+
+      long duration = System.currentTimeMillis() - startTime;
+      log("\n=== WATCH COMPLETE ===");
+      log("Decrypted files: " + extracted.size());
+      log("Decryptions (including files that changed while watching): " + processedFiles.get());
+      log("Removed (no longer in the backup): " + removed);
+      log("Errors: " + errorFiles.get());
+      log("Total data processed: " + formatBytes(totalBytes.get()));
+      log("Time taken: " + formatDuration(duration));
+      if (!waiting.isEmpty()) {
+        log("Content files without manifest entry: " + waiting.size());
+      }
+    } finally {
+      if (backup != null) {
+        backup.cleanUp();
+      }
+    }
+  }
+
+  /**
+   * Decodes the manifest entries of all files of the query, e.g. to know all sizes in advance.
+   * Rows that cannot be decoded are left out.
+   */
+  private List<ManifestEntry> readManifestEntries(ITunesBackup backup, FileQuery query)
+      throws DatabaseConnectionException {
+    List<ManifestEntry> entries = new ArrayList<>();
+    backup.queryRows(query, (fileID, domain, relativePath, flags, data) -> {
+      try {
+        ManifestEntry entry = ManifestEntry.parse(fileID, domain, relativePath, flags, data);
+        if (query.matchesSize(entry)) {
+          entries.add(entry);
+        }
+      } catch (BackupReadException e) {
+        logVerbose(e.getMessage());
+      }
+    });
+    return entries;
+  }
+
+  private static String getHostName() {
+    try {
+      return InetAddress.getLocalHost().getHostName();
+    } catch (IOException e) {
+      return "unknown";
+    }
+  }
+
+  /**
+   * Loads the manifest again, e.g. after the backup changed it.
+   *
+   * @return the backup, or null if the manifest cannot be read (yet)
+   */
+  private ITunesBackup reopenBackup(ITunesBackup previous, File backupDir, String password) {
+    if (previous != null) {
+      previous.cleanUp();
+    }
+    try {
+      return openBackup(backupDir, password != null ? password : unlockPassword);
+    } catch (IllegalArgumentException e) {
+      throw e;
+    } catch (Exception e) {
+      log("Warning: Manifest cannot be read yet: " + e.getMessage());
+      return null;
+    }
+  }
+
+  /**
+   * Decrypts the files of the query whose content file changed since they were last decrypted.
+   *
+   * @param extracted the content file stamps of the files decrypted so far, updated
+   * @param seen      receives the IDs of all files the query returned
+   */
+  private void watchPass(ITunesBackup backup, FileQuery query, Path outputDir, Map<String, String> extracted,
+      Set<String> seen) throws DatabaseConnectionException, InterruptedException {
+    int totalFiles = backup.countFiles(query);
+    runWorkers(totalFiles, ExtractionBudget.unlimited(), consumer -> backup.queryFiles(query, file -> {
+      seen.add(file.fileID);
+      consumer.accept(file);
+    }, e -> {
+      // Content files that are not there yet come with a later change
+      if (!(e instanceof MissingContentException)) {
+        dualLogger.error(e.getMessage());
+      }
+    }), file -> {
+      File contentFile = file.getContentFile();
+      String stamp = contentFile.length() + "/" + contentFile.lastModified();
+      if (stamp.equals(extracted.get(file.fileID))) {
+        return;
+      }
+      String fileIdPrefix = file.fileID.substring(0, 2);
+      Path filePath = outputDir.resolve(fileIdPrefix).resolve(file.fileID);
+      // Files are decrypted again when they change, so existing output is always replaced
+      if (extractFile(file, filePath, fileIdPrefix + "/" + file.fileID, true)) {
+        extracted.put(file.fileID, stamp);
+      }
+    });
+  }
+
+  /**
+   * Loads the backup, unlocks it if it is encrypted and connects to its database.
+   *
+   * @param password the backup password, null to ask for it if needed
+   */
+  private ITunesBackup openBackup(File backupDir, String password) throws Exception {
+    log("Loading iTunes backup from: " + backupDir.getPath());
+    ITunesBackup backup = new ITunesBackup(backupDir);
+
+    log("Backup Info:");
+    log("  Device: " + backup.manifest.deviceName);
+    log("  Product: " + backup.manifest.productType + " (" + backup.manifest.productVersion + ")");
+    log("  Date: " + backup.manifest.date);
+    log("  Encrypted: " + backup.manifest.encrypted);
+
+    // Handle encryption
+    if (backup.manifest.encrypted) {
+      if (backup.isLocked()) {
+        if (password == null) {
+          if (!passwordPrompt)
+            throw new IllegalArgumentException("The backup is encrypted, but no password was given (-p)");
+          // Asked on the terminal, standard output may carry a listing
+          if (System.console() == null)
+            throw new IllegalArgumentException("The backup is encrypted, but there is no password and no terminal to ask for it");
+          password = System.console().readLine("Enter backup password: ");
+        }
+
+        log("Unlocking encrypted backup...");
+        try {
+          backup.manifest.getKeyBag().get().unlock(password);
           backup.decryptDatabase();
+          unlockPassword = password;
           log("Backup unlocked successfully");
         } catch (InvalidKeyException e) {
           throw new IllegalArgumentException("Invalid password provided");
         }
-      }
+      }
+    }
+
+    // Connect to backup database
+    backup.connectToDatabase();
+
+    return backup;
+  }
+
+  /**
+   * Lists the files of the manifest with their metadata. Only the manifest database is read, the rows are
+   * decoded by a pool of workers in batches and written in query order. At most a few batches per worker
+   * are in memory at any time.
+   *
+   * @param outputPath file to write the listing to, null for standard output
+   */
+  public void listBackup(String backupPath, String password, String outputPath, ListFormat format, boolean force)
+      throws Exception {
+    File backupDir = new File(backupPath);
+    if (!backupDir.exists() || !backupDir.isDirectory()) {
+      throw new IllegalArgumentException("Backup directory does not exist: " + backupPath);
+    }
+    Path outputFile = outputPath != null ? Paths.get(outputPath) : null;
+    if (outputFile != null && Files.exists(outputFile) && !force) {
+      throw new IllegalArgumentException("Output file already exists. Use --force to overwrite it.");
+    }
+
+    PrintStream standardOutput = System.out;
+    if (outputFile == null) {
+      // The library prints messages like the established database connection to standard output,
+      // which would end up in the listing
+      System.setOut(System.err);
+    }
+    try {
+      ITunesBackup backup = openBackup(backupDir, password);
+
+      int workers = threads > 0 ? threads : Runtime.getRuntime().availableProcessors();
+      int maxPendingBatches = workers * 4;
+      ExecutorService executor = Executors.newFixedThreadPool(workers);
+      Deque<Future<String>> pending = new ArrayDeque<>();
+      AtomicInteger listedFiles = new AtomicInteger(0);
+      AtomicInteger invalidRows = new AtomicInteger(0);
+      long startTime = System.currentTimeMillis();
+
+      OutputStream stream = outputFile != null ? Files.newOutputStream(outputFile) : standardOutput;
+      Writer writer = new BufferedWriter(new OutputStreamWriter(stream, StandardCharsets.UTF_8), 1024 * 1024);
+      try {
+        if (format == ListFormat.CSV) {
+          writer.write("fileID,domain,relativePath,type,size,protectionClass,encrypted,mode,lastModified,birth,"
+              + "lastStatusChange\n");
+        }
+
+        List<ManifestRow> batch = new ArrayList<>(LIST_BATCH_SIZE);
+        IOException[] writeError = { null };
+        backup.queryRows(fileQuery, (fileID, domain, relativePath, flags, data) -> {
+          if (writeError[0] != null) {
+            return;
+          }
+          batch.add(new ManifestRow(fileID, domain, relativePath, flags, data));
+          if (batch.size() < LIST_BATCH_SIZE) {
+            return;
+          }
+          List<ManifestRow> rows = new ArrayList<>(batch);
+          batch.clear();
+          pending.add(executor.submit(() -> formatRows(rows, format, listedFiles, invalidRows)));
+          try {
+            // Waiting for the oldest batch keeps the order and bounds the memory
+            while (pending.size() >= maxPendingBatches) {
+              writer.write(awaitBatch(pending.poll()));
+            }
+          } catch (IOException e) {
+            writeError[0] = e;
+          }
+        });
+        if (writeError[0] != null) {
+          throw writeError[0];
+        }
+
+        if (!batch.isEmpty()) {
+          List<ManifestRow> rows = new ArrayList<>(batch);
+          pending.add(executor.submit(() -> formatRows(rows, format, listedFiles, invalidRows)));
+        }
+        while (!pending.isEmpty()) {
+          writer.write(awaitBatch(pending.poll()));
+        }
+      } finally {
+        executor.shutdownNow();
+        if (outputFile != null) {
+          writer.close();
+        } else {
+          writer.flush();
+        }
+        backup.cleanUp();
+      }
+
+      long duration = System.currentTimeMillis() - startTime;
+      log("Listed " + listedFiles.get() + " files in " + formatDuration(duration)
+          + (outputFile != null ? " to " + outputFile : ""));
+      if (invalidRows.get() > 0) {
+        log("Warning: " + invalidRows.get() + " rows could not be decoded");
+      }
+    } finally {
+      System.setOut(standardOutput);
+    }
+  }
+
+  /**
+   * A row of the files table whose property list is not decoded yet.
+   */
+  private static class ManifestRow {
+    final String fileID;
+    final String domain;
+    final String relativePath;
+    final int flags;
+    final byte[] data;
+
+    ManifestRow(String fileID, String domain, String relativePath, int flags, byte[] data) {
+      this.fileID = fileID;
+      this.domain = domain;
+      this.relativePath = relativePath;
+      this.flags = flags;
+      this.data = data;
+    }
+  }
+
+  private String formatRows(List<ManifestRow> rows, ListFormat format, AtomicInteger listedFiles,
+      AtomicInteger invalidRows) {
+    StringBuilder out = new StringBuilder(rows.size() * 192);
+    for (ManifestRow row : rows) {
+      ManifestEntry entry;
+      try {
+        entry = ManifestEntry.parse(row.fileID, row.domain, row.relativePath, row.flags, row.data);
+      } catch (BackupReadException e) {
+        invalidRows.incrementAndGet();
+        dualLogger.error(e.getMessage());
+        continue;
+      }
+      if (!fileQuery.matchesSize(entry)) {
+        continue;
+      }
+
+      if (format == ListFormat.CSV) {
+        out.append(csvField(entry.fileID)).append(',').append(csvField(entry.domain)).append(',')
+            .append(csvField(entry.relativePath)).append(',').append(entry.fileType).append(',')
+            .append(entry.size).append(',').append(entry.protectionClass).append(',').append(entry.encrypted)
+            .append(',').append(entry.mode).append(',').append(entry.lastModified).append(',')
+            .append(entry.birth).append(',').append(entry.lastStatusChange).append('\n');
+      } else {
+        out.append("{\"fileID\":").append(JsonUtils.quote(entry.fileID))
+            .append(",\"domain\":").append(JsonUtils.quote(entry.domain))
+            .append(",\"relativePath\":").append(JsonUtils.quote(entry.relativePath))
+            .append(",\"type\":\"").append(entry.fileType)
+            .append("\",\"size\":").append(entry.size)
+            .append(",\"protectionClass\":").append(entry.protectionClass)
+            .append(",\"encrypted\":").append(entry.encrypted)
+            .append(",\"mode\":").append(entry.mode)
+            .append(",\"lastModified\":").append(entry.lastModified)
+            .append(",\"birth\":").append(entry.birth)
+            .append(",\"lastStatusChange\":").append(entry.lastStatusChange).append("}\n");
+      }
+      listedFiles.incrementAndGet();
+    }
+    return out.toString();
+  }
+
+  private static String awaitBatch(Future<String> batch) throws IOException {
+    try {
+      return batch.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while listing");
+    } catch (ExecutionException e) {
+      throw new IOException("Failed to decode manifest rows", e.getCause());
+    }
+  }
+
+  private static String csvField(String value) {
+    if (value.indexOf(',') == -1 && value.indexOf('"') == -1 && value.indexOf('\n') == -1
+        && value.indexOf('\r') == -1) {
+      return value;
+    }
+    return '"' + value.replace("\"", "\"\"") + '"';
+  }
+
+  /**
+   * Decrypts every selected file of the backup without writing it anywhere, to find out
+   * whether the backup can be decrypted completely. Nothing in the backup is changed.
+   *
+   * @param reportPath tab-separated report with the outcome of every file, null for none
+   * @return true if every file decrypted without a problem
+   */
+  public boolean scanBackup(String backupPath, String password, Path reportPath) throws Exception {
+    log("Starting iTunes backup integrity scan...");
+    log("Backup path: " + backupPath);
+
+    File backupDir = new File(backupPath);
+    if (!backupDir.exists() || !backupDir.isDirectory()) {
+      throw new IllegalArgumentException("Backup directory does not exist: " + backupPath);
+    }
+
+    ITunesBackup backup = openBackup(backupDir, password);
+
+    log("Counting files in backup database...");
+    int totalFiles = backup.countFiles(fileQuery);
+    log("Found " + totalFiles + " files to scan" + (verify ? " (checking SHA-1 digests)" : ""));
+
+    if (threads == 0 && memoryBudget == 0) {
+      // Nothing is written, so reading and decrypting on every core is what limits the scan
+      threads = Runtime.getRuntime().availableProcessors();
+    }
+
+    ExtractionBudget budget = new ExtractionBudget(timeBudget, byteBudget, skippedReportFile);
+    ScanReport report = new ScanReport(reportPath);
+    openContentCatalog();
+    long startTime = System.currentTimeMillis();
+    try {
+      // Files whose content is missing never reach the workers
+      runWorkers(totalFiles, budget, consumer -> backup.queryFiles(fileQuery, consumer, e -> {
+        if (e instanceof MissingContentException) {
+          MissingContentException missing = (MissingContentException) e;
+          report.record(missing.fileID, missing.domain, missing.relativePath, -1,
+              ScanReport.Outcome.MISSING_CONTENT, e.getMessage());
+          errorFiles.incrementAndGet();
+        } else {
+          dualLogger.error(e.getMessage());
+        }
+      }), file -> scanFile(file, report));
+    } finally {
+      budget.close();
+      report.close();
+      backup.cleanUp();
     }
+    closeContentCatalog();
 
-    // Connect to backup database
-    backup.connectToDatabase();
+    long duration = System.currentTimeMillis() - startTime;
+    log("\n=== SCAN COMPLETE ===");
+    log("Scanned files: " + report.getScannedFiles() + " of " + totalFiles);
+    log("Scanned data: " + formatBytes(report.getScannedBytes()) + " in " + formatDuration(duration)
+        + (duration > 0 ? " (" + formatBytes(report.getScannedBytes() * 1000 / duration) + "/s)" : ""));
+    report.reportCounts(this::log);
+    if (budget.getSkippedFiles() > 0) {
+      log("Not scanned (budget exhausted): " + budget.getSkippedFiles() + " files, "
+          + formatBytes(budget.getSkippedBytes()));
+    }
+    if (reportPath != null) {
+      log("Outcome of every file is listed in: " + reportPath);
+    }
 
-    log("Querying all files from backup database...");
-    List<BackupFile> allFiles = backup.searchFiles("%", "%");
+    if (report.getProblemCount() > 0) {
+      log("Warning: " + report.getProblemCount() + " files cannot be decrypted correctly");
+      return false;
+    }
+    log("All scanned files decrypted correctly");
+    return true;
+  }
 
-    log("Found " + allFiles.size() + " files to process");
-    log("Starting decryption process...");
+  /**
+   * Generates an encrypted backup, then decrypts, scans and lists it, and checks that every file came out
+   * intact. Since it runs the same code as a real extraction, it is also the training run for the class
+   * data sharing archive of the packaged application.
+   *
+   * @param workPath where to keep the backup and the results, null for a temporary directory
+   * @param fileCount number of files in the generated backup
+   * @return false if a file was not decrypted correctly
+   */
+  private boolean selfTest(String workPath, int fileCount) throws Exception {
+    Path workDir = workPath != null ? Paths.get(workPath) : Files.createTempDirectory("itunes-backup-selftest");
+    Path backupDir = workDir.resolve("backup");
+    Path outputDir = workDir.resolve("output");
+    if (Files.exists(backupDir) || Files.exists(outputDir)) {
+      throw new IllegalArgumentException("Self-test directory already contains a backup or output: " + workDir);
+    }
 
-    if (replace) {
-      log("Replace mode: Decrypting files in-place");
-    } else {
-      log("Output structure will preserve original backup format with decrypted files");
+    try {
+      log("Generating a backup with " + fileCount + " files: " + backupDir);
+      int files = new SyntheticBackup(fileCount, SELFTEST_SEED).write(backupDir, SELFTEST_PASSWORD);
+
+      setVerify(true);
+      setOutputManifest(true);
+      decryptBackup(backupDir.toString(), outputDir.toString(), SELFTEST_PASSWORD, false, false);
+      int decrypted = processedFiles.get();
+      int failed = errorFiles.get() + integrityErrors.get();
+      boolean intact = scanBackup(backupDir.toString(), SELFTEST_PASSWORD, null);
+      listBackup(backupDir.toString(), SELFTEST_PASSWORD, workDir.resolve("list.ndjson").toString(),
+          ListFormat.NDJSON, false);
+
+      log("\n=== SELF-TEST ===");
+      if (decrypted != files || failed > 0 || !intact) {
+        log("Self-test failed: " + decrypted + " of " + files + " files decrypted, " + failed + " errors"
+            + (intact ? "" : ", the scan found damaged files"));
+        return false;
+      }
+      log("Self-test passed: " + files + " files decrypted, verified, scanned and listed");
+      return true;
+    } finally {
+      if (workPath == null) {
+        try (Stream<Path> paths = Files.walk(workDir)) {
+          for (Path path : (Iterable<Path>) paths.sorted(Comparator.reverseOrder())::iterator) {
+            Files.deleteIfExists(path);
+          }
+        }
+      }
     }
+  }
 
-    long startTime = System.currentTimeMillis();
+  /**
+   * Decrypts a file into a null sink and records what went wrong, if anything.
+   */
+  private void scanFile(BackupFile file, ScanReport report) {
+    if (file.getFileType() != BackupFile.FileType.FILE) {
+      return;
+    }
 
-    if (!replace) {
-      // Copy manifest files to preserve backup structure (only in output mode)
-      copyManifestFiles(backup, outputDir);
+    DecryptionResult result;
+    WrittenContent written = new WrittenContent(false);
+    InputStream content;
+    try {
+      content = openContent(file);
+    } catch (FileNotFoundException e) {
+      // Deleted since the query
+      recordProblem(file, report, ScanReport.Outcome.MISSING_CONTENT, e.getMessage());
+      return;
+    } catch (PartlyDecryptedException e) {
+      recordProblem(file, report, ScanReport.Outcome.PARTLY_DECRYPTED, e.getMessage());
+      return;
+    } catch (IOException | UnsupportedCryptoException e) {
+      recordProblem(file, report, ScanReport.Outcome.READ_ERROR, e.getMessage());
+      return;
     }
 
-    // Process all files
-    for (BackupFile file : allFiles) {
-      if (replace) {
-        processFileInPlace(file, force);
-      } else {
-        processFile(file, outputDir, force);
+    try (content) {
+      byte[] buffer = acquireBuffer();
+      try {
+        result = file.extract(content, written.wrap(OutputStream.nullOutputStream()), buffer);
+      } finally {
+        bufferPool.release(buffer);
       }
+    } catch (BackupReadException | NotUnlockedException e) {
+      // Wraps the InvalidKeyException of a failed unwrap, or the class key is missing
+      Throwable cause = e.getCause() != null ? e.getCause() : e;
+      recordProblem(file, report, ScanReport.Outcome.UNWRAP_FAILED, cause.toString());
+      return;
+    } catch (IOException e) {
+      boolean badLength = e.getCause() instanceof IllegalBlockSizeException;
+      recordProblem(file, report, badLength ? ScanReport.Outcome.BAD_LENGTH : ScanReport.Outcome.READ_ERROR,
+          e.getMessage());
+      return;
+    } catch (UnsupportedCryptoException e) {
+      recordProblem(file, report, ScanReport.Outcome.UNWRAP_FAILED, e.toString());
+      return;
+    }
+
+    written.finish(result.decryptedSize);
+    try {
+      recordWritten(file, written);
+    } catch (IOException e) {
+      dualLogger.error("Failed to add " + file.fileID + " to the output manifest or content catalog: " + e.getMessage());
+    }
 
-      // Progress reporting every 100 files
-      if (processedFiles.get() % 100 == 0) {
-        reportProgress(allFiles.size());
+    List<String> problems = new ArrayList<>();
+    ScanReport.Outcome outcome = ScanReport.Outcome.OK;
+    if (verify && file.getDigest() != null) {
+      List<String> digestProblems = file.verify((DigestInputStream) content, result);
+      verifiedFiles.incrementAndGet();
+      if (!digestProblems.isEmpty()) {
+        integrityErrors.incrementAndGet();
+        problems.addAll(digestProblems);
+        outcome = ScanReport.Outcome.DIGEST_MISMATCH;
       }
     }
+    if (!result.paddingValid) {
+      problems.add("Bad padding in the last block");
+      if (outcome == ScanReport.Outcome.OK) {
+        outcome = ScanReport.Outcome.BAD_PADDING;
+      }
+    }
+    if (result.decryptedSize != file.getSize()) {
+      problems.add("Size mismatch, expected " + file.getSize() + " bytes, got " + result.decryptedSize);
+      if (outcome == ScanReport.Outcome.OK) {
+        outcome = ScanReport.Outcome.SIZE_MISMATCH;
+      }
+    }
+
+    if (outcome == ScanReport.Outcome.OK) {
+      processedFiles.incrementAndGet();
+      totalBytes.addAndGet(result.decryptedSize);
+      report.record(file, outcome, "");
+      logVerbose("Scanned: " + file.fileID + " (" + file.domain + "/" + file.relativePath + ")");
+    } else {
+      recordProblem(file, report, outcome, String.join("; ", problems));
+    }
+  }
 
-    // Final cleanup
-    backup.cleanUp();
+  private void recordProblem(BackupFile file, ScanReport report, ScanReport.Outcome outcome, String detail) {
+    errorFiles.incrementAndGet();
+    report.record(file, outcome, detail);
+    dualLogger.error(outcome + ": " + file.fileID + " (" + file.domain + "/" + file.relativePath + "): " + detail);
+  }
 
-    // Final report
-    long duration = System.currentTimeMillis() - startTime;
-    log("\n=== DECRYPTION COMPLETE ===");
-    log("Total files: " + allFiles.size());
-    log("Successfully processed: " + processedFiles.get());
-    log("Skipped (already exist or not encrypted): " + skippedFiles.get());
-    log("Errors: " + errorFiles.get());
-    log("Total data processed: " + formatBytes(totalBytes.get()));
-    log("Time taken: " + formatDuration(duration));
+  @FunctionalInterface
+  private interface FileSource {
+    void forEach(Consumer<BackupFile> consumer) throws DatabaseConnectionException;
+  }
 
-    if (replace) {
-      log("Mode: In-place replacement in backup directory");
-      log("Location: " + backupPath);
+  /**
+   * Hands the files of the source to a pool of workers. The number of workers and how far the source may read ahead
+   * follow from the memory budget, the I/O limits are shared by all workers.
+   */
+  private void runWorkers(int totalFiles, ExtractionBudget budget, FileSource source, Consumer<BackupFile> processor)
+      throws DatabaseConnectionException, InterruptedException {
+    // Size the worker pool and the manifest read-ahead from the memory budget
+    int workers = threads > 0 ? threads : (memoryBudget > 0 ? Runtime.getRuntime().availableProcessors() : 1);
+    // Workers writing to an archive or store spool small files in a second buffer
+    int buffersPerWorker = archive != null || contentStore != null ? 2 : 1;
+    int readAhead;
+    if (memoryBudget > 0) {
+      long readAheadBudget = memoryBudget / 4;
+      long bufferBudget = memoryBudget - readAheadBudget - archiveMemory;
+      if (bufferBudget < (long) buffersPerWorker * WORKER_BUFFER_SIZE) {
+        throw new IllegalArgumentException("Memory budget of " + formatBytes(memoryBudget) + " is too small, at least "
+            + formatBytes(((long) buffersPerWorker * WORKER_BUFFER_SIZE + archiveMemory) * 4 / 3 + 1)
+            + " are needed for this output");
+      }
+      bufferPool = BufferPool.withBudget(WORKER_BUFFER_SIZE, bufferBudget);
+      readAhead = (int) Math.max(1, Math.min(Integer.MAX_VALUE, readAheadBudget / MANIFEST_ENTRY_SIZE));
+      int allowedWorkers = Math.min(bufferPool.getCapacity() / buffersPerWorker, readAhead);
+      if (workers > allowedWorkers) {
+        log("Memory budget of " + formatBytes(memoryBudget) + " allows " + allowedWorkers + " of " + workers
+            + " requested workers");
+        workers = allowedWorkers;
+      }
+      if (memoryBudget > Runtime.getRuntime().maxMemory()) {
+        log("Warning: Memory budget exceeds the maximum heap size of " + formatBytes(Runtime.getRuntime().maxMemory()));
+      }
+      log("Memory budget: " + formatBytes(memoryBudget) + " (" + bufferPool.getCapacity() + " buffers, "
+          + readAhead + " manifest entries read ahead"
+          + (archiveMemory > 0 ? ", " + formatBytes(archiveMemory) + " for the archive" : "") + ")");
     } else {
-      log("Mode: Extract to separate directory");
-      log("Output directory: " + outputPath);
-      log("Structure: Preserved original backup format with decrypted files");
+      bufferPool = new BufferPool(WORKER_BUFFER_SIZE, workers * buffersPerWorker);
+      readAhead = workers * READ_AHEAD_PER_WORKER;
     }
 
-    if (errorFiles.get() > 0) {
-      log("Warning: " + errorFiles.get() + " files had errors during processing");
+    if (workers > 1) {
+      log("Decrypting with " + workers + " threads");
+    }
+    if (!ioGovernor.isUnlimited()) {
+      log("I/O limits: " + describeIoLimits());
     }
-  }
 
-  private void processFile(BackupFile file, Path outputDir, boolean force) {
+    ScheduledExecutorService controlFileWatcher = startIoControlFileWatcher();
+    ExecutorService executor = Executors.newFixedThreadPool(workers);
+    Semaphore readAheadPermits = new Semaphore(readAhead);
+    AtomicInteger completedFiles = new AtomicInteger(0);
     try {
-      // Skip directories for now (they'll be created as needed)
-      if (file.getFileType() == BackupFile.FileType.DIRECTORY) {
-        return;
-      }
+      // The query blocks while too many files are waiting for a worker
+      source.forEach(file -> {
+        boolean isFile = file.getFileType() == BackupFile.FileType.FILE;
+        String skipReason = isFile ? budget.reserve(file) : null;
+        if (skipReason != null) {
+          budget.skip(file, skipReason);
+          return;
+        }
 
-      // Create output path preserving backup structure: output/ab/ab123456789...
-      String fileIdPrefix = file.fileID.substring(0, 2);
-      Path filePath = outputDir.resolve(fileIdPrefix).resolve(file.fileID);
+        readAheadPermits.acquireUninterruptibly();
+        executor.execute(() -> {
+          try {
+            if (isFile && budget.isTimeExceeded()) {
+              // Waited too long in the queue
+              budget.cancel(file);
+              budget.skip(file, ExtractionBudget.REASON_TIME);
+            } else {
+              processor.accept(file);
+            }
+          } finally {
+            readAheadPermits.release();
+          }
 
-      // Skip if file already exists and not forcing
-      if (Files.exists(filePath) && !force) {
-        skippedFiles.incrementAndGet();
-        logVerbose("Skipped (exists): " + fileIdPrefix + "/" + file.fileID + " (" + file.domain + "/"
-            + file.relativePath + ")");
-        return;
+          // Progress reporting every 100 files
+          if (completedFiles.incrementAndGet() % 100 == 0) {
+            reportProgress(totalFiles);
+          }
+        });
+      });
+    } finally {
+      executor.shutdown();
+      while (!executor.awaitTermination(1, TimeUnit.MINUTES)) {
+        logVerbose("Waiting for workers to finish...");
       }
+      if (controlFileWatcher != null) {
+        controlFileWatcher.shutdownNow();
+      }
+    }
+  }
+
+  private void processFile(BackupFile file, Path outputDir, boolean force) {
+    // Skip directories for now (they'll be created as needed)
+    if (file.getFileType() == BackupFile.FileType.DIRECTORY) {
+      return;
+    }
+
+    // Create output path preserving backup structure: output/ab/ab123456789...
+    String fileIdPrefix = file.fileID.substring(0, 2);
+    Path filePath = outputDir.resolve(fileIdPrefix).resolve(file.fileID);
+    extractFile(file, filePath, fileIdPrefix + "/" + file.fileID, force);
+  }
 
-      // Create parent directories (e.g., ab/, cd/, etc.)
-      Files.createDirectories(filePath.getParent());
+  /**
+   * Extracts a file to the given path and updates the counters.
+   *
+   * @param label how the file is called in the log
+   * @return true if the file was extracted
+   */
+  private boolean extractFile(BackupFile file, Path filePath, String label, boolean force) {
+    try {
+      WrittenContent written;
+      if (archive != null) {
+        written = extractToArchive(file, archiveEntryName(filePath));
+      } else if (contentStore != null && !linkToContentStore) {
+        written = extractToStore(file, null);
+      } else {
+        // Skip if file already exists and not forcing
+        if (Files.exists(filePath) && !force) {
+          skippedFiles.incrementAndGet();
+          logVerbose("Skipped (exists): " + label + " (" + file.domain + "/" + file.relativePath + ")");
+          return false;
+        }
+
+        // Create parent directories (e.g., ab/, cd/, etc.)
+        Files.createDirectories(filePath.getParent());
 
-      // Extract the file (decrypt if needed)
-      file.extract(filePath.toFile());
+        // Extract the file (decrypt if needed)
+        if (contentStore != null) {
+          written = extractToStore(file, filePath);
+        } else {
+          written = extractTo(file, filePath);
+        }
+      }
+      recordWritten(file, written);
 
       processedFiles.incrementAndGet();
+      firstFileMillis.compareAndSet(0, System.currentTimeMillis());
       totalBytes.addAndGet(file.getSize());
 
       if (file.getSize() == 0) {
-        logVerbose("Extracted (0-byte file): " + fileIdPrefix + "/" + file.fileID + " (" + file.domain + "/"
-            + file.relativePath +
+        logVerbose("Extracted (0-byte file): " + label + " (" + file.domain + "/" + file.relativePath +
             (file.isEncrypted() ? ", was encrypted" : "") + ")");
       } else {
-        logVerbose("Extracted: " + fileIdPrefix + "/" + file.fileID + " (" + file.domain + "/" + file.relativePath +
+        logVerbose("Extracted: " + label + " (" + file.domain + "/" + file.relativePath +
             ", " + formatBytes(file.getSize()) +
             (file.isEncrypted() ? ", encrypted" : "") + ")");
       }
+      return true;
 
     } catch (Exception e) {
       errorFiles.incrementAndGet();
       String errorMsg = "Error processing " + file.fileID + " (" + file.domain + "/" + file.relativePath + "): "
-          + e.getMessage();
+          + e.getMessage() + (e instanceof PartlyDecryptedException ? " (--replace finishes it)" : "");
       dualLogger.error(errorMsg);
       if (verbose) {
         logger.error("Full error details:", e);
       }
+      return false;
+    }
+  }
+
+  /**
+   * Assigns the app domains of the backup to the installed applications, optionally only the selected ones.
+   */
+  private ApplicationDomains findApplicationDomains(ITunesBackup backup) throws DatabaseConnectionException {
+    Set<String> bundleIds = new TreeSet<>(backup.manifest.applications.keySet());
+    List<String> domains = backup.queryDomains(
+        ApplicationDomains.APP_PREFIX, ApplicationDomains.GROUP_PREFIX, ApplicationDomains.PLUGIN_PREFIX);
+    ApplicationDomains applications = new ApplicationDomains(bundleIds, domains);
+    if (selectedApplications.isEmpty()) {
+      return applications;
+    }
+
+    // Keep only the domains of the selected applications
+    List<String> selectedDomains = new ArrayList<>();
+    for (String application : selectedApplications) {
+      List<String> applicationDomains = applications.getDomainsByApplication().get(application);
+      if (applicationDomains == null) {
+        log("Warning: No domains found for application " + application);
+      } else {
+        selectedDomains.addAll(applicationDomains);
+      }
+    }
+    return new ApplicationDomains(selectedApplications, selectedDomains);
+  }
+
+  /**
+   * Extracts a file of an application to output/bundleId/domain/relativePath.
+   * Domains that belong to no installed application go to output/_unassigned/domain/relativePath.
+   */
+  private void processApplicationFile(BackupFile file, Path outputDir, ApplicationDomains applications,
+      Map<String, ApplicationStats> stats, boolean force) {
+    if (file.getFileType() != BackupFile.FileType.FILE) {
+      return;
+    }
+
+    String application = applications.getApplication(file.domain).orElse(UNASSIGNED_APPLICATION_DIR);
+    Path filePath;
+    try {
+      filePath = file.getDestinationInFolder(outputDir.resolve(application).toFile(), true).toPath();
+    } catch (IOException e) {
+      errorFiles.incrementAndGet();
+      dualLogger.error("Error processing " + file.fileID + " (" + file.domain + "/" + file.relativePath + "): "
+          + e.getMessage());
+      return;
+    }
+
+    if (extractFile(file, filePath, application + "/" + file.fileID, force)) {
+      ApplicationStats applicationStats = stats.computeIfAbsent(application, key -> new ApplicationStats());
+      applicationStats.files.increment();
+      applicationStats.bytes.add(file.getSize());
+    }
+  }
+
+  private static class ApplicationStats {
+    final LongAdder files = new LongAdder();
+    final LongAdder bytes = new LongAdder();
+  }
+
+  /**
+   * Writes a tab-separated summary with the files, bytes and domains of every application.
+   */
+  private void writeApplicationIndex(Path outputDir, ApplicationDomains applications,
+      Map<String, ApplicationStats> stats) {
+    Map<String, List<String>> rows = new TreeMap<>(applications.getDomainsByApplication());
+    if (!applications.getUnassignedDomains().isEmpty()) {
+      rows.put(UNASSIGNED_APPLICATION_DIR, applications.getUnassignedDomains());
+    }
+
+    StringBuilder index = new StringBuilder("application\tfiles\tbytes\tdomains\n");
+    for (Map.Entry<String, List<String>> row : rows.entrySet()) {
+      ApplicationStats applicationStats = stats.getOrDefault(row.getKey(), new ApplicationStats());
+      index.append(row.getKey()).append('\t').append(applicationStats.files.sum()).append('\t')
+          .append(applicationStats.bytes.sum()).append('\t').append(String.join(",", row.getValue())).append('\n');
+    }
+
+    try {
+      byte[] content = index.toString().getBytes(StandardCharsets.UTF_8);
+      if (archive != null) {
+        archive.addEntry(APPLICATION_INDEX_FILE, System.currentTimeMillis(), content, content.length);
+      } else {
+        Files.write(outputDir.resolve(APPLICATION_INDEX_FILE), content);
+      }
+    } catch (IOException e) {
+      log("Warning: Failed to write application index: " + e.getMessage());
+      return;
     }
+
+    log("Extracted " + stats.size() + " of " + rows.size() + " applications");
   }
 
   private void processFileInPlace(BackupFile file, boolean force) {
@@ -401,6 +2596,11 @@ public class ITunesBackupDecryptor {
         return;
       }
 
+      if (replaceDirect || file.isDecryptionInPlaceInterrupted()) {
+        decryptDirect(file, originalFile);
+        return;
+      }
+
       // Create temporary file in the same directory for atomic replacement
       File tempFile = new File(originalFile.getParent(), originalFile.getName() + ".tmp." + System.currentTimeMillis());
 
@@ -415,7 +2615,7 @@ public class ITunesBackupDecryptor {
         logVerbose("Decrypting to temp file: " + tempFile.getAbsolutePath() +
             " (original: " + originalFile.getAbsolutePath() + ", size: " + file.getSize() + " bytes)");
 
-        file.extract(tempFile);
+        WrittenContent written = extractTo(file, tempFile.toPath());
 
         // Verify the temporary file was created and has content
         if (!tempFile.exists()) {
@@ -435,8 +2635,10 @@ public class ITunesBackupDecryptor {
             log("Warning: Could not delete temporary file: " + tempFile.getAbsolutePath());
           }
         }
+        recordWritten(file, written);
 
         processedFiles.incrementAndGet();
+        firstFileMillis.compareAndSet(0, System.currentTimeMillis());
         totalBytes.addAndGet(file.getSize());
 
         if (file.getSize() == 0) {
@@ -462,13 +2664,15 @@ public class ITunesBackupDecryptor {
             // Create temp file in system temp directory instead
             File systemTempFile = File.createTempFile("backup_decrypt_", ".tmp");
             try {
-              file.extract(systemTempFile);
+              WrittenContent written = extractTo(file, systemTempFile.toPath());
 
               if (systemTempFile.exists() && (systemTempFile.length() > 0 || file.getSize() == 0)) {
                 // Successfully extracted to system temp, now move to original location
                 Files.copy(systemTempFile.toPath(), originalFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+                recordWritten(file, written);
 
                 processedFiles.incrementAndGet();
+                firstFileMillis.compareAndSet(0, System.currentTimeMillis());
                 totalBytes.addAndGet(file.getSize());
 
                 if (file.getSize() == 0) {
@@ -507,25 +2711,485 @@ public class ITunesBackupDecryptor {
     }
   }
 
+  /**
+   * Decrypts a file within its content file. A decryption interrupted in an earlier run is finished instead,
+   * whichever way this run replaces files, as the file is partly decrypted already.
+   */
+  private void decryptDirect(BackupFile file, File contentFile)
+      throws IOException, BackupReadException, NotUnlockedException, UnsupportedCryptoException {
+    DecryptionResult result;
+    MessageDigest contentDigest = null;
+    // Only a decryption from the start passes all of the content by
+    WrittenContent written = null;
+    byte[] buffer = acquireBuffer();
+    try {
+      if (file.isDecryptionInPlaceInterrupted()) {
+        log("Finishing interrupted decryption: " + file.fileID + " (" + file.domain + "/" + file.relativePath + ")");
+        result = file.finishDecryptionInPlace(buffer, ioGovernor);
+      } else {
+        contentDigest = verify ? BackupFile.newContentDigest() : null;
+        written = new WrittenContent(true);
+        result = file.decryptInPlace(buffer, contentDigest, written.wrap(OutputStream.nullOutputStream()), ioGovernor);
+      }
+    } finally {
+      bufferPool.release(buffer);
+    }
+    if (contentDigest != null) {
+      verifyContent(file, contentDigest, result);
+    }
+
+    if (result.decryptedSize != file.getSize()) {
+      log("Warning: File size from database doesn't match actual decrypted size - expected " + file.getSize()
+          + ", got " + result.decryptedSize + " (" + file.fileID + ")");
+    }
+    if (!result.paddingValid) {
+      log("Warning: Bad padding, trying to remove it manually (" + file.fileID + ")");
+      BackupFilePaddingFixer.tryFixPadding(contentFile);
+    }
+    file.applyLastModified(contentFile);
+
+    if (written != null && result.paddingValid) {
+      written.finish(result.decryptedSize);
+    } else {
+      // Finished from a record or fixed afterwards, so the manifest and catalog read the result again
+      Path path = contentFile.toPath();
+      written = new WrittenContent(false);
+      written.size = Files.size(path);
+      if (outputManifest != null) {
+        written.sha256 = ContentStore.hashFile(path);
+      }
+      if (contentCatalog != null) {
+        try (InputStream content = Files.newInputStream(path)) {
+          byte[] head = content.readNBytes(ContentType.HEAD_SIZE);
+          written.contentType = ContentType.detect(head, head.length);
+        }
+      }
+    }
+    recordWritten(file, written);
+
+    processedFiles.incrementAndGet();
+    firstFileMillis.compareAndSet(0, System.currentTimeMillis());
+    totalBytes.addAndGet(file.getSize());
+    logVerbose("Decrypted in-place: " + file.fileID + " (" + file.domain + "/" + file.relativePath + ", "
+        + formatBytes(file.getSize()) + ")");
+  }
+
+  /**
+   * Observes the content written for a file: its SHA-256 for the output manifest and its first bytes
+   * for the content catalog, each only if enabled. Nothing is wrapped if neither is.
+   */
+  private class WrittenContent {
+    private final MessageDigest digest;
+    private ContentType.Sniffer sniffer;
+    long size;
+    String sha256;
+    ContentType contentType;
+
+    /**
+     * @param hash false if the SHA-256 is known without hashing, like in the content store
+     */
+    WrittenContent(boolean hash) {
+      this.digest = hash && outputManifest != null ? OutputManifest.newDigest() : null;
+    }
+
+    OutputStream wrap(OutputStream output) {
+      if (digest != null) {
+        output = new DigestOutputStream(output, digest);
+      }
+      if (contentCatalog != null) {
+        output = sniffer = new ContentType.Sniffer(output);
+      }
+      return output;
+    }
+
+    /**
+     * Finishes content that was written through {@link #wrap(OutputStream)}.
+     */
+    void finish(long size) {
+      this.size = size;
+      if (digest != null) {
+        sha256 = ContentStore.toHex(digest.digest());
+      }
+      if (sniffer != null) {
+        contentType = sniffer.getContentType();
+      }
+    }
+
+    /**
+     * Finishes content that was held in memory instead.
+     */
+    void finish(byte[] data, int length) {
+      this.size = length;
+      if (digest != null) {
+        digest.update(data, 0, length);
+        sha256 = ContentStore.toHex(digest.digest());
+      }
+      if (contentCatalog != null) {
+        contentType = ContentType.detect(data, length);
+      }
+    }
+  }
+
+  /**
+   * @return the UDID of the backed up device from Info.plist, or else the name of the backup directory,
+   * which iTunes names after it
+   */
+  private static String getDeviceId(ITunesBackup backup) {
+    return backup.getBackupInfo()
+        .map(info -> info.uniqueIdentifier != null ? info.uniqueIdentifier : info.targetIdentifier)
+        .orElse(backup.directory.getName());
+  }
+
+  /**
+   * Holds a small file in a buffer of the pool. Content longer than the database says still fits,
+   * it grows into a copy on the heap.
+   */
+  private class Spool extends ByteArrayOutputStream {
+    private final byte[] pooled;
+
+    Spool(byte[] pooled) {
+      super(0);
+      this.pooled = pooled;
+      this.buf = pooled;
+    }
+
+    byte[] getData() {
+      return buf;
+    }
+
+    void release() {
+      bufferPool.release(pooled);
+    }
+  }
+
+  /**
+   * Decrypts a file through the shared I/O governor.
+   *
+   * @return what was written, null if this is no regular file
+   */
+  private WrittenContent extractTo(BackupFile file, Path destination)
+      throws IOException, BackupReadException, NotUnlockedException, UnsupportedCryptoException {
+    if (file.getFileType() != BackupFile.FileType.FILE) {
+      file.extract(destination.toFile());
+      return null;
+    }
+
+    // The buffer is big enough that every chunk is written with a single call
+    DecryptionResult result;
+    WrittenContent written = new WrittenContent(true);
+    byte[] buffer = acquireBuffer();
+    InputStream content = openContent(file);
+    try (content; OutputStream output = written.wrap(ioGovernor.throttle(Files.newOutputStream(destination)))) {
+      result = file.extract(content, output, buffer);
+    } finally {
+      bufferPool.release(buffer);
+    }
+    verifyContent(file, content, result);
+
+    if (file.isEncrypted() && result.decryptedSize != file.getSize()) {
+      log("Warning: File size from database doesn't match actual decrypted size - expected " + file.getSize()
+          + ", got " + result.decryptedSize + " (" + file.fileID + ")");
+    }
+    if (!result.paddingValid) {
+      log("Warning: Bad padding, trying to remove it manually (" + file.fileID + ")");
+      BackupFilePaddingFixer.tryFixPadding(destination.toFile());
+    }
+
+    file.applyLastModified(destination.toFile());
+
+    written.finish(result.decryptedSize);
+    if (!result.paddingValid && written.sha256 != null) {
+      // Removing the padding changed the file after it was hashed
+      written.size = Files.size(destination);
+      written.sha256 = ContentStore.hashFile(destination);
+    }
+    return written;
+  }
+
+  /**
+   * Decrypts a file into the archive. Small files are decrypted into memory first, so that only
+   * appending them to the archive is serialized; larger files are streamed into the archive.
+   * Files that fail to decrypt or to verify are left out of the archive and reported as errors.
+   */
+  private WrittenContent extractToArchive(BackupFile file, String entryName)
+      throws IOException, BackupReadException, NotUnlockedException, UnsupportedCryptoException {
+    DecryptionResult result;
+    WrittenContent written = new WrittenContent(true);
+    byte[] buffer = acquireBuffer();
+    InputStream content = openContent(file);
+    try (content) {
+      if (file.getSize() <= ARCHIVE_SPOOL_SIZE) {
+        Spool spool = new Spool(acquireBuffer());
+        try {
+          result = file.extract(content, spool, buffer);
+          byte[] data = spool.getData();
+          int length = spool.size();
+          if (!result.paddingValid) {
+            log("Warning: Bad padding, trying to remove it manually (" + file.fileID + ")");
+            length = BackupFilePaddingFixer.tryFixPadding(data, length);
+          }
+          if (!verifyContent(file, content, result)) {
+            throw new IOException("Integrity check failed, left out of the archive");
+          }
+          archive.addFile(file.fileID, file.domain, file.relativePath, entryName, file.getLastModified(), data,
+              length);
+          written.finish(data, length);
+        } finally {
+          spool.release();
+        }
+      } else {
+        // The entry is only closed once the file has been decrypted and verified, anything else aborts it
+        ArchiveWriter.EntryStream entry = archive.openFile(file.fileID, file.domain, file.relativePath, entryName,
+            file.getLastModified(), file.getSize());
+        boolean complete = false;
+        try {
+          PaddingFixingOutputStream output = new PaddingFixingOutputStream(written.wrap(entry));
+          result = file.extract(content, output, buffer);
+          if (!result.paddingValid) {
+            log("Warning: Bad padding, trying to remove it manually (" + file.fileID + ")");
+          }
+          long size = output.finish(!result.paddingValid);
+          if (!verifyContent(file, content, result)) {
+            throw new IOException("Integrity check failed, left out of the archive");
+          }
+          complete = true;
+          entry.close();
+          written.finish(size);
+        } finally {
+          if (!complete) {
+            entry.abort();
+          }
+        }
+      }
+    } finally {
+      bufferPool.release(buffer);
+    }
+
+    if (file.isEncrypted() && result.decryptedSize != file.getSize()) {
+      log("Warning: File size from database doesn't match actual decrypted size - expected " + file.getSize()
+          + ", got " + result.decryptedSize + " (" + file.fileID + ")");
+    }
+    return written;
+  }
+
+  /**
+   * Adds the content of a file to the content store and links it into the output tree.
+   * Files that are unchanged since an earlier extraction into the same store are not decrypted again.
+   *
+   * @param destination where to link the content, null to only list it in the store manifest
+   * @return what was written; the hash of the store is used as SHA-256
+   */
+  private WrittenContent extractToStore(BackupFile file, Path destination)
+      throws IOException, BackupReadException, NotUnlockedException, UnsupportedCryptoException {
+    String sourceDigest = ContentStore.toHex(file.getDigest());
+    long lastModified = file.getLastModified();
+    String hash = contentStore.lookup(file.fileID, file.getSize(), lastModified, sourceDigest).orElse(null);
+    WrittenContent written = new WrittenContent(false);
+
+    if (hash != null) {
+      logVerbose("Unchanged since an earlier extraction: " + file.fileID + " (" + file.domain + "/"
+          + file.relativePath + ")");
+      if (contentCatalog != null) {
+        // Not decrypted this time, but the head of the blob is just as good
+        try (InputStream blob = Files.newInputStream(contentStore.getBlobPath(hash))) {
+          byte[] head = blob.readNBytes(ContentType.HEAD_SIZE);
+          written.contentType = ContentType.detect(head, head.length);
+        }
+      }
+    } else {
+      DecryptionResult result;
+      byte[] buffer = acquireBuffer();
+      InputStream content = openContent(file);
+      try (content) {
+        if (file.getSize() <= ARCHIVE_SPOOL_SIZE) {
+          // Duplicates are never written
+          Spool spool = new Spool(acquireBuffer());
+          try {
+            result = file.extract(content, spool, buffer);
+            byte[] data = spool.getData();
+            int length = spool.size();
+            if (!result.paddingValid) {
+              log("Warning: Bad padding, trying to remove it manually (" + file.fileID + ")");
+              length = BackupFilePaddingFixer.tryFixPadding(data, length);
+            }
+            hash = contentStore.put(data, length);
+            written.finish(data, length);
+          } finally {
+            spool.release();
+          }
+        } else {
+          try (ContentStore.BlobOutputStream blob = contentStore.openBlob()) {
+            result = file.extract(content, written.wrap(ioGovernor.throttle(blob)), buffer);
+            written.finish(result.decryptedSize);
+            if (!result.paddingValid) {
+              log("Warning: Bad padding, trying to remove it manually (" + file.fileID + ")");
+            }
+            hash = blob.commit(!result.paddingValid);
+          }
+        }
+      } finally {
+        bufferPool.release(buffer);
+      }
+      verifyContent(file, content, result);
+
+      if (file.isEncrypted() && result.decryptedSize != file.getSize()) {
+        log("Warning: File size from database doesn't match actual decrypted size - expected " + file.getSize()
+            + ", got " + result.decryptedSize + " (" + file.fileID + ")");
+      }
+      contentStore.remember(file.fileID, file.getSize(), lastModified, sourceDigest, hash);
+    }
+
+    // Links share the blob, so the modification date is only kept in the manifest
+    if (destination != null) {
+      contentStore.link(hash, destination);
+    }
+    storeManifest.println(file.fileID + "\t" + file.domain + "\t" + file.relativePath.replace('\t', ' ') + "\t"
+        + file.getSize() + "\t" + lastModified + "\t" + hash);
+    written.sha256 = hash;
+    if (outputManifest != null || contentCatalog != null) {
+      written.size = Files.size(contentStore.getBlobPath(hash));
+    }
+    return written;
+  }
+
+  private void openContentCatalog() throws IOException {
+    if (contentCatalogPath != null) {
+      contentCatalog = new ContentCatalog(contentCatalogPath);
+      log("Content catalog: " + contentCatalogPath);
+    }
+  }
+
+  private void closeContentCatalog() throws IOException {
+    if (contentCatalog != null) {
+      ContentCatalog closing = contentCatalog;
+      contentCatalog = null;
+      closing.close();
+      log("Content types (listed in " + closing.getPath() + "):");
+      closing.reportCounts(this::log);
+    }
+  }
+
+  /**
+   * Lists a file that was written completely in the output manifest and the content catalog.
+   */
+  private void recordWritten(BackupFile file, WrittenContent written) throws IOException {
+    if (written == null) {
+      return;
+    }
+    if (outputManifest != null) {
+      outputManifest.add(file, written.size, written.sha256);
+    }
+    if (contentCatalog != null && written.contentType != null) {
+      contentCatalog.add(file, written.size, written.contentType);
+    }
+  }
+
+  private String archiveEntryName(Path filePath) {
+    return archivePath.relativize(filePath).toString().replace(File.separatorChar, '/');
+  }
+
+  /**
+   * Opens the content file for extraction. With --verify, its SHA-1 is calculated on the way.
+   */
+  private InputStream openContent(BackupFile file) throws IOException, UnsupportedCryptoException {
+    InputStream content = ioGovernor.throttle(file.openContentStream());
+    return verify ? BackupFile.digesting(content) : content;
+  }
+
+  /**
+   * Compares a file that was just extracted from the given stream with its digest or size in the database.
+   *
+   * @return false if the check failed, true if it passed or --verify is not set
+   */
+  private boolean verifyContent(BackupFile file, InputStream content, DecryptionResult result) {
+    if (verify) {
+      return verifyContent(file, ((DigestInputStream) content).getMessageDigest(), result);
+    }
+    return true;
+  }
+
+  private boolean verifyContent(BackupFile file, MessageDigest contentDigest, DecryptionResult result) {
+    List<String> problems = file.verify(contentDigest, result);
+    verifiedFiles.incrementAndGet();
+    if (file.getDigest() == null) {
+      verifiedBySize.incrementAndGet();
+    }
+    if (!problems.isEmpty()) {
+      integrityErrors.incrementAndGet();
+      dualLogger.error("Integrity check failed for " + file.fileID + " (" + file.domain + "/" + file.relativePath
+          + "): " + String.join("; ", problems));
+      return false;
+    }
+    return true;
+  }
+
+  private byte[] acquireBuffer() throws InterruptedIOException {
+    try {
+      return bufferPool.acquire();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while waiting for a buffer");
+    }
+  }
+
+  private ScheduledExecutorService startIoControlFileWatcher() {
+    if (ioControlFile == null) {
+      return null;
+    }
+
+    ScheduledExecutorService watcher = Executors.newSingleThreadScheduledExecutor(runnable -> {
+      Thread thread = new Thread(runnable, "io-control-watcher");
+      thread.setDaemon(true);
+      return thread;
+    });
+
+    log("Watching I/O control file: " + ioControlFile);
+    final long[] lastModified = { Long.MIN_VALUE };
+    watcher.scheduleWithFixedDelay(() -> {
+      try {
+        if (!Files.exists(ioControlFile)) {
+          return;
+        }
+        long modified = Files.getLastModifiedTime(ioControlFile).toMillis();
+        if (modified == lastModified[0]) {
+          return;
+        }
+        lastModified[0] = modified;
+        if (ioGovernor.loadControlFile(ioControlFile)) {
+          log("I/O limits changed: " + describeIoLimits());
+        }
+      } catch (IOException | IllegalArgumentException e) {
+        log("Warning: Failed to read I/O control file: " + e.getMessage());
+      }
+    }, 0, 1, TimeUnit.SECONDS);
+
+    return watcher;
+  }
+
+  private String describeIoLimits() {
+    return "read " + describeRate(ioGovernor.getMaxReadRate())
+        + ", write " + describeRate(ioGovernor.getMaxWriteRate())
+        + ", operations " + (ioGovernor.getMaxIops() == 0 ? "unlimited" : ioGovernor.getMaxIops() + "/s");
+  }
+
+  private static String describeRate(long bytesPerSecond) {
+    return bytesPerSecond == 0 ? "unlimited" : formatBytes(bytesPerSecond) + "/s";
+  }
+
   private void copyManifestFiles(ITunesBackup backup, Path outputDir) {
     try {
       // Copy Manifest.plist
-      Path manifestPlistSrc = backup.manifestPListFile.toPath();
-      Path manifestPlistDest = outputDir.resolve("Manifest.plist");
-      Files.copy(manifestPlistSrc, manifestPlistDest, StandardCopyOption.REPLACE_EXISTING);
+      copyManifestFile(backup.manifestPListFile.toPath(), outputDir, "Manifest.plist");
       log("Copied: Manifest.plist");
 
       // Copy Manifest.db (use decrypted version if available, otherwise original)
       File manifestDbSrc = backup.decryptedDatabaseFile != null ? backup.decryptedDatabaseFile : backup.manifestDBFile;
-      Path manifestDbDest = outputDir.resolve("Manifest.db");
-      Files.copy(manifestDbSrc.toPath(), manifestDbDest, StandardCopyOption.REPLACE_EXISTING);
+      copyManifestFile(manifestDbSrc.toPath(), outputDir, "Manifest.db");
       log("Copied: Manifest.db" + (backup.decryptedDatabaseFile != null ? " (decrypted)" : ""));
 
       // Copy Info.plist if it exists
       if (backup.backupInfoFile.exists()) {
-        Path infoPlistSrc = backup.backupInfoFile.toPath();
-        Path infoPlistDest = outputDir.resolve("Info.plist");
-        Files.copy(infoPlistSrc, infoPlistDest, StandardCopyOption.REPLACE_EXISTING);
+        copyManifestFile(backup.backupInfoFile.toPath(), outputDir, "Info.plist");
         log("Copied: Info.plist");
       }
 
@@ -534,6 +3198,38 @@ public class ITunesBackupDecryptor {
     }
   }
 
+  private void copyManifestFile(Path source, Path outputDir, String name) throws IOException {
+    if (archive != null) {
+      ArchiveWriter.EntryStream entry = archive.openEntry(name, Files.getLastModifiedTime(source).toMillis(),
+          Files.size(source));
+      boolean complete = false;
+      try {
+        Files.copy(source, entry);
+        complete = true;
+        entry.close();
+      } finally {
+        if (!complete) {
+          entry.abort();
+        }
+      }
+    } else {
+      Files.copy(source, outputDir.resolve(name), StandardCopyOption.REPLACE_EXISTING);
+    }
+  }
+
+  /**
+   * Logs how long after the start of the process the first file was written. This includes starting the JVM,
+   * loading the classes and unlocking the key bag, which is what a class data sharing archive shortens.
+   */
+  private void logTimeToFirstFile() {
+    long first = firstFileMillis.get();
+    Instant processStart = ProcessHandle.current().info().startInstant().orElse(null);
+    if (first == 0 || processStart == null) {
+      return;
+    }
+    log("Time to first file: " + (first - processStart.toEpochMilli()) + " ms after the process started");
+  }
+
   private void reportProgress(int totalFiles) {
     int processed = processedFiles.get();
     int skipped = skippedFiles.get();
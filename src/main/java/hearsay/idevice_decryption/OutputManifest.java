@@ -0,0 +1,116 @@
+package hearsay.idevice_decryption;
+
+import hearsay.idevice_decryption.api.BackupFile;
+import hearsay.idevice_decryption.util.CryptoProviders;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Tab-separated list of the extracted files with the SHA-256 of their decrypted content,
+ * so that the output can be verified after a transfer without reading the backup again.
+ * <p>
+ * Every line is handed to the operating system as soon as its file is complete, so after a crash
+ * the manifest lists exactly the files that were finished. When an interrupted extraction is
+ * continued, the manifest is appended to and a line that was cut off by the crash is dropped first.
+ */
+class OutputManifest {
+  static final String HEADER = "fileID\tdomain\trelativePath\tsize\tlastModified\tsha256";
+
+  private final Path path;
+  private final BufferedWriter writer;
+  private int lines = 0;
+
+  /**
+   * @param append true to continue an existing manifest, false to start a new one
+   */
+  OutputManifest(Path path, boolean append) throws IOException {
+    this.path = path;
+    if (append && Files.exists(path) && dropIncompleteLine(path) > 0) {
+      this.writer = Files.newBufferedWriter(path, StandardCharsets.UTF_8, StandardOpenOption.APPEND);
+    } else {
+      this.writer = Files.newBufferedWriter(path, StandardCharsets.UTF_8);
+      this.writer.write(HEADER);
+      this.writer.newLine();
+      this.writer.flush();
+    }
+  }
+
+  Path getPath() {
+    return path;
+  }
+
+  /**
+   * @param size   the size of the decrypted content as written
+   * @param sha256 the hash of the decrypted content in hex
+   */
+  synchronized void add(BackupFile file, long size, String sha256) throws IOException {
+    writer.write(file.fileID + "\t" + file.domain + "\t" + file.relativePath.replace('\t', ' ').replace('\n', ' ')
+        + "\t" + size + "\t" + file.getLastModified() + "\t" + sha256);
+    writer.newLine();
+    writer.flush();
+    lines++;
+  }
+
+  synchronized int getLines() {
+    return lines;
+  }
+
+  synchronized void close() throws IOException {
+    writer.close();
+    // Without this, the last lines could still be lost if the machine goes down
+    try (FileChannel channel = FileChannel.open(path, StandardOpenOption.WRITE)) {
+      channel.force(true);
+    }
+  }
+
+  static MessageDigest newDigest() {
+    try {
+      return CryptoProviders.digest("SHA-256");
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException("SHA-256 is not available", e);
+    }
+  }
+
+  /**
+   * Cuts the file after its last line break.
+   *
+   * @return the remaining length
+   */
+  private static long dropIncompleteLine(Path path) throws IOException {
+    try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+      ByteBuffer buffer = ByteBuffer.allocate(4096);
+      long end = channel.size();
+      while (end > 0) {
+        long start = Math.max(0, end - buffer.capacity());
+        int length = (int) (end - start);
+        buffer.clear().limit(length);
+        int read = 0;
+        while (read < length) {
+          int count = channel.read(buffer, start + read);
+          if (count == -1) {
+            break;
+          }
+          read += count;
+        }
+        for (int i = read - 1; i >= 0; i--) {
+          if (buffer.get(i) == '\n') {
+            channel.truncate(start + i + 1);
+            return start + i + 1;
+          }
+        }
+        end = start;
+      }
+      channel.truncate(0);
+      return 0;
+    }
+  }
+}
@@ -0,0 +1,127 @@
+package hearsay.idevice_decryption;
+
+import hearsay.idevice_decryption.api.BackupFile;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+/**
+ * Outcomes of an integrity scan, which decrypts every file without writing it anywhere.
+ * Every file gets exactly one outcome, the most severe problem found. The outcomes are counted
+ * and optionally written to a tab-separated report with one line per file.
+ */
+class ScanReport {
+  /**
+   * In order of severity, only the first problem of a file is its outcome.
+   */
+  enum Outcome {
+    OK,
+    /** The content file does not exist in the backup directory */
+    MISSING_CONTENT,
+    /** The file key could not be unwrapped with the class key */
+    UNWRAP_FAILED,
+    /** The content file is no multiple of the AES block size, usually because it was cut off */
+    BAD_LENGTH,
+    /** The content file could not be read */
+    READ_ERROR,
+    /** An in-place decryption of the content file was interrupted, --replace finishes it */
+    PARTLY_DECRYPTED,
+    /** The SHA-1 of the content file does not match the database (only with --verify) */
+    DIGEST_MISMATCH,
+    /** The last block does not end with valid PKCS#7 padding */
+    BAD_PADDING,
+    /** The decrypted size does not match the size in the database */
+    SIZE_MISMATCH
+  }
+
+  private final Map<Outcome, LongAdder> counts = new EnumMap<>(Outcome.class);
+  private final LongAdder scannedBytes = new LongAdder();
+  private final PrintWriter report;
+
+  /**
+   * @param reportPath file to write the outcome of every file to, null for none
+   */
+  ScanReport(Path reportPath) throws IOException {
+    for (Outcome outcome : Outcome.values()) {
+      counts.put(outcome, new LongAdder());
+    }
+    if (reportPath != null) {
+      this.report = new PrintWriter(Files.newBufferedWriter(reportPath));
+      this.report.println("fileID\tdomain\trelativePath\tsize\toutcome\tdetail");
+    } else {
+      this.report = null;
+    }
+  }
+
+  void record(BackupFile file, Outcome outcome, String detail) {
+    record(file.fileID, file.domain, file.relativePath, file.getSize(), outcome, detail);
+  }
+
+  /**
+   * @param size the size from the database, -1 if unknown
+   */
+  void record(String fileID, String domain, String relativePath, long size, Outcome outcome, String detail) {
+    counts.get(outcome).increment();
+    if (size > 0) {
+      scannedBytes.add(size);
+    }
+    if (report != null) {
+      String line = fileID + "\t" + domain + "\t" + clean(relativePath) + "\t" + size + "\t" + outcome + "\t"
+          + clean(detail);
+      synchronized (report) {
+        report.println(line);
+      }
+    }
+  }
+
+  long getCount(Outcome outcome) {
+    return counts.get(outcome).sum();
+  }
+
+  long getScannedFiles() {
+    long files = 0;
+    for (LongAdder count : counts.values()) {
+      files += count.sum();
+    }
+    return files;
+  }
+
+  long getScannedBytes() {
+    return scannedBytes.sum();
+  }
+
+  /**
+   * @return the number of files with any outcome but {@link Outcome#OK}
+   */
+  long getProblemCount() {
+    return getScannedFiles() - getCount(Outcome.OK);
+  }
+
+  /**
+   * Writes one line per outcome that occurred.
+   */
+  void reportCounts(Consumer<String> log) {
+    for (Outcome outcome : Outcome.values()) {
+      long count = getCount(outcome);
+      if (count > 0) {
+        log.accept("  " + outcome + ": " + count);
+      }
+    }
+  }
+
+  private static String clean(String text) {
+    return text == null ? "" : text.replace('\t', ' ').replace('\n', ' ').replace('\r', ' ');
+  }
+
+  void close() {
+    if (report != null) {
+      report.close();
+    }
+  }
+}
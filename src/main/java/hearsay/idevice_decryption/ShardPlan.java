@@ -0,0 +1,158 @@
+package hearsay.idevice_decryption;
+
+import hearsay.idevice_decryption.api.ManifestEntry;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.PriorityQueue;
+import java.util.Properties;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+/**
+ * One of N disjoint parts of a backup, so that N processes (possibly on different machines sharing
+ * the output directory) can extract a backup together. Every shard lists its files in its own output
+ * manifest and writes a completion record when it is done; the merge step checks that the records
+ * are complete and that the manifests cover every file exactly once.
+ */
+class ShardPlan {
+  enum Strategy {
+    /** By the first digits of the file ID, decided in SQL without looking at other files */
+    PREFIX,
+    /** By size, so that every shard gets about the same number of bytes; needs all sizes first */
+    SIZE
+  }
+
+  private static final Pattern RECORD_NAME = Pattern.compile("Shard-(\\d+)-of-(\\d+)\\.properties");
+
+  /** From 1 to {@link #count} */
+  final int index;
+  final int count;
+  final Strategy strategy;
+
+  ShardPlan(int index, int count, Strategy strategy) {
+    if (count < 1 || index < 1 || index > count)
+      throw new IllegalArgumentException("Invalid shard " + index + "/" + count);
+    this.index = index;
+    this.count = count;
+    this.strategy = strategy;
+  }
+
+  /**
+   * @param value like <code>2/8</code>
+   */
+  static ShardPlan parse(String value, Strategy strategy) {
+    int slash = value.indexOf('/');
+    try {
+      if (slash == -1)
+        throw new NumberFormatException();
+      return new ShardPlan(Integer.parseInt(value.substring(0, slash).trim()),
+          Integer.parseInt(value.substring(slash + 1).trim()), strategy);
+    } catch (NumberFormatException e) {
+      throw new IllegalArgumentException("Invalid shard, expected i/N: " + value);
+    }
+  }
+
+  @Override
+  public String toString() {
+    return index + "/" + count;
+  }
+
+  Path getRecordPath(Path outputDir) {
+    return outputDir.resolve("Shard-" + index + "-of-" + count + ".properties");
+  }
+
+  Path getManifestPath(Path outputDir) {
+    return outputDir.resolve("Output-Manifest.shard-" + index + "-of-" + count + ".tsv");
+  }
+
+  /**
+   * Distributes the files over the shards, largest first, each to the shard with the fewest bytes so far.
+   * The result only depends on the files, so every process computes the same distribution.
+   *
+   * @return the IDs of the files of this shard
+   */
+  Set<String> assignBySize(List<ManifestEntry> files) {
+    List<ManifestEntry> sorted = new ArrayList<>(files);
+    sorted.sort(Comparator.comparingLong((ManifestEntry entry) -> entry.size).reversed()
+        .thenComparing(entry -> entry.fileID));
+
+    // Bytes and index of every shard, the smallest load (then the lowest index) first
+    PriorityQueue<long[]> loads = new PriorityQueue<>((a, b) -> a[0] != b[0] ? Long.compare(a[0], b[0])
+        : Long.compare(a[1], b[1]));
+    for (int i = 1; i <= count; i++) {
+      loads.add(new long[]{0, i});
+    }
+
+    Set<String> assigned = new HashSet<>();
+    for (ManifestEntry entry : sorted) {
+      long[] load = loads.poll();
+      if (load[1] == index) {
+        assigned.add(entry.fileID);
+      }
+      load[0] += Math.max(0, entry.size);
+      loads.add(load);
+    }
+    return assigned;
+  }
+
+  /**
+   * Writes the completion record, replacing it in one step so that it is never seen half written.
+   */
+  void writeRecord(Path outputDir, Properties record) throws IOException {
+    Properties properties = new Properties();
+    properties.putAll(record);
+    properties.setProperty("shard", String.valueOf(index));
+    properties.setProperty("shards", String.valueOf(count));
+    properties.setProperty("shardBy", strategy.name().toLowerCase(Locale.ROOT));
+    properties.setProperty("outputManifest", getManifestPath(outputDir).getFileName().toString());
+
+    Path path = getRecordPath(outputDir);
+    Path temp = path.resolveSibling(path.getFileName() + ".tmp");
+    try (Writer writer = Files.newBufferedWriter(temp, StandardCharsets.UTF_8)) {
+      properties.store(writer, null);
+    }
+    Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+  }
+
+  /**
+   * @return the completion records in the directory, by shard count and index
+   */
+  static List<Properties> readRecords(Path outputDir) throws IOException {
+    List<Properties> records = new ArrayList<>();
+    try (DirectoryStream<Path> files = Files.newDirectoryStream(outputDir, "Shard-*-of-*.properties")) {
+      for (Path file : files) {
+        if (!RECORD_NAME.matcher(file.getFileName().toString()).matches()) {
+          continue;
+        }
+        Properties record = new Properties();
+        try (Reader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+          record.load(reader);
+        }
+        records.add(record);
+      }
+    }
+    records.sort(Comparator.comparingInt((Properties record) -> getInt(record, "shards"))
+        .thenComparingInt(record -> getInt(record, "shard")));
+    return records;
+  }
+
+  static int getInt(Properties record, String key) {
+    try {
+      return Integer.parseInt(record.getProperty(key, "0"));
+    } catch (NumberFormatException e) {
+      return 0;
+    }
+  }
+}
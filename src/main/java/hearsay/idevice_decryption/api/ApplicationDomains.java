@@ -0,0 +1,96 @@
+package hearsay.idevice_decryption.api;
+
+import java.util.*;
+
+/**
+ * Assigns the app-related domains of a backup to the installed applications.
+ * <ul>
+ *     <li><code>AppDomain-&lt;bundle id&gt;</code> belongs to the app with exactly that bundle id</li>
+ *     <li><code>AppDomainPlugin-&lt;plugin id&gt;</code> belongs to the app whose bundle id is the longest prefix of the plugin id</li>
+ *     <li><code>AppDomainGroup-&lt;group id&gt;</code> belongs to the app with the longest bundle id contained in the group id,
+ *     e.g. <code>group.net.whatsapp.WhatsApp.shared</code> to <code>net.whatsapp.WhatsApp</code></li>
+ * </ul>
+ * Domains that cannot be assigned are kept under their own name.
+ */
+public class ApplicationDomains {
+    public static final String APP_PREFIX = "AppDomain-";
+    public static final String GROUP_PREFIX = "AppDomainGroup-";
+    public static final String PLUGIN_PREFIX = "AppDomainPlugin-";
+
+    private final Map<String, List<String>> domainsByApplication = new TreeMap<>();
+    private final Map<String, String> applicationByDomain = new HashMap<>();
+    private final List<String> unassignedDomains = new ArrayList<>();
+
+    /**
+     * @param bundleIds the installed applications, e.g. the keys of {@link BackupManifest#applications}
+     * @param domains   the domains found in the backup; non-app domains are ignored
+     */
+    public ApplicationDomains(Collection<String> bundleIds, Collection<String> domains) {
+        // Longest first, so that com.foo.bar wins over com.foo
+        List<String> candidates = new ArrayList<>(new HashSet<>(bundleIds));
+        candidates.sort(Comparator.comparingInt(String::length).reversed().thenComparing(Comparator.naturalOrder()));
+        Set<String> installed = new HashSet<>(candidates);
+
+        for (String domain : domains) {
+            String application = null;
+            if (domain.startsWith(APP_PREFIX)) {
+                String id = domain.substring(APP_PREFIX.length());
+                application = installed.contains(id) ? id : null;
+            } else if (domain.startsWith(PLUGIN_PREFIX)) {
+                String id = domain.substring(PLUGIN_PREFIX.length());
+                application = findApplication(candidates, id, true);
+            } else if (domain.startsWith(GROUP_PREFIX)) {
+                String id = domain.substring(GROUP_PREFIX.length());
+                application = findApplication(candidates, id, false);
+            } else {
+                continue;
+            }
+
+            if (application == null) {
+                unassignedDomains.add(domain);
+            } else {
+                domainsByApplication.computeIfAbsent(application, key -> new ArrayList<>()).add(domain);
+                applicationByDomain.put(domain, application);
+            }
+        }
+    }
+
+    private static String findApplication(List<String> candidates, String id, boolean prefixOnly) {
+        for (String bundleId : candidates) {
+            int index = prefixOnly ? (id.startsWith(bundleId) ? 0 : -1) : id.indexOf(bundleId);
+            while (index != -1) {
+                int end = index + bundleId.length();
+                boolean startsAtBoundary = index == 0 || id.charAt(index - 1) == '.';
+                boolean endsAtBoundary = end == id.length() || id.charAt(end) == '.';
+                if (startsAtBoundary && endsAtBoundary) return bundleId;
+                index = prefixOnly ? -1 : id.indexOf(bundleId, index + 1);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return The assigned domains per bundle id, sorted by bundle id
+     */
+    public Map<String, List<String>> getDomainsByApplication() {
+        return Collections.unmodifiableMap(domainsByApplication);
+    }
+
+    public Optional<String> getApplication(String domain) {
+        return Optional.ofNullable(applicationByDomain.get(domain));
+    }
+
+    public List<String> getUnassignedDomains() {
+        return Collections.unmodifiableList(unassignedDomains);
+    }
+
+    /**
+     * @return All app-related domains, assigned or not
+     */
+    public List<String> getAllDomains() {
+        List<String> domains = new ArrayList<>(applicationByDomain.keySet());
+        domains.addAll(unassignedDomains);
+        Collections.sort(domains);
+        return domains;
+    }
+}
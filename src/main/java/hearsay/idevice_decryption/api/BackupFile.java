@@ -2,6 +2,8 @@ package hearsay.idevice_decryption.api;
 
 import com.dd.plist.*;
 import hearsay.idevice_decryption.util.BackupPathUtils;
+import hearsay.idevice_decryption.util.CryptoProviders;
+import hearsay.idevice_decryption.util.IoGovernor;
 import hearsay.idevice_decryption.util.UtilDict;
 
 import java.io.*;
@@ -11,6 +13,10 @@ import java.nio.file.attribute.BasicFileAttributes;
 import java.security.InvalidKeyException;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.security.DigestInputStream;
+import java.util.ArrayList;
+import java.util.HexFormat;
+import java.util.List;
 import java.util.NoSuchElementException;
 import java.util.Optional;
 
@@ -52,7 +58,7 @@ public class BackupFile {
             if (this.fileType == FileType.FILE) {
                 this.contentFile = Paths.get(backup.directory.getAbsolutePath(), fileID.substring(0, 2), fileID).toFile();
                 if (!this.contentFile.exists())
-                    throw new BackupReadException("Missing file: " + this.fileID + " in " + domain + " (" + relativePath + ")");
+                    throw new MissingContentException(fileID, domain, relativePath);
 
                 this.size = this.properties.get(NSNumber.class, "Size").orElseThrow().longValue();
                 this.protectionClass = this.properties.get(NSNumber.class, "ProtectionClass").orElseThrow().intValue();
@@ -142,8 +148,9 @@ public class BackupFile {
     }
 
     byte[] calcFileDigest() throws IOException, UnsupportedCryptoException {
+        this.checkNotPartlyDecrypted();
         try {
-            MessageDigest sha1Digest = MessageDigest.getInstance("SHA-1");
+            MessageDigest sha1Digest = CryptoProviders.digest("SHA-1");
             try (
                     BufferedInputStream contentInputStream = new BufferedInputStream(new FileInputStream(this.contentFile))
             ) {
@@ -168,6 +175,7 @@ public class BackupFile {
                 if (!destination.exists()) Files.createDirectory(destination.toPath());
                 break;
             case FILE:
+                this.checkNotPartlyDecrypted();
                 if (this.isEncrypted()) {
                     if (this.backup.manifest.getKeyBag().isEmpty())
                         throw new BackupReadException("Encrypted file in non-encrypted backup");
@@ -178,11 +186,7 @@ public class BackupFile {
                         throw new BackupReadException(e);
                     }
 
-                    //noinspection ResultOfMethodCallIgnored
-                    this.properties.get(NSNumber.class, "LastModified")
-                            .map(NSNumber::longValue)
-                            .map(seconds -> seconds * 1000)
-                            .ifPresent(destination::setLastModified);
+                    this.applyLastModified(destination);
                 } else {
                     Files.copy(this.contentFile.toPath(), destination.toPath(),
                             StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.COPY_ATTRIBUTES);
@@ -194,9 +198,233 @@ public class BackupFile {
 
     }
 
+    /**
+     * Opens the raw content file as it is stored in the backup.
+     * Callers can wrap the stream (e.g. for throttling or hashing)
+     * before passing it to {@link #extract(InputStream, OutputStream)}.
+     *
+     * @throws FileNotFoundException    if the content file is missing or this is not a file
+     * @throws PartlyDecryptedException if an in-place decryption of the content file was interrupted
+     */
+    public InputStream openContentStream() throws IOException {
+        if (this.contentFile == null) throw new FileNotFoundException("Not a file: " + domain + ":" + relativePath);
+        this.checkNotPartlyDecrypted();
+        return new FileInputStream(this.contentFile);
+    }
+
+    /**
+     * Wraps a stream returned by {@link #openContentStream()}, so that the SHA-1 of the content file
+     * is calculated while it is extracted, see {@link #verify(DigestInputStream, DecryptionResult)}.
+     */
+    public static DigestInputStream digesting(InputStream content) throws UnsupportedCryptoException {
+        return new DigestInputStream(content, newContentDigest());
+    }
+
+    /**
+     * @return a new SHA-1 as used for the digests of content files
+     */
+    public static MessageDigest newContentDigest() throws UnsupportedCryptoException {
+        try {
+            return CryptoProviders.digest("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new UnsupportedCryptoException(e);
+        }
+    }
+
+    /**
+     * Checks an extracted file against the database without reading it again.
+     * Files with a digest are checked by the SHA-1 of the content file, which must have been
+     * read completely through the given stream. For files without a digest, only the size is checked.
+     *
+     * @param content the stream from {@link #digesting(InputStream)} the file was extracted from
+     * @return descriptions of the problems found, empty if the file is intact
+     */
+    public List<String> verify(DigestInputStream content, DecryptionResult result) {
+        return this.verify(content.getMessageDigest(), result);
+    }
+
+    /**
+     * Same as {@link #verify(DigestInputStream, DecryptionResult)} for a SHA-1 that was updated with the
+     * whole content file otherwise, like by {@link #decryptInPlace}.
+     */
+    public List<String> verify(MessageDigest contentDigest, DecryptionResult result) {
+        List<String> problems = new ArrayList<>();
+        if (this.digest != null) {
+            byte[] actual = contentDigest.digest();
+            if (!MessageDigest.isEqual(actual, this.digest)) {
+                problems.add("SHA-1 mismatch, expected " + HexFormat.of().formatHex(this.digest)
+                        + ", got " + HexFormat.of().formatHex(actual));
+            }
+        } else if (result.decryptedSize != this.size) {
+            problems.add("Size mismatch, expected " + this.size + " bytes, got " + result.decryptedSize);
+        }
+        return problems;
+    }
+
+    /**
+     * Streams the (decrypted if needed) content of this file into the destination.
+     * Unlike {@link #extract(File)}, no padding repair is done afterwards,
+     * see {@link DecryptionResult#paddingValid}.
+     *
+     * @param content     the stream returned by {@link #openContentStream()}, possibly wrapped
+     * @param destination the stream to write the content to; it is not closed
+     */
+    public DecryptionResult extract(InputStream content, OutputStream destination)
+            throws IOException, BackupReadException, NotUnlockedException, UnsupportedCryptoException {
+        return this.extract(content, destination, new byte[65536]);
+    }
+
+    /**
+     * Same as {@link #extract(InputStream, OutputStream)}, but uses the given buffer
+     * as working memory, e.g. one taken from a {@link hearsay.idevice_decryption.util.BufferPool}.
+     */
+    public DecryptionResult extract(InputStream content, OutputStream destination, byte[] buffer)
+            throws IOException, BackupReadException, NotUnlockedException, UnsupportedCryptoException {
+        if (this.fileType != FileType.FILE) throw new UnsupportedOperationException("Not a file");
+
+        if (!this.isEncrypted()) {
+            long size = 0;
+            int read;
+            while ((read = content.read(buffer)) != -1) {
+                destination.write(buffer, 0, read);
+                size += read;
+            }
+            return DecryptionResult.unencrypted(size);
+        }
+
+        if (this.backup.manifest.getKeyBag().isEmpty())
+            throw new BackupReadException("Encrypted file in non-encrypted backup");
+
+        try {
+            return this.backup.manifest.getKeyBag().get().decrypt(ByteBuffer.allocate(4).putInt(this.protectionClass).array(), this.encryptionKey, content, destination, buffer);
+        } catch (InvalidKeyException e) {
+            throw new BackupReadException(e);
+        }
+    }
+
+    /**
+     * Opens the (decrypted if needed) content for reading at any position, see {@link RandomAccessContent}.
+     * The file key is unwrapped once here, not for every read.
+     */
+    public RandomAccessContent openRandomAccess()
+            throws IOException, BackupReadException, NotUnlockedException, UnsupportedCryptoException {
+        if (this.fileType != FileType.FILE) throw new UnsupportedOperationException("Not a file");
+        this.checkNotPartlyDecrypted();
+
+        if (!this.isEncrypted()) return new RandomAccessContent(this.contentFile, null);
+
+        if (this.backup.manifest.getKeyBag().isEmpty())
+            throw new BackupReadException("Encrypted file in non-encrypted backup");
+
+        try {
+            byte[] key = this.backup.manifest.getKeyBag().get().unwrapKeyForClass(ByteBuffer.allocate(4).putInt(this.protectionClass).array(), this.encryptionKey);
+            return new RandomAccessContent(this.contentFile, key);
+        } catch (InvalidKeyException e) {
+            throw new BackupReadException(e);
+        }
+    }
+
+    /**
+     * Decrypts the content file within itself instead of into another file, so no space is needed next to it.
+     * An undo record is kept next to the content file meanwhile; if the decryption is interrupted,
+     * {@link #finishDecryptionInPlace} completes it later. That needs every 4 KiB page of the file to have been
+     * written completely or not at all, a page torn by a power loss cannot be recovered. The database is not changed.
+     *
+     * @param buffer    working memory, at least 4 KiB; larger buffers mean fewer forced writes
+     * @param digest    updated with the content file before it is overwritten, for {@link #verify(MessageDigest, DecryptionResult)}; may be null
+     * @param plaintext receives the decrypted content while it is written, without the padding if it is valid, e.g. to hash it
+     *                  without reading the file again; may be null
+     * @param governor  limits the reads and writes, may be null
+     * @throws IOException if an undo record already exists, or the file was left partly decrypted
+     */
+    public DecryptionResult decryptInPlace(byte[] buffer, MessageDigest digest, OutputStream plaintext, IoGovernor governor)
+            throws IOException, BackupReadException, NotUnlockedException, UnsupportedCryptoException {
+        return InPlaceDecryption.decrypt(this.contentFile, this.unwrapFileKey(), buffer,
+                digest, plaintext, governor != null ? governor : IoGovernor.unlimited());
+    }
+
+    /**
+     * @return true if {@link #decryptInPlace} was interrupted for this file and left an undo record
+     */
+    public boolean isDecryptionInPlaceInterrupted() {
+        return this.contentFile != null && Files.exists(InPlaceDecryption.getUndoFile(this.contentFile));
+    }
+
+    private void checkNotPartlyDecrypted() throws PartlyDecryptedException {
+        if (this.isDecryptionInPlaceInterrupted()) throw new PartlyDecryptedException(this.contentFile);
+    }
+
+    /**
+     * Completes an interrupted {@link #decryptInPlace} from its undo record.
+     * The result describes the whole file, but a digest of it cannot be calculated anymore.
+     *
+     * @param buffer at least as large as the one the decryption was started with
+     */
+    public DecryptionResult finishDecryptionInPlace(byte[] buffer, IoGovernor governor)
+            throws IOException, BackupReadException, NotUnlockedException, UnsupportedCryptoException {
+        return InPlaceDecryption.finish(this.contentFile, this.unwrapFileKey(), buffer,
+                governor != null ? governor : IoGovernor.unlimited());
+    }
+
+    private byte[] unwrapFileKey() throws BackupReadException, NotUnlockedException, UnsupportedCryptoException {
+        if (this.fileType != FileType.FILE || !this.isEncrypted())
+            throw new UnsupportedOperationException("Not an encrypted file");
+        if (this.backup.manifest.getKeyBag().isEmpty())
+            throw new BackupReadException("Encrypted file in non-encrypted backup");
+
+        try {
+            return this.backup.manifest.getKeyBag().get().unwrapKeyForClass(ByteBuffer.allocate(4).putInt(this.protectionClass).array(), this.encryptionKey);
+        } catch (InvalidKeyException e) {
+            throw new BackupReadException(e);
+        }
+    }
+
+    /**
+     * @return The modification date in milliseconds, 0 if unknown.
+     * Encrypted files have it in the database, for others the date of the content file is used.
+     */
+    public long getLastModified() {
+        if (this.isEncrypted()) {
+            return this.properties.get(NSNumber.class, "LastModified")
+                    .map(NSNumber::longValue)
+                    .map(seconds -> seconds * 1000)
+                    .orElse(0L);
+        } else if (this.contentFile != null) {
+            return this.contentFile.lastModified();
+        }
+        return 0;
+    }
+
+    /**
+     * Sets the modification date of an extracted copy of this file, see {@link #getLastModified()}.
+     */
+    public void applyLastModified(File destination) {
+        long lastModified = this.getLastModified();
+        if (lastModified > 0) {
+            //noinspection ResultOfMethodCallIgnored
+            destination.setLastModified(lastModified);
+        }
+    }
+
     public void extractToFolder(File destinationFolder, boolean withRelativePath)
             throws IOException, BackupReadException, NotUnlockedException, UnsupportedCryptoException, UnsupportedOperationException {
 
+        File destination = this.getDestinationInFolder(destinationFolder, withRelativePath);
+        if (destination.exists() && this.fileType != FileType.DIRECTORY)
+            throw new FileAlreadyExistsException(destination.getAbsolutePath());
+
+        Files.createDirectories(destination.getParentFile().toPath());
+        this.extract(destination);
+    }
+
+    /**
+     * Determines where {@link #extractToFolder(File, boolean)} puts this file.
+     * Characters that are not allowed in file names are replaced if necessary.
+     *
+     * @param withRelativePath If true, the file is placed at domain/relativePath inside the folder
+     * @throws IOException if the path is invalid even after replacing characters
+     */
+    public File getDestinationInFolder(File destinationFolder, boolean withRelativePath) throws IOException {
         String relative;
 
         try {
@@ -211,41 +439,68 @@ public class BackupFile {
                 throw new IOException("Invalid character in filename, failed to replace", e1);
             }
         }
-        File destination = new File(destinationFolder.getAbsolutePath(), relative);
-        if (destination.exists() && this.fileType != FileType.DIRECTORY)
-            throw new FileAlreadyExistsException(destination.getAbsolutePath());
-
-        Files.createDirectories(destination.getParentFile().toPath());
-        this.extract(destination);
+        return new File(destinationFolder.getAbsolutePath(), relative);
     }
 
     public void replaceWith(File newFile) throws IOException, BackupReadException, UnsupportedCryptoException, NotUnlockedException, DatabaseConnectionException {
+        this.replaceContentWith(newFile);
+        this.backup.updateFileInfo(this.fileID, this.data.dict);
+    }
+
+    /**
+     * The part of {@link #replaceWith(File)} outside the database: saves the original, writes the new content file
+     * and updates size and digest in {@link #data}, which the caller writes to the database.
+     * If it fails, the original is restored.
+     *
+     * @return how to restore the original if the database cannot be changed
+     */
+    ContentUndo replaceContentWith(File newFile) throws IOException, BackupReadException, UnsupportedCryptoException, NotUnlockedException {
         BasicFileAttributes newFileAttributes = Files.readAttributes(newFile.toPath(), BasicFileAttributes.class);
         if (!newFileAttributes.isRegularFile()) throw new IOException("Not a file");
         if (this.fileType != FileType.FILE) throw new UnsupportedOperationException("Not implemented yet");
-        this.backupOriginal();
-        this.size = newFileAttributes.size();
-        this.properties.put("Size", this.size);
-        if (this.isEncrypted()) {
-            if (this.backup.manifest.getKeyBag().isEmpty())
-                throw new BackupReadException("Encrypted file in non-encrypted backup");
+        if (!this.contentFile.exists())
+            throw new FileNotFoundException("Missing content file '" + this.fileID + "' of '" + domain + ":" + relativePath + "'");
 
-            try {
-                this.backup.manifest.getKeyBag().get().encryptFile(this.protectionClass, this.encryptionKey, newFile, this.contentFile);
-            } catch (InvalidKeyException e) {
-                throw new BackupReadException(e);
+        File saved = this.backupOriginal(false);
+        long originalSize = this.size;
+        Optional<UID> digestUID = this.properties.get(UID.class, "Digest");
+        NSObject originalDigest = digestUID.map(uid -> this.objects[uid.getBytes()[0]]).orElse(null);
+        ContentUndo undo = () -> {
+            this.restoreOriginal(saved);
+            this.size = originalSize;
+            this.properties.put("Size", originalSize);
+            digestUID.ifPresent(uid -> this.setObject(uid, originalDigest));
+        };
+
+        try {
+            this.size = newFileAttributes.size();
+            this.properties.put("Size", this.size);
+            if (this.isEncrypted()) {
+                if (this.backup.manifest.getKeyBag().isEmpty())
+                    throw new BackupReadException("Encrypted file in non-encrypted backup");
+
+                try {
+                    this.backup.manifest.getKeyBag().get().encryptFile(this.protectionClass, this.encryptionKey, newFile, this.contentFile);
+                } catch (InvalidKeyException e) {
+                    throw new BackupReadException(e);
+                }
+            } else {
+                Files.copy(newFile.toPath(), this.contentFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.COPY_ATTRIBUTES);
             }
-        } else {
-            Files.copy(newFile.toPath(), this.contentFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.COPY_ATTRIBUTES);
-        }
 
-        Optional<UID> digestUID = this.properties.get(UID.class, "Digest");
-        if (digestUID.isPresent()) {
-            byte[] newDigest = this.calcFileDigest();
-            this.setObject(digestUID.get(), new NSData(newDigest));
+            if (digestUID.isPresent()) {
+                byte[] newDigest = this.calcFileDigest();
+                this.setObject(digestUID.get(), new NSData(newDigest));
+            }
+        } catch (IOException | BackupReadException | UnsupportedCryptoException | NotUnlockedException | RuntimeException e) {
+            try {
+                undo.undo();
+            } catch (IOException restoreException) {
+                e.addSuppressed(restoreException);
+            }
+            throw e;
         }
-
-        this.backup.updateFileInfo(this.fileID, this.data.dict);
+        return undo;
     }
 
     /**
@@ -258,24 +513,41 @@ public class BackupFile {
      * @throws DatabaseConnectionException if the database connection failed
      */
     public void delete() throws IOException, DatabaseConnectionException {
-        try {
-            this.backupOriginal(true);
-        } catch (FileNotFoundException e) {
-            System.out.printf("Warning: Deleted backup file '%s' did not have a content file%n", this.relativePath);
-        }
+        this.deleteContent();
         this.backup.removeFileFromDatabase(this.fileID);
     }
 
+    /**
+     * The part of {@link #delete()} outside the database: moves the content file to the backup directory.
+     *
+     * @return how to restore the content file if the database cannot be changed
+     */
+    ContentUndo deleteContent() throws IOException {
+        if (this.fileType == FileType.FILE && !this.contentFile.exists())
+            System.out.printf("Warning: Deleted backup file '%s' did not have a content file%n", this.relativePath);
+        File saved = this.backupOriginal(true);
+        return () -> this.restoreOriginal(saved);
+    }
+
+    /**
+     * Undoes a change of the content file, see {@link ManifestEditor}.
+     */
+    @FunctionalInterface
+    interface ContentUndo {
+        void undo() throws IOException;
+    }
+
     /**
      * Backs up the current state of the file in a separate directory.
      *
      * @param move If true, move the content file instead of copying it
-     * @throws FileNotFoundException if the content file is missing (and the file is not a symlink/directory)
-     * @throws IOException           if the file could not be copied/moved to the backup explorer subdirectory.
+     * @return the saved state without its extensions <code>.plist</code> and <code>.bak</code>
+     * @throws IOException if the file could not be copied/moved to the backup explorer subdirectory, then nothing is saved
      */
-    private void backupOriginal(boolean move) throws IOException {
+    private File backupOriginal(boolean move) throws IOException {
         File dir = new File(this.backup.directory, "_BackupExplorer");
-        if (!dir.isDirectory() && !dir.mkdir())
+        // Another thread of a ManifestEditor may create it in between
+        if (!dir.mkdir() && !dir.isDirectory())
             throw new IOException("Backup directory '" + dir.getAbsolutePath() + "' could not be created");
 
         // Incremental suffix
@@ -285,20 +557,34 @@ public class BackupFile {
             backupName = this.fileID + "." + (++i);
         }
 
-        BinaryPropertyListWriter.write(this.data.dict, new File(dir, backupName + ".plist"));
+        File saved = new File(dir, backupName);
+        Path savedContent = new File(dir, backupName + ".bak").toPath();
+        try {
+            BinaryPropertyListWriter.write(this.data.dict, new File(dir, backupName + ".plist"));
 
-        if (this.contentFile != null && this.contentFile.exists()) {
-            if (move)
-                Files.move(this.contentFile.toPath(), new File(dir, backupName + ".bak").toPath());
-            else
-                Files.copy(this.contentFile.toPath(), new File(dir, backupName + ".bak").toPath());
-        } else if (this.fileType == FileType.FILE) {
-            throw new FileNotFoundException("Missing content file '" + this.fileID + "' of '" + domain + ":" + relativePath + "'");
+            if (this.contentFile != null && this.contentFile.exists()) {
+                if (move)
+                    Files.move(this.contentFile.toPath(), savedContent);
+                else
+                    Files.copy(this.contentFile.toPath(), savedContent);
+            }
+        } catch (IOException | RuntimeException e) {
+            // A failed move leaves the content file where it is, so a partial copy is all there is
+            Files.deleteIfExists(savedContent);
+            Files.deleteIfExists(new File(dir, backupName + ".plist").toPath());
+            throw e;
         }
+        return saved;
     }
 
-    private void backupOriginal() throws IOException {
-        backupOriginal(false);
+    /**
+     * Puts the content file saved by {@link #backupOriginal(boolean)} back and removes the saved state.
+     */
+    private void restoreOriginal(File saved) throws IOException {
+        Path savedContent = new File(saved.getPath() + ".bak").toPath();
+        if (Files.exists(savedContent))
+            Files.move(savedContent, this.contentFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        Files.deleteIfExists(new File(saved.getPath() + ".plist").toPath());
     }
 
     public enum FileType {
@@ -0,0 +1,241 @@
+package hearsay.idevice_decryption.api;
+
+import java.io.File;
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Connections to a manifest database: read-only connections for queries, so that extracting, listing and serving
+ * can query at the same time, and a single writer for updates. A connection is used by one thread at a time,
+ * so it keeps its prepared statements for the next query with the same SQL.
+ * <p>
+ * Readers are opened as needed and never waited for, so a query may run inside the consumer of another one;
+ * only a few are kept open afterwards. The private decrypted copy of an encrypted backup is switched to
+ * write-ahead logging, so that the writer does not block the readers. The database of an unencrypted backup
+ * is the original and keeps its journal mode.
+ */
+class ConnectionPool {
+    // SQLITE_OPEN_READONLY, read by the driver from the connection properties
+    private static final String OPEN_READ_ONLY = "1";
+    private static final String BUSY_TIMEOUT_MILLIS = "10000";
+    private static final int MAX_CACHED_STATEMENTS = 32;
+
+    private final String url;
+    private final boolean writeAheadLog;
+    private final int maxIdle;
+    private final Deque<PooledConnection> idle = new ArrayDeque<>();
+    private final ReentrantLock writerLock = new ReentrantLock();
+    private PooledConnection writer;
+    private boolean closed = false;
+
+    /**
+     * @param writeAheadLog true to switch the database to write-ahead logging, only for private copies
+     * @param maxIdle       the number of readers kept open between queries
+     */
+    ConnectionPool(File database, boolean writeAheadLog, int maxIdle) throws SQLException, IOException {
+        this.url = "jdbc:sqlite:" + database.getCanonicalPath();
+        this.writeAheadLog = writeAheadLog;
+        this.maxIdle = maxIdle;
+        // Readers of a database in WAL mode need it switched first
+        if (writeAheadLog) this.writer = this.open(false);
+    }
+
+    private PooledConnection open(boolean readOnly) throws SQLException {
+        Properties properties = new Properties();
+        properties.setProperty("busy_timeout", BUSY_TIMEOUT_MILLIS);
+        if (readOnly) {
+            properties.setProperty("open_mode", OPEN_READ_ONLY);
+        } else if (writeAheadLog) {
+            properties.setProperty("journal_mode", "WAL");
+        }
+        return new PooledConnection(DriverManager.getConnection(url, properties), !readOnly);
+    }
+
+    /**
+     * @return a read-only connection, given back by closing it
+     */
+    PooledConnection acquireReader() throws SQLException {
+        synchronized (this) {
+            if (closed) throw new SQLException("Connection pool is closed");
+            PooledConnection connection = idle.pollFirst();
+            if (connection != null) return connection;
+        }
+        return this.open(true);
+    }
+
+    /**
+     * @return the writer, given back by closing it; other threads wait until then
+     */
+    PooledConnection acquireWriter() throws SQLException {
+        writerLock.lock();
+        try {
+            synchronized (this) {
+                if (closed) throw new SQLException("Connection pool is closed");
+            }
+            if (writer == null) writer = this.open(false);
+            return writer;
+        } catch (SQLException | RuntimeException e) {
+            writerLock.unlock();
+            throw e;
+        }
+    }
+
+    private void release(PooledConnection connection) throws SQLException {
+        if (connection.writer) {
+            writerLock.unlock();
+            return;
+        }
+        synchronized (this) {
+            if (!closed && idle.size() < maxIdle) {
+                idle.addFirst(connection);
+                return;
+            }
+        }
+        connection.connection.close();
+    }
+
+    /**
+     * Closes the idle readers and the writer, readers in use are closed when they are given back.
+     * A database in WAL mode is switched back first, so that it is a single self-contained file again.
+     */
+    void close() {
+        writerLock.lock();
+        try {
+            this.closeAll();
+        } finally {
+            writerLock.unlock();
+        }
+    }
+
+    /**
+     * Closes the pool like {@link #close()} once every change committed by the writer is in the database file,
+     * so that the file can be copied.
+     *
+     * @throws SQLException if readers in use kept the write-ahead log from being moved into the database file,
+     *                      the pool stays open then
+     */
+    void closeCheckpointed() throws SQLException {
+        writerLock.lock();
+        try {
+            if (writeAheadLog && writer != null && !this.isClosed()) {
+                try (Statement statement = writer.connection.createStatement();
+                     ResultSet result = statement.executeQuery("PRAGMA wal_checkpoint(TRUNCATE)")) {
+                    // Busy, frames in the log, frames moved into the database
+                    if (!result.next() || result.getInt(1) != 0 || result.getInt(2) != result.getInt(3))
+                        throw new SQLException("Write-ahead log could not be moved into the database, it is still read");
+                }
+            }
+            this.closeAll();
+        } finally {
+            writerLock.unlock();
+        }
+    }
+
+    private void closeAll() {
+        synchronized (this) {
+            if (closed) return;
+            closed = true;
+            for (PooledConnection connection : idle) {
+                try {
+                    connection.connection.close();
+                } catch (SQLException e) {
+                    e.printStackTrace();
+                }
+            }
+            idle.clear();
+        }
+
+        if (writer == null) return;
+        try {
+            if (writeAheadLog) {
+                try (Statement statement = writer.connection.createStatement()) {
+                    statement.execute("PRAGMA journal_mode=DELETE");
+                } catch (SQLException e) {
+                    e.printStackTrace();
+                }
+            }
+            writer.connection.close();
+        } catch (SQLException e) {
+            e.printStackTrace();
+        } finally {
+            writer = null;
+        }
+    }
+
+    synchronized boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * A connection taken from the pool, with the statements prepared on it.
+     */
+    class PooledConnection implements AutoCloseable {
+        private final Connection connection;
+        private final boolean writer;
+        private final Map<String, PreparedStatement> statements = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, PreparedStatement> eldest) {
+                if (size() <= MAX_CACHED_STATEMENTS) return false;
+                try {
+                    eldest.getValue().close();
+                } catch (SQLException e) {
+                    e.printStackTrace();
+                }
+                return true;
+            }
+        };
+
+        private PooledConnection(Connection connection, boolean writer) {
+            this.connection = connection;
+            this.writer = writer;
+        }
+
+        /**
+         * @return the statement prepared earlier for the same SQL without its parameters, or a new one.
+         * It stays open, only its result sets have to be closed.
+         */
+        PreparedStatement prepare(String sql) throws SQLException {
+            PreparedStatement statement = statements.get(sql);
+            if (statement != null) {
+                statement.clearParameters();
+                return statement;
+            }
+            statement = connection.prepareStatement(sql);
+            statements.put(sql, statement);
+            return statement;
+        }
+
+        /**
+         * Starts a transaction, ended by {@link #commit()} or {@link #rollback()}.
+         */
+        void begin() throws SQLException {
+            connection.setAutoCommit(false);
+        }
+
+        void commit() throws SQLException {
+            connection.commit();
+            connection.setAutoCommit(true);
+        }
+
+        void rollback() throws SQLException {
+            connection.rollback();
+            connection.setAutoCommit(true);
+        }
+
+        @Override
+        public void close() throws SQLException {
+            release(this);
+        }
+    }
+}
@@ -0,0 +1,30 @@
+package hearsay.idevice_decryption.api;
+
+/**
+ * Outcome of streaming a single content file through the decryption.
+ */
+public class DecryptionResult {
+    /**
+     * Number of bytes read from the (encrypted) content file
+     */
+    public final long encryptedSize;
+    /**
+     * Number of bytes written to the destination
+     */
+    public final long decryptedSize;
+    /**
+     * False if the last block did not end with valid PKCS#7 padding.
+     * In that case the last block was written without removing anything.
+     */
+    public final boolean paddingValid;
+
+    public DecryptionResult(long encryptedSize, long decryptedSize, boolean paddingValid) {
+        this.encryptedSize = encryptedSize;
+        this.decryptedSize = decryptedSize;
+        this.paddingValid = paddingValid;
+    }
+
+    public static DecryptionResult unencrypted(long size) {
+        return new DecryptionResult(size, size, true);
+    }
+}
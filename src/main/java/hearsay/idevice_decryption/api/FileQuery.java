@@ -0,0 +1,256 @@
+package hearsay.idevice_decryption.api;
+
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Describes which files of a backup to query and in which order.
+ * Everything except the size range is translated into SQL, so the files table is only read once
+ * and the property lists of rows that are filtered out are never parsed.
+ */
+public class FileQuery {
+    // File IDs are SHA-1 hashes in hex, so their first digits are evenly distributed
+    private static final int SHARD_DIGITS = 6;
+
+    private final List<FileRule> priorities = new ArrayList<>();
+    private final List<FileRule> includes = new ArrayList<>();
+    private final List<FileRule> excludes = new ArrayList<>();
+    private final List<String> domainGlobs = new ArrayList<>();
+    private final List<String> extensions = new ArrayList<>();
+    private final List<String> fileIds = new ArrayList<>();
+    private Set<String> fileIdSet;
+    private int shardIndex = 0;
+    private int shardCount = 1;
+    private boolean filesOnly = false;
+    private long minSize = 0;
+    private long maxSize = Long.MAX_VALUE;
+
+    /**
+     * Adds a priority rule. Files are returned in the order of the first rule they match,
+     * files matching no rule come last. Within the same priority, the usual order applies.
+     */
+    public FileQuery prioritize(FileRule rule) {
+        this.priorities.add(rule);
+        return this;
+    }
+
+    /**
+     * Restricts the query to files matching at least one of the included rules.
+     */
+    public FileQuery include(FileRule rule) {
+        this.includes.add(rule);
+        return this;
+    }
+
+    /**
+     * Leaves out all files matching the rule, even if they match an included rule.
+     */
+    public FileQuery exclude(FileRule rule) {
+        this.excludes.add(rule);
+        return this;
+    }
+
+    /**
+     * Restricts the query to files in a domain matching at least one of the given globs.
+     */
+    public FileQuery domains(Collection<String> domainGlobs) {
+        this.domainGlobs.addAll(domainGlobs);
+        return this;
+    }
+
+    /**
+     * Restricts the query to files with one of the given extensions (case-insensitive).
+     */
+    public FileQuery extensions(Collection<String> extensions) {
+        this.extensions.addAll(extensions);
+        return this;
+    }
+
+    /**
+     * Leaves out directories and symbolic links.
+     */
+    public FileQuery filesOnly() {
+        this.filesOnly = true;
+        return this;
+    }
+
+    /**
+     * Restricts the query to files with a size in the given range (inclusive).
+     * The size is stored in the property list, so this is checked after parsing.
+     * Implies {@link #filesOnly()}.
+     */
+    public FileQuery sizeRange(long minSize, long maxSize) {
+        if (minSize > maxSize) throw new IllegalArgumentException("Minimum size is larger than maximum size");
+        this.minSize = minSize;
+        this.maxSize = maxSize;
+        this.filesOnly = true;
+        return this;
+    }
+
+    /**
+     * Restricts the query to one of <code>count</code> disjoint shards, chosen by the first hex digits of the
+     * file ID (see {@link #shardOf(String, int)}). Since file IDs are SHA-1 hashes, the shards have about
+     * the same number of files.
+     *
+     * @param index the shard, from 0 to <code>count - 1</code>
+     */
+    public FileQuery shard(int index, int count) {
+        if (count < 1 || index < 0 || index >= count) throw new IllegalArgumentException("Invalid shard " + index + " of " + count);
+        this.shardIndex = index;
+        this.shardCount = count;
+        return this;
+    }
+
+    /**
+     * Restricts the query to the given file IDs, e.g. a precomputed shard. The IDs are checked
+     * before the property lists are parsed, but not in SQL, so {@link ITunesBackup#countFiles(FileQuery)}
+     * does not know about them.
+     */
+    public FileQuery fileIdSet(Set<String> fileIds) {
+        this.fileIdSet = fileIds;
+        return this;
+    }
+
+    /**
+     * @return the shard of the file ID, the same as {@link #shard(int, int)} selects in SQL
+     */
+    public static int shardOf(String fileID, int count) {
+        int value = 0;
+        for (int i = 0; i < SHARD_DIGITS; i++) {
+            value = value * 16 + Character.digit(i < fileID.length() ? fileID.charAt(i) : '0', 16);
+        }
+        return value % count;
+    }
+
+    /**
+     * @return a copy of this query that is additionally restricted to the given file IDs.
+     * Keep the number of IDs below a few hundred, every ID is a parameter of the statement.
+     */
+    public FileQuery withFileIds(Collection<String> fileIds) {
+        FileQuery copy = new FileQuery();
+        copy.priorities.addAll(this.priorities);
+        copy.includes.addAll(this.includes);
+        copy.excludes.addAll(this.excludes);
+        copy.domainGlobs.addAll(this.domainGlobs);
+        copy.extensions.addAll(this.extensions);
+        copy.fileIds.addAll(this.fileIds);
+        copy.fileIds.addAll(fileIds);
+        copy.fileIdSet = this.fileIdSet;
+        copy.shardIndex = this.shardIndex;
+        copy.shardCount = this.shardCount;
+        copy.filesOnly = this.filesOnly;
+        copy.minSize = this.minSize;
+        copy.maxSize = this.maxSize;
+        return copy;
+    }
+
+    public List<FileRule> getPriorities() {
+        return Collections.unmodifiableList(priorities);
+    }
+
+    public boolean isFiltered() {
+        return !includes.isEmpty() || !excludes.isEmpty() || !domainGlobs.isEmpty() || !extensions.isEmpty()
+                || !fileIds.isEmpty() || fileIdSet != null || shardCount > 1 || filesOnly || hasSizeRange();
+    }
+
+    public boolean hasSizeRange() {
+        return minSize > 0 || maxSize != Long.MAX_VALUE;
+    }
+
+    /**
+     * Checks the file ID against {@link #fileIdSet(Set)}, before the row is parsed.
+     */
+    public boolean matchesFileId(String fileID) {
+        return fileIdSet == null || fileIdSet.contains(fileID);
+    }
+
+    /**
+     * Checks the part of the query that could not be expressed in SQL.
+     */
+    public boolean matchesSize(BackupFile file) {
+        if (!hasSizeRange()) return true;
+        return file.getFileType() == BackupFile.FileType.FILE && file.getSize() >= minSize && file.getSize() <= maxSize;
+    }
+
+    /**
+     * Same as {@link #matchesSize(BackupFile)} for a file that was only decoded from the manifest.
+     */
+    public boolean matchesSize(ManifestEntry entry) {
+        if (!hasSizeRange()) return true;
+        return entry.fileType == BackupFile.FileType.FILE && entry.size >= minSize && entry.size <= maxSize;
+    }
+
+    String toSql(List<Object> parameters) {
+        StringBuilder sql = new StringBuilder("SELECT * FROM files");
+        appendWhere(sql, parameters);
+        sql.append(" ORDER BY ");
+        if (!priorities.isEmpty()) {
+            sql.append("CASE");
+            for (int i = 0; i < priorities.size(); i++) {
+                sql.append(" WHEN ").append(priorities.get(i).toSqlCondition(parameters)).append(" THEN ").append(i);
+            }
+            sql.append(" ELSE ").append(priorities.size()).append(" END, ");
+        }
+        sql.append("`flags`, `domain`, `relativePath`");
+        return sql.toString();
+    }
+
+    /**
+     * Counts the rows matching the SQL part of the query, which is an upper bound if a size range is set.
+     */
+    String toCountSql(List<Object> parameters) {
+        StringBuilder sql = new StringBuilder("SELECT COUNT(*) FROM files");
+        appendWhere(sql, parameters);
+        return sql.toString();
+    }
+
+    private void appendWhere(StringBuilder sql, List<Object> parameters) {
+        List<String> conditions = new ArrayList<>();
+
+        if (filesOnly) conditions.add("`flags` = " + BackupFile.FileType.FILE.flag);
+
+        if (!fileIds.isEmpty()) {
+            conditions.add("`fileID` IN (" + String.join(", ", Collections.nCopies(fileIds.size(), "?")) + ")");
+            parameters.addAll(fileIds);
+        }
+
+        if (shardCount > 1) {
+            // Same as shardOf: the first digits as a number, a character that is no hex digit counts as -1
+            StringBuilder value = new StringBuilder("0");
+            for (int i = 1; i <= SHARD_DIGITS; i++) {
+                value.insert(0, "(").append(" * 16 + instr('0123456789abcdef', lower(substr(`fileID`, ").append(i)
+                        .append(", 1))) - 1)");
+            }
+            conditions.add(value + " % " + shardCount + " = " + shardIndex);
+        }
+
+        if (!domainGlobs.isEmpty()) {
+            List<String> domainConditions = new ArrayList<>();
+            for (String domainGlob : domainGlobs) {
+                domainConditions.add(new FileRule(domainGlob, null, null).toSqlCondition(parameters));
+            }
+            conditions.add("(" + String.join(" OR ", domainConditions) + ")");
+        }
+
+        if (!extensions.isEmpty()) conditions.add(new FileRule(null, null, extensions).toSqlCondition(parameters));
+
+        if (!includes.isEmpty()) {
+            List<String> includeConditions = new ArrayList<>();
+            for (FileRule rule : includes) includeConditions.add(rule.toSqlCondition(parameters));
+            conditions.add("(" + String.join(" OR ", includeConditions) + ")");
+        }
+
+        for (FileRule rule : excludes) conditions.add("NOT " + rule.toSqlCondition(parameters));
+
+        if (!conditions.isEmpty()) sql.append(" WHERE ").append(String.join(" AND ", conditions));
+    }
+
+    static void bind(PreparedStatement statement, List<Object> parameters) throws SQLException {
+        for (int i = 0; i < parameters.size(); i++) statement.setObject(i + 1, parameters.get(i));
+    }
+}
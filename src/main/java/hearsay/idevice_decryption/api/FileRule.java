@@ -0,0 +1,118 @@
+package hearsay.idevice_decryption.api;
+
+import java.util.*;
+
+/**
+ * Matches backup files by domain, relative path and file extension.
+ * Domain and path are SQLite GLOB patterns (case-sensitive, <code>*</code> also matches <code>/</code>),
+ * extensions are compared case-insensitively. Empty criteria match everything.
+ * <p>
+ * The text form is a comma-separated list of <code>key=value</code> pairs,
+ * e.g. <code>domain=HomeDomain,path=Library/SMS/*,ext=db|sqlite</code>.
+ * A value without key is treated as domain pattern.
+ */
+public class FileRule {
+    public final String domainGlob;
+    public final String pathGlob;
+    public final Set<String> extensions;
+
+    public FileRule(String domainGlob, String pathGlob, Collection<String> extensions) {
+        this.domainGlob = domainGlob;
+        this.pathGlob = pathGlob;
+        Set<String> normalized = new LinkedHashSet<>();
+        if (extensions != null) {
+            for (String extension : extensions) {
+                String ext = extension.trim().toLowerCase(Locale.ROOT);
+                if (ext.startsWith(".")) ext = ext.substring(1);
+                if (!ext.isEmpty()) normalized.add(ext);
+            }
+        }
+        this.extensions = Collections.unmodifiableSet(normalized);
+    }
+
+    public static FileRule parse(String text) {
+        String domain = null;
+        String path = null;
+        List<String> extensions = new ArrayList<>();
+
+        for (String part : text.split(",")) {
+            part = part.trim();
+            if (part.isEmpty()) continue;
+
+            int separator = part.indexOf('=');
+            if (separator == -1) {
+                domain = part;
+                continue;
+            }
+
+            String value = part.substring(separator + 1).trim();
+            switch (part.substring(0, separator).trim().toLowerCase(Locale.ROOT)) {
+                case "domain":
+                    domain = value;
+                    break;
+                case "path":
+                    path = value;
+                    break;
+                case "ext":
+                case "extension":
+                    extensions.addAll(Arrays.asList(value.split("\\|")));
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown key '" + part.substring(0, separator) + "' in rule: " + text);
+            }
+        }
+
+        return new FileRule(domain, path, extensions);
+    }
+
+    /**
+     * Builds an SQL condition on the files table and appends the parameters in order.
+     */
+    String toSqlCondition(List<Object> parameters) {
+        List<String> conditions = new ArrayList<>();
+
+        if (domainGlob != null && !domainGlob.isEmpty()) {
+            conditions.add(globCondition("`domain`", domainGlob));
+            parameters.add(domainGlob);
+        }
+
+        if (pathGlob != null && !pathGlob.isEmpty()) {
+            conditions.add(globCondition("`relativePath`", pathGlob));
+            parameters.add(pathGlob);
+        }
+
+        if (!extensions.isEmpty()) {
+            List<String> extensionConditions = new ArrayList<>();
+            for (String extension : extensions) {
+                // LIKE is case-insensitive for ASCII in SQLite
+                extensionConditions.add("`relativePath` LIKE ? ESCAPE '\\'");
+                parameters.add("%." + escapeLike(extension));
+            }
+            conditions.add("(" + String.join(" OR ", extensionConditions) + ")");
+        }
+
+        return conditions.isEmpty() ? "1" : "(" + String.join(" AND ", conditions) + ")";
+    }
+
+    // Patterns without wildcards are compared directly, so that the indices can be used
+    private static String globCondition(String column, String glob) {
+        return isLiteral(glob) ? column + " = ?" : column + " GLOB ?";
+    }
+
+    private static boolean isLiteral(String glob) {
+        return glob.indexOf('*') == -1 && glob.indexOf('?') == -1 && glob.indexOf('[') == -1;
+    }
+
+    private static String escapeLike(String text) {
+        return text.replace("\\", "\\\\").replace("%", "\\%").replace("_", "\\_");
+    }
+
+    @Override
+    public String toString() {
+        List<String> parts = new ArrayList<>();
+        if (domainGlob != null) parts.add("domain=" + domainGlob);
+        if (pathGlob != null) parts.add("path=" + pathGlob);
+        if (!extensions.isEmpty()) parts.add("ext=" + String.join("|", extensions));
+        return parts.isEmpty() ? "*" : String.join(",", parts);
+    }
+}
@@ -16,9 +16,14 @@ import java.sql.*;
 import java.text.ParseException;
 import java.util.Date;
 import java.util.*;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
 import java.util.stream.Collectors;
 
 public class ITunesBackup {
+    // Well below the number of parameters SQLite allows in a statement
+    private static final int FILE_ID_BATCH_SIZE = 500;
+
     public static List<ITunesBackup> getBackups(File backupRoot) {
         if (!backupRoot.isDirectory()) return new ArrayList<>();
 
@@ -52,7 +57,10 @@ public class ITunesBackup {
     private BackupInfo backupInfo = null;
 
     public File decryptedDatabaseFile;
-    private Connection databaseCon;
+    private volatile ConnectionPool databasePool;
+    // Built and dropped under the lock of the backup, see invalidatePathIndex()
+    private volatile PathIndex pathIndex;
+    private volatile PathSearch pathSearch;
 
     public ITunesBackup(File directory) throws FileNotFoundException, BackupReadException {
         if (!directory.exists()) throw new FileNotFoundException(directory.getAbsolutePath());
@@ -141,11 +149,12 @@ public class ITunesBackup {
 
         if (this.databaseConnected()) {
             try {
-                this.databaseCon.close();
-                this.databaseCon = null;
+                // Changes still in the write-ahead log would be missing from the encrypted copy
+                this.databasePool.closeCheckpointed();
             } catch (SQLException e) {
-                e.printStackTrace();
+                throw new DatabaseConnectionException(e);
             }
+            this.databasePool = null;
         }
 
         try {
@@ -158,23 +167,23 @@ public class ITunesBackup {
     }
 
     public boolean databaseConnected() {
-        try {
-            return this.databaseCon != null && !this.databaseCon.isClosed();
-        } catch (SQLException e) {
-            e.printStackTrace();
-            this.databaseCon = null;
-            return false;
-        }
+        return this.databasePool != null && !this.databasePool.isClosed();
     }
 
-    public void connectToDatabase() throws DatabaseConnectionException {
+    /**
+     * Opens the pool of database connections, see {@link ConnectionPool}. Queries can run in several threads
+     * at the same time, each on its own read-only connection, and updates go through a single writer.
+     */
+    public synchronized void connectToDatabase() throws DatabaseConnectionException {
         if (databaseConnected()) return;
 
         if (this.decryptedDatabaseFile == null || !this.decryptedDatabaseFile.exists())
             throw new DatabaseConnectionException();
 
         try {
-            databaseCon = DriverManager.getConnection("jdbc:sqlite:" + decryptedDatabaseFile.getCanonicalPath());
+            // Only the private decrypted copy may be switched to write-ahead logging
+            databasePool = new ConnectionPool(decryptedDatabaseFile, decryptedDatabaseFile != manifestDBFile,
+                    Runtime.getRuntime().availableProcessors());
             System.out.println("Connection to the backup database of '" + this.manifest.deviceName + "' has been established.");
         } catch (SQLException | IOException e) {
             throw new DatabaseConnectionException(e);
@@ -187,105 +196,399 @@ public class ITunesBackup {
                 || !this.decryptedDatabaseFile.exists()
                 || this.decryptedDatabaseFile == this.manifestDBFile) return;
 
-        try {
-            if (databaseCon != null && !databaseCon.isClosed())
-                this.databaseCon.close();
-        } catch (SQLException e) {
-            e.printStackTrace();
-        }
+        if (databasePool != null) databasePool.close();
 
         if (!this.decryptedDatabaseFile.delete())
             System.out.println("Could not delete temporary file " + this.decryptedDatabaseFile.getAbsolutePath());
     }
 
     private List<BackupFile> queryFiles(String sql, StatementPreparation preparation) throws DatabaseConnectionException {
+        List<BackupFile> backupFiles = new ArrayList<>();
+        this.queryFiles(sql, preparation, backupFiles::add);
+        return backupFiles;
+    }
+
+    /**
+     * Runs a query on the files table and passes every file to the consumer while the rows are read,
+     * so that at no point all files have to be held in memory.
+     * The consumer may block to limit how far the query reads ahead.
+     */
+    private void queryFiles(String sql, StatementPreparation preparation, Consumer<BackupFile> consumer) throws DatabaseConnectionException {
+        this.queryFiles(sql, preparation, consumer, e -> System.err.println(e.getMessage()));
+    }
+
+    /**
+     * @param errorHandler called for rows that could not be read as a file, e.g. with a
+     *                     {@link MissingContentException} if the content file does not exist
+     */
+    private void queryFiles(String sql, StatementPreparation preparation, Consumer<BackupFile> consumer,
+                            Consumer<BackupReadException> errorHandler) throws DatabaseConnectionException {
+        this.queryFiles(sql, preparation, fileID -> true, consumer, errorHandler);
+    }
+
+    /**
+     * @param fileIdFilter rows whose file ID it rejects are skipped without parsing them
+     */
+    private void queryFiles(String sql, StatementPreparation preparation, Predicate<String> fileIdFilter,
+                            Consumer<BackupFile> consumer, Consumer<BackupReadException> errorHandler)
+            throws DatabaseConnectionException {
         if (!databaseConnected()) this.connectToDatabase();
 
-        try {
-            PreparedStatement statement = this.databaseCon.prepareStatement(sql);
+        try (ConnectionPool.PooledConnection connection = this.databasePool.acquireReader()) {
+            PreparedStatement statement = connection.prepare(sql);
             preparation.prepare(statement);
 
-            ResultSet result = statement.executeQuery();
-
-            List<BackupFile> backupFiles = new ArrayList<>();
-            while (result.next()) {
-                try {
-                    backupFiles.add(new BackupFile(
-                            this,
-                            result.getString(1),
-                            result.getString(2),
-                            result.getString(3),
-                            result.getInt(4),
-                            (NSDictionary) PropertyListParser.parse(result.getBinaryStream(5))
-                    ));
-                } catch (BackupReadException e) {
-                    System.err.println(e.getMessage());
-                } catch (IOException | PropertyListFormatException | ParseException | ParserConfigurationException |
-                         SAXException e) {
-                    e.printStackTrace();
+            try (ResultSet result = statement.executeQuery()) {
+                while (result.next()) {
+                    if (!fileIdFilter.test(result.getString(1))) continue;
+                    try {
+                        consumer.accept(new BackupFile(
+                                this,
+                                result.getString(1),
+                                result.getString(2),
+                                result.getString(3),
+                                result.getInt(4),
+                                (NSDictionary) PropertyListParser.parse(result.getBinaryStream(5))
+                        ));
+                    } catch (BackupReadException e) {
+                        errorHandler.accept(e);
+                    } catch (IOException | PropertyListFormatException | ParseException | ParserConfigurationException |
+                             SAXException e) {
+                        e.printStackTrace();
+                    }
                 }
             }
-
-            return backupFiles;
         } catch (SQLException e) {
             e.printStackTrace();
-            return new ArrayList<>(0);
         }
     }
 
     public List<BackupFile> searchFiles(String domainLike, String relativePathLike) throws DatabaseConnectionException {
-        return this.queryFiles(
+        List<BackupFile> backupFiles = new ArrayList<>();
+        this.searchFiles(domainLike, relativePathLike, backupFiles::add);
+        return backupFiles;
+    }
+
+    /**
+     * Streaming version of {@link #searchFiles(String, String)}.
+     *
+     * @param consumer called for every file in the same order as the list would have
+     */
+    public void searchFiles(String domainLike, String relativePathLike, Consumer<BackupFile> consumer) throws DatabaseConnectionException {
+        this.queryFiles(
                 "SELECT * FROM files WHERE `domain` LIKE ? AND `relativePath` LIKE ? ESCAPE '\\' ORDER BY `flags`, `domain`, `relativePath`",
                 statement -> {
                     statement.setString(1, domainLike);
                     statement.setString(2, relativePathLike);
-                }
+                },
+                consumer
         );
     }
 
+    /**
+     * @return The number of rows {@link #searchFiles(String, String)} would look at
+     */
+    public int countFiles(String domainLike, String relativePathLike) throws DatabaseConnectionException {
+        if (!databaseConnected()) this.connectToDatabase();
+
+        try (ConnectionPool.PooledConnection connection = this.databasePool.acquireReader()) {
+            PreparedStatement statement = connection.prepare(
+                    "SELECT COUNT(*) FROM files WHERE `domain` LIKE ? AND `relativePath` LIKE ? ESCAPE '\\'");
+            statement.setString(1, domainLike);
+            statement.setString(2, relativePathLike);
+            try (ResultSet result = statement.executeQuery()) {
+                return result.next() ? result.getInt(1) : 0;
+            }
+        } catch (SQLException e) {
+            e.printStackTrace();
+            return 0;
+        }
+    }
+
+    /**
+     * @return the file with the given ID, empty if there is none
+     * @throws BackupReadException if the file exists, but cannot be read, e.g. because its content file is missing
+     */
+    public Optional<BackupFile> getFileById(String fileID) throws DatabaseConnectionException, BackupReadException {
+        return this.querySingleFile("SELECT * FROM files WHERE `fileID` = ?", statement -> statement.setString(1, fileID));
+    }
+
+    /**
+     * @return the file with the given domain and relative path (matched exactly), empty if there is none
+     * @throws BackupReadException if the file exists, but cannot be read, e.g. because its content file is missing
+     */
+    public Optional<BackupFile> getFile(String domain, String relativePath) throws DatabaseConnectionException, BackupReadException {
+        return this.querySingleFile("SELECT * FROM files WHERE `domain` = ? AND `relativePath` = ?", statement -> {
+            statement.setString(1, domain);
+            statement.setString(2, relativePath);
+        });
+    }
+
+    private Optional<BackupFile> querySingleFile(String sql, StatementPreparation preparation) throws DatabaseConnectionException, BackupReadException {
+        List<BackupFile> files = new ArrayList<>(1);
+        List<BackupReadException> errors = new ArrayList<>(1);
+        this.queryFiles(sql, preparation, files::add, errors::add);
+        if (files.isEmpty() && !errors.isEmpty()) throw errors.get(0);
+        return files.stream().findFirst();
+    }
+
+    /**
+     * Streams all files selected by the query in the order it specifies.
+     */
+    public void queryFiles(FileQuery query, Consumer<BackupFile> consumer) throws DatabaseConnectionException {
+        this.queryFiles(query, consumer, e -> System.err.println(e.getMessage()));
+    }
+
+    /**
+     * Same as {@link #queryFiles(FileQuery, Consumer)}, but rows that cannot be read as a file
+     * are passed to the error handler instead of being printed.
+     */
+    public void queryFiles(FileQuery query, Consumer<BackupFile> consumer, Consumer<BackupReadException> errorHandler) throws DatabaseConnectionException {
+        List<Object> parameters = new ArrayList<>();
+        String sql = query.toSql(parameters);
+        this.queryFiles(sql, statement -> FileQuery.bind(statement, parameters), query::matchesFileId, file -> {
+            if (query.matchesSize(file)) consumer.accept(file);
+        }, errorHandler);
+    }
+
+    /**
+     * Streams the raw rows selected by the query, without parsing the property lists and without
+     * looking at the content files. The size range is not checked, since it needs the parsed properties.
+     * Use {@link ManifestEntry#parse(String, String, String, int, byte[])} to decode the rows,
+     * possibly in other threads.
+     */
+    public void queryRows(FileQuery query, RowConsumer consumer) throws DatabaseConnectionException {
+        if (!databaseConnected()) this.connectToDatabase();
+
+        List<Object> parameters = new ArrayList<>();
+        try (ConnectionPool.PooledConnection connection = this.databasePool.acquireReader()) {
+            PreparedStatement statement = connection.prepare(query.toSql(parameters));
+            FileQuery.bind(statement, parameters);
+            try (ResultSet result = statement.executeQuery()) {
+                while (result.next()) {
+                    if (!query.matchesFileId(result.getString(1))) continue;
+                    consumer.accept(result.getString(1), result.getString(2), result.getString(3), result.getInt(4),
+                            result.getBytes(5));
+                }
+            }
+        } catch (SQLException e) {
+            e.printStackTrace();
+        }
+    }
+
+    @FunctionalInterface
+    public interface RowConsumer {
+        void accept(String fileID, String domain, String relativePath, int flags, byte[] data);
+    }
+
+    /**
+     * @return The number of rows matching the query, without checking the size range
+     */
+    public int countFiles(FileQuery query) throws DatabaseConnectionException {
+        if (!databaseConnected()) this.connectToDatabase();
+
+        List<Object> parameters = new ArrayList<>();
+        try (ConnectionPool.PooledConnection connection = this.databasePool.acquireReader()) {
+            PreparedStatement statement = connection.prepare(query.toCountSql(parameters));
+            FileQuery.bind(statement, parameters);
+            try (ResultSet result = statement.executeQuery()) {
+                return result.next() ? result.getInt(1) : 0;
+            }
+        } catch (SQLException e) {
+            e.printStackTrace();
+            return 0;
+        }
+    }
+
+    /**
+     * @return the tree of all paths, built with a single query on first use and kept until the database is changed.
+     * Once built, {@link #queryDomainRoots()}, {@link #queryDomainFiles} and {@link #queryAllChildren} use it
+     * instead of scanning the table, so callers making many such queries can build it up front.
+     */
+    public PathIndex getPathIndex() throws DatabaseConnectionException {
+        PathIndex index = this.pathIndex;
+        if (index != null) return index;
+        synchronized (this) {
+            if (this.pathIndex == null) {
+                PathIndex.Builder builder = new PathIndex.Builder();
+                this.queryRows(new FileQuery(), (fileID, domain, relativePath, flags, data) -> {
+                    long size = 0;
+                    if (flags == BackupFile.FileType.FILE.flag) {
+                        try {
+                            size = ManifestEntry.parse(fileID, domain, relativePath, flags, data).size;
+                        } catch (BackupReadException e) {
+                            System.err.println(e.getMessage());
+                        }
+                    }
+                    builder.add(fileID, domain, relativePath, flags, size);
+                });
+                this.pathIndex = builder.finish();
+            }
+            return this.pathIndex;
+        }
+    }
+
+    /**
+     * @return the search index over all paths, built from {@link #getPathIndex()} on first use and kept as long as it
+     */
+    public PathSearch getPathSearch() throws DatabaseConnectionException {
+        PathIndex index = this.getPathIndex();
+        PathSearch search = this.pathSearch;
+        if (search != null && search.getPathIndex() == index) return search;
+        synchronized (this) {
+            if (this.pathSearch == null || this.pathSearch.getPathIndex() != index) this.pathSearch = new PathSearch(index);
+            return this.pathSearch;
+        }
+    }
+
+    /**
+     * Reads the files of nodes of the {@link #getPathIndex() path index}, e.g. found by a {@link PathSearch},
+     * in the order of {@link FileQuery}.
+     */
+    public List<BackupFile> queryIndexedFiles(PathIndex index, int[] nodes) throws DatabaseConnectionException {
+        return this.queryIndexedFiles(index, nodes, nodes.length);
+    }
+
+    private List<BackupFile> queryIndexedFiles(PathIndex index, int[] nodes, int length) throws DatabaseConnectionException {
+        List<BackupFile> backupFiles = new ArrayList<>();
+        this.queryIndexedFiles(index, nodes, length, backupFiles::add);
+        return backupFiles;
+    }
+
+    /**
+     * Streams the files in batches, each in the order of {@link FileQuery}; nodes sorted that way come out in order.
+     */
+    private void queryIndexedFiles(PathIndex index, int[] nodes, int length, Consumer<BackupFile> consumer) throws DatabaseConnectionException {
+        List<String> fileIDs = new ArrayList<>(FILE_ID_BATCH_SIZE);
+        for (int i = 0; i < length; i++) {
+            index.getFileID(nodes[i]).ifPresent(fileIDs::add);
+            if (fileIDs.size() == FILE_ID_BATCH_SIZE || (i == length - 1 && !fileIDs.isEmpty())) {
+                this.queryFiles(new FileQuery().withFileIds(fileIDs), consumer);
+                fileIDs.clear();
+            }
+        }
+    }
+
     public List<BackupFile> queryDomainRoots() throws DatabaseConnectionException {
+        PathIndex index = this.pathIndex;
+        if (index != null) {
+            int[] domains = index.getChildren(PathIndex.ROOT);
+            return this.queryIndexedFiles(index, domains, domains.length);
+        }
         return queryFiles("SELECT * FROM files WHERE `relativePath` = \"\" ORDER BY `domain`", statement -> {});
     }
 
     public List<BackupFile> queryDomainFiles(boolean withDomainRoot, String... domains) throws DatabaseConnectionException {
         if (domains.length == 0) return new ArrayList<>(0);
-        return queryFiles(
+        List<BackupFile> backupFiles = new ArrayList<>();
+        this.queryDomainFiles(withDomainRoot, backupFiles::add, domains);
+        return backupFiles;
+    }
+
+    /**
+     * Streaming version of {@link #queryDomainFiles(boolean, String...)}.
+     */
+    public void queryDomainFiles(boolean withDomainRoot, Consumer<BackupFile> consumer, String... domains) throws DatabaseConnectionException {
+        if (domains.length == 0) return;
+        PathIndex index = this.pathIndex;
+        if (index != null) {
+            this.queryIndexedDomainFiles(index, withDomainRoot, consumer, domains);
+            return;
+        }
+        queryFiles(
                 "SELECT * FROM files " +
                         "WHERE `domain` IN (?" + ", ?".repeat(domains.length - 1) + ") " +
                         (withDomainRoot ? " " : "AND `relativePath` <> \"\" ") +
                         "ORDER BY `flags`, `domain`, `relativePath`",
                 statement -> {
                     for (int i = 0; i < domains.length; i++) statement.setString(i + 1, domains[i]);
-                }
+                },
+                consumer
         );
     }
 
+    private void queryIndexedDomainFiles(PathIndex index, boolean withDomainRoot, Consumer<BackupFile> consumer,
+                                         String... domains) throws DatabaseConnectionException {
+        List<Integer> found = new ArrayList<>();
+        for (String domain : new HashSet<>(Arrays.asList(domains))) {
+            OptionalInt root = index.find(domain, "");
+            if (root.isEmpty()) continue;
+            if (withDomainRoot) found.add(root.getAsInt());
+            index.forEachDescendant(root.getAsInt(), found::add);
+        }
+
+        // Sorted like the query, by flags, domain and relative path
+        Map<Integer, String> paths = new HashMap<>();
+        for (int node : found) paths.put(node, index.getDomain(node) + '\0' + index.getRelativePath(node));
+        found.sort(Comparator.<Integer>comparingInt(node -> index.getFileType(node).flag).thenComparing(paths::get));
+        int[] nodes = found.stream().mapToInt(Integer::intValue).toArray();
+        this.queryIndexedFiles(index, nodes, nodes.length, consumer);
+    }
+
+    /**
+     * @param prefixes Domain prefixes to look for, e.g. "AppDomain-"; none for all domains
+     * @return The distinct domains of the backup, sorted by name
+     */
+    public List<String> queryDomains(String... prefixes) throws DatabaseConnectionException {
+        if (!databaseConnected()) this.connectToDatabase();
+
+        StringBuilder sql = new StringBuilder("SELECT DISTINCT `domain` FROM files");
+        for (int i = 0; i < prefixes.length; i++) {
+            sql.append(i == 0 ? " WHERE " : " OR ").append("substr(`domain`, 1, ?) = ?");
+        }
+        sql.append(" ORDER BY `domain`");
+
+        try (ConnectionPool.PooledConnection connection = this.databasePool.acquireReader()) {
+            PreparedStatement statement = connection.prepare(sql.toString());
+            for (int i = 0; i < prefixes.length; i++) {
+                statement.setInt(2 * i + 1, prefixes[i].length());
+                statement.setString(2 * i + 2, prefixes[i]);
+            }
+
+            List<String> domains = new ArrayList<>();
+            try (ResultSet result = statement.executeQuery()) {
+                while (result.next()) domains.add(result.getString(1));
+            }
+            return domains;
+        } catch (SQLException e) {
+            e.printStackTrace();
+            return new ArrayList<>(0);
+        }
+    }
+
     /**
      * Queries all files and folders contained in a directory and any level of subdirectory of the backup.
+     * Paths are matched case-sensitively, with or without the {@link #getPathIndex() path index}.
      * @param domain The domain in which the directory is located
      * @param parentRelativePath The relative path to search in
      * @return List of recursive children of the parentRelativePath in no specific order
      * @throws DatabaseConnectionException if the database connection failed
      */
     public List<BackupFile> queryAllChildren(String domain, String parentRelativePath) throws DatabaseConnectionException {
-        StringBuilder startsWithEscaped = new StringBuilder(
-                parentRelativePath
-                        .replace("!", "!!")
-                        .replace("%", "!%")
-                        .replace("_", "!_")
-                        .replace("[", "![")
-        );
+        PathIndex index = this.pathIndex;
+        if (index != null) {
+            OptionalInt parent = index.find(domain, parentRelativePath.endsWith("/")
+                    ? parentRelativePath.substring(0, parentRelativePath.length() - 1) : parentRelativePath);
+            if (parent.isEmpty()) return new ArrayList<>(0);
+            int[] nodes = new int[index.getSubtreeNodeCount(parent.getAsInt()) - 1];
+            int[] length = {0};
+            index.forEachDescendant(parent.getAsInt(), node -> nodes[length[0]++] = node);
+            return this.queryIndexedFiles(index, nodes, length[0]);
+        }
 
         // Relative paths don't start with a /, so the isEmpty check is needed for domain roots
-        if (!parentRelativePath.isEmpty() && !parentRelativePath.endsWith("/")) startsWithEscaped.append('/');
-
-        startsWithEscaped.append("_%");
+        String prefix = parentRelativePath.isEmpty() || parentRelativePath.endsWith("/")
+                ? parentRelativePath : parentRelativePath + "/";
+        // Unlike LIKE, which ignores the case of ASCII letters; SQLite counts characters, not UTF-16 units
+        int prefixLength = prefix.codePointCount(0, prefix.length());
 
         return queryFiles(
-                "SELECT * FROM files WHERE `domain` = ? AND `relativePath` LIKE ? ESCAPE '!'",
+                "SELECT * FROM files WHERE `domain` = ? AND substr(`relativePath`, 1, ?) = ? AND length(`relativePath`) > ?",
                 statement -> {
                     statement.setString(1, domain);
-                    statement.setString(2, startsWithEscaped.toString());
+                    statement.setInt(2, prefixLength);
+                    statement.setString(3, prefix);
+                    statement.setInt(4, prefixLength);
                 }
         );
     }
@@ -294,8 +597,8 @@ public class ITunesBackup {
     public void updateFileInfo(String fileID, NSDictionary data) throws DatabaseConnectionException {
         if (!databaseConnected()) this.connectToDatabase();
 
-        try {
-            PreparedStatement statement = this.databaseCon.prepareStatement("UPDATE Files SET file = ? WHERE fileID = ?");
+        try (ConnectionPool.PooledConnection connection = this.databasePool.acquireWriter()) {
+            PreparedStatement statement = connection.prepare("UPDATE Files SET file = ? WHERE fileID = ?");
             byte[] plist = BinaryPropertyListWriter.writeToArray(data);
             statement.setBytes(1, plist);
             statement.setString(2, fileID);
@@ -303,18 +606,88 @@ public class ITunesBackup {
         } catch (SQLException | IOException e) {
             e.printStackTrace();
         }
+        this.invalidatePathIndex();
     }
 
     @SuppressWarnings({"SqlResolve", "SqlNoDataSourceInspection"})
     public void removeFileFromDatabase(String fileID) throws DatabaseConnectionException {
         if (!databaseConnected()) this.connectToDatabase();
-        try {
-            PreparedStatement statement = this.databaseCon.prepareStatement("DELETE FROM Files WHERE fileID = ?");
+        try (ConnectionPool.PooledConnection connection = this.databasePool.acquireWriter()) {
+            PreparedStatement statement = connection.prepare("DELETE FROM Files WHERE fileID = ?");
             statement.setString(1, fileID);
             statement.executeUpdate();
         } catch (SQLException e) {
             e.printStackTrace();
         }
+        this.invalidatePathIndex();
+    }
+
+    /**
+     * Drops the path index once a change is written. The index is built under the same lock, so a build that
+     * read the rows before the change is published before this and dropped, never after it.
+     */
+    private synchronized void invalidatePathIndex() {
+        this.pathIndex = null;
+    }
+
+    /**
+     * @return an editor that replaces and deletes many files at once, see {@link ManifestEditor}
+     */
+    public ManifestEditor edit() {
+        return this.edit(Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * @param threads the number of content files replaced or moved at the same time
+     */
+    public ManifestEditor edit(int threads) {
+        return new ManifestEditor(this, threads);
+    }
+
+    /**
+     * Writes the rows of a {@link ManifestEditor} in a single transaction, all or nothing.
+     *
+     * @param updates   new <code>file</code> columns by file ID
+     * @param deletions file IDs of the rows to remove
+     */
+    @SuppressWarnings({"SqlResolve", "SqlNoDataSourceInspection"})
+    void writeEdits(Map<String, byte[]> updates, Collection<String> deletions) throws DatabaseConnectionException {
+        if (!databaseConnected()) this.connectToDatabase();
+
+        try (ConnectionPool.PooledConnection connection = this.databasePool.acquireWriter()) {
+            connection.begin();
+            try {
+                if (!updates.isEmpty()) {
+                    PreparedStatement statement = connection.prepare("UPDATE Files SET file = ? WHERE fileID = ?");
+                    for (Map.Entry<String, byte[]> update : updates.entrySet()) {
+                        statement.setBytes(1, update.getValue());
+                        statement.setString(2, update.getKey());
+                        statement.addBatch();
+                    }
+                    statement.executeBatch();
+                }
+                if (!deletions.isEmpty()) {
+                    PreparedStatement statement = connection.prepare("DELETE FROM Files WHERE fileID = ?");
+                    for (String fileID : deletions) {
+                        statement.setString(1, fileID);
+                        statement.addBatch();
+                    }
+                    statement.executeBatch();
+                }
+                connection.commit();
+            } catch (SQLException | RuntimeException e) {
+                try {
+                    connection.rollback();
+                } catch (SQLException rollbackException) {
+                    e.addSuppressed(rollbackException);
+                }
+                throw e;
+            }
+        } catch (SQLException e) {
+            throw new DatabaseConnectionException(e);
+        } finally {
+            this.invalidatePathIndex();
+        }
     }
 
     @FunctionalInterface
@@ -0,0 +1,324 @@
+package hearsay.idevice_decryption.api;
+
+import hearsay.idevice_decryption.util.CryptoProviders;
+import hearsay.idevice_decryption.util.IoGovernor;
+
+import javax.crypto.BadPaddingException;
+import javax.crypto.Cipher;
+import javax.crypto.IllegalBlockSizeException;
+import javax.crypto.NoSuchPaddingException;
+import javax.crypto.ShortBufferException;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.zip.CRC32;
+
+/**
+ * Decrypts a content file within itself, see {@link BackupFile#decryptInPlace}.
+ * In CBC mode the plaintext of a block is as long as its ciphertext and only depends on it and the ciphertext
+ * in front of it, so the file is decrypted front to back in chunks written over their own ciphertext,
+ * and finally truncated by the padding.
+ * <p>
+ * A partly overwritten chunk cannot be decrypted again, so an undo record next to the file keeps what
+ * overwriting it loses: the last ciphertext block in front of every page of the chunk, and checksums of each page
+ * before and after. The record is forced to disk before the chunk is written, and the chunk before the next record.
+ * After an interruption every page of the chunk is then either still ciphertext or already plaintext, and
+ * {@link #finish} goes on from there. Records are written to two slots in turn, so a torn record leaves the one before.
+ * <p>
+ * This relies on the storage writing a page completely or not at all, which holds for file systems with blocks of
+ * 4 KiB or more on disks with 4 KiB sectors. A page torn by a power loss matches neither checksum, and
+ * {@link #finish} fails for that file: the ciphertext of the page is gone and is not journaled, since that would
+ * write the file twice, which a decryption through a copy does anyway.
+ */
+class InPlaceDecryption {
+    static final String UNDO_SUFFIX = ".undo";
+
+    private static final int MAGIC = 0x49425855;
+    private static final int BLOCK_SIZE = 16;
+    private static final int PAGE_SIZE = 4096;
+    // Magic, original length, chunk size and checksum
+    private static final int HEADER_SIZE = 20;
+    // Sequence number, position, final length and IV in front of the chunk, then the pages and a checksum
+    private static final int SLOT_HEADER_SIZE = 40;
+    // Last ciphertext block and the checksums before and after
+    private static final int PAGE_RECORD_SIZE = 24;
+
+    private final FileChannel channel;
+    private final FileChannel undo;
+    private final SecretKeySpec key;
+    private final IoGovernor governor;
+    private final long originalLength;
+    private final int chunkSize;
+    private final int pages;
+    private final ByteBuffer slot;
+    private long sequence = 0;
+    private final byte[] iv = new byte[BLOCK_SIZE];
+
+    private InPlaceDecryption(FileChannel channel, FileChannel undo, byte[] key, IoGovernor governor,
+                              long originalLength, int chunkSize) {
+        this.channel = channel;
+        this.undo = undo;
+        this.key = new SecretKeySpec(key, "AES");
+        this.governor = governor;
+        this.originalLength = originalLength;
+        this.chunkSize = chunkSize;
+        this.pages = chunkSize / PAGE_SIZE;
+        this.slot = ByteBuffer.allocate(SLOT_HEADER_SIZE + pages * PAGE_RECORD_SIZE + 4);
+    }
+
+    static Path getUndoFile(File contentFile) {
+        return contentFile.toPath().resolveSibling(contentFile.getName() + UNDO_SUFFIX);
+    }
+
+    /**
+     * @param buffer    working memory, the chunks are as big as it is rounded down to whole pages
+     * @param digest    updated with the ciphertext before it is overwritten, may be null
+     * @param plaintext receives the decrypted content without padding as it is written, may be null
+     */
+    static DecryptionResult decrypt(File contentFile, byte[] key, byte[] buffer, MessageDigest digest,
+                                    OutputStream plaintext, IoGovernor governor)
+            throws IOException, UnsupportedCryptoException {
+        int chunkSize = buffer.length / PAGE_SIZE * PAGE_SIZE;
+        if (chunkSize == 0) throw new IllegalArgumentException("Buffer too small: " + buffer.length);
+
+        Path undoFile = getUndoFile(contentFile);
+        try (FileChannel channel = FileChannel.open(contentFile.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            long originalLength = channel.size();
+            if (originalLength % BLOCK_SIZE != 0)
+                throw new IOException("Encrypted size " + originalLength + " is not a multiple of the block size");
+
+            DecryptionResult result;
+            try (FileChannel undo = FileChannel.open(undoFile, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                InPlaceDecryption decryption = new InPlaceDecryption(channel, undo, key, governor, originalLength, chunkSize);
+                decryption.writeHeader();
+                result = decryption.run(0, buffer, digest, plaintext);
+            }
+            Files.delete(undoFile);
+            return result;
+        }
+    }
+
+    /**
+     * Finishes a decryption that was interrupted, using its undo record. A record that was never completed
+     * means nothing was overwritten yet, the file is then decrypted from the start.
+     */
+    static DecryptionResult finish(File contentFile, byte[] key, byte[] buffer, IoGovernor governor)
+            throws IOException, UnsupportedCryptoException {
+        Path undoFile = getUndoFile(contentFile);
+        DecryptionResult result;
+        try (FileChannel channel = FileChannel.open(contentFile.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+             FileChannel undo = FileChannel.open(undoFile, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            InPlaceDecryption decryption = null;
+            if (read(undo, header, 0) && header.getInt(0) == MAGIC && header.getInt(HEADER_SIZE - 4) == checksum(header.array(), 0, HEADER_SIZE - 4)) {
+                int chunkSize = header.getInt(12);
+                if (chunkSize <= 0 || chunkSize % PAGE_SIZE != 0 || chunkSize > buffer.length)
+                    throw new IOException("Undo record needs a buffer of " + chunkSize + " bytes: " + undoFile);
+                decryption = new InPlaceDecryption(channel, undo, key, governor, header.getLong(4), chunkSize);
+            }
+            result = decryption != null ? decryption.resume(buffer) : null;
+        }
+        if (result == null) {
+            // Interrupted before the first chunk was written
+            Files.delete(undoFile);
+            return decrypt(contentFile, key, buffer, null, null, governor);
+        }
+        Files.delete(undoFile);
+        return result;
+    }
+
+    /**
+     * @return null if no slot holds a complete record
+     */
+    private DecryptionResult resume(byte[] buffer) throws IOException, UnsupportedCryptoException {
+        long position = -1;
+        long finalLength = -1;
+        ByteBuffer candidate = ByteBuffer.allocate(slot.capacity());
+        for (int i = 0; i < 2; i++) {
+            candidate.clear();
+            if (!read(undo, candidate, HEADER_SIZE + (long) i * slot.capacity())) continue;
+            int end = candidate.capacity() - 4;
+            if (candidate.getInt(end) != checksum(candidate.array(), 0, end)) continue;
+            if (position != -1 && candidate.getLong(0) < sequence) continue;
+            sequence = candidate.getLong(0);
+            position = candidate.getLong(8);
+            finalLength = candidate.getLong(16);
+            slot.clear();
+            slot.put(candidate.array());
+        }
+        if (position == -1) return null;
+        sequence++;
+
+        if (finalLength >= 0) {
+            channel.truncate(finalLength);
+            channel.force(true);
+            return new DecryptionResult(originalLength, finalLength, finalLength != originalLength);
+        }
+        if (channel.size() != originalLength)
+            throw new IOException("Content file has " + channel.size() + " bytes, the undo record expects " + originalLength);
+
+        // Decrypt the pages of the interrupted chunk that are still ciphertext
+        int length = (int) Math.min(chunkSize, originalLength - position);
+        readFully(ByteBuffer.wrap(buffer, 0, length), position);
+        byte[] pageIv = new byte[BLOCK_SIZE];
+        slot.get(24, pageIv);
+        for (int page = 0; page * PAGE_SIZE < length; page++) {
+            int offset = page * PAGE_SIZE;
+            int pageLength = Math.min(PAGE_SIZE, length - offset);
+            int record = SLOT_HEADER_SIZE + page * PAGE_RECORD_SIZE;
+            int actual = checksum(buffer, offset, pageLength);
+            if (actual == slot.getInt(record + 20)) {
+                // Already plaintext
+            } else if (actual == slot.getInt(record + 16)) {
+                decryptBlocks(buffer, offset, pageLength, pageIv);
+                writeFully(ByteBuffer.wrap(buffer, offset, pageLength), position + offset);
+            } else {
+                throw new IOException("Page at " + (position + offset) + " is neither the recorded ciphertext nor plaintext, "
+                        + "torn by the interruption; restore the file from another copy of the backup");
+            }
+            slot.get(record, pageIv);
+        }
+        channel.force(false);
+
+        System.arraycopy(pageIv, 0, iv, 0, BLOCK_SIZE);
+        return run(position + length, buffer, null, null);
+    }
+
+    private DecryptionResult run(long position, byte[] buffer, MessageDigest digest, OutputStream plaintext)
+            throws IOException, UnsupportedCryptoException {
+        while (position < originalLength) {
+            int length = (int) Math.min(chunkSize, originalLength - position);
+            governor.acquireRead(length);
+            readFully(ByteBuffer.wrap(buffer, 0, length), position);
+            if (digest != null) digest.update(buffer, 0, length);
+
+            // Record what the chunk loses before it is overwritten
+            slot.clear();
+            slot.putLong(sequence).putLong(position).putLong(-1).put(iv);
+            for (int offset = 0; offset < length; offset += PAGE_SIZE) {
+                int pageLength = Math.min(PAGE_SIZE, length - offset);
+                slot.position(SLOT_HEADER_SIZE + offset / PAGE_SIZE * PAGE_RECORD_SIZE);
+                slot.put(buffer, offset + pageLength - BLOCK_SIZE, BLOCK_SIZE).putInt(checksum(buffer, offset, pageLength));
+            }
+            byte[] nextIv = new byte[BLOCK_SIZE];
+            System.arraycopy(buffer, length - BLOCK_SIZE, nextIv, 0, BLOCK_SIZE);
+
+            decryptBlocks(buffer, 0, length, iv);
+            for (int offset = 0; offset < length; offset += PAGE_SIZE) {
+                int pageLength = Math.min(PAGE_SIZE, length - offset);
+                slot.putInt(SLOT_HEADER_SIZE + offset / PAGE_SIZE * PAGE_RECORD_SIZE + 20, checksum(buffer, offset, pageLength));
+            }
+            writeSlot();
+
+            governor.acquireWrite(length);
+            writeFully(ByteBuffer.wrap(buffer, 0, length), position);
+            channel.force(false);
+            if (plaintext != null) {
+                // The last block is passed on once the padding is known
+                int passed = (int) Math.max(0, Math.min(length, originalLength - BLOCK_SIZE - position));
+                plaintext.write(buffer, 0, passed);
+            }
+
+            System.arraycopy(nextIv, 0, iv, 0, BLOCK_SIZE);
+            position += length;
+        }
+
+        if (originalLength == 0) return new DecryptionResult(0, 0, true);
+
+        byte[] lastBlock = new byte[BLOCK_SIZE];
+        readFully(ByteBuffer.wrap(lastBlock), originalLength - BLOCK_SIZE);
+        int padding = lastBlock[BLOCK_SIZE - 1] & 0xFF;
+        boolean paddingValid = padding >= 1 && padding <= BLOCK_SIZE;
+        for (int i = BLOCK_SIZE - padding; paddingValid && i < BLOCK_SIZE; i++) {
+            if ((lastBlock[i] & 0xFF) != padding) paddingValid = false;
+        }
+        long finalLength = paddingValid ? originalLength - padding : originalLength;
+        if (plaintext != null) plaintext.write(lastBlock, 0, (int) (finalLength - (originalLength - BLOCK_SIZE)));
+
+        // The padding is gone after truncating, so the length is recorded first
+        slot.clear();
+        slot.putLong(sequence).putLong(originalLength).putLong(finalLength);
+        writeSlot();
+        channel.truncate(finalLength);
+        channel.force(true);
+        return new DecryptionResult(originalLength, finalLength, paddingValid);
+    }
+
+    private void writeHeader() throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.putInt(MAGIC).putLong(originalLength).putInt(chunkSize);
+        header.putInt(checksum(header.array(), 0, HEADER_SIZE - 4));
+        header.flip();
+        writeFully(undo, header, 0);
+        undo.force(false);
+    }
+
+    private void writeSlot() throws IOException {
+        int end = slot.capacity() - 4;
+        slot.putInt(end, checksum(slot.array(), 0, end));
+        slot.clear();
+        writeFully(undo, slot, HEADER_SIZE + (sequence & 1) * slot.capacity());
+        undo.force(false);
+        sequence++;
+    }
+
+    /**
+     * Decrypts whole blocks within the buffer, the IV is left unchanged.
+     */
+    private void decryptBlocks(byte[] buffer, int offset, int length, byte[] iv) throws IOException, UnsupportedCryptoException {
+        try {
+            Cipher c = CryptoProviders.cipher("AES/CBC/NoPadding");
+            c.init(Cipher.DECRYPT_MODE, key, new IvParameterSpec(iv));
+            c.doFinal(buffer, offset, length, buffer, offset);
+        } catch (NoSuchAlgorithmException | NoSuchPaddingException e) {
+            throw new UnsupportedCryptoException(e);
+        } catch (IllegalBlockSizeException | BadPaddingException | ShortBufferException e) {
+            throw new IllegalStateException(e);
+        } catch (GeneralSecurityException e) {
+            throw new IOException(e);
+        }
+    }
+
+    private static int checksum(byte[] data, int offset, int length) {
+        CRC32 crc = new CRC32();
+        crc.update(data, offset, length);
+        return (int) crc.getValue();
+    }
+
+    private void readFully(ByteBuffer buffer, long position) throws IOException {
+        if (!read(channel, buffer, position)) throw new EOFException("Content file ended at " + position);
+    }
+
+    private void writeFully(ByteBuffer buffer, long position) throws IOException {
+        writeFully(channel, buffer, position);
+    }
+
+    /**
+     * @return false if the file ended first
+     */
+    private static boolean read(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position);
+            if (read == -1) return false;
+            position += read;
+        }
+        return true;
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+    }
+}
@@ -2,6 +2,7 @@ package hearsay.idevice_decryption.api;
 
 import com.dd.plist.NSData;
 import hearsay.idevice_decryption.util.BackupFilePaddingFixer;
+import hearsay.idevice_decryption.util.CryptoProviders;
 import org.bouncycastle.crypto.digests.SHA1Digest;
 import org.bouncycastle.crypto.generators.PKCS5S2ParametersGenerator;
 import org.bouncycastle.crypto.params.KeyParameter;
@@ -119,7 +120,7 @@ public class KeyBag {
             int iterations1 = ByteBuffer.wrap(this.attrs.get("DPIC")).getInt();
             KeySpec spec1 = new PBEKeySpec(passcode.toCharArray(), salt1, iterations1, 32 * 8);
 
-            SecretKeyFactory f1 = SecretKeyFactory.getInstance("PBKDF2WithHmacSHA256");
+            SecretKeyFactory f1 = CryptoProviders.secretKeyFactory("PBKDF2WithHmacSHA256");
             SecretKey key1 = f1.generateSecret(spec1);
 
             byte[] salt2 = this.attrs.get("SALT");
@@ -134,7 +135,7 @@ public class KeyBag {
             gen.init(key1.getEncoded(), salt2, iterations2);
             byte[] keyEncryptionKey = ((KeyParameter) gen.generateDerivedParameters(32 * 8)).getKey();
 
-            Cipher c = Cipher.getInstance("AESWrap");
+            Cipher c = CryptoProviders.cipher("AESWrap");
 
             for (Map<String, byte[]> classKey : this.classKeys.values()) {
                 if (!classKey.containsKey("WPKY")) continue;
@@ -169,7 +170,7 @@ public class KeyBag {
             throw new BackupReadException("Invalid class key length");
 
         try {
-            Cipher c = Cipher.getInstance("AESWrap");
+            Cipher c = CryptoProviders.cipher("AESWrap");
             c.init(Cipher.UNWRAP_MODE, new SecretKeySpec(classKey, "AES"));
             return c.unwrap(persistentKey, "AES", Cipher.SECRET_KEY).getEncoded();
         } catch (NoSuchAlgorithmException | NoSuchPaddingException e) {
@@ -182,7 +183,7 @@ public class KeyBag {
         byte[] key = this.unwrapKeyForClass(protectionClass, persistentKey);
 
         try {
-            Cipher c = Cipher.getInstance(cipherMode);
+            Cipher c = CryptoProviders.cipher(cipherMode);
             c.init(Cipher.DECRYPT_MODE, new SecretKeySpec(key, "AES"), new IvParameterSpec(new byte[16]));
             return new CipherInputStream(source, c);
         } catch (NoSuchAlgorithmException | NoSuchPaddingException | InvalidAlgorithmParameterException e) {
@@ -194,47 +195,101 @@ public class KeyBag {
         return decryptStream(protectionClass, persistentKey, source, "AES/CBC/PKCS5Padding");
     }
 
-    protected void decryptFilePaddingFallback(byte[] protectionClass, byte[] persistentKey, File source, File destination, long size) throws IOException, BackupReadException, UnsupportedCryptoException, NotUnlockedException, InvalidKeyException {
-        try (
-                BufferedInputStream inputStream = new BufferedInputStream(new FileInputStream(source), BUFFER_SIZE);
-                InputStream decryptStream = decryptStream(protectionClass, persistentKey, inputStream, "AES/CBC/NoPadding");
+    /**
+     * Decrypts a content file from one stream into another in a single pass.
+     * The last block is held back until the end of the input to check its padding.
+     * If the padding is invalid, the last block is written as is,
+     * which is the same output the NoPadding fallback of older versions produced.
+     *
+     * @return The byte counts and whether the padding was valid
+     */
+    public DecryptionResult decrypt(byte[] protectionClass, byte[] persistentKey, InputStream source, OutputStream destination) throws IOException, BackupReadException, UnsupportedCryptoException, NotUnlockedException, InvalidKeyException {
+        return decrypt(protectionClass, persistentKey, source, destination, new byte[2 * BUFFER_SIZE + 32]);
+    }
 
-                FileOutputStream fileOutputStream = new FileOutputStream(destination);
-                BufferedOutputStream outputStream = new BufferedOutputStream(fileOutputStream, BUFFER_SIZE)
-        ) {
-            decryptStream.transferTo(outputStream);
-            outputStream.flush();
+    /**
+     * Same as {@link #decrypt(byte[], byte[], InputStream, OutputStream)}, but uses the given
+     * buffer for both the encrypted and the decrypted data instead of allocating new ones.
+     * About half of the buffer is read at once, so it should be at least a few kilobytes.
+     *
+     * @param buffer Working memory, must be at least 64 bytes long
+     */
+    public DecryptionResult decrypt(byte[] protectionClass, byte[] persistentKey, InputStream source, OutputStream destination, byte[] buffer) throws IOException, BackupReadException, UnsupportedCryptoException, NotUnlockedException, InvalidKeyException {
+        // Layout: [input chunk][held back last block][decrypted chunk + spare block]
+        int chunkSize = ((buffer.length - 32) / 2) & ~15;
+        if (chunkSize <= 0) throw new IllegalArgumentException("Buffer too small: " + buffer.length);
+        int heldBlockOffset = chunkSize;
+        int outputOffset = heldBlockOffset + 16;
+
+        byte[] key = this.unwrapKeyForClass(protectionClass, persistentKey);
+
+        Cipher c;
+        try {
+            c = CryptoProviders.cipher("AES/CBC/NoPadding");
+            c.init(Cipher.DECRYPT_MODE, new SecretKeySpec(key, "AES"), new IvParameterSpec(new byte[16]));
+        } catch (NoSuchAlgorithmException | NoSuchPaddingException | InvalidAlgorithmParameterException e) {
+            throw new UnsupportedCryptoException(e);
+        }
+
+        boolean hasLastBlock = false;
+        long encryptedSize = 0;
+        long decryptedSize = 0;
 
-            if (size != -1L && fileOutputStream.getChannel().size() != size) {
-                System.out.printf("Warning: File size from database doesn't match actual decrypted size - expected %9d, got %9d (%s)%n", size, fileOutputStream.getChannel().size(), destination.getPath());
+        try {
+            int read;
+            while ((read = source.read(buffer, 0, chunkSize)) != -1) {
+                encryptedSize += read;
+                int decrypted = c.update(buffer, 0, read, buffer, outputOffset);
+                if (decrypted == 0) continue;
+
+                // Write the previously held back block together with everything but the new last block
+                int start = hasLastBlock ? heldBlockOffset : outputOffset;
+                int end = outputOffset + decrypted - 16;
+                destination.write(buffer, start, end - start);
+                decryptedSize += end - start;
+
+                System.arraycopy(buffer, end, buffer, heldBlockOffset, 16);
+                hasLastBlock = true;
             }
+            c.doFinal();
+        } catch (ShortBufferException e) {
+            throw new IllegalStateException(e);
+        } catch (IllegalBlockSizeException | BadPaddingException e) {
+            throw new IOException("Encrypted size " + encryptedSize + " is not a multiple of the block size", e);
+        }
 
-            BackupFilePaddingFixer.tryFixPadding(destination);
+        if (!hasLastBlock) return new DecryptionResult(encryptedSize, 0, true);
+
+        int padding = buffer[heldBlockOffset + 15] & 0xFF;
+        boolean paddingValid = padding >= 1 && padding <= 16;
+        for (int i = 16 - padding; paddingValid && i < 16; i++) {
+            if ((buffer[heldBlockOffset + i] & 0xFF) != padding) paddingValid = false;
         }
+
+        int lastBlockLength = paddingValid ? 16 - padding : 16;
+        destination.write(buffer, heldBlockOffset, lastBlockLength);
+        decryptedSize += lastBlockLength;
+
+        return new DecryptionResult(encryptedSize, decryptedSize, paddingValid);
     }
 
     public void decryptFile(byte[] protectionClass, byte[] persistentKey, File source, File destination, long size) throws IOException, BackupReadException, UnsupportedCryptoException, NotUnlockedException, InvalidKeyException {
+        DecryptionResult result;
         try (
-                BufferedInputStream inputStream = new BufferedInputStream(new FileInputStream(source), BUFFER_SIZE);
-                InputStream decryptStream = decryptStream(protectionClass, persistentKey, inputStream);
-
-                FileOutputStream fileOutputStream = new FileOutputStream(destination);
-                BufferedOutputStream outputStream = new BufferedOutputStream(fileOutputStream, BUFFER_SIZE)
+                FileInputStream inputStream = new FileInputStream(source);
+                BufferedOutputStream outputStream = new BufferedOutputStream(new FileOutputStream(destination), BUFFER_SIZE)
         ) {
-            decryptStream.transferTo(outputStream);
-            outputStream.flush();
+            result = decrypt(protectionClass, persistentKey, inputStream, outputStream);
+        }
 
-            if (size != -1L && fileOutputStream.getChannel().size() != size) {
-                System.out.printf("Warning: File size from database doesn't match actual decrypted size - expected %9d, got %9d (%s)%n", size, fileOutputStream.getChannel().size(), destination.getPath());
-            }
-        } catch (IOException e) {
-            if (e.getCause() instanceof BadPaddingException) {
-                System.out.println("Warning: Bad padding - " + e.getMessage() + " (" + destination.getPath() + ")");
-                System.out.println("Trying to decrypt again without padding...");
-                decryptFilePaddingFallback(protectionClass, persistentKey, source, destination, size);
-            } else {
-                throw e;
-            }
+        if (size != -1L && result.decryptedSize != size) {
+            System.out.printf("Warning: File size from database doesn't match actual decrypted size - expected %9d, got %9d (%s)%n", size, result.decryptedSize, destination.getPath());
+        }
+
+        if (!result.paddingValid) {
+            System.out.println("Warning: Bad padding (" + destination.getPath() + ")");
+            System.out.println("Trying to remove the padding manually...");
+            BackupFilePaddingFixer.tryFixPadding(destination);
         }
     }
 
@@ -250,7 +305,7 @@ public class KeyBag {
         byte[] key = this.unwrapKeyForClass(protectionClass, persistentKey);
 
         try {
-            Cipher c = Cipher.getInstance("AES/CBC/PKCS5Padding");
+            Cipher c = CryptoProviders.cipher("AES/CBC/PKCS5Padding");
             c.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(key, "AES"), new IvParameterSpec(new byte[16]));
             return new CipherOutputStream(destination, c);
         } catch (NoSuchAlgorithmException | NoSuchPaddingException | InvalidAlgorithmParameterException e) {
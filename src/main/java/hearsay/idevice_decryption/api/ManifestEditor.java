@@ -0,0 +1,177 @@
+package hearsay.idevice_decryption.api;
+
+import com.dd.plist.BinaryPropertyListWriter;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Replaces and deletes many files of a backup at once. {@link BackupFile#replaceWith(File)} and
+ * {@link BackupFile#delete()} write one row per transaction and leave re-encrypting the database to the caller;
+ * an editor collects the changes and applies them in {@link #commit()}: the originals are saved to
+ * <code>_BackupExplorer</code> and the content files written in parallel, then all rows are written in a single
+ * transaction and the database is re-encrypted once. If the transaction fails, the original content files are
+ * put back, so content and rows still match.
+ * <p>
+ * Nothing is changed before the commit, so closing an editor without committing discards its changes.
+ * Obtained from {@link ITunesBackup#edit()}, used by one thread.
+ */
+public class ManifestEditor implements AutoCloseable {
+    private final ITunesBackup backup;
+    private final int threads;
+    // By file ID, in the order they were added
+    private final Map<String, File> replacements = new LinkedHashMap<>();
+    private final Map<String, BackupFile> files = new LinkedHashMap<>();
+    private boolean done = false;
+
+    ManifestEditor(ITunesBackup backup, int threads) {
+        if (threads < 1) throw new IllegalArgumentException("threads must be at least 1");
+        this.backup = backup;
+        this.threads = threads;
+    }
+
+    /**
+     * Replaces the content of a file on commit, like {@link BackupFile#replaceWith(File)}.
+     *
+     * @throws IllegalArgumentException if the file is already replaced or deleted by this editor
+     */
+    public void replace(BackupFile file, File newFile) {
+        this.add(file);
+        this.replacements.put(file.fileID, newFile);
+    }
+
+    /**
+     * Deletes a file on commit, like {@link BackupFile#delete()}.
+     *
+     * @throws IllegalArgumentException if the file is already replaced or deleted by this editor
+     */
+    public void delete(BackupFile file) {
+        this.add(file);
+    }
+
+    private void add(BackupFile file) {
+        if (this.done) throw new IllegalStateException("Editor is already committed or closed");
+        if (file.backup != this.backup) throw new IllegalArgumentException("File belongs to another backup");
+        if (this.files.putIfAbsent(file.fileID, file) != null)
+            throw new IllegalArgumentException("File '" + file.relativePath + "' is already edited");
+    }
+
+    /**
+     * @return the number of files replaced or deleted on commit
+     */
+    public int size() {
+        return this.files.size();
+    }
+
+    /**
+     * Applies all changes. The rows of the files whose content could be changed are written, even if others
+     * failed; those are left unchanged and reported afterwards as suppressed exceptions of a single
+     * {@link IOException}.
+     *
+     * @throws IOException                 if the content of some files could not be changed
+     * @throws DatabaseConnectionException if the rows could not be written, then no row is written and the
+     *                                     original content files are restored; or if the database could not
+     *                                     be re-encrypted, then the changes stay in the decrypted copy until
+     *                                     {@link ITunesBackup#reEncryptDatabase()} succeeds
+     */
+    public void commit() throws IOException, BackupReadException, DatabaseConnectionException, UnsupportedCryptoException, NotUnlockedException {
+        if (this.done) throw new IllegalStateException("Editor is already committed or closed");
+        this.done = true;
+        if (this.files.isEmpty()) return;
+
+        File dir = new File(this.backup.directory, "_BackupExplorer");
+        if (!dir.mkdir() && !dir.isDirectory())
+            throw new IOException("Backup directory '" + dir.getAbsolutePath() + "' could not be created");
+
+        Map<String, Future<BackupFile.ContentUndo>> tasks = new LinkedHashMap<>();
+        ExecutorService executor = Executors.newFixedThreadPool(Math.min(this.threads, this.files.size()));
+        try {
+            for (BackupFile file : this.files.values()) {
+                File newFile = this.replacements.get(file.fileID);
+                tasks.put(file.fileID, executor.submit(() ->
+                        newFile != null ? file.replaceContentWith(newFile) : file.deleteContent()));
+            }
+        } finally {
+            executor.shutdown();
+        }
+
+        Map<String, byte[]> updates = new HashMap<>();
+        List<String> deletions = new ArrayList<>();
+        List<BackupFile.ContentUndo> undos = new ArrayList<>();
+        IOException failed = null;
+        boolean interrupted = false;
+        for (Map.Entry<String, Future<BackupFile.ContentUndo>> task : tasks.entrySet()) {
+            BackupFile file = this.files.get(task.getKey());
+            BackupFile.ContentUndo undo = null;
+            try {
+                // A content file changed without its row has to be restored, so every task is waited for
+                while (undo == null) {
+                    try {
+                        undo = task.getValue().get();
+                    } catch (InterruptedException e) {
+                        interrupted = true;
+                    }
+                }
+                if (this.replacements.containsKey(file.fileID))
+                    updates.put(file.fileID, BinaryPropertyListWriter.writeToArray(file.data.dict));
+                else
+                    deletions.add(file.fileID);
+                undos.add(undo);
+            } catch (ExecutionException | IOException e) {
+                if (failed == null) failed = new IOException("Some files could not be edited");
+                IOException fileFailed = new IOException("'" + file.domain + ":" + file.relativePath + "'",
+                        e instanceof ExecutionException ? e.getCause() : e);
+                if (undo != null) restore(List.of(undo), fileFailed);
+                failed.addSuppressed(fileFailed);
+            }
+        }
+
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+            IOException e = new IOException("Interrupted while editing files, the originals are restored");
+            restore(undos, e);
+            throw e;
+        }
+
+        if (!updates.isEmpty() || !deletions.isEmpty()) {
+            try {
+                this.backup.writeEdits(updates, deletions);
+            } catch (DatabaseConnectionException | RuntimeException e) {
+                restore(undos, e);
+                throw e;
+            }
+            this.backup.reEncryptDatabase();
+        }
+        if (failed != null) throw failed;
+    }
+
+    /**
+     * Puts the original content files back, failures are added to the exception that caused it.
+     */
+    private static void restore(List<BackupFile.ContentUndo> undos, Exception cause) {
+        for (BackupFile.ContentUndo undo : undos) {
+            try {
+                undo.undo();
+            } catch (IOException e) {
+                cause.addSuppressed(e);
+            }
+        }
+    }
+
+    /**
+     * Discards the changes if they are not committed.
+     */
+    @Override
+    public void close() {
+        this.done = true;
+    }
+}
@@ -0,0 +1,86 @@
+package hearsay.idevice_decryption.api;
+
+import com.dd.plist.*;
+import hearsay.idevice_decryption.util.UtilDict;
+import org.xml.sax.SAXException;
+
+import javax.xml.parsers.ParserConfigurationException;
+import java.io.IOException;
+import java.text.ParseException;
+import java.util.NoSuchElementException;
+import java.util.Optional;
+
+/**
+ * The metadata of a file as stored in the manifest database, decoded from its MBFile property list.
+ * Unlike {@link BackupFile}, it does not refer to the content file at all, so it can be created
+ * for files whose content is missing and does not keep the property list in memory.
+ */
+public class ManifestEntry {
+    public final String fileID;
+    public final String domain;
+    public final String relativePath;
+    public final BackupFile.FileType fileType;
+    public final long size;
+    public final int protectionClass;
+    public final boolean encrypted;
+    public final int mode;
+    /**
+     * Timestamps in milliseconds, 0 if unknown
+     */
+    public final long lastModified;
+    public final long birth;
+    public final long lastStatusChange;
+
+    private ManifestEntry(String fileID, String domain, String relativePath, BackupFile.FileType fileType,
+                          UtilDict properties, boolean encrypted) {
+        this.fileID = fileID;
+        this.domain = domain;
+        this.relativePath = relativePath;
+        this.fileType = fileType;
+        this.size = getLong(properties, "Size");
+        this.protectionClass = (int) getLong(properties, "ProtectionClass");
+        this.encrypted = encrypted;
+        this.mode = (int) getLong(properties, "Mode");
+        this.lastModified = getLong(properties, "LastModified") * 1000;
+        this.birth = getLong(properties, "Birth") * 1000;
+        this.lastStatusChange = getLong(properties, "LastStatusChange") * 1000;
+    }
+
+    /**
+     * Decodes a row of the files table.
+     *
+     * @param data the content of the <code>file</code> column, a keyed archive of an MBFile
+     * @throws BackupReadException if the property list is invalid
+     */
+    public static ManifestEntry parse(String fileID, String domain, String relativePath, int flags, byte[] data)
+            throws BackupReadException {
+        BackupFile.FileType fileType = BackupFile.FileType.fromFlags(flags);
+        try {
+            NSObject parsed = PropertyListParser.parse(data);
+            if (!(parsed instanceof NSDictionary)) throw new NoSuchElementException();
+            UtilDict archive = new UtilDict((NSDictionary) parsed);
+            NSObject[] objects = archive.getArray("$objects").orElseThrow();
+            UID root = archive.get(UID.class, "$top", "root").orElseThrow();
+            UtilDict properties = new UtilDict((NSDictionary) getObject(objects, root));
+            boolean encrypted = properties.get(UID.class, "EncryptionKey").isPresent();
+            return new ManifestEntry(fileID, domain, relativePath, fileType, properties, encrypted);
+        } catch (NoSuchElementException | ClassCastException e) {
+            throw new BackupReadException("Invalid file properties of " + fileID + " (" + domain + "/" + relativePath + ")", e);
+        } catch (IOException | PropertyListFormatException | ParseException | ParserConfigurationException |
+                 SAXException e) {
+            throw new BackupReadException("Failed to parse file properties of " + fileID + " (" + domain + "/" + relativePath + ")", e);
+        }
+    }
+
+    private static NSObject getObject(NSObject[] objects, UID uid) {
+        int index = 0;
+        for (byte b : uid.getBytes()) index = (index << 8) | (b & 0xff);
+        if (index >= objects.length) throw new NoSuchElementException();
+        return objects[index];
+    }
+
+    private static long getLong(UtilDict properties, String key) {
+        Optional<NSNumber> number = properties.get(NSNumber.class, key);
+        return number.map(NSNumber::longValue).orElse(0L);
+    }
+}
@@ -0,0 +1,19 @@
+package hearsay.idevice_decryption.api;
+
+/**
+ * Thrown while reading the database if a file has no content file in the backup directory.
+ */
+public class MissingContentException extends BackupReadException {
+    private static final long serialVersionUID = 1L;
+
+    public final String fileID;
+    public final String domain;
+    public final String relativePath;
+
+    public MissingContentException(String fileID, String domain, String relativePath) {
+        super("Missing file: " + fileID + " in " + domain + " (" + relativePath + ")");
+        this.fileID = fileID;
+        this.domain = domain;
+        this.relativePath = relativePath;
+    }
+}
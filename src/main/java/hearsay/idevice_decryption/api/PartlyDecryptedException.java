@@ -0,0 +1,20 @@
+package hearsay.idevice_decryption.api;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Thrown when the content of a file is read while an interrupted {@link BackupFile#decryptInPlace} left it
+ * partly decrypted. Reading it as ciphertext would give garbage; {@link BackupFile#finishDecryptionInPlace}
+ * completes the decryption first.
+ */
+public class PartlyDecryptedException extends IOException {
+    private static final long serialVersionUID = 1L;
+
+    public final File contentFile;
+
+    public PartlyDecryptedException(File contentFile) {
+        super("Content file was left partly decrypted by an interrupted in-place decryption: " + contentFile);
+        this.contentFile = contentFile;
+    }
+}
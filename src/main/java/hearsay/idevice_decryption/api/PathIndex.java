@@ -0,0 +1,317 @@
+package hearsay.idevice_decryption.api;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.OptionalInt;
+import java.util.function.IntConsumer;
+
+/**
+ * The paths of all files of a backup as a tree in memory: the domains below the root, then one node per path
+ * component. Directories without a row of their own, like the parents of files in the root of an app, are in the
+ * tree as well. Nodes are numbered, a parent always before its children, and stored in arrays with interned
+ * names and file IDs as 20 bytes, so a million files take some ten megabytes beyond the names.
+ * <p>
+ * Children, subtrees with their sizes and path lookups need no query. Built by
+ * {@link ITunesBackup#getPathIndex()} and immutable, so it can be used by any number of threads.
+ */
+public class PathIndex {
+    public static final int ROOT = 0;
+
+    private static final int FILE_ID_LENGTH = 20;
+
+    private int count = 1;
+    private int[] parents = new int[1024];
+    private String[] names = new String[1024];
+    private int[] flags = new int[1024];
+    private long[] sizes = new long[1024];
+    private byte[] fileIds = new byte[1024 * FILE_ID_LENGTH];
+    // File IDs that are not 40 hex digits, by node
+    private final Map<Integer, String> otherFileIds = new HashMap<>();
+
+    // Children of node n are children[childStart[n]] to children[childStart[n + 1] - 1], sorted by name
+    private int[] childStart;
+    private int[] children;
+    private long[] subtreeSizes;
+    private int[] subtreeFiles;
+    private int[] subtreeNodes;
+
+    /**
+     * Collects the rows of the files table, see {@link #finish()}.
+     */
+    static class Builder {
+        private final PathIndex index = new PathIndex();
+        // Domain and relative path of every node, only while building
+        private final Map<String, Integer> nodes = new HashMap<>();
+        private final Map<String, String> internedNames = new HashMap<>();
+
+        Builder() {
+            index.names[ROOT] = "";
+            index.flags[ROOT] = BackupFile.FileType.DIRECTORY.flag;
+        }
+
+        /**
+         * @param size the size of files, ignored for anything else
+         */
+        void add(String fileID, String domain, String relativePath, int flags, long size) {
+            int node = this.node(domain, relativePath);
+            index.flags[node] = flags;
+            index.sizes[node] = flags == BackupFile.FileType.FILE.flag ? size : 0;
+            index.setFileID(node, fileID);
+        }
+
+        private int node(String domain, String relativePath) {
+            String key = domain + '\0' + relativePath;
+            Integer node = nodes.get(key);
+            if (node != null) return node;
+
+            int parent;
+            String name;
+            if (relativePath.isEmpty()) {
+                parent = ROOT;
+                name = domain;
+            } else {
+                int slash = relativePath.lastIndexOf('/');
+                parent = this.node(domain, slash == -1 ? "" : relativePath.substring(0, slash));
+                name = relativePath.substring(slash + 1);
+            }
+            int created = index.addNode(parent, internedNames.computeIfAbsent(name, n -> n));
+            nodes.put(key, created);
+            return created;
+        }
+
+        PathIndex finish() {
+            index.finish();
+            return index;
+        }
+    }
+
+    private PathIndex() {
+    }
+
+    private int addNode(int parent, String name) {
+        if (count == parents.length) {
+            int capacity = count * 2;
+            parents = Arrays.copyOf(parents, capacity);
+            names = Arrays.copyOf(names, capacity);
+            flags = Arrays.copyOf(flags, capacity);
+            sizes = Arrays.copyOf(sizes, capacity);
+            fileIds = Arrays.copyOf(fileIds, capacity * FILE_ID_LENGTH);
+        }
+        int node = count++;
+        parents[node] = parent;
+        names[node] = name;
+        // Until a row says otherwise
+        flags[node] = BackupFile.FileType.DIRECTORY.flag;
+        return node;
+    }
+
+    private void setFileID(int node, String fileID) {
+        byte[] bytes = null;
+        if (fileID.length() == 2 * FILE_ID_LENGTH && fileID.equals(fileID.toLowerCase())) {
+            try {
+                bytes = HexFormat.of().parseHex(fileID);
+            } catch (IllegalArgumentException e) {
+                // Kept as it is
+            }
+        }
+        if (bytes != null) {
+            System.arraycopy(bytes, 0, fileIds, node * FILE_ID_LENGTH, FILE_ID_LENGTH);
+        } else {
+            otherFileIds.put(node, fileID);
+        }
+        // The sign bit marks the nodes with a row
+        flags[node] |= Integer.MIN_VALUE;
+    }
+
+    private void finish() {
+        parents = Arrays.copyOf(parents, count);
+        names = Arrays.copyOf(names, count);
+        flags = Arrays.copyOf(flags, count);
+        sizes = Arrays.copyOf(sizes, count);
+        fileIds = Arrays.copyOf(fileIds, count * FILE_ID_LENGTH);
+
+        childStart = new int[count + 1];
+        for (int node = 1; node < count; node++) childStart[parents[node] + 1]++;
+        for (int node = 0; node < count; node++) childStart[node + 1] += childStart[node];
+        children = new int[Math.max(count - 1, 0)];
+        int[] filled = Arrays.copyOf(childStart, count);
+        for (int node = 1; node < count; node++) children[filled[parents[node]]++] = node;
+        for (int node = 0; node < count; node++) {
+            int start = childStart[node];
+            int end = childStart[node + 1];
+            if (end - start < 2) continue;
+            Integer[] sorted = new Integer[end - start];
+            for (int i = start; i < end; i++) sorted[i - start] = children[i];
+            Arrays.sort(sorted, (a, b) -> names[a].compareTo(names[b]));
+            for (int i = start; i < end; i++) children[i] = sorted[i - start];
+        }
+
+        // Parents come first, so every subtree is complete when it is added to its parent
+        subtreeSizes = Arrays.copyOf(sizes, count);
+        subtreeFiles = new int[count];
+        subtreeNodes = new int[count];
+        Arrays.fill(subtreeNodes, 1);
+        for (int node = count - 1; node > 0; node--) {
+            if (getFileType(node) == BackupFile.FileType.FILE) subtreeFiles[node]++;
+            subtreeSizes[parents[node]] += subtreeSizes[node];
+            subtreeFiles[parents[node]] += subtreeFiles[node];
+            subtreeNodes[parents[node]] += subtreeNodes[node];
+        }
+    }
+
+    /**
+     * @return the number of nodes including the root
+     */
+    public int size() {
+        return count;
+    }
+
+    /**
+     * @param relativePath empty for the domain itself
+     * @return the node of the path, empty if there is none
+     */
+    public OptionalInt find(String domain, String relativePath) {
+        int node = this.findChild(ROOT, domain);
+        int start = 0;
+        while (node != -1 && start < relativePath.length()) {
+            int slash = relativePath.indexOf('/', start);
+            int end = slash == -1 ? relativePath.length() : slash;
+            node = this.findChild(node, relativePath.substring(start, end));
+            start = end + 1;
+        }
+        return node == -1 ? OptionalInt.empty() : OptionalInt.of(node);
+    }
+
+    private int findChild(int node, String name) {
+        int low = childStart[node];
+        int high = childStart[node + 1] - 1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            int compared = names[children[middle]].compareTo(name);
+            if (compared < 0) low = middle + 1;
+            else if (compared > 0) high = middle - 1;
+            else return children[middle];
+        }
+        return -1;
+    }
+
+    /**
+     * @return the parent of the node, -1 for the root
+     */
+    public int getParent(int node) {
+        return node == ROOT ? -1 : parents[node];
+    }
+
+    /**
+     * @return the last path component, the domain for domain nodes, empty for the root
+     */
+    public String getName(int node) {
+        return names[node];
+    }
+
+    public String getDomain(int node) {
+        if (node == ROOT) return "";
+        while (parents[node] != ROOT) node = parents[node];
+        return names[node];
+    }
+
+    /**
+     * @return the path below the domain, empty for domains and the root
+     */
+    public String getRelativePath(int node) {
+        List<String> components = new ArrayList<>();
+        for (; node != ROOT && parents[node] != ROOT; node = parents[node]) components.add(names[node]);
+        StringBuilder path = new StringBuilder();
+        for (int i = components.size() - 1; i >= 0; i--) {
+            path.append(components.get(i));
+            if (i > 0) path.append('/');
+        }
+        return path.toString();
+    }
+
+    /**
+     * @return the type from the database; directories without a row of their own are directories as well
+     */
+    public BackupFile.FileType getFileType(int node) {
+        int flag = flags[node] & Integer.MAX_VALUE;
+        for (BackupFile.FileType type : BackupFile.FileType.values()) {
+            if (type.flag == flag) return type;
+        }
+        return BackupFile.FileType.DIRECTORY;
+    }
+
+    /**
+     * @return the file ID, empty for the root and directories without a row of their own
+     */
+    public Optional<String> getFileID(int node) {
+        if (flags[node] >= 0) return Optional.empty();
+        String other = otherFileIds.get(node);
+        if (other != null) return Optional.of(other);
+        return Optional.of(HexFormat.of().formatHex(fileIds, node * FILE_ID_LENGTH, (node + 1) * FILE_ID_LENGTH));
+    }
+
+    /**
+     * @return the size of a file from the database, 0 for anything else
+     */
+    public long getSize(int node) {
+        return sizes[node];
+    }
+
+    /**
+     * @return the total size of the files in the subtree of the node, including the node itself
+     */
+    public long getSubtreeSize(int node) {
+        return subtreeSizes[node];
+    }
+
+    /**
+     * @return the number of files in the subtree of the node, including the node itself
+     */
+    public int getSubtreeFileCount(int node) {
+        return subtreeFiles[node];
+    }
+
+    /**
+     * @return the number of nodes in the subtree of the node, including the node itself
+     */
+    public int getSubtreeNodeCount(int node) {
+        return subtreeNodes[node];
+    }
+
+    /**
+     * @return the children of the node, sorted by name
+     */
+    public int[] getChildren(int node) {
+        return Arrays.copyOfRange(children, childStart[node], childStart[node + 1]);
+    }
+
+    public int getChildCount(int node) {
+        return childStart[node + 1] - childStart[node];
+    }
+
+    /**
+     * Passes every node below the given one to the consumer, depth first and sorted by name,
+     * each directory before its children.
+     */
+    public void forEachDescendant(int node, IntConsumer consumer) {
+        int[] stack = new int[16];
+        int top = 0;
+        for (int i = childStart[node + 1] - 1; i >= childStart[node]; i--) {
+            if (top == stack.length) stack = Arrays.copyOf(stack, top * 2);
+            stack[top++] = children[i];
+        }
+        while (top > 0) {
+            int current = stack[--top];
+            consumer.accept(current);
+            for (int i = childStart[current + 1] - 1; i >= childStart[current]; i--) {
+                if (top == stack.length) stack = Arrays.copyOf(stack, top * 2);
+                stack[top++] = children[i];
+            }
+        }
+    }
+}
@@ -0,0 +1,336 @@
+package hearsay.idevice_decryption.api;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.Predicate;
+import java.util.regex.Pattern;
+
+/**
+ * Finds paths by substring, glob or regular expression without looking at every path, using a trigram index.
+ * Paths are searched as <code>DOMAIN/RELATIVE_PATH</code>, the domain alone for the root of a domain.
+ * <p>
+ * Only the distinct names of the {@link PathIndex} are indexed, not every full path: a path contains a text
+ * only if one of its components contains the longest part of the text between slashes. The index yields the
+ * names with all trigrams of that part, and the full paths below the nodes with such a name are checked
+ * against the actual search, so there are no false matches. Immutable after it is built, see
+ * {@link ITunesBackup#getPathSearch()}.
+ */
+public class PathSearch {
+    private static final int GRAM = 3;
+
+    private final PathIndex index;
+    private final String[] names;
+    // Nodes with name n are nodes[nodeStart[n]] to nodes[nodeStart[n + 1] - 1]
+    private final int[] nodeStart;
+    private final int[] nodes;
+    // Names containing a trigram, in ascending order
+    private final Map<Long, int[]> postings = new HashMap<>();
+
+    PathSearch(PathIndex index) {
+        this.index = index;
+        int count = index.size();
+
+        Map<String, Integer> nameIds = new HashMap<>();
+        int[] nameOfNode = new int[count];
+        for (int node = 1; node < count; node++) {
+            nameOfNode[node] = nameIds.computeIfAbsent(index.getName(node), name -> nameIds.size());
+        }
+        this.names = new String[nameIds.size()];
+        nameIds.forEach((name, id) -> names[id] = name);
+
+        this.nodeStart = new int[names.length + 1];
+        for (int node = 1; node < count; node++) nodeStart[nameOfNode[node] + 1]++;
+        for (int name = 0; name < names.length; name++) nodeStart[name + 1] += nodeStart[name];
+        this.nodes = new int[Math.max(count - 1, 0)];
+        int[] filled = Arrays.copyOf(nodeStart, names.length);
+        for (int node = 1; node < count; node++) nodes[filled[nameOfNode[node]]++] = node;
+
+        // Grown in place while building, trimmed after; the last element is the number used
+        Map<Long, int[]> building = new HashMap<>();
+        for (int name = 0; name < names.length; name++) {
+            String value = names[name];
+            for (int i = 0; i + GRAM <= value.length(); i++) {
+                long gram = trigram(value, i);
+                int[] list = building.computeIfAbsent(gram, g -> new int[3]);
+                int used = list[list.length - 1];
+                // A name repeating a trigram is listed once
+                if (used > 0 && list[used - 1] == name) continue;
+                if (used == list.length - 1) {
+                    list = Arrays.copyOf(list, list.length * 2);
+                    building.put(gram, list);
+                }
+                list[used] = name;
+                list[list.length - 1] = used + 1;
+            }
+        }
+        building.forEach((gram, list) -> postings.put(gram, Arrays.copyOf(list, list[list.length - 1])));
+    }
+
+    private static long trigram(String value, int offset) {
+        return ((long) value.charAt(offset) << 32) | ((long) value.charAt(offset + 1) << 16) | value.charAt(offset + 2);
+    }
+
+    /**
+     * @return the nodes with a row whose path contains the text, in ascending order
+     */
+    public int[] findSubstring(String text) {
+        return this.find(text, path -> path.contains(text));
+    }
+
+    /**
+     * @param glob matched against the whole path like SQLite's GLOB: <code>*</code> and <code>?</code> also
+     *             match slashes, <code>[...]</code> is a character class, case-sensitive
+     * @return the nodes with a row whose path matches, in ascending order
+     */
+    public int[] findGlob(String glob) {
+        Pattern pattern = globToPattern(glob);
+        return this.find(longestLiteral(glob), path -> pattern.matcher(path).matches());
+    }
+
+    /**
+     * @return the nodes with a row where the expression is found in the path, in ascending order.
+     * Only simple literal parts of the expression narrow the search, others check every path.
+     */
+    public int[] findRegex(Pattern regex) {
+        boolean plain = (regex.flags() & (Pattern.CASE_INSENSITIVE | Pattern.LITERAL | Pattern.COMMENTS)) == 0;
+        return this.find(plain ? requiredLiteral(regex.pattern()) : "", path -> regex.matcher(path).find());
+    }
+
+    /**
+     * @return the tree the found nodes belong to
+     */
+    public PathIndex getPathIndex() {
+        return index;
+    }
+
+    /**
+     * @return the path that is searched for the node
+     */
+    public String getPath(int node) {
+        String relativePath = index.getRelativePath(node);
+        String domain = index.getDomain(node);
+        return relativePath.isEmpty() ? domain : domain + '/' + relativePath;
+    }
+
+    /**
+     * @param literal text every match contains, empty if nothing is known
+     */
+    private int[] find(String literal, Predicate<String> matches) {
+        BitSet found = new BitSet(index.size());
+        BitSet checked = new BitSet(index.size());
+        for (int candidate : this.candidates(literal)) {
+            if (checked.get(candidate)) continue;
+            this.check(candidate, matches, found, checked);
+            index.forEachDescendant(candidate, node -> this.check(node, matches, found, checked));
+        }
+        return found.stream().toArray();
+    }
+
+    private void check(int node, Predicate<String> matches, BitSet found, BitSet checked) {
+        if (checked.get(node)) return;
+        checked.set(node);
+        if (index.getFileID(node).isPresent() && matches.test(this.getPath(node))) found.set(node);
+    }
+
+    /**
+     * @return the nodes whose name contains the longest part of the literal between slashes, in ascending order
+     */
+    private int[] candidates(String literal) {
+        String part = "";
+        for (String segment : literal.split("/")) {
+            if (segment.length() > part.length()) part = segment;
+        }
+        // Every path is checked below the domains
+        if (part.isEmpty()) return index.getChildren(PathIndex.ROOT);
+        // Too short for a trigram, but the names are still far fewer than the paths
+        if (part.length() < GRAM) return this.nodesOf(this.namesContaining(part, null));
+
+        int[] selected = null;
+        for (int i = 0; i + GRAM <= part.length() && (selected == null || selected.length > 0); i++) {
+            int[] list = postings.getOrDefault(trigram(part, i), new int[0]);
+            selected = selected == null ? list : intersect(selected, list);
+        }
+        return this.nodesOf(this.namesContaining(part, selected));
+    }
+
+    /**
+     * @param names the names to look at, null for all
+     */
+    private int[] namesContaining(String part, int[] names) {
+        int length = names != null ? names.length : this.names.length;
+        int[] result = new int[length];
+        int count = 0;
+        for (int i = 0; i < length; i++) {
+            int name = names != null ? names[i] : i;
+            if (this.names[name].contains(part)) result[count++] = name;
+        }
+        return Arrays.copyOf(result, count);
+    }
+
+    private int[] nodesOf(int[] names) {
+        int total = 0;
+        for (int name : names) total += nodeStart[name + 1] - nodeStart[name];
+        int[] result = new int[total];
+        int count = 0;
+        for (int name : names) {
+            int length = nodeStart[name + 1] - nodeStart[name];
+            System.arraycopy(nodes, nodeStart[name], result, count, length);
+            count += length;
+        }
+        // Ancestors first, so their subtrees cover the candidates below them
+        Arrays.sort(result);
+        return result;
+    }
+
+    private static int[] intersect(int[] a, int[] b) {
+        int[] result = new int[Math.min(a.length, b.length)];
+        int count = 0;
+        for (int i = 0, j = 0; i < a.length && j < b.length; ) {
+            if (a[i] < b[j]) i++;
+            else if (a[i] > b[j]) j++;
+            else {
+                result[count++] = a[i];
+                i++;
+                j++;
+            }
+        }
+        return Arrays.copyOf(result, count);
+    }
+
+    static Pattern globToPattern(String glob) {
+        StringBuilder regex = new StringBuilder();
+        for (int i = 0; i < glob.length(); i++) {
+            char c = glob.charAt(i);
+            if (c == '*') {
+                regex.append(".*");
+            } else if (c == '?') {
+                regex.append('.');
+            } else if (c == '[' && glob.indexOf(']', i + 2) != -1) {
+                int end = glob.indexOf(']', i + 2);
+                String set = glob.substring(i + 1, end);
+                boolean negated = set.startsWith("^");
+                if (negated) set = set.substring(1);
+                regex.append(negated ? "[^" : "[");
+                for (char member : set.toCharArray()) {
+                    if (member != '-' && !Character.isLetterOrDigit(member)) regex.append('\\');
+                    regex.append(member);
+                }
+                regex.append(']');
+                i = end;
+            } else {
+                regex.append(Pattern.quote(String.valueOf(c)));
+            }
+        }
+        return Pattern.compile(regex.toString(), Pattern.DOTALL);
+    }
+
+    /**
+     * @return the longest part of the glob without wildcards
+     */
+    static String longestLiteral(String glob) {
+        String longest = "";
+        StringBuilder current = new StringBuilder();
+        for (int i = 0; i <= glob.length(); i++) {
+            char c = i < glob.length() ? glob.charAt(i) : '*';
+            if (c == '*' || c == '?' || c == '[') {
+                if (current.length() > longest.length()) longest = current.toString();
+                current.setLength(0);
+                if (c == '[' && glob.indexOf(']', i + 2) != -1) i = glob.indexOf(']', i + 2);
+            } else {
+                current.append(c);
+            }
+        }
+        return longest;
+    }
+
+    /**
+     * @return the longest run of plain characters every match must contain, empty if there is none
+     * that is certain, e.g. with alternatives or flags
+     */
+    static String requiredLiteral(String regex) {
+        if (regex.contains("|") || regex.contains("(?")) return "";
+        String longest = "";
+        StringBuilder current = new StringBuilder();
+        int depth = 0;
+        for (int i = 0; i < regex.length(); i++) {
+            char c = regex.charAt(i);
+            char literal = 0;
+            int next = i + 1;
+            if (c == '\\' && i + 1 < regex.length() && !Character.isLetterOrDigit(regex.charAt(i + 1))) {
+                literal = regex.charAt(i + 1);
+                next = i + 2;
+            } else if (Character.isLetterOrDigit(c) || c == '/' || c == '-' || c == '_' || c == ' ' || c == '~') {
+                literal = c;
+            } else if (c == '\\') {
+                // A class like \d, a character code or a quote, the run ends
+                next = escapeEnd(regex, i);
+            }
+            if (c == '(') depth++;
+            if (c == ')') depth--;
+            if (c == '[' || c == '{') {
+                // The members of a class or the bounds of a quantifier
+                int end = regex.indexOf(c == '[' ? ']' : '}', i + (c == '[' ? 2 : 1));
+                next = end == -1 ? regex.length() : end + 1;
+            }
+
+            // A character followed by a quantifier is optional or repeated
+            boolean quantified = next < regex.length() && "?*+{".indexOf(regex.charAt(next)) != -1;
+            if (literal != 0 && depth == 0 && !quantified) {
+                current.append(literal);
+            } else {
+                if (current.length() > longest.length()) longest = current.toString();
+                current.setLength(0);
+            }
+            i = next - 1;
+        }
+        return current.length() > longest.length() ? current.toString() : longest;
+    }
+
+    /**
+     * @param start the position of a backslash followed by a letter or digit
+     * @return the position after the escape and its operand, like the digits of <code>\x41</code>
+     */
+    private static int escapeEnd(String regex, int start) {
+        int i = start + 1;
+        if (i >= regex.length()) return regex.length();
+        char c = regex.charAt(i++);
+        switch (c) {
+            case 'Q': {
+                int end = regex.indexOf("\\E", i);
+                return end == -1 ? regex.length() : end + 2;
+            }
+            case 'x':
+                if (i < regex.length() && regex.charAt(i) == '{') return closingEnd(regex, i, '}');
+                return Math.min(i + 2, regex.length());
+            case 'u':
+                return Math.min(i + 4, regex.length());
+            case 'c':
+                return Math.min(i + 1, regex.length());
+            case '0': {
+                int end = Math.min(i + 3, regex.length());
+                while (i < end && regex.charAt(i) >= '0' && regex.charAt(i) <= '7') i++;
+                return i;
+            }
+            case 'k':
+                return i < regex.length() && regex.charAt(i) == '<' ? closingEnd(regex, i, '>') : i;
+            case 'p':
+            case 'P':
+            case 'N':
+                if (i < regex.length() && regex.charAt(i) == '{') return closingEnd(regex, i, '}');
+                return Math.min(i + 1, regex.length());
+            default:
+                // A back reference takes all following digits
+                if (Character.isDigit(c)) {
+                    while (i < regex.length() && Character.isDigit(regex.charAt(i))) i++;
+                }
+                return i;
+        }
+    }
+
+    private static int closingEnd(String regex, int open, char close) {
+        int end = regex.indexOf(close, open + 1);
+        return end == -1 ? regex.length() : end + 1;
+    }
+}
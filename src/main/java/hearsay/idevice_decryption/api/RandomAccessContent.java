@@ -0,0 +1,135 @@
+package hearsay.idevice_decryption.api;
+
+import hearsay.idevice_decryption.util.CryptoProviders;
+
+import javax.crypto.BadPaddingException;
+import javax.crypto.Cipher;
+import javax.crypto.IllegalBlockSizeException;
+import javax.crypto.NoSuchPaddingException;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.security.GeneralSecurityException;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Reads the decrypted content of a file at any position without decrypting what comes before it.
+ * In CBC mode a block only depends on its own ciphertext and the ciphertext of the block in front of it,
+ * so a range is decrypted with that block as IV. The length is the same as {@link KeyBag#decrypt}
+ * produces: without the padding if it is valid, otherwise the full encrypted length.
+ * <p>
+ * Thread-safe, all reads are positional.
+ */
+public class RandomAccessContent implements Closeable {
+    private static final int BLOCK_SIZE = 16;
+
+    private final FileChannel channel;
+    private final SecretKeySpec key;
+    private final long length;
+
+    /**
+     * @param key the unwrapped file key, null if the content is not encrypted
+     */
+    RandomAccessContent(File contentFile, byte[] key) throws IOException, UnsupportedCryptoException {
+        this.channel = FileChannel.open(contentFile.toPath(), StandardOpenOption.READ);
+        this.key = key != null ? new SecretKeySpec(key, "AES") : null;
+        try {
+            this.length = key != null ? decryptedLength() : channel.size();
+        } catch (IOException | UnsupportedCryptoException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    private long decryptedLength() throws IOException, UnsupportedCryptoException {
+        long encryptedLength = channel.size();
+        if (encryptedLength % BLOCK_SIZE != 0)
+            throw new IOException("Encrypted size " + encryptedLength + " is not a multiple of the block size");
+        if (encryptedLength == 0) return 0;
+
+        byte[] lastBlock = decryptBlocks(encryptedLength - BLOCK_SIZE, 1);
+        int padding = lastBlock[BLOCK_SIZE - 1] & 0xFF;
+        boolean paddingValid = padding >= 1 && padding <= BLOCK_SIZE;
+        for (int i = BLOCK_SIZE - padding; paddingValid && i < BLOCK_SIZE; i++) {
+            if ((lastBlock[i] & 0xFF) != padding) paddingValid = false;
+        }
+        return paddingValid ? encryptedLength - padding : encryptedLength;
+    }
+
+    /**
+     * @return the length of the decrypted content
+     */
+    public long length() {
+        return length;
+    }
+
+    /**
+     * Reads up to <code>length</code> bytes starting at the given position of the decrypted content.
+     * Fewer bytes are only returned at the end of the content.
+     *
+     * @return the number of bytes read, -1 if the position is at or after the end
+     */
+    public int read(long position, byte[] destination, int offset, int length) throws IOException {
+        if (position < 0) throw new IllegalArgumentException("Negative position: " + position);
+        if (position >= this.length) return -1;
+        int count = (int) Math.min(length, this.length - position);
+        if (count == 0) return 0;
+
+        if (key == null) {
+            readFully(ByteBuffer.wrap(destination, offset, count), position);
+            return count;
+        }
+
+        long firstBlock = position / BLOCK_SIZE;
+        long lastBlock = (position + count - 1) / BLOCK_SIZE;
+        byte[] decrypted;
+        try {
+            decrypted = decryptBlocks(firstBlock * BLOCK_SIZE, (int) (lastBlock - firstBlock + 1));
+        } catch (UnsupportedCryptoException e) {
+            throw new IOException(e);
+        }
+        System.arraycopy(decrypted, (int) (position - firstBlock * BLOCK_SIZE), destination, offset, count);
+        return count;
+    }
+
+    /**
+     * Decrypts whole blocks, using the ciphertext of the block in front as IV (zeros for the first block).
+     */
+    private byte[] decryptBlocks(long start, int blocks) throws IOException, UnsupportedCryptoException {
+        byte[] iv = new byte[BLOCK_SIZE];
+        if (start > 0) readFully(ByteBuffer.wrap(iv), start - BLOCK_SIZE);
+        byte[] encrypted = new byte[blocks * BLOCK_SIZE];
+        readFully(ByteBuffer.wrap(encrypted), start);
+
+        try {
+            Cipher c = CryptoProviders.cipher("AES/CBC/NoPadding");
+            c.init(Cipher.DECRYPT_MODE, key, new IvParameterSpec(iv));
+            return c.doFinal(encrypted);
+        } catch (NoSuchAlgorithmException | NoSuchPaddingException e) {
+            throw new UnsupportedCryptoException(e);
+        } catch (IllegalBlockSizeException | BadPaddingException e) {
+            throw new IllegalStateException(e);
+        } catch (GeneralSecurityException e) {
+            throw new IOException(e);
+        }
+    }
+
+    private void readFully(ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position);
+            if (read == -1) throw new EOFException("Content file ended at " + position);
+            position += read;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+}
@@ -0,0 +1,204 @@
+package hearsay.idevice_decryption.util;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Writes files into a single archive stream, so that an extraction does not create one file per backup entry.
+ * Entries can be added from several threads; they are written one after the other.
+ * <p>
+ * Small entries are handed over complete with {@link #addEntry(String, long, byte[], int)}, so any preparation
+ * like compression happens in the calling thread before the archive is locked.
+ * Large entries are streamed with {@link #openEntry(String, long, long)}, which keeps the archive locked
+ * until the returned stream is closed, or aborted if its content turns out to be bad.
+ */
+public abstract class ArchiveWriter implements Closeable {
+    public enum Format {
+        TAR, ZIP, PACK;
+
+        public static Format parse(String text) {
+            try {
+                return Format.valueOf(text.trim().toUpperCase(Locale.ROOT));
+            } catch (IllegalArgumentException e) {
+                throw new IllegalArgumentException("Unknown archive format: " + text);
+            }
+        }
+
+        public String getExtension() {
+            return "." + name().toLowerCase(Locale.ROOT);
+        }
+    }
+
+    private final CountingOutputStream out;
+    private final ReentrantLock lock = new ReentrantLock();
+    private int entryCount = 0;
+    private final List<String> damagedEntries = new ArrayList<>();
+    private boolean closed = false;
+
+    protected ArchiveWriter(OutputStream out) {
+        this.out = new CountingOutputStream(out);
+    }
+
+    /**
+     * @param out                the stream to write the archive to, closed together with the writer
+     * @param compressionThreads threads used to compress large entries, ignored for uncompressed formats
+     */
+    public static ArchiveWriter create(Format format, OutputStream out, int compressionThreads) throws IOException {
+        switch (format) {
+            case TAR:
+                return new TarArchiveWriter(out);
+            case ZIP:
+                return new ZipArchiveWriter(out, compressionThreads);
+            case PACK:
+                return new PackWriter(out);
+            default:
+                throw new IllegalArgumentException("Unknown archive format: " + format);
+        }
+    }
+
+    /**
+     * @return the memory a writer of the format holds while an entry is streamed, beyond the entry's own buffers
+     */
+    public static long getStreamingMemory(Format format, int compressionThreads) {
+        return format == Format.ZIP ? ZipArchiveWriter.getStreamingMemory(compressionThreads) : 0;
+    }
+
+    /**
+     * Adds an entry with the first <code>length</code> bytes of <code>data</code> as content.
+     *
+     * @param name         path inside the archive, separated by <code>/</code>
+     * @param lastModified modification date in milliseconds, 0 if unknown
+     */
+    public abstract void addEntry(String name, long lastModified, byte[] data, int length) throws IOException;
+
+    /**
+     * Starts an entry whose content is written to the returned stream. Closing the stream finishes the entry,
+     * {@link EntryStream#abort()} gives it up. Until then, other threads adding entries are blocked.
+     *
+     * @param size the expected size of the content; formats that store the size before the content
+     *             fail an entry with any other size, see {@link #getDamagedEntries()}
+     */
+    public abstract EntryStream openEntry(String name, long lastModified, long size) throws IOException;
+
+    /**
+     * Adds the content of a backup file. Formats that are only organized by path store it under
+     * <code>name</code> like {@link #addEntry(String, long, byte[], int)}, others may also index it
+     * by file ID and domain path.
+     */
+    public void addFile(String fileID, String domain, String relativePath, String name, long lastModified,
+                        byte[] data, int length) throws IOException {
+        addEntry(name, lastModified, data, length);
+    }
+
+    /**
+     * Streaming counterpart of {@link #addFile(String, String, String, String, long, byte[], int)},
+     * see {@link #openEntry(String, long, long)}.
+     */
+    public EntryStream openFile(String fileID, String domain, String relativePath, String name, long lastModified,
+                                long size) throws IOException {
+        return openEntry(name, lastModified, size);
+    }
+
+    /**
+     * Writes whatever the format needs after the last entry.
+     */
+    protected abstract void finish() throws IOException;
+
+    public int getEntryCount() {
+        return entryCount;
+    }
+
+    /**
+     * @return the names of entries that failed but could not be left out, because the format has no directory;
+     * they are filled up with zeros so that the entries after them can still be read
+     */
+    public synchronized List<String> getDamagedEntries() {
+        return new ArrayList<>(damagedEntries);
+    }
+
+    protected synchronized void markDamaged(String name) {
+        damagedEntries.add(name);
+    }
+
+    /**
+     * @return The number of bytes written to the archive so far
+     */
+    public long getBytesWritten() {
+        return out.count;
+    }
+
+    protected OutputStream out() {
+        return out;
+    }
+
+    protected void lock() throws IOException {
+        lock.lock();
+        if (closed) {
+            lock.unlock();
+            throw new IOException("Archive is already closed");
+        }
+    }
+
+    protected void unlock(boolean entryWritten) {
+        if (entryWritten) entryCount++;
+        lock.unlock();
+    }
+
+    @Override
+    public void close() throws IOException {
+        lock.lock();
+        try {
+            if (closed) return;
+            closed = true;
+            try {
+                finish();
+            } finally {
+                out.close();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * The content of a streamed entry.
+     */
+    public abstract static class EntryStream extends OutputStream {
+        /**
+         * Gives up the entry, e.g. because its content could not be decrypted, and unlocks the archive.
+         * Formats with a directory leave the entry out of it; the bytes written so far stay in the stream,
+         * but nothing points to them.
+         */
+        public abstract void abort() throws IOException;
+    }
+
+    protected static String normalizeName(String name) {
+        String normalized = name.replace('\\', '/');
+        while (normalized.startsWith("/")) normalized = normalized.substring(1);
+        if (normalized.isEmpty()) throw new IllegalArgumentException("Empty entry name");
+        return normalized;
+    }
+
+    private static class CountingOutputStream extends FilterOutputStream {
+        private long count = 0;
+
+        CountingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            count += len;
+        }
+    }
+}
@@ -74,4 +74,24 @@ public class BackupFilePaddingFixer {
         }
     }
 
+    /**
+     * Same as {@link #tryFixPadding(File)} for content held in memory.
+     *
+     * @param data   the content
+     * @param length the number of valid bytes in data
+     * @return the length without padding, or the given length if no valid padding was found
+     */
+    public static int tryFixPadding(byte[] data, int length) {
+        int actualSize = length;
+        while (actualSize > 0 && data[actualSize - 1] == 0x00) actualSize--;
+        if (actualSize == 0 || actualSize % 16 != 0) return length;
+
+        int paddingNumber = data[actualSize - 1] & 0xff;
+        if (paddingNumber > actualSize) return length;
+        for (int i = actualSize - paddingNumber; i < actualSize; i++) {
+            if (data[i] != paddingNumber) return length;
+        }
+        return actualSize - paddingNumber;
+    }
+
 }
@@ -0,0 +1,79 @@
+package hearsay.idevice_decryption.util;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Fixed-size byte buffers handed out within a memory budget.
+ * Buffers are allocated lazily and reused after being released.
+ * If all buffers are in use, {@link #acquire()} blocks until one is returned,
+ * so the memory held by workers can never grow beyond the budget.
+ */
+public class BufferPool {
+    private final int bufferSize;
+    private final int capacity;
+    private final Semaphore available;
+    private final Deque<byte[]> free = new ArrayDeque<>();
+
+    /**
+     * @param bufferSize size of every buffer in bytes
+     * @param capacity   maximum number of buffers that exist at the same time
+     */
+    public BufferPool(int bufferSize, int capacity) {
+        if (bufferSize <= 0) throw new IllegalArgumentException("Buffer size must be positive");
+        if (capacity <= 0) throw new IllegalArgumentException("Capacity must be positive");
+
+        this.bufferSize = bufferSize;
+        this.capacity = capacity;
+        this.available = new Semaphore(capacity, true);
+    }
+
+    /**
+     * Creates a pool with as many buffers as fit into the budget.
+     *
+     * @throws IllegalArgumentException if not even one buffer fits
+     */
+    public static BufferPool withBudget(int bufferSize, long budget) {
+        long capacity = budget / bufferSize;
+        if (capacity < 1)
+            throw new IllegalArgumentException("Memory budget of " + budget + " bytes is too small for a buffer of " + bufferSize + " bytes");
+        return new BufferPool(bufferSize, (int) Math.min(Integer.MAX_VALUE, capacity));
+    }
+
+    public int getBufferSize() {
+        return bufferSize;
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    public long getBudget() {
+        return (long) bufferSize * capacity;
+    }
+
+    public byte[] acquire() throws InterruptedException {
+        available.acquire();
+        synchronized (free) {
+            byte[] buffer = free.poll();
+            if (buffer != null) return buffer;
+        }
+        try {
+            return new byte[bufferSize];
+        } catch (OutOfMemoryError e) {
+            available.release();
+            throw e;
+        }
+    }
+
+    public void release(byte[] buffer) {
+        if (buffer == null || buffer.length != bufferSize)
+            throw new IllegalArgumentException("Buffer does not belong to this pool");
+
+        synchronized (free) {
+            free.push(buffer);
+        }
+        available.release();
+    }
+}
@@ -0,0 +1,49 @@
+package hearsay.idevice_decryption.util;
+
+import java.util.Locale;
+
+public class ByteSizeUtils {
+
+    /**
+     * Parses a human-readable byte amount like <code>512m</code>, <code>1.5G</code>,
+     * <code>64KiB</code> or <code>2048</code>. Units are binary (1k = 1024 bytes).
+     * A trailing <code>/s</code> is ignored so that rates can be parsed as well.
+     *
+     * @param value the text to parse
+     * @return the number of bytes
+     * @throws IllegalArgumentException if the value is not a valid size
+     */
+    public static long parseBytes(String value) {
+        if (value == null) throw new IllegalArgumentException("Missing size");
+
+        String text = value.trim().toLowerCase(Locale.ROOT);
+        if (text.endsWith("/s")) text = text.substring(0, text.length() - 2);
+        if (text.endsWith("ib")) text = text.substring(0, text.length() - 2);
+        else if (text.endsWith("b")) text = text.substring(0, text.length() - 1);
+
+        if (text.isEmpty()) throw new IllegalArgumentException("Invalid size: " + value);
+
+        long multiplier = 1;
+        switch (text.charAt(text.length() - 1)) {
+            case 'k': multiplier = 1L << 10; break;
+            case 'm': multiplier = 1L << 20; break;
+            case 'g': multiplier = 1L << 30; break;
+            case 't': multiplier = 1L << 40; break;
+            default: break;
+        }
+        if (multiplier != 1) text = text.substring(0, text.length() - 1);
+
+        try {
+            double amount = Double.parseDouble(text.trim());
+            if (amount < 0 || Double.isNaN(amount) || Double.isInfinite(amount))
+                throw new IllegalArgumentException("Invalid size: " + value);
+            return (long) (amount * multiplier);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid size: " + value);
+        }
+    }
+
+    private ByteSizeUtils() {
+    }
+
+}
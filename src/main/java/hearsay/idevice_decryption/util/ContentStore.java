@@ -0,0 +1,330 @@
+package hearsay.idevice_decryption.util;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+/**
+ * Content-addressed store for decrypted files that is shared by the extractions of many backups.
+ * Every distinct content is stored once under its SHA-256 hash in <code>objects/ab/cdef...</code>,
+ * the backup trees link to these blobs. Blobs are made read-only, since all links share them.
+ * <p>
+ * The store also remembers which content each file ID of a device had, together with its size, modification
+ * date and the digest from the manifest. If a later backup of the same device has the same file unchanged,
+ * it can be linked without decrypting it again. File IDs only depend on domain and path, so they are
+ * remembered per device. Blobs are moved into place atomically, so several extractions may
+ * share a store, but only the last one to finish saves what it learned about the files.
+ */
+public class ContentStore {
+    private static final String OBJECTS_DIR = "objects";
+    private static final String TEMP_DIR = "tmp";
+    private static final String KNOWN_FILES = "known-files.tsv";
+    private static final HexFormat HEX = HexFormat.of();
+
+    private final Path root;
+    private final String device;
+    private final Map<String, KnownFile> knownFiles = new ConcurrentHashMap<>();
+    private final LongAdder storedBlobs = new LongAdder();
+    private final LongAdder storedBytes = new LongAdder();
+    private final LongAdder reusedBlobs = new LongAdder();
+    private final LongAdder reusedBytes = new LongAdder();
+
+    private static class KnownFile {
+        final long size;
+        final long lastModified;
+        final String sourceDigest;
+        final String hash;
+
+        KnownFile(long size, long lastModified, String sourceDigest, String hash) {
+            this.size = size;
+            this.lastModified = lastModified;
+            this.sourceDigest = sourceDigest;
+            this.hash = hash;
+        }
+    }
+
+    /**
+     * @param device the UDID of the device whose backup is extracted
+     * @param log    receives warnings about the known files
+     */
+    public ContentStore(Path root, String device, Consumer<String> log) throws IOException {
+        this.root = root;
+        this.device = device;
+        Files.createDirectories(root.resolve(OBJECTS_DIR));
+        Files.createDirectories(root.resolve(TEMP_DIR));
+        this.loadKnownFiles(log);
+    }
+
+    public Path getRoot() {
+        return root;
+    }
+
+    public Path getBlobPath(String hash) {
+        return root.resolve(OBJECTS_DIR).resolve(hash.substring(0, 2)).resolve(hash.substring(2));
+    }
+
+    /**
+     * Looks up the content a file had in an earlier extraction.
+     *
+     * @param sourceDigest the digest of the content file from the manifest, empty if there is none
+     * @return the hash of the content, if the file is known with the same size, date and digest
+     * and the blob still exists
+     */
+    public Optional<String> lookup(String fileID, long size, long lastModified, String sourceDigest) {
+        KnownFile known = knownFiles.get(key(fileID));
+        if (known == null || known.size != size || known.lastModified != lastModified
+                || !known.sourceDigest.equals(sourceDigest) || !Files.exists(getBlobPath(known.hash))) {
+            return Optional.empty();
+        }
+        reusedBlobs.increment();
+        reusedBytes.add(size);
+        return Optional.of(known.hash);
+    }
+
+    public void remember(String fileID, long size, long lastModified, String sourceDigest, String hash) {
+        knownFiles.put(key(fileID), new KnownFile(size, lastModified, sourceDigest, hash));
+    }
+
+    private String key(String fileID) {
+        return device + "\t" + fileID;
+    }
+
+    /**
+     * Stores content held in memory. Nothing is written if the content is already in the store.
+     *
+     * @return the hash of the content
+     */
+    public String put(byte[] data, int length) throws IOException {
+        MessageDigest digest = newDigest();
+        digest.update(data, 0, length);
+        String hash = HEX.formatHex(digest.digest());
+
+        Path blob = getBlobPath(hash);
+        if (Files.exists(blob)) {
+            reusedBlobs.increment();
+            reusedBytes.add(length);
+            return hash;
+        }
+
+        Path temp = Files.createTempFile(root.resolve(TEMP_DIR), "blob", null);
+        try {
+            try (OutputStream out = Files.newOutputStream(temp)) {
+                out.write(data, 0, length);
+            }
+            moveIntoStore(temp, blob, length);
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+        return hash;
+    }
+
+    /**
+     * Starts a blob that is too large to be held in memory.
+     * It is written to a temporary file in the store and hashed while being written.
+     */
+    public BlobOutputStream openBlob() throws IOException {
+        return new BlobOutputStream(Files.createTempFile(root.resolve(TEMP_DIR), "blob", null));
+    }
+
+    public class BlobOutputStream extends FilterOutputStream {
+        private final Path temp;
+        private final MessageDigest digest;
+        private boolean finished = false;
+
+        private BlobOutputStream(Path temp) throws IOException {
+            super(null);
+            this.temp = temp;
+            this.digest = newDigest();
+            this.out = new DigestOutputStream(new BufferedOutputStream(Files.newOutputStream(temp), 65536), digest);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+        }
+
+        /**
+         * Moves the content into the store, or drops it if the store already has it.
+         *
+         * @param fixPadding true to remove left-over padding first, see {@link BackupFilePaddingFixer}
+         * @return the hash of the content
+         */
+        public String commit(boolean fixPadding) throws IOException {
+            out.close();
+            finished = true;
+            try {
+                String hash;
+                if (fixPadding) {
+                    BackupFilePaddingFixer.tryFixPadding(temp.toFile());
+                    hash = hashFile(temp);
+                } else {
+                    hash = HEX.formatHex(digest.digest());
+                }
+
+                Path blob = getBlobPath(hash);
+                if (Files.exists(blob)) {
+                    reusedBlobs.increment();
+                    reusedBytes.add(Files.size(temp));
+                } else {
+                    moveIntoStore(temp, blob, Files.size(temp));
+                }
+                return hash;
+            } finally {
+                Files.deleteIfExists(temp);
+            }
+        }
+
+        /**
+         * Drops the content, e.g. after a failed decryption. Does nothing after {@link #commit(boolean)}.
+         */
+        @Override
+        public void close() throws IOException {
+            if (finished) return;
+            finished = true;
+            try {
+                out.close();
+            } finally {
+                Files.deleteIfExists(temp);
+            }
+        }
+    }
+
+    private void moveIntoStore(Path temp, Path blob, long size) throws IOException {
+        Files.createDirectories(blob.getParent());
+        //noinspection ResultOfMethodCallIgnored
+        temp.toFile().setReadOnly();
+        try {
+            Files.move(temp, blob, StandardCopyOption.ATOMIC_MOVE);
+            storedBlobs.increment();
+            storedBytes.add(size);
+        } catch (FileAlreadyExistsException e) {
+            // Stored by another worker or extraction in the meantime
+            reusedBlobs.increment();
+            reusedBytes.add(size);
+        }
+    }
+
+    /**
+     * Creates a hard link to a blob, replacing an existing file at the destination.
+     */
+    public void link(String hash, Path destination) throws IOException {
+        Files.deleteIfExists(destination);
+        Files.createLink(destination, getBlobPath(hash));
+    }
+
+    /**
+     * Checks whether files in the given directory can be hard links to blobs of this store.
+     */
+    public boolean supportsLinksTo(Path directory) {
+        Path probe = null;
+        Path link = directory.resolve(".store-link-probe");
+        try {
+            probe = Files.createTempFile(root.resolve(TEMP_DIR), "probe", null);
+            Files.deleteIfExists(link);
+            Files.createLink(link, probe);
+            return true;
+        } catch (IOException | UnsupportedOperationException e) {
+            return false;
+        } finally {
+            try {
+                Files.deleteIfExists(link);
+                if (probe != null) Files.deleteIfExists(probe);
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    public long getStoredBlobs() {
+        return storedBlobs.sum();
+    }
+
+    public long getStoredBytes() {
+        return storedBytes.sum();
+    }
+
+    public long getReusedBlobs() {
+        return reusedBlobs.sum();
+    }
+
+    public long getReusedBytes() {
+        return reusedBytes.sum();
+    }
+
+    /**
+     * Writes the known files, so that the next extraction can skip unchanged files.
+     */
+    public void save() throws IOException {
+        Path temp = Files.createTempFile(root.resolve(TEMP_DIR), "known-files", null);
+        try (PrintWriter writer = new PrintWriter(Files.newBufferedWriter(temp, StandardCharsets.UTF_8))) {
+            for (Map.Entry<String, KnownFile> entry : knownFiles.entrySet()) {
+                KnownFile known = entry.getValue();
+                writer.println(entry.getKey() + "\t" + known.size + "\t" + known.lastModified + "\t"
+                        + known.sourceDigest + "\t" + known.hash);
+            }
+        }
+        Files.move(temp, root.resolve(KNOWN_FILES), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private void loadKnownFiles(Consumer<String> log) throws IOException {
+        Path file = root.resolve(KNOWN_FILES);
+        if (!Files.exists(file)) return;
+
+        int withoutDevice = 0;
+        try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] fields = line.split("\t", -1);
+                if (fields.length == 5) {
+                    // Written before files were remembered per device
+                    withoutDevice++;
+                    continue;
+                }
+                if (fields.length != 6) continue;
+                try {
+                    knownFiles.put(fields[0] + "\t" + fields[1], new KnownFile(Long.parseLong(fields[2]),
+                            Long.parseLong(fields[3]), fields[4], fields[5]));
+                } catch (NumberFormatException e) {
+                    log.accept("Warning: Ignoring invalid line in " + file + ": " + line);
+                }
+            }
+        }
+        if (withoutDevice > 0) {
+            log.accept("Warning: " + withoutDevice + " known files in " + file
+                    + " have no device and are decrypted again");
+        }
+    }
+
+    public static String toHex(byte[] bytes) {
+        return bytes == null ? "" : HEX.formatHex(bytes);
+    }
+
+    /**
+     * @return the SHA-256 of the file in hex, as used for the blob names
+     */
+    public static String hashFile(Path file) throws IOException {
+        MessageDigest digest = newDigest();
+        try (InputStream in = Files.newInputStream(file)) {
+            byte[] buffer = new byte[65536];
+            int read;
+            while ((read = in.read(buffer)) != -1) digest.update(buffer, 0, read);
+        }
+        return HEX.formatHex(digest.digest());
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return CryptoProviders.digest("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+    }
+}
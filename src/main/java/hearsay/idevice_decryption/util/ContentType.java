@@ -0,0 +1,173 @@
+package hearsay.idevice_decryption.util;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Type of a file content, detected from its first bytes ("magic numbers") only,
+ * so that it can be determined while the file is decrypted.
+ */
+public enum ContentType {
+    EMPTY("application/x-empty"),
+    SQLITE("application/vnd.sqlite3"),
+    SQLITE_WAL("application/x-sqlite3-wal"),
+    SQLITE_JOURNAL("application/x-sqlite3-journal"),
+    BINARY_PLIST("application/x-bplist"),
+    XML_PLIST("application/x-plist"),
+    XML("application/xml"),
+    JSON("application/json"),
+    JPEG("image/jpeg"),
+    PNG("image/png"),
+    GIF("image/gif"),
+    TIFF("image/tiff"),
+    WEBP("image/webp"),
+    HEIC("image/heic"),
+    MOV("video/quicktime"),
+    MP4("video/mp4"),
+    M4A("audio/mp4"),
+    MP3("audio/mpeg"),
+    WAV("audio/wav"),
+    CAF("audio/x-caf"),
+    AMR("audio/amr"),
+    PDF("application/pdf"),
+    ZIP("application/zip"),
+    GZIP("application/gzip"),
+    TEXT("text/plain"),
+    UNKNOWN("application/octet-stream");
+
+    /**
+     * Number of bytes {@link #detect(byte[], int)} looks at, more are ignored.
+     */
+    public static final int HEAD_SIZE = 256;
+
+    private static final byte[] SQLITE_MAGIC = "SQLite format 3\0".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] SQLITE_JOURNAL_MAGIC = {(byte) 0xd9, (byte) 0xd5, 0x05, (byte) 0xf9, 0x20, (byte) 0xa1, 0x63, (byte) 0xd7};
+    private static final byte[] PNG_MAGIC = {(byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1a, '\n'};
+
+    public final String mimeType;
+
+    ContentType(String mimeType) {
+        this.mimeType = mimeType;
+    }
+
+    /**
+     * @param head   the first bytes of the content, ideally {@link #HEAD_SIZE} or all if it is shorter
+     * @param length the number of valid bytes in <code>head</code>
+     */
+    public static ContentType detect(byte[] head, int length) {
+        if (length <= 0) return EMPTY;
+
+        if (startsWith(head, length, 0, SQLITE_MAGIC)) return SQLITE;
+        if (length >= 4 && (readInt(head, 0) & 0xfffffffe) == 0x377f0682) return SQLITE_WAL;
+        if (startsWith(head, length, 0, SQLITE_JOURNAL_MAGIC)) return SQLITE_JOURNAL;
+        if (startsWith(head, length, 0, "bplist")) return BINARY_PLIST;
+        if (startsWith(head, length, 0, new byte[]{(byte) 0xff, (byte) 0xd8, (byte) 0xff})) return JPEG;
+        if (startsWith(head, length, 0, PNG_MAGIC)) return PNG;
+        if (startsWith(head, length, 0, "GIF87a") || startsWith(head, length, 0, "GIF89a")) return GIF;
+        if (startsWith(head, length, 0, "II*\0") || startsWith(head, length, 0, "MM\0*")) return TIFF;
+        if (startsWith(head, length, 0, "RIFF") && startsWith(head, length, 8, "WEBP")) return WEBP;
+        if (startsWith(head, length, 0, "RIFF") && startsWith(head, length, 8, "WAVE")) return WAV;
+        if (startsWith(head, length, 0, "ID3")) return MP3;
+        if (startsWith(head, length, 0, "caff")) return CAF;
+        if (startsWith(head, length, 0, "#!AMR")) return AMR;
+        if (startsWith(head, length, 0, "%PDF-")) return PDF;
+        if (startsWith(head, length, 0, "PK\3\4")) return ZIP;
+        if (startsWith(head, length, 0, new byte[]{0x1f, (byte) 0x8b})) return GZIP;
+
+        ContentType isoMedia = detectIsoMedia(head, length);
+        if (isoMedia != null) return isoMedia;
+
+        return detectText(head, length);
+    }
+
+    // ISO base media files (HEIC, MP4, MOV) start with a box whose type is at offset 4
+    private static ContentType detectIsoMedia(byte[] head, int length) {
+        if (startsWith(head, length, 4, "ftyp")) {
+            if (length < 12) return UNKNOWN;
+            String brand = new String(head, 8, 4, StandardCharsets.US_ASCII);
+            switch (brand) {
+                case "heic": case "heix": case "hevc": case "heim": case "heis": case "mif1": case "msf1":
+                    return HEIC;
+                case "qt  ":
+                    return MOV;
+                case "M4A ": case "M4B ": case "M4P ":
+                    return M4A;
+                default:
+                    return MP4;
+            }
+        }
+        // Older QuickTime files have no ftyp box
+        for (String box : new String[]{"moov", "mdat", "wide", "free", "skip"}) {
+            if (startsWith(head, length, 4, box)) return MOV;
+        }
+        return null;
+    }
+
+    private static ContentType detectText(byte[] head, int length) {
+        int end = Math.min(length, HEAD_SIZE);
+        for (int i = 0; i < end; i++) {
+            int b = head[i] & 0xff;
+            // Control characters other than whitespace mean binary data; bytes >= 0x80 may be UTF-8
+            if (b < 0x20 && b != '\t' && b != '\n' && b != '\r' && b != '\f') return UNKNOWN;
+            if (b == 0x7f) return UNKNOWN;
+        }
+
+        String text = new String(head, 0, end, StandardCharsets.UTF_8).strip();
+        if (text.startsWith("\uFEFF")) text = text.substring(1);
+        if (text.startsWith("<?xml") || text.startsWith("<!DOCTYPE") || text.startsWith("<plist")) {
+            return text.contains("<!DOCTYPE plist") || text.contains("<plist") ? XML_PLIST : XML;
+        }
+        if (text.startsWith("{") || text.startsWith("[")) return JSON;
+        return TEXT;
+    }
+
+    private static boolean startsWith(byte[] head, int length, int offset, String prefix) {
+        return startsWith(head, length, offset, prefix.getBytes(StandardCharsets.US_ASCII));
+    }
+
+    private static boolean startsWith(byte[] head, int length, int offset, byte[] prefix) {
+        return length >= offset + prefix.length
+                && Arrays.equals(head, offset, offset + prefix.length, prefix, 0, prefix.length);
+    }
+
+    private static int readInt(byte[] data, int offset) {
+        return ((data[offset] & 0xff) << 24) | ((data[offset + 1] & 0xff) << 16)
+                | ((data[offset + 2] & 0xff) << 8) | (data[offset + 3] & 0xff);
+    }
+
+    /**
+     * Passes everything through and keeps the first {@link #HEAD_SIZE} bytes,
+     * so that the type of the content can be detected after it was written.
+     */
+    public static class Sniffer extends FilterOutputStream {
+        private final byte[] head = new byte[HEAD_SIZE];
+        private int length = 0;
+
+        public Sniffer(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            if (length < head.length) head[length++] = (byte) b;
+            out.write(b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (length < head.length) {
+                int count = Math.min(len, head.length - length);
+                System.arraycopy(b, off, head, length, count);
+                length += count;
+            }
+            out.write(b, off, len);
+        }
+
+        public ContentType getContentType() {
+            return detect(head, length);
+        }
+    }
+}
@@ -0,0 +1,341 @@
+package hearsay.idevice_decryption.util;
+
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+
+import javax.crypto.Cipher;
+import javax.crypto.NoSuchPaddingException;
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.PBEKeySpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.Key;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.Provider;
+import java.security.Security;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.StringJoiner;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Chooses the JCE provider of each cryptographic primitive that is used for backups. Without configuration,
+ * the provider order of the JVM decides, as with <code>Cipher.getInstance(transformation)</code>. Since the
+ * speed of the providers differs between JVMs, native images and CPUs, every primitive can be set to a
+ * provider, or {@link #selectFastest(long)} measures the providers that compute correct results and takes
+ * the fastest one for each primitive.
+ * <p>
+ * PBKDF2-SHA1 of the key bag is not included: its password is the output of the first derivation as bytes,
+ * which the JCE interface does not take, so it always uses the BouncyCastle implementation directly.
+ */
+public class CryptoProviders {
+    public enum Primitive {
+        AES_CBC("aes-cbc"),
+        AES_WRAP("aes-wrap"),
+        SHA1("sha1"),
+        SHA256("sha256"),
+        PBKDF2_SHA256("pbkdf2-sha256");
+
+        public final String key;
+
+        Primitive(String key) {
+            this.key = key;
+        }
+
+        static Primitive fromKey(String key) {
+            for (Primitive primitive : values()) {
+                if (primitive.key.equalsIgnoreCase(key)) return primitive;
+            }
+            throw new IllegalArgumentException("Unknown crypto primitive: " + key);
+        }
+    }
+
+    public static final long DEFAULT_BENCHMARK_MILLIS = 10;
+    private static final int BENCHMARK_ROUNDS = 3;
+    private static final int BENCHMARK_DATA_SIZE = 64 * 1024;
+    private static final HexFormat HEX = HexFormat.of();
+
+    private static final Map<Primitive, Provider> selected = new ConcurrentHashMap<>();
+    private static Provider bouncyCastle;
+
+    public static Cipher cipher(String transformation) throws NoSuchAlgorithmException, NoSuchPaddingException {
+        String name = transformation.toUpperCase(Locale.ROOT);
+        Provider provider = selected.get(name.startsWith("AES/CBC/") ? Primitive.AES_CBC
+                : name.equals("AESWRAP") ? Primitive.AES_WRAP : null);
+        return provider != null ? Cipher.getInstance(transformation, provider) : Cipher.getInstance(transformation);
+    }
+
+    public static MessageDigest digest(String algorithm) throws NoSuchAlgorithmException {
+        String name = algorithm.toUpperCase(Locale.ROOT);
+        Provider provider = selected.get(name.equals("SHA-1") ? Primitive.SHA1
+                : name.equals("SHA-256") ? Primitive.SHA256 : null);
+        return provider != null ? MessageDigest.getInstance(algorithm, provider) : MessageDigest.getInstance(algorithm);
+    }
+
+    public static SecretKeyFactory secretKeyFactory(String algorithm) throws NoSuchAlgorithmException {
+        Provider provider = algorithm.equalsIgnoreCase("PBKDF2WithHmacSHA256") ? selected.get(Primitive.PBKDF2_SHA256) : null;
+        return provider != null ? SecretKeyFactory.getInstance(algorithm, provider) : SecretKeyFactory.getInstance(algorithm);
+    }
+
+    /**
+     * Replaces the current selection.
+     *
+     * @param spec <code>default</code>, <code>auto</code> to measure the providers, a provider for every primitive
+     *             it supports (e.g. <code>BC</code> or <code>SunJCE</code>), or primitives with their providers,
+     *             e.g. <code>aes-cbc=BC,sha1=SUN</code> (as printed by {@link #describe()})
+     */
+    public static void configure(String spec) {
+        Map<Primitive, Provider> selection = new EnumMap<>(Primitive.class);
+        if (spec.equalsIgnoreCase("auto")) {
+            selection.putAll(selectFastest(DEFAULT_BENCHMARK_MILLIS));
+        } else if (!spec.equalsIgnoreCase("default")) {
+            for (String part : spec.split(",")) {
+                int equals = part.indexOf('=');
+                if (equals == -1) {
+                    Provider provider = findProvider(part.trim());
+                    for (Primitive primitive : Primitive.values()) {
+                        if (isCorrect(primitive, provider)) selection.put(primitive, provider);
+                    }
+                    if (selection.isEmpty())
+                        throw new IllegalArgumentException("Crypto provider " + provider.getName() + " supports none of the primitives");
+                } else {
+                    Primitive primitive = Primitive.fromKey(part.substring(0, equals).trim());
+                    Provider provider = findProvider(part.substring(equals + 1).trim());
+                    if (!isCorrect(primitive, provider))
+                        throw new IllegalArgumentException("Crypto provider " + provider.getName() + " does not support " + primitive.key);
+                    selection.put(primitive, provider);
+                }
+            }
+        }
+        selected.clear();
+        selected.putAll(selection);
+    }
+
+    /**
+     * @return the provider of every primitive, e.g. <code>aes-cbc=SunJCE,aes-wrap=BC,...</code>, which can be
+     * passed to {@link #configure(String)} to select the same providers again
+     */
+    public static String describe() {
+        StringJoiner joiner = new StringJoiner(",");
+        for (Primitive primitive : Primitive.values()) {
+            String name;
+            try {
+                name = newInstanceProvider(primitive, selected.get(primitive)).getName();
+            } catch (GeneralSecurityException e) {
+                name = "unavailable";
+            }
+            joiner.add(primitive.key + "=" + name);
+        }
+        return joiner.toString();
+    }
+
+    /**
+     * Measures every provider that computes correct results, alternating between them a few times so that
+     * all of them are measured after JIT compilation, and takes the one with the best rate.
+     *
+     * @param millis how long one measurement of one provider runs
+     * @return the fastest provider of each primitive that at least one provider supports
+     */
+    public static Map<Primitive, Provider> selectFastest(long millis) {
+        Map<Primitive, Provider> fastest = new EnumMap<>(Primitive.class);
+        for (Primitive primitive : Primitive.values()) {
+            List<Provider> candidates = new ArrayList<>();
+            for (Provider provider : getCandidates()) {
+                if (isCorrect(primitive, provider)) candidates.add(provider);
+            }
+            if (candidates.isEmpty()) continue;
+
+            double[] best = new double[candidates.size()];
+            for (int round = 0; round < BENCHMARK_ROUNDS; round++) {
+                for (int i = 0; i < candidates.size(); i++) {
+                    if (best[i] < 0) continue;
+                    try {
+                        best[i] = Math.max(best[i], measure(primitive, candidates.get(i), millis));
+                    } catch (GeneralSecurityException | RuntimeException e) {
+                        best[i] = -1;
+                    }
+                }
+            }
+
+            int winner = 0;
+            for (int i = 1; i < candidates.size(); i++) {
+                if (best[i] > best[winner]) winner = i;
+            }
+            if (best[winner] > 0) fastest.put(primitive, candidates.get(winner));
+        }
+        return fastest;
+    }
+
+    /**
+     * @return the installed providers and BouncyCastle, which is bundled but not installed
+     */
+    public static List<Provider> getCandidates() {
+        List<Provider> providers = new ArrayList<>(Arrays.asList(Security.getProviders()));
+        Provider bc = getBouncyCastle();
+        if (bc != null && providers.stream().noneMatch(provider -> provider.getName().equals(bc.getName())))
+            providers.add(bc);
+        return providers;
+    }
+
+    private static Provider findProvider(String name) {
+        for (Provider provider : getCandidates()) {
+            if (provider.getName().equalsIgnoreCase(name)) return provider;
+        }
+        throw new IllegalArgumentException("Unknown crypto provider: " + name);
+    }
+
+    /**
+     * @return null if the provider cannot be loaded, e.g. in a native image without its reflection configuration
+     */
+    private static synchronized Provider getBouncyCastle() {
+        if (bouncyCastle == null) {
+            try {
+                bouncyCastle = new BouncyCastleProvider();
+            } catch (RuntimeException | LinkageError e) {
+                return null;
+            }
+        }
+        return bouncyCastle;
+    }
+
+    /**
+     * @param provider null for the default provider
+     * @return the provider an instance of the primitive comes from
+     */
+    private static Provider newInstanceProvider(Primitive primitive, Provider provider) throws GeneralSecurityException {
+        switch (primitive) {
+            case AES_CBC:
+                return (provider != null ? Cipher.getInstance("AES/CBC/NoPadding", provider) : Cipher.getInstance("AES/CBC/NoPadding")).getProvider();
+            case AES_WRAP:
+                return (provider != null ? Cipher.getInstance("AESWrap", provider) : Cipher.getInstance("AESWrap")).getProvider();
+            case SHA1:
+                return (provider != null ? MessageDigest.getInstance("SHA-1", provider) : MessageDigest.getInstance("SHA-1")).getProvider();
+            case SHA256:
+                return (provider != null ? MessageDigest.getInstance("SHA-256", provider) : MessageDigest.getInstance("SHA-256")).getProvider();
+            default:
+                return (provider != null ? SecretKeyFactory.getInstance("PBKDF2WithHmacSHA256", provider) : SecretKeyFactory.getInstance("PBKDF2WithHmacSHA256")).getProvider();
+        }
+    }
+
+    /**
+     * Checks the provider against published test vectors (NIST SP 800-38A, RFC 3394, FIPS 180 and RFC 7914).
+     */
+    static boolean isCorrect(Primitive primitive, Provider provider) {
+        try {
+            switch (primitive) {
+                case AES_CBC: {
+                    SecretKeySpec key = new SecretKeySpec(HEX.parseHex("603deb1015ca71be2b73aef0857d77811f352c073b6108d72d9810a30914dff4"), "AES");
+                    IvParameterSpec iv = new IvParameterSpec(HEX.parseHex("000102030405060708090a0b0c0d0e0f"));
+                    byte[] plain = HEX.parseHex("6bc1bee22e409f96e93d7e117393172a");
+                    byte[] encrypted = HEX.parseHex("f58c4c04d6e5f1ba779eabfb5f7bfbd6");
+                    Cipher c = Cipher.getInstance("AES/CBC/NoPadding", provider);
+                    c.init(Cipher.ENCRYPT_MODE, key, iv);
+                    if (!Arrays.equals(c.doFinal(plain), encrypted)) return false;
+                    c.init(Cipher.DECRYPT_MODE, key, iv);
+                    if (!Arrays.equals(c.doFinal(encrypted), plain)) return false;
+                    // The padded variant must come from the same provider
+                    Cipher.getInstance("AES/CBC/PKCS5Padding", provider);
+                    return true;
+                }
+                case AES_WRAP: {
+                    SecretKeySpec keyEncryptionKey = new SecretKeySpec(HEX.parseHex("000102030405060708090a0b0c0d0e0f101112131415161718191a1b1c1d1e1f"), "AES");
+                    byte[] key = HEX.parseHex("00112233445566778899aabbccddeeff000102030405060708090a0b0c0d0e0f");
+                    byte[] wrapped = HEX.parseHex("28c9f404c4b810f4cbccb35cfb87f8263f5786e2d80ed326cbc7f0e71a99f43bfb988b9b7a02dd21");
+                    Cipher c = Cipher.getInstance("AESWrap", provider);
+                    c.init(Cipher.WRAP_MODE, keyEncryptionKey);
+                    if (!Arrays.equals(c.wrap(new SecretKeySpec(key, "AES")), wrapped)) return false;
+                    c.init(Cipher.UNWRAP_MODE, keyEncryptionKey);
+                    return Arrays.equals(c.unwrap(wrapped, "AES", Cipher.SECRET_KEY).getEncoded(), key);
+                }
+                case SHA1:
+                    return Arrays.equals(MessageDigest.getInstance("SHA-1", provider).digest("abc".getBytes(StandardCharsets.US_ASCII)),
+                            HEX.parseHex("a9993e364706816aba3e25717850c26c9cd0d89d"));
+                case SHA256:
+                    return Arrays.equals(MessageDigest.getInstance("SHA-256", provider).digest("abc".getBytes(StandardCharsets.US_ASCII)),
+                            HEX.parseHex("ba7816bf8f01cfea414140de5dae2223b00361a396177a9cb410ff61f20015ad"));
+                default: {
+                    byte[] derived = SecretKeyFactory.getInstance("PBKDF2WithHmacSHA256", provider)
+                            .generateSecret(new PBEKeySpec("passwd".toCharArray(), "salt".getBytes(StandardCharsets.US_ASCII), 1, 64 * 8))
+                            .getEncoded();
+                    return Arrays.equals(derived, HEX.parseHex("55ac046e56e3089fec1691c22544b605f94185216dde0465e68b9d57c20dacbc"
+                            + "49ca9cccf179b645991664b39d77ef317c71b845b1e30bd509112041d3a19783"));
+                }
+            }
+        } catch (GeneralSecurityException | RuntimeException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Runs the work of one file (one key unwrap, one decryption or digest of a buffer, or one key derivation)
+     * repeatedly for the given time.
+     *
+     * @return the rate in operations per millisecond
+     */
+    private static double measure(Primitive primitive, Provider provider, long millis) throws GeneralSecurityException {
+        byte[] data = new byte[BENCHMARK_DATA_SIZE];
+        SecretKeySpec key = new SecretKeySpec(new byte[32], "AES");
+        IvParameterSpec iv = new IvParameterSpec(new byte[16]);
+
+        Cipher cipher = null;
+        MessageDigest digest = null;
+        SecretKeyFactory factory = null;
+        byte[] wrapped = null;
+        switch (primitive) {
+            case AES_CBC:
+                cipher = Cipher.getInstance("AES/CBC/NoPadding", provider);
+                break;
+            case AES_WRAP:
+                cipher = Cipher.getInstance("AESWrap", provider);
+                cipher.init(Cipher.WRAP_MODE, key);
+                wrapped = cipher.wrap(key);
+                break;
+            case SHA1:
+                digest = MessageDigest.getInstance("SHA-1", provider);
+                break;
+            case SHA256:
+                digest = MessageDigest.getInstance("SHA-256", provider);
+                break;
+            default:
+                factory = SecretKeyFactory.getInstance("PBKDF2WithHmacSHA256", provider);
+                break;
+        }
+
+        long operations = 0;
+        long start = System.nanoTime();
+        long end = start + millis * 1_000_000;
+        long now;
+        do {
+            switch (primitive) {
+                case AES_CBC:
+                    cipher.init(Cipher.DECRYPT_MODE, key, iv);
+                    cipher.doFinal(data, 0, data.length, data, 0);
+                    break;
+                case AES_WRAP:
+                    cipher.init(Cipher.UNWRAP_MODE, key);
+                    Key unwrapped = cipher.unwrap(wrapped, "AES", Cipher.SECRET_KEY);
+                    data[0] ^= unwrapped.getEncoded()[0];
+                    break;
+                case SHA1:
+                case SHA256:
+                    digest.update(data);
+                    data[0] ^= digest.digest()[0];
+                    break;
+                default:
+                    data[0] ^= factory.generateSecret(new PBEKeySpec("password".toCharArray(), Arrays.copyOf(data, 16),
+                            1000, 256)).getEncoded()[0];
+                    break;
+            }
+            operations++;
+            now = System.nanoTime();
+        } while (now < end);
+        return operations / ((now - start) / 1_000_000.0);
+    }
+}
@@ -3,6 +3,7 @@ package hearsay.idevice_decryption.util;
 import java.io.File;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.io.PrintStream;
 import java.io.PrintWriter;
 import java.time.LocalDateTime;
 import java.time.format.DateTimeFormatter;
@@ -14,6 +15,7 @@ public class DualLogger {
   private final PrintWriter fileWriter;
   private final boolean logToFile;
   private final DateTimeFormatter timeFormatter = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
+  private PrintStream console = System.out;
 
   public DualLogger(String logFilePath) throws IOException {
     if (logFilePath != null && !logFilePath.trim().isEmpty()) {
@@ -32,9 +34,16 @@ public class DualLogger {
     }
   }
 
-  public void info(String message) {
+  /**
+   * Changes where console messages go, e.g. to standard error when standard output carries data
+   */
+  public synchronized void setConsole(PrintStream console) {
+    this.console = console;
+  }
+
+  public synchronized void info(String message) {
     // Always print to console
-    System.out.println(message);
+    console.println(message);
 
     // Print to file if logging is enabled
     if (logToFile && fileWriter != null) {
@@ -47,10 +56,10 @@ public class DualLogger {
     }
   }
 
-  public void verbose(String message, boolean isVerbose) {
+  public synchronized void verbose(String message, boolean isVerbose) {
     // Print to console only if verbose mode is enabled
     if (isVerbose) {
-      System.out.println(message);
+      console.println(message);
     }
 
     // Always print to file if logging is enabled (even non-verbose messages)
@@ -64,9 +73,9 @@ public class DualLogger {
     }
   }
 
-  public void error(String message) {
+  public synchronized void error(String message) {
     // Always print to console
-    System.out.println("ERROR: " + message);
+    console.println("ERROR: " + message);
 
     // Print to file if logging is enabled
     if (logToFile && fileWriter != null) {
@@ -79,7 +88,7 @@ public class DualLogger {
     }
   }
 
-  public void close() {
+  public synchronized void close() {
     if (fileWriter != null) {
       try {
         fileWriter.close();
@@ -0,0 +1,201 @@
+package hearsay.idevice_decryption.util;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Token-bucket limiter for read bandwidth, write bandwidth and I/O operations.
+ * One instance is meant to be shared by all extraction workers, so the limits
+ * apply to the process as a whole. A limit of 0 means unlimited.
+ * The limits can be changed at any time, e.g. from a control file.
+ */
+public final class IoGovernor {
+    public static final String READ_RATE_KEY = "max-read-rate";
+    public static final String WRITE_RATE_KEY = "max-write-rate";
+    public static final String IOPS_KEY = "max-iops";
+
+    private final TokenBucket readBucket = new TokenBucket();
+    private final TokenBucket writeBucket = new TokenBucket();
+    private final TokenBucket operationBucket = new TokenBucket();
+
+    public IoGovernor(long maxReadRate, long maxWriteRate, long maxIops) {
+        this.setLimits(maxReadRate, maxWriteRate, maxIops);
+    }
+
+    public static IoGovernor unlimited() {
+        return new IoGovernor(0, 0, 0);
+    }
+
+    public void setLimits(long maxReadRate, long maxWriteRate, long maxIops) {
+        this.readBucket.setRate(maxReadRate);
+        this.writeBucket.setRate(maxWriteRate);
+        this.operationBucket.setRate(maxIops);
+    }
+
+    public long getMaxReadRate() {
+        return readBucket.getRate();
+    }
+
+    public long getMaxWriteRate() {
+        return writeBucket.getRate();
+    }
+
+    public long getMaxIops() {
+        return operationBucket.getRate();
+    }
+
+    public boolean isUnlimited() {
+        return getMaxReadRate() == 0 && getMaxWriteRate() == 0 && getMaxIops() == 0;
+    }
+
+    /**
+     * Reads new limits from a properties file with the keys
+     * <code>max-read-rate</code>, <code>max-write-rate</code> and <code>max-iops</code>.
+     * Missing keys keep their current value, sizes may use units like <code>50m</code>.
+     *
+     * @param controlFile the file to read
+     * @return true if any limit changed
+     * @throws IOException              if the file could not be read
+     * @throws IllegalArgumentException if a value is invalid
+     */
+    public boolean loadControlFile(Path controlFile) throws IOException {
+        Properties properties = new Properties();
+        try (Reader reader = Files.newBufferedReader(controlFile)) {
+            properties.load(reader);
+        }
+
+        long readRate = parseLimit(properties.getProperty(READ_RATE_KEY), getMaxReadRate(), true);
+        long writeRate = parseLimit(properties.getProperty(WRITE_RATE_KEY), getMaxWriteRate(), true);
+        long iops = parseLimit(properties.getProperty(IOPS_KEY), getMaxIops(), false);
+
+        if (readRate == getMaxReadRate() && writeRate == getMaxWriteRate() && iops == getMaxIops()) return false;
+        setLimits(readRate, writeRate, iops);
+        return true;
+    }
+
+    private static long parseLimit(String value, long current, boolean bytes) {
+        if (value == null) return current;
+        value = value.trim();
+        if (value.isEmpty() || value.equalsIgnoreCase("unlimited")) return 0;
+        return bytes ? ByteSizeUtils.parseBytes(value) : Long.parseLong(value);
+    }
+
+    public void acquireRead(long bytes) throws InterruptedIOException {
+        operationBucket.acquire(1);
+        readBucket.acquire(bytes);
+    }
+
+    public void acquireWrite(long bytes) throws InterruptedIOException {
+        operationBucket.acquire(1);
+        writeBucket.acquire(bytes);
+    }
+
+    /**
+     * Wraps a stream so that every read or write is charged to this governor.
+     * The wrapper is applied even without limits, because they can be
+     * switched on at runtime while a large file is being processed.
+     */
+    public InputStream throttle(InputStream stream) {
+        return new ThrottledInputStream(stream);
+    }
+
+    public OutputStream throttle(OutputStream stream) {
+        return new ThrottledOutputStream(stream);
+    }
+
+    private class ThrottledInputStream extends FilterInputStream {
+        ThrottledInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int value = super.read();
+            if (value != -1) acquireRead(1);
+            return value;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int count = in.read(b, off, len);
+            if (count > 0) acquireRead(count);
+            return count;
+        }
+    }
+
+    private class ThrottledOutputStream extends FilterOutputStream {
+        ThrottledOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            acquireWrite(1);
+            out.write(b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            acquireWrite(len);
+            out.write(b, off, len);
+        }
+    }
+
+    /**
+     * Bucket holding up to one second worth of tokens. Callers reserve tokens
+     * and may go into debt, which they then sleep off outside the lock,
+     * so that requests larger than the bucket are still served.
+     */
+    private static class TokenBucket {
+        private long rate;
+        private double tokens;
+        private long lastRefill = System.nanoTime();
+
+        synchronized void setRate(long rate) {
+            if (rate < 0) throw new IllegalArgumentException("Rate must not be negative");
+            refill();
+            this.rate = rate;
+            this.tokens = Math.min(this.tokens, rate);
+        }
+
+        synchronized long getRate() {
+            return rate;
+        }
+
+        void acquire(long amount) throws InterruptedIOException {
+            long waitNanos = reserve(amount);
+            if (waitNanos <= 0) return;
+
+            long deadline = System.nanoTime() + waitNanos;
+            long remaining;
+            while ((remaining = deadline - System.nanoTime()) > 0) {
+                LockSupport.parkNanos(remaining);
+                if (Thread.interrupted()) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while waiting for I/O budget");
+                }
+            }
+        }
+
+        private synchronized long reserve(long amount) {
+            if (rate <= 0) return 0;
+            refill();
+            tokens -= amount;
+            if (tokens >= 0) return 0;
+            return (long) (-tokens / rate * TimeUnit.SECONDS.toNanos(1));
+        }
+
+        private void refill() {
+            long now = System.nanoTime();
+            if (rate > 0) {
+                double elapsedSeconds = (now - lastRefill) / (double) TimeUnit.SECONDS.toNanos(1);
+                tokens = Math.min(rate, tokens + elapsedSeconds * rate);
+            }
+            lastRefill = now;
+        }
+    }
+}
@@ -0,0 +1,28 @@
+package hearsay.idevice_decryption.util;
+
+public class JsonUtils {
+
+    /**
+     * @return the text as a JSON string literal including the quotes, "null" for null
+     */
+    public static String quote(String text) {
+        if (text == null) return "null";
+
+        StringBuilder builder = new StringBuilder(text.length() + 2).append('"');
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            switch (c) {
+                case '"': builder.append("\\\""); break;
+                case '\\': builder.append("\\\\"); break;
+                case '\n': builder.append("\\n"); break;
+                case '\r': builder.append("\\r"); break;
+                case '\t': builder.append("\\t"); break;
+                default:
+                    if (c < 0x20) builder.append(String.format("\\u%04x", (int) c));
+                    else builder.append(c);
+            }
+        }
+        return builder.append('"').toString();
+    }
+
+}
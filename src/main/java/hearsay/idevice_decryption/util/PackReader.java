@@ -0,0 +1,214 @@
+package hearsay.idevice_decryption.util;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Optional;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Reads a container written by {@link PackWriter}.
+ * The file is memory-mapped, lookups are binary searches on the mapped index and
+ * {@link #read(Entry)} returns a read-only view of the mapped content without copying it.
+ * All methods can be called from several threads.
+ */
+public class PackReader implements Closeable {
+    // Content is mapped in overlapping windows, so that every entry up to WINDOW_STEP bytes lies within one window
+    private static final long WINDOW_STEP = 1L << 30;
+    private static final long WINDOW_SIZE = Integer.MAX_VALUE;
+
+    private final FileChannel channel;
+    private final long dataEnd;
+    private final ByteBuffer index;
+    private final int entryCount;
+    private final int fileIdCount;
+    private final int recordsStart;
+    private final int fileIdTableStart;
+    private final int pathTableStart;
+    private final int stringsStart;
+    private final AtomicReferenceArray<MappedByteBuffer> windows;
+
+    public static class Entry {
+        /**
+         * null for entries that are no backup files
+         */
+        public final String fileID;
+        public final String domain;
+        public final String relativePath;
+        public final long offset;
+        public final long size;
+        public final long lastModified;
+
+        Entry(String fileID, String domain, String relativePath, long offset, long size, long lastModified) {
+            this.fileID = fileID;
+            this.domain = domain;
+            this.relativePath = relativePath;
+            this.offset = offset;
+            this.size = size;
+            this.lastModified = lastModified;
+        }
+
+        @Override
+        public String toString() {
+            return (fileID != null ? fileID + " " : "") + domain + "/" + relativePath + " (" + size + " bytes)";
+        }
+    }
+
+    private PackReader(FileChannel channel) throws IOException {
+        this.channel = channel;
+        long fileSize = channel.size();
+        if (fileSize < PackWriter.HEADER_SIZE + PackWriter.TRAILER_SIZE) throw new IOException("Not a packed container");
+
+        ByteBuffer header = ByteBuffer.allocate(PackWriter.HEADER_SIZE);
+        channel.read(header, 0);
+        if (!Arrays.equals(Arrays.copyOf(header.array(), PackWriter.MAGIC.length), PackWriter.MAGIC))
+            throw new IOException("Not a packed container");
+        int version = header.getInt(PackWriter.MAGIC.length);
+        if (version != PackWriter.VERSION) throw new IOException("Unsupported container version: " + version);
+
+        ByteBuffer trailer = ByteBuffer.allocate(PackWriter.TRAILER_SIZE);
+        channel.read(trailer, fileSize - PackWriter.TRAILER_SIZE);
+        if (!Arrays.equals(Arrays.copyOfRange(trailer.array(), 16, 24), PackWriter.INDEX_MAGIC))
+            throw new IOException("Container has no index, it was probably not finished");
+        long indexOffset = trailer.getLong(0);
+        long indexLength = trailer.getLong(8);
+        if (indexOffset < PackWriter.HEADER_SIZE || indexLength > Integer.MAX_VALUE
+                || indexOffset + indexLength != fileSize - PackWriter.TRAILER_SIZE)
+            throw new IOException("Invalid container index");
+
+        this.dataEnd = indexOffset;
+        this.index = channel.map(FileChannel.MapMode.READ_ONLY, indexOffset, indexLength);
+        this.entryCount = index.getInt(0);
+        this.fileIdCount = index.getInt(4);
+        int stringsLength = index.getInt(8);
+        this.recordsStart = PackWriter.INDEX_HEADER_SIZE;
+        this.fileIdTableStart = recordsStart + entryCount * PackWriter.RECORD_SIZE;
+        this.pathTableStart = fileIdTableStart + fileIdCount * 4;
+        this.stringsStart = pathTableStart + entryCount * 4;
+        if ((long) stringsStart + stringsLength != indexLength) throw new IOException("Invalid container index");
+
+        this.windows = new AtomicReferenceArray<>((int) ((dataEnd + WINDOW_STEP - 1) / WINDOW_STEP));
+    }
+
+    public static PackReader open(Path path) throws IOException {
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.READ);
+        try {
+            return new PackReader(channel);
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    public int getEntryCount() {
+        return entryCount;
+    }
+
+    /**
+     * @param number between 0 and {@link #getEntryCount()}, in the order the entries were written
+     */
+    public Entry getEntry(int number) {
+        if (number < 0 || number >= entryCount) throw new IndexOutOfBoundsException(number);
+        int record = recordsStart + number * PackWriter.RECORD_SIZE;
+        int fileIdRef = index.getInt(record + 24);
+        return new Entry(
+                fileIdRef == PackWriter.NO_STRING ? null : readString(fileIdRef),
+                readString(index.getInt(record + 28)),
+                readString(index.getInt(record + 32)),
+                index.getLong(record),
+                index.getLong(record + 8),
+                index.getLong(record + 16));
+    }
+
+    public Optional<Entry> findByFileId(String fileID) {
+        byte[] key = fileID.getBytes(StandardCharsets.UTF_8);
+        int low = 0;
+        int high = fileIdCount - 1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            int number = index.getInt(fileIdTableStart + middle * 4);
+            int comparison = compareString(index.getInt(recordsStart + number * PackWriter.RECORD_SIZE + 24), key);
+            if (comparison < 0) low = middle + 1;
+            else if (comparison > 0) high = middle - 1;
+            else return Optional.of(getEntry(number));
+        }
+        return Optional.empty();
+    }
+
+    public Optional<Entry> find(String domain, String relativePath) {
+        byte[] domainKey = domain.getBytes(StandardCharsets.UTF_8);
+        byte[] pathKey = relativePath.getBytes(StandardCharsets.UTF_8);
+        int low = 0;
+        int high = entryCount - 1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            int number = index.getInt(pathTableStart + middle * 4);
+            int record = recordsStart + number * PackWriter.RECORD_SIZE;
+            int comparison = compareString(index.getInt(record + 28), domainKey);
+            if (comparison == 0) comparison = compareString(index.getInt(record + 32), pathKey);
+            if (comparison < 0) low = middle + 1;
+            else if (comparison > 0) high = middle - 1;
+            else return Optional.of(getEntry(number));
+        }
+        return Optional.empty();
+    }
+
+    /**
+     * Finds an entry that is no backup file, e.g. <code>Manifest.db</code>.
+     */
+    public Optional<Entry> findExtra(String name) {
+        return find("", name);
+    }
+
+    /**
+     * @return a read-only view of the content, positioned at 0; it stays valid after closing the reader
+     * @throws IOException if the entry is larger than a buffer can be
+     */
+    public ByteBuffer read(Entry entry) throws IOException {
+        if (entry.offset < PackWriter.HEADER_SIZE || entry.offset + entry.size > dataEnd)
+            throw new IOException("Entry outside of the container: " + entry);
+        if (entry.size > WINDOW_STEP) {
+            if (entry.size > Integer.MAX_VALUE) throw new IOException("Entry too large to map: " + entry);
+            return channel.map(FileChannel.MapMode.READ_ONLY, entry.offset, entry.size);
+        }
+
+        int windowNumber = (int) (entry.offset / WINDOW_STEP);
+        MappedByteBuffer window = windows.get(windowNumber);
+        if (window == null) {
+            long start = windowNumber * WINDOW_STEP;
+            window = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(WINDOW_SIZE, dataEnd - start));
+            if (!windows.compareAndSet(windowNumber, null, window)) window = windows.get(windowNumber);
+        }
+        return window.slice((int) (entry.offset - windowNumber * WINDOW_STEP), (int) entry.size);
+    }
+
+    private String readString(int ref) {
+        int length = index.getInt(stringsStart + ref);
+        byte[] bytes = new byte[length];
+        index.get(stringsStart + ref + 4, bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    // Compares without creating a string, like Arrays.compareUnsigned
+    private int compareString(int ref, byte[] key) {
+        int length = index.getInt(stringsStart + ref);
+        int start = stringsStart + ref + 4;
+        int common = Math.min(length, key.length);
+        for (int i = 0; i < common; i++) {
+            int comparison = Integer.compare(index.get(start + i) & 0xff, key[i] & 0xff);
+            if (comparison != 0) return comparison;
+        }
+        return Integer.compare(length, key.length);
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+}
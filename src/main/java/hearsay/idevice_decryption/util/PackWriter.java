@@ -0,0 +1,205 @@
+package hearsay.idevice_decryption.util;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/**
+ * Writes a packed container: all file contents one after the other, followed by an index
+ * that can be searched by file ID and by domain and relative path without parsing it first.
+ * Use {@link PackReader} to read it.
+ * <p>
+ * Layout (big-endian):
+ * <pre>
+ * header   "IBPACK01", int version, int reserved
+ * data     contents of all entries, in the order they were added
+ * index    int entryCount, int fileIdCount, int stringsLength, int reserved
+ *          entryCount records of {@value #RECORD_SIZE} bytes:
+ *              long offset, long size, long lastModified, int fileIdRef, int domainRef, int pathRef, int flags
+ *          fileIdCount ints: record numbers sorted by file ID
+ *          entryCount ints: record numbers sorted by domain, then relative path
+ *          strings: int length followed by UTF-8 bytes, referenced by their position
+ * trailer  long indexOffset, long indexLength, "IBPINDEX"
+ * </pre>
+ * Strings are compared as unsigned bytes. Entries that are no backup files, like the manifest copies,
+ * have no file ID and the empty domain. An aborted entry keeps its bytes in the data section, but gets no record.
+ */
+public final class PackWriter extends ArchiveWriter {
+    static final byte[] MAGIC = "IBPACK01".getBytes(StandardCharsets.US_ASCII);
+    static final byte[] INDEX_MAGIC = "IBPINDEX".getBytes(StandardCharsets.US_ASCII);
+    static final int VERSION = 1;
+    static final int HEADER_SIZE = 16;
+    static final int INDEX_HEADER_SIZE = 16;
+    static final int RECORD_SIZE = 40;
+    static final int TRAILER_SIZE = 24;
+    static final int NO_STRING = -1;
+
+    private final List<Record> records = new ArrayList<>();
+
+    public PackWriter(OutputStream out) throws IOException {
+        super(out);
+        DataOutputStream header = new DataOutputStream(out());
+        header.write(MAGIC);
+        header.writeInt(VERSION);
+        header.writeInt(0);
+    }
+
+    @Override
+    public void addEntry(String name, long lastModified, byte[] data, int length) throws IOException {
+        addFile(null, "", normalizeName(name), name, lastModified, data, length);
+    }
+
+    @Override
+    public EntryStream openEntry(String name, long lastModified, long size) throws IOException {
+        return openFile(null, "", normalizeName(name), name, lastModified, size);
+    }
+
+    @Override
+    public void addFile(String fileID, String domain, String relativePath, String name, long lastModified,
+                        byte[] data, int length) throws IOException {
+        Record record = new Record(fileID, domain, relativePath, lastModified);
+        lock();
+        boolean written = false;
+        try {
+            record.offset = getBytesWritten();
+            out().write(data, 0, length);
+            record.size = length;
+            records.add(record);
+            written = true;
+        } finally {
+            unlock(written);
+        }
+    }
+
+    @Override
+    public EntryStream openFile(String fileID, String domain, String relativePath, String name, long lastModified,
+                                long size) throws IOException {
+        Record record = new Record(fileID, domain, relativePath, lastModified);
+        lock();
+        record.offset = getBytesWritten();
+        return new EntryStream() {
+            private boolean closed = false;
+
+            @Override
+            public void write(int b) throws IOException {
+                write(new byte[]{(byte) b}, 0, 1);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                if (closed) throw new IOException("Entry is already closed");
+                out().write(b, off, len);
+            }
+
+            @Override
+            public void close() {
+                if (closed) return;
+                closed = true;
+                // Whatever was written is indexed, the content is not declared in advance
+                record.size = getBytesWritten() - record.offset;
+                records.add(record);
+                unlock(true);
+            }
+
+            @Override
+            public void abort() {
+                if (closed) return;
+                closed = true;
+                // Not indexed, so readers never see the bytes written so far
+                unlock(false);
+            }
+        };
+    }
+
+    @Override
+    protected void finish() throws IOException {
+        long indexOffset = getBytesWritten();
+
+        // Domains repeat for many files, so equal strings are stored once
+        ByteArrayOutputStream strings = new ByteArrayOutputStream();
+        DataOutputStream stringsOut = new DataOutputStream(strings);
+        Map<ByteBuffer, Integer> domainRefs = new HashMap<>();
+        int[] fileIdRefs = new int[records.size()];
+        int[] domainRefArray = new int[records.size()];
+        int[] pathRefs = new int[records.size()];
+        List<Integer> withFileId = new ArrayList<>();
+        for (int i = 0; i < records.size(); i++) {
+            Record record = records.get(i);
+            fileIdRefs[i] = record.fileID == null ? NO_STRING : writeString(stringsOut, record.fileID);
+            if (record.fileID != null) withFileId.add(i);
+            Integer domainRef = domainRefs.get(ByteBuffer.wrap(record.domain));
+            if (domainRef == null) {
+                domainRef = writeString(stringsOut, record.domain);
+                domainRefs.put(ByteBuffer.wrap(record.domain), domainRef);
+            }
+            domainRefArray[i] = domainRef;
+            pathRefs[i] = writeString(stringsOut, record.relativePath);
+        }
+
+        withFileId.sort((a, b) -> compareBytes(records.get(a).fileID, records.get(b).fileID));
+        List<Integer> byPath = new ArrayList<>(records.size());
+        for (int i = 0; i < records.size(); i++) byPath.add(i);
+        byPath.sort((a, b) -> {
+            int domain = compareBytes(records.get(a).domain, records.get(b).domain);
+            return domain != 0 ? domain : compareBytes(records.get(a).relativePath, records.get(b).relativePath);
+        });
+
+        long indexLength = INDEX_HEADER_SIZE + (long) records.size() * RECORD_SIZE
+                + 4L * withFileId.size() + 4L * byPath.size() + strings.size();
+        // The reader maps the index as a whole
+        if (indexLength > Integer.MAX_VALUE) throw new IOException("Index too large: " + indexLength + " bytes");
+
+        DataOutputStream index = new DataOutputStream(new BufferedOutputStream(out(), 65536));
+        index.writeInt(records.size());
+        index.writeInt(withFileId.size());
+        index.writeInt(strings.size());
+        index.writeInt(0);
+        for (int i = 0; i < records.size(); i++) {
+            Record record = records.get(i);
+            index.writeLong(record.offset);
+            index.writeLong(record.size);
+            index.writeLong(record.lastModified);
+            index.writeInt(fileIdRefs[i]);
+            index.writeInt(domainRefArray[i]);
+            index.writeInt(pathRefs[i]);
+            index.writeInt(0);
+        }
+        for (int i : withFileId) index.writeInt(i);
+        for (int i : byPath) index.writeInt(i);
+        strings.writeTo(index);
+
+        index.writeLong(indexOffset);
+        index.writeLong(indexLength);
+        index.write(INDEX_MAGIC);
+        index.flush();
+    }
+
+    private static int writeString(DataOutputStream strings, byte[] bytes) throws IOException {
+        int ref = strings.size();
+        strings.writeInt(bytes.length);
+        strings.write(bytes);
+        return ref;
+    }
+
+    static int compareBytes(byte[] a, byte[] b) {
+        return Arrays.compareUnsigned(a, b);
+    }
+
+    // Strings are kept encoded, they are needed in that form for sorting anyway
+    private static class Record {
+        final byte[] fileID;
+        final byte[] domain;
+        final byte[] relativePath;
+        final long lastModified;
+        long offset;
+        long size;
+
+        Record(String fileID, String domain, String relativePath, long lastModified) {
+            this.fileID = fileID == null ? null : fileID.getBytes(StandardCharsets.UTF_8);
+            this.domain = (domain == null ? "" : domain).getBytes(StandardCharsets.UTF_8);
+            this.relativePath = (relativePath == null ? "" : relativePath).getBytes(StandardCharsets.UTF_8);
+            this.lastModified = lastModified;
+        }
+    }
+}
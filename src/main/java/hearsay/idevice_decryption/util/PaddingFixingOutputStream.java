@@ -0,0 +1,113 @@
+package hearsay.idevice_decryption.util;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Streaming counterpart of {@link BackupFilePaddingFixer#tryFixPadding(byte[], int)} for content that
+ * can't be rewritten afterwards, like archive entries. Trailing zeros and the last bytes before them are
+ * held back until {@link #finish(boolean)} knows whether they are padding.
+ */
+public class PaddingFixingOutputStream extends FilterOutputStream {
+    /**
+     * The padding number is a single byte, so the padding is never longer than this.
+     */
+    private static final int HOLD_SIZE = 256;
+    private static final byte[] ZEROS = new byte[8192];
+
+    private final byte[] held = new byte[HOLD_SIZE];
+    private int heldLength = 0;
+    private long zeros = 0;
+    private long written = 0;
+    private boolean finished = false;
+
+    public PaddingFixingOutputStream(OutputStream out) {
+        super(out);
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[]{(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        if (finished) throw new IOException("Stream is already finished");
+        int end = off + len;
+        while (end > off && b[end - 1] == 0x00) end--;
+        if (end > off) {
+            // The zeros so far turned out not to be trailing
+            flushZeros();
+            hold(b, off, end - off);
+        }
+        zeros += off + len - end;
+    }
+
+    /**
+     * Writes the held back bytes, without the padding if fixPadding is set and a valid padding was found.
+     * The underlying stream is not closed.
+     *
+     * @return the number of bytes written to the underlying stream in total
+     */
+    public long finish(boolean fixPadding) throws IOException {
+        if (finished) return written;
+        finished = true;
+        long actualSize = written + heldLength;
+        if (fixPadding && heldLength > 0 && actualSize % 16 == 0) {
+            int paddingNumber = held[heldLength - 1] & 0xff;
+            boolean valid = paddingNumber <= heldLength;
+            for (int i = heldLength - paddingNumber; valid && i < heldLength; i++) {
+                valid = held[i] == paddingNumber;
+            }
+            if (valid) {
+                out.write(held, 0, heldLength - paddingNumber);
+                written += heldLength - paddingNumber;
+                return written;
+            }
+        }
+        // No padding, so the trailing zeros are content
+        flushZeros();
+        out.write(held, 0, heldLength);
+        written += heldLength;
+        heldLength = 0;
+        return written;
+    }
+
+    @Override
+    public void close() throws IOException {
+        finish(false);
+        super.close();
+    }
+
+    private void flushZeros() throws IOException {
+        while (zeros > 0) {
+            int length = (int) Math.min(ZEROS.length, zeros);
+            hold(ZEROS, 0, length);
+            zeros -= length;
+        }
+    }
+
+    /**
+     * Appends to the held back bytes, passing on what no longer fits.
+     */
+    private void hold(byte[] b, int off, int len) throws IOException {
+        if (len >= HOLD_SIZE) {
+            out.write(held, 0, heldLength);
+            out.write(b, off, len - HOLD_SIZE);
+            written += heldLength + len - HOLD_SIZE;
+            System.arraycopy(b, off + len - HOLD_SIZE, held, 0, HOLD_SIZE);
+            heldLength = HOLD_SIZE;
+            return;
+        }
+        int overflow = heldLength + len - HOLD_SIZE;
+        if (overflow > 0) {
+            out.write(held, 0, overflow);
+            written += overflow;
+            System.arraycopy(held, overflow, held, 0, heldLength - overflow);
+            heldLength -= overflow;
+        }
+        System.arraycopy(b, off, held, heldLength, len);
+        heldLength += len;
+    }
+}
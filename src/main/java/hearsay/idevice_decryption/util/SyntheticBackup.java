@@ -0,0 +1,407 @@
+package hearsay.idevice_decryption.util;
+
+import com.dd.plist.BinaryPropertyListWriter;
+import com.dd.plist.NSArray;
+import com.dd.plist.NSData;
+import com.dd.plist.NSDate;
+import com.dd.plist.NSDictionary;
+import com.dd.plist.NSObject;
+import com.dd.plist.NSString;
+import com.dd.plist.UID;
+import org.bouncycastle.crypto.digests.SHA1Digest;
+import org.bouncycastle.crypto.generators.PKCS5S2ParametersGenerator;
+import org.bouncycastle.crypto.params.KeyParameter;
+
+import javax.crypto.Cipher;
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.PBEKeySpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * Writes an encrypted backup with made-up content in the layout of iOS 10 and later: key bag, manifest
+ * property lists, an encrypted Manifest.db and one encrypted content file per file. The keys are derived
+ * and wrapped like on a device (PBKDF2-SHA256, PBKDF2-SHA1, AES key wrap), only with far fewer iterations,
+ * so that the backup opens in milliseconds. The content only depends on the seed.
+ */
+public class SyntheticBackup {
+    public static final String APPLICATION_ID = "com.example.notes";
+
+    private static final int PASSCODE_ITERATIONS = 1000;
+    private static final int ITERATIONS = 10;
+    private static final int CLASS_COUNT = 4;
+    private static final int FILE_PROTECTION_CLASS = 3;
+    private static final int MANIFEST_PROTECTION_CLASS = 4;
+    private static final int WRAP_PASSCODE = 2;
+    private static final int FLAGS_FILE = 1;
+    private static final int FLAGS_DIRECTORY = 2;
+    private static final HexFormat HEX = HexFormat.of();
+
+    private final int fileCount;
+    private final long seed;
+
+    /**
+     * @param fileCount number of regular files, directories are added as needed
+     */
+    public SyntheticBackup(int fileCount, long seed) {
+        this.fileCount = fileCount;
+        this.seed = seed;
+    }
+
+    /**
+     * Writes the backup into the directory, which is created if needed.
+     *
+     * @return the number of regular files written
+     */
+    public int write(Path directory, String password) throws IOException, GeneralSecurityException, SQLException {
+        Files.createDirectories(directory);
+        Random random = new Random(seed);
+
+        byte[] salt = randomBytes(random, 20);
+        byte[] passcodeSalt = randomBytes(random, 20);
+        byte[] keyEncryptionKey = deriveKeyEncryptionKey(password, passcodeSalt, salt);
+
+        ByteArrayOutputStream keyBag = new ByteArrayOutputStream();
+        writeTag(keyBag, "VERS", intBytes(3));
+        writeTag(keyBag, "TYPE", intBytes(1));
+        writeTag(keyBag, "UUID", randomBytes(random, 16));
+        writeTag(keyBag, "WRAP", intBytes(0));
+        writeTag(keyBag, "SALT", salt);
+        writeTag(keyBag, "ITER", intBytes(ITERATIONS));
+        writeTag(keyBag, "DPWT", intBytes(1));
+        writeTag(keyBag, "DPIC", intBytes(PASSCODE_ITERATIONS));
+        writeTag(keyBag, "DPSL", passcodeSalt);
+
+        Map<Integer, byte[]> classKeys = new TreeMap<>();
+        for (int protectionClass = 1; protectionClass <= CLASS_COUNT; protectionClass++) {
+            byte[] classKey = randomBytes(random, 32);
+            classKeys.put(protectionClass, classKey);
+            writeTag(keyBag, "UUID", randomBytes(random, 16));
+            writeTag(keyBag, "CLAS", intBytes(protectionClass));
+            writeTag(keyBag, "WRAP", intBytes(WRAP_PASSCODE));
+            writeTag(keyBag, "KTYP", intBytes(0));
+            writeTag(keyBag, "WPKY", wrapKey(keyEncryptionKey, classKey));
+        }
+
+        // Content files and the rows of the database
+        List<Object[]> rows = new ArrayList<>();
+        Map<String, Set<String>> directories = new TreeMap<>();
+        long modified = 1700000000L;
+        for (int i = 0; i < fileCount; i++) {
+            String[] location = location(i);
+            String domain = location[0];
+            String relativePath = location[1];
+            String fileID = fileID(domain, relativePath);
+
+            byte[] content = content(random, i);
+            byte[] fileKey = randomBytes(random, 32);
+            byte[] encrypted = encrypt(fileKey, content);
+            Path contentFile = directory.resolve(fileID.substring(0, 2)).resolve(fileID);
+            Files.createDirectories(contentFile.getParent());
+            Files.write(contentFile, encrypted);
+
+            byte[] wrappedKey = ByteBuffer.allocate(44).order(ByteOrder.LITTLE_ENDIAN)
+                    .putInt(FILE_PROTECTION_CLASS)
+                    .put(wrapKey(classKeys.get(FILE_PROTECTION_CLASS), fileKey))
+                    .array();
+            byte[] digest = MessageDigest.getInstance("SHA-1").digest(encrypted);
+            byte[] properties = fileProperties(relativePath, content.length, wrappedKey, digest,
+                    modified + i * 60L, 1000 + i);
+            rows.add(new Object[]{fileID, domain, relativePath, FLAGS_FILE, properties});
+
+            // All parent directories of the file
+            Set<String> parents = directories.computeIfAbsent(domain, d -> new TreeSet<>());
+            for (int slash = relativePath.lastIndexOf('/'); slash > 0; slash = relativePath.lastIndexOf('/', slash - 1)) {
+                parents.add(relativePath.substring(0, slash));
+            }
+        }
+        int inode = 100;
+        for (Map.Entry<String, Set<String>> domain : directories.entrySet()) {
+            for (String relativePath : domain.getValue()) {
+                rows.add(new Object[]{fileID(domain.getKey(), relativePath), domain.getKey(), relativePath,
+                        FLAGS_DIRECTORY, fileProperties(relativePath, 0, null, null, modified, inode++)});
+            }
+        }
+
+        byte[] manifestKey = randomBytes(random, 32);
+        writeManifestDatabase(directory.resolve("Manifest.db"), manifestKey, rows);
+
+        // Manifest.plist with the key bag and the wrapped key of Manifest.db
+        NSDictionary lockdown = new NSDictionary();
+        lockdown.put("ProductVersion", "17.5");
+        lockdown.put("ProductType", "iPhone15,2");
+        lockdown.put("BuildVersion", "21F79");
+        lockdown.put("UniqueDeviceID", HEX.formatHex(randomBytes(random, 20)));
+        lockdown.put("SerialNumber", "SYNTHETIC01");
+        lockdown.put("DeviceName", "Synthetic iPhone");
+
+        NSDictionary application = new NSDictionary();
+        application.put("CFBundleIdentifier", APPLICATION_ID);
+        application.put("CFBundleVersion", "1.0");
+        application.put("ContainerContentClass", "Data/Application");
+        NSDictionary applications = new NSDictionary();
+        applications.put(APPLICATION_ID, application);
+
+        Date date = new Date(modified * 1000 + fileCount * 60_000L);
+        NSDictionary manifest = new NSDictionary();
+        manifest.put("BackupKeyBag", new NSData(keyBag.toByteArray()));
+        manifest.put("Version", "10.0");
+        manifest.put("Date", new NSDate(date));
+        manifest.put("SystemDomainsVersion", "24.0");
+        manifest.put("WasPasscodeSet", false);
+        manifest.put("Lockdown", lockdown);
+        manifest.put("Applications", applications);
+        manifest.put("IsEncrypted", true);
+        manifest.put("ManifestKey", new NSData(ByteBuffer.allocate(44).order(ByteOrder.LITTLE_ENDIAN)
+                .putInt(MANIFEST_PROTECTION_CLASS)
+                .put(wrapKey(classKeys.get(MANIFEST_PROTECTION_CLASS), manifestKey))
+                .array()));
+        BinaryPropertyListWriter.write(manifest, directory.resolve("Manifest.plist").toFile());
+
+        NSDictionary info = new NSDictionary();
+        info.put("Applications", new NSDictionary());
+        info.put("Installed Applications", new NSArray(new NSString(APPLICATION_ID)));
+        info.put("Build Version", "21F79");
+        info.put("Device Name", "Synthetic iPhone");
+        info.put("Display Name", "Synthetic iPhone");
+        info.put("Last Backup Date", new NSDate(date));
+        info.put("Product Type", "iPhone15,2");
+        info.put("Product Version", "17.5");
+        info.put("Serial Number", "SYNTHETIC01");
+        BinaryPropertyListWriter.write(info, directory.resolve("Info.plist").toFile());
+
+        NSDictionary status = new NSDictionary();
+        status.put("IsFullBackup", false);
+        status.put("Version", "3.3");
+        status.put("BackupState", "new");
+        status.put("Date", new NSDate(date));
+        status.put("SnapshotState", "finished");
+        BinaryPropertyListWriter.write(status, directory.resolve("Status.plist").toFile());
+
+        return fileCount;
+    }
+
+    /**
+     * The inverse of {@link hearsay.idevice_decryption.api.KeyBag#unlock(String)}.
+     */
+    private static byte[] deriveKeyEncryptionKey(String password, byte[] passcodeSalt, byte[] salt)
+            throws GeneralSecurityException {
+        byte[] passcodeKey = SecretKeyFactory.getInstance("PBKDF2WithHmacSHA256")
+                .generateSecret(new PBEKeySpec(password.toCharArray(), passcodeSalt, PASSCODE_ITERATIONS, 32 * 8))
+                .getEncoded();
+        PKCS5S2ParametersGenerator generator = new PKCS5S2ParametersGenerator(new SHA1Digest());
+        generator.init(passcodeKey, salt, ITERATIONS);
+        return ((KeyParameter) generator.generateDerivedParameters(32 * 8)).getKey();
+    }
+
+    private static byte[] wrapKey(byte[] keyEncryptionKey, byte[] key) throws GeneralSecurityException {
+        Cipher c = Cipher.getInstance("AESWrap");
+        c.init(Cipher.WRAP_MODE, new SecretKeySpec(keyEncryptionKey, "AES"));
+        return c.wrap(new SecretKeySpec(key, "AES"));
+    }
+
+    private static byte[] encrypt(byte[] key, byte[] content) throws GeneralSecurityException {
+        Cipher c = Cipher.getInstance("AES/CBC/PKCS5Padding");
+        c.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(key, "AES"), new IvParameterSpec(new byte[16]));
+        return c.doFinal(content);
+    }
+
+    private static void writeManifestDatabase(Path destination, byte[] manifestKey, List<Object[]> rows)
+            throws IOException, GeneralSecurityException, SQLException {
+        File database = File.createTempFile("synthetic-manifest", ".sqlite3");
+        try {
+            try (Connection connection = DriverManager.getConnection("jdbc:sqlite:" + database.getCanonicalPath())) {
+                try (Statement statement = connection.createStatement()) {
+                    statement.executeUpdate("CREATE TABLE Files (fileID TEXT PRIMARY KEY, domain TEXT, relativePath TEXT, flags INTEGER, file BLOB)");
+                    statement.executeUpdate("CREATE INDEX FilesDomainIdx ON Files(domain)");
+                    statement.executeUpdate("CREATE INDEX FilesRelativePathIdx ON Files(relativePath)");
+                    statement.executeUpdate("CREATE TABLE Properties (key TEXT PRIMARY KEY, value BLOB)");
+                }
+                connection.setAutoCommit(false);
+                try (PreparedStatement insert = connection.prepareStatement("INSERT INTO Files VALUES (?, ?, ?, ?, ?)")) {
+                    for (Object[] row : rows) {
+                        insert.setString(1, (String) row[0]);
+                        insert.setString(2, (String) row[1]);
+                        insert.setString(3, (String) row[2]);
+                        insert.setInt(4, (Integer) row[3]);
+                        insert.setBytes(5, (byte[]) row[4]);
+                        insert.addBatch();
+                    }
+                    insert.executeBatch();
+                }
+                connection.commit();
+            }
+            Files.write(destination, encrypt(manifestKey, Files.readAllBytes(database.toPath())));
+        } finally {
+            Files.deleteIfExists(database.toPath());
+        }
+    }
+
+    /**
+     * The property list of a row of the Files table, as written by NSKeyedArchiver.
+     *
+     * @param wrappedKey protection class (little endian) and wrapped file key, null for directories
+     */
+    private static byte[] fileProperties(String relativePath, long size, byte[] wrappedKey, byte[] digest,
+                                         long modified, long inode) throws IOException {
+        List<NSObject> objects = new ArrayList<>();
+        objects.add(new NSString("$null"));
+
+        NSDictionary root = new NSDictionary();
+        objects.add(root);
+        root.put("RelativePath", uid(objects.size()));
+        objects.add(new NSString(relativePath));
+        root.put("$class", uid(objects.size()));
+        objects.add(classDescription("MBFile", "NSObject"));
+
+        root.put("LastModified", modified);
+        root.put("Birth", modified);
+        root.put("LastStatusChange", modified);
+        root.put("Size", size);
+        root.put("InodeNumber", inode);
+        root.put("UserID", 501);
+        root.put("GroupID", 501);
+        root.put("Flags", 0);
+        if (wrappedKey != null) {
+            root.put("Mode", 0100644);
+            root.put("ProtectionClass", FILE_PROTECTION_CLASS);
+
+            NSDictionary encryptionKey = new NSDictionary();
+            encryptionKey.put("NS.data", new NSData(wrappedKey));
+            root.put("EncryptionKey", uid(objects.size()));
+            objects.add(encryptionKey);
+            encryptionKey.put("$class", uid(objects.size()));
+            objects.add(classDescription("NSMutableData", "NSData", "NSObject"));
+
+            root.put("Digest", uid(objects.size()));
+            objects.add(new NSData(digest));
+        } else {
+            root.put("Mode", 040755);
+            root.put("ProtectionClass", 0);
+        }
+
+        NSDictionary top = new NSDictionary();
+        top.put("root", uid(1));
+        NSDictionary archive = new NSDictionary();
+        archive.put("$version", 100000);
+        archive.put("$archiver", "NSKeyedArchiver");
+        archive.put("$top", top);
+        archive.put("$objects", new NSArray(objects.toArray(new NSObject[0])));
+        return BinaryPropertyListWriter.writeToArray(archive);
+    }
+
+    private static NSDictionary classDescription(String... classes) {
+        NSDictionary description = new NSDictionary();
+        description.put("$classname", classes[0]);
+        NSString[] names = new NSString[classes.length];
+        for (int i = 0; i < classes.length; i++) {
+            names[i] = new NSString(classes[i]);
+        }
+        description.put("$classes", new NSArray(names));
+        return description;
+    }
+
+    private static UID uid(int index) {
+        return new UID(String.valueOf(index), new byte[]{(byte) index});
+    }
+
+    /**
+     * @return domain and relative path of the i-th file, in turn a database, a photo, a preference and a note
+     */
+    private static String[] location(int i) {
+        int n = i / 4;
+        switch (i % 4) {
+            case 0:
+                return new String[]{"HomeDomain", "Library/Databases/store" + n + ".sqlite"};
+            case 1:
+                return new String[]{"MediaDomain", String.format("Media/DCIM/%03dAPPLE/IMG_%04d.JPG", 100 + n / 100, n)};
+            case 2:
+                return new String[]{"HomeDomain", "Library/Preferences/com.example.settings" + n + ".plist"};
+            default:
+                return new String[]{"AppDomain-" + APPLICATION_ID, "Documents/Notes/note" + n + ".txt"};
+        }
+    }
+
+    private static byte[] content(Random random, int i) {
+        switch (i % 4) {
+            case 0: {
+                // Whole pages, like a real database
+                byte[] content = randomBytes(random, 4096 * (1 + random.nextInt(64)));
+                byte[] header = "SQLite format 3\0".getBytes(StandardCharsets.US_ASCII);
+                System.arraycopy(header, 0, content, 0, header.length);
+                return content;
+            }
+            case 1: {
+                byte[] content = randomBytes(random, 16 * 1024 + random.nextInt(256 * 1024));
+                byte[] header = {(byte) 0xFF, (byte) 0xD8, (byte) 0xFF, (byte) 0xE0, 0x00, 0x10, 'J', 'F', 'I', 'F', 0x00};
+                System.arraycopy(header, 0, content, 0, header.length);
+                content[content.length - 2] = (byte) 0xFF;
+                content[content.length - 1] = (byte) 0xD9;
+                return content;
+            }
+            case 2: {
+                StringBuilder plist = new StringBuilder("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n"
+                        + "<plist version=\"1.0\">\n<dict>\n");
+                int entries = 5 + random.nextInt(100);
+                for (int entry = 0; entry < entries; entry++) {
+                    plist.append("\t<key>setting").append(entry).append("</key>\n\t<integer>")
+                            .append(random.nextInt()).append("</integer>\n");
+                }
+                return plist.append("</dict>\n</plist>\n").toString().getBytes(StandardCharsets.UTF_8);
+            }
+            default: {
+                StringBuilder text = new StringBuilder();
+                int lines = 1 + random.nextInt(200);
+                for (int line = 0; line < lines; line++) {
+                    text.append("Note line ").append(line).append(": ").append(Long.toHexString(random.nextLong())).append('\n');
+                }
+                return text.toString().getBytes(StandardCharsets.UTF_8);
+            }
+        }
+    }
+
+    private static String fileID(String domain, String relativePath) throws GeneralSecurityException {
+        return HEX.formatHex(MessageDigest.getInstance("SHA-1")
+                .digest((domain + "-" + relativePath).getBytes(StandardCharsets.UTF_8)));
+    }
+
+    private static void writeTag(ByteArrayOutputStream keyBag, String tag, byte[] value) {
+        keyBag.writeBytes(tag.getBytes(StandardCharsets.US_ASCII));
+        keyBag.writeBytes(intBytes(value.length));
+        keyBag.writeBytes(value);
+    }
+
+    private static byte[] intBytes(int value) {
+        return ByteBuffer.allocate(4).putInt(value).array();
+    }
+
+    private static byte[] randomBytes(Random random, int length) {
+        byte[] bytes = new byte[length];
+        random.nextBytes(bytes);
+        return bytes;
+    }
+}
@@ -0,0 +1,186 @@
+package hearsay.idevice_decryption.util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Writes an uncompressed POSIX tar archive.
+ * Long or non-ASCII names and entries of 8 GiB or more get a PAX extended header.
+ * <p>
+ * The size of a streamed entry is in its header, before the content. An entry that is aborted or turns out
+ * to have another size cannot be taken back, so it is filled up with zeros and reported by
+ * {@link #getDamagedEntries()}.
+ */
+public class TarArchiveWriter extends ArchiveWriter {
+    private static final int BLOCK_SIZE = 512;
+    private static final long MAX_OCTAL_SIZE = 077777777777L;
+    private static final byte[] ZEROS = new byte[BLOCK_SIZE];
+
+    public TarArchiveWriter(OutputStream out) {
+        super(out);
+    }
+
+    @Override
+    public void addEntry(String name, long lastModified, byte[] data, int length) throws IOException {
+        lock();
+        boolean written = false;
+        try {
+            writeHeader(normalizeName(name), lastModified, length);
+            out().write(data, 0, length);
+            writePadding(length);
+            written = true;
+        } finally {
+            unlock(written);
+        }
+    }
+
+    @Override
+    public EntryStream openEntry(String name, long lastModified, long size) throws IOException {
+        lock();
+        try {
+            writeHeader(normalizeName(name), lastModified, size);
+        } catch (IOException | RuntimeException e) {
+            unlock(false);
+            throw e;
+        }
+        return new EntryOutputStream(name, size);
+    }
+
+    @Override
+    protected void finish() throws IOException {
+        // End of archive: two empty blocks
+        out().write(ZEROS);
+        out().write(ZEROS);
+    }
+
+    private void writeHeader(String name, long lastModified, long size) throws IOException {
+        byte[] nameBytes = name.getBytes(StandardCharsets.UTF_8);
+        boolean longName = nameBytes.length > 100 || nameBytes.length != name.length();
+        boolean largeSize = size > MAX_OCTAL_SIZE;
+
+        if (longName || largeSize) {
+            ByteArrayOutputStream records = new ByteArrayOutputStream();
+            if (longName) appendPaxRecord(records, "path", name);
+            if (largeSize) appendPaxRecord(records, "size", Long.toString(size));
+
+            String paxName = "PaxHeaders/" + asciiTail(name, 89);
+            out().write(createHeader(paxName, lastModified, records.size(), (byte) 'x'));
+            records.writeTo(out());
+            writePadding(records.size());
+        }
+
+        out().write(createHeader(longName ? asciiTail(name, 100) : name, lastModified,
+                largeSize ? 0 : size, (byte) '0'));
+    }
+
+    private static byte[] createHeader(String name, long lastModified, long size, byte type) {
+        byte[] header = new byte[BLOCK_SIZE];
+        byte[] nameBytes = name.getBytes(StandardCharsets.US_ASCII);
+        System.arraycopy(nameBytes, 0, header, 0, Math.min(nameBytes.length, 100));
+        putOctal(header, 100, 8, 0644);
+        putOctal(header, 108, 8, 0);
+        putOctal(header, 116, 8, 0);
+        putOctal(header, 124, 12, size);
+        putOctal(header, 136, 12, Math.max(0, lastModified / 1000));
+        header[156] = type;
+        System.arraycopy("ustar\0".getBytes(StandardCharsets.US_ASCII), 0, header, 257, 6);
+        header[263] = '0';
+        header[264] = '0';
+
+        // The checksum is calculated with the checksum field set to spaces
+        for (int i = 148; i < 156; i++) header[i] = ' ';
+        long checksum = 0;
+        for (byte b : header) checksum += b & 0xff;
+        putOctal(header, 148, 7, checksum);
+        return header;
+    }
+
+    private static void putOctal(byte[] header, int offset, int length, long value) {
+        String octal = Long.toOctalString(value);
+        if (octal.length() > length - 1) throw new IllegalArgumentException("Value too large for tar header: " + value);
+        int start = offset + length - 1 - octal.length();
+        for (int i = offset; i < start; i++) header[i] = '0';
+        for (int i = 0; i < octal.length(); i++) header[start + i] = (byte) octal.charAt(i);
+        header[offset + length - 1] = 0;
+    }
+
+    private static void appendPaxRecord(ByteArrayOutputStream records, String key, String value) {
+        // The length at the start of the record includes its own digits
+        int contentLength = key.getBytes(StandardCharsets.UTF_8).length + value.getBytes(StandardCharsets.UTF_8).length + 3;
+        int length = contentLength + 1;
+        while (length != contentLength + Integer.toString(length).length()) {
+            length = contentLength + Integer.toString(length).length();
+        }
+        records.writeBytes((length + " " + key + "=" + value + "\n").getBytes(StandardCharsets.UTF_8));
+    }
+
+    // Fallback name for readers without PAX support
+    private static String asciiTail(String name, int maxLength) {
+        StringBuilder ascii = new StringBuilder();
+        for (char c : name.toCharArray()) ascii.append(c < 0x80 ? c : '_');
+        return ascii.length() > maxLength ? ascii.substring(ascii.length() - maxLength) : ascii.toString();
+    }
+
+    private void writePadding(long size) throws IOException {
+        int remainder = (int) (size % BLOCK_SIZE);
+        if (remainder != 0) out().write(ZEROS, 0, BLOCK_SIZE - remainder);
+    }
+
+    private class EntryOutputStream extends EntryStream {
+        private final String name;
+        private final long size;
+        private long written = 0;
+        private boolean closed = false;
+
+        EntryOutputStream(String name, long size) {
+            this.name = name;
+            this.size = size;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (closed) throw new IOException("Entry is already closed");
+            if (len > size - written)
+                throw new IOException("Entry " + name + " is longer than the " + size + " bytes in its header");
+            out().write(b, off, len);
+            written += len;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (closed) return;
+            long missing = size - written;
+            this.end(missing == 0);
+            if (missing > 0)
+                throw new IOException("Entry " + name + " is " + missing + " bytes shorter than expected, filled up with zeros");
+        }
+
+        @Override
+        public void abort() throws IOException {
+            if (closed) return;
+            this.end(false);
+        }
+
+        private void end(boolean complete) throws IOException {
+            closed = true;
+            try {
+                if (!complete) markDamaged(name);
+                while (written < size) {
+                    int length = (int) Math.min(ZEROS.length, size - written);
+                    out().write(ZEROS, 0, length);
+                    written += length;
+                }
+                writePadding(size);
+            } finally {
+                unlock(complete);
+            }
+        }
+    }
+}
@@ -0,0 +1,399 @@
+package hearsay.idevice_decryption.util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Writes a ZIP archive with ZIP64 extensions where needed.
+ * <p>
+ * Entries added as a whole are compressed by the calling thread, so workers compress in parallel.
+ * Streamed entries are split into blocks that are compressed in parallel, each block primed with the
+ * end of the previous one as dictionary and ended with a sync flush, so that the blocks form a single
+ * deflate stream (the same technique as pigz). Their CRC and sizes follow in a data descriptor.
+ */
+public class ZipArchiveWriter extends ArchiveWriter {
+    private static final int STREAM_BLOCK_SIZE = 1024 * 1024;
+    private static final int DICTIONARY_SIZE = 32 * 1024;
+    private static final long ZIP64_LIMIT = 0xFFFFFFFFL;
+    private static final int METHOD_STORED = 0;
+    private static final int METHOD_DEFLATED = 8;
+    private static final int FLAG_DATA_DESCRIPTOR = 0x0008;
+    private static final int FLAG_UTF8 = 0x0800;
+
+    private final int compressionThreads;
+    private final ExecutorService compressor;
+    private final List<CentralEntry> entries = new ArrayList<>();
+
+    /**
+     * @param compressionThreads number of threads compressing the blocks of streamed entries
+     */
+    public ZipArchiveWriter(OutputStream out, int compressionThreads) {
+        super(out);
+        this.compressionThreads = Math.max(1, compressionThreads);
+        this.compressor = Executors.newFixedThreadPool(this.compressionThreads, runnable -> {
+            Thread thread = new Thread(runnable, "zip-compressor");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    @Override
+    public void addEntry(String name, long lastModified, byte[] data, int length) throws IOException {
+        String entryName = normalizeName(name);
+
+        CRC32 crc = new CRC32();
+        crc.update(data, 0, length);
+
+        // Compressed before locking, incompressible content is stored
+        byte[] compressed = deflate(data, length);
+        boolean stored = compressed.length >= length;
+
+        CentralEntry entry = new CentralEntry(entryName, lastModified, stored ? METHOD_STORED : METHOD_DEFLATED, 0);
+        entry.crc = crc.getValue();
+        entry.size = length;
+        entry.compressedSize = stored ? length : compressed.length;
+
+        lock();
+        boolean written = false;
+        try {
+            entry.offset = getBytesWritten();
+            writeLocalHeader(entry, entry.size >= ZIP64_LIMIT || entry.compressedSize >= ZIP64_LIMIT);
+            if (stored) {
+                out().write(data, 0, length);
+            } else {
+                out().write(compressed);
+            }
+            entries.add(entry);
+            written = true;
+        } finally {
+            unlock(written);
+        }
+    }
+
+    @Override
+    public EntryStream openEntry(String name, long lastModified, long size) throws IOException {
+        CentralEntry entry = new CentralEntry(normalizeName(name), lastModified, METHOD_DEFLATED, FLAG_DATA_DESCRIPTOR);
+        lock();
+        try {
+            entry.offset = getBytesWritten();
+            // Sizes are unknown yet, they follow in the data descriptor
+            writeLocalHeader(entry, false);
+        } catch (IOException | RuntimeException e) {
+            unlock(false);
+            throw e;
+        }
+        return new EntryOutputStream(entry);
+    }
+
+    @Override
+    protected void finish() throws IOException {
+        try {
+            long centralOffset = getBytesWritten();
+            for (CentralEntry entry : entries) writeCentralHeader(entry);
+            long centralSize = getBytesWritten() - centralOffset;
+
+            boolean zip64 = entries.size() >= 0xFFFF || centralOffset >= ZIP64_LIMIT || centralSize >= ZIP64_LIMIT;
+            if (zip64) {
+                long zip64EndOffset = getBytesWritten();
+                ByteBuffer end = buffer(56);
+                end.putInt(0x06064b50).putLong(44).putShort((short) 45).putShort((short) 45)
+                        .putInt(0).putInt(0).putLong(entries.size()).putLong(entries.size())
+                        .putLong(centralSize).putLong(centralOffset);
+                out().write(end.array());
+
+                ByteBuffer locator = buffer(20);
+                locator.putInt(0x07064b50).putInt(0).putLong(zip64EndOffset).putInt(1);
+                out().write(locator.array());
+            }
+
+            ByteBuffer end = buffer(22);
+            end.putInt(0x06054b50).putShort((short) 0).putShort((short) 0)
+                    .putShort((short) Math.min(entries.size(), 0xFFFF))
+                    .putShort((short) Math.min(entries.size(), 0xFFFF))
+                    .putInt((int) Math.min(centralSize, ZIP64_LIMIT))
+                    .putInt((int) Math.min(centralOffset, ZIP64_LIMIT))
+                    .putShort((short) 0);
+            out().write(end.array());
+        } finally {
+            compressor.shutdownNow();
+        }
+    }
+
+    private void writeLocalHeader(CentralEntry entry, boolean zip64) throws IOException {
+        byte[] name = entry.name.getBytes(StandardCharsets.UTF_8);
+        boolean descriptor = (entry.flags & FLAG_DATA_DESCRIPTOR) != 0;
+        int extraLength = (zip64 ? 20 : 0) + 9;
+
+        ByteBuffer header = buffer(30 + name.length + extraLength);
+        header.putInt(0x04034b50)
+                .putShort((short) (zip64 ? 45 : 20))
+                .putShort((short) (entry.flags | FLAG_UTF8))
+                .putShort((short) entry.method)
+                .putInt(entry.dosTime)
+                .putInt(descriptor ? 0 : (int) entry.crc)
+                .putInt(descriptor ? 0 : zip64 ? (int) ZIP64_LIMIT : (int) entry.compressedSize)
+                .putInt(descriptor ? 0 : zip64 ? (int) ZIP64_LIMIT : (int) entry.size)
+                .putShort((short) name.length)
+                .putShort((short) extraLength)
+                .put(name);
+        if (zip64) {
+            header.putShort((short) 0x0001).putShort((short) 16)
+                    .putLong(entry.size)
+                    .putLong(entry.compressedSize);
+        }
+        putTimestamp(header, entry);
+        out().write(header.array());
+    }
+
+    private void writeCentralHeader(CentralEntry entry) throws IOException {
+        byte[] name = entry.name.getBytes(StandardCharsets.UTF_8);
+        boolean largeSize = entry.size >= ZIP64_LIMIT;
+        boolean largeCompressedSize = entry.compressedSize >= ZIP64_LIMIT;
+        boolean largeOffset = entry.offset >= ZIP64_LIMIT;
+        int zip64Length = (largeSize ? 8 : 0) + (largeCompressedSize ? 8 : 0) + (largeOffset ? 8 : 0);
+        int extraLength = (zip64Length > 0 ? 4 + zip64Length : 0) + 9;
+
+        ByteBuffer header = buffer(46 + name.length + extraLength);
+        header.putInt(0x02014b50)
+                .putShort((short) (45 | (3 << 8)))
+                .putShort((short) (zip64Length > 0 || (entry.flags & FLAG_DATA_DESCRIPTOR) != 0 ? 45 : 20))
+                .putShort((short) (entry.flags | FLAG_UTF8))
+                .putShort((short) entry.method)
+                .putInt(entry.dosTime)
+                .putInt((int) entry.crc)
+                .putInt((int) Math.min(entry.compressedSize, ZIP64_LIMIT))
+                .putInt((int) Math.min(entry.size, ZIP64_LIMIT))
+                .putShort((short) name.length)
+                .putShort((short) extraLength)
+                .putShort((short) 0)
+                .putShort((short) 0)
+                .putShort((short) 0)
+                .putInt(0100644 << 16)
+                .putInt((int) Math.min(entry.offset, ZIP64_LIMIT))
+                .put(name);
+        if (zip64Length > 0) {
+            header.putShort((short) 0x0001).putShort((short) zip64Length);
+            if (largeSize) header.putLong(entry.size);
+            if (largeCompressedSize) header.putLong(entry.compressedSize);
+            if (largeOffset) header.putLong(entry.offset);
+        }
+        putTimestamp(header, entry);
+        out().write(header.array());
+    }
+
+    // Extended timestamp in UTC, the DOS date is in local time with a resolution of two seconds
+    private static void putTimestamp(ByteBuffer header, CentralEntry entry) {
+        header.putShort((short) 0x5455).putShort((short) 5).put((byte) 1)
+                .putInt((int) Math.min(Integer.MAX_VALUE, Math.max(0, entry.lastModified / 1000)));
+    }
+
+    private static ByteBuffer buffer(int size) {
+        return ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    /**
+     * @return the memory held while an entry is streamed: the block being filled and up to
+     * 2 &times; compressionThreads + 1 pending blocks, each with its compressed copy
+     */
+    public static long getStreamingMemory(int compressionThreads) {
+        return (4L * Math.max(1, compressionThreads) + 3) * STREAM_BLOCK_SIZE;
+    }
+
+    private static byte[] deflate(byte[] data, int length) {
+        Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        try {
+            deflater.setInput(data, 0, length);
+            deflater.finish();
+            ByteArrayOutputStream compressed = new ByteArrayOutputStream(Math.max(64, length / 2));
+            byte[] chunk = new byte[Math.min(65536, Math.max(64, length))];
+            while (!deflater.finished()) {
+                int count = deflater.deflate(chunk);
+                compressed.write(chunk, 0, count);
+                // No need to continue once it is clear that the content will be stored
+                if (compressed.size() > length) break;
+            }
+            return compressed.toByteArray();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    private static byte[] deflateBlock(byte[] block, int length, byte[] dictionary, boolean last) {
+        Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        try {
+            if (dictionary != null) deflater.setDictionary(dictionary);
+            deflater.setInput(block, 0, length);
+            if (last) deflater.finish();
+
+            ByteArrayOutputStream compressed = new ByteArrayOutputStream(Math.max(64, length / 2));
+            byte[] chunk = new byte[65536];
+            while (true) {
+                int count = last ? deflater.deflate(chunk) : deflater.deflate(chunk, 0, chunk.length, Deflater.SYNC_FLUSH);
+                compressed.write(chunk, 0, count);
+                if (last ? deflater.finished() : count < chunk.length) break;
+            }
+            return compressed.toByteArray();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    private static int toDosTime(long lastModified) {
+        LocalDateTime time = LocalDateTime.ofInstant(Instant.ofEpochMilli(lastModified), ZoneId.systemDefault());
+        if (time.getYear() < 1980) return (1 << 21) | (1 << 16);
+        return (time.getYear() - 1980) << 25 | time.getMonthValue() << 21 | time.getDayOfMonth() << 16
+                | time.getHour() << 11 | time.getMinute() << 5 | time.getSecond() >> 1;
+    }
+
+    private static class CentralEntry {
+        final String name;
+        final long lastModified;
+        final int dosTime;
+        final int method;
+        final int flags;
+        long crc;
+        long size;
+        long compressedSize;
+        long offset;
+
+        CentralEntry(String name, long lastModified, int method, int flags) {
+            this.name = name;
+            this.lastModified = lastModified;
+            this.dosTime = toDosTime(lastModified);
+            this.method = method;
+            this.flags = flags;
+        }
+    }
+
+    private class EntryOutputStream extends EntryStream {
+        private final CentralEntry entry;
+        private final CRC32 crc = new CRC32();
+        private final Deque<Future<byte[]>> pending = new ArrayDeque<>();
+        private byte[] block = new byte[STREAM_BLOCK_SIZE];
+        private int blockLength = 0;
+        private byte[] dictionary = null;
+        private long size = 0;
+        private long compressedSize = 0;
+        private boolean closed = false;
+
+        EntryOutputStream(CentralEntry entry) {
+            this.entry = entry;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (closed) throw new IOException("Entry is already closed");
+            crc.update(b, off, len);
+            size += len;
+            while (len > 0) {
+                int count = Math.min(len, block.length - blockLength);
+                System.arraycopy(b, off, block, blockLength, count);
+                blockLength += count;
+                off += count;
+                len -= count;
+                if (blockLength == block.length) submitBlock(false);
+            }
+        }
+
+        private void submitBlock(boolean last) throws IOException {
+            byte[] data = block;
+            int length = blockLength;
+            byte[] blockDictionary = dictionary;
+            pending.add(compressor.submit(() -> deflateBlock(data, length, blockDictionary, last)));
+
+            if (length > 0) {
+                int dictionaryLength = Math.min(DICTIONARY_SIZE, length);
+                dictionary = Arrays.copyOfRange(data, length - dictionaryLength, length);
+            }
+            block = last ? null : new byte[STREAM_BLOCK_SIZE];
+            blockLength = 0;
+
+            // Keep all compression threads busy, but don't buffer more than that
+            while (pending.size() > 2 * compressionThreads) writeCompleted();
+        }
+
+        private void writeCompleted() throws IOException {
+            try {
+                byte[] compressed = pending.poll().get();
+                out().write(compressed);
+                compressedSize += compressed.length;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while compressing " + entry.name);
+            } catch (ExecutionException e) {
+                throw new IOException("Failed to compress " + entry.name, e.getCause());
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (closed) return;
+            end(true);
+        }
+
+        /**
+         * Ends the compressed data properly, so that readers going through the local headers can skip the entry,
+         * but leaves it out of the central directory.
+         */
+        @Override
+        public void abort() throws IOException {
+            if (closed) return;
+            end(false);
+        }
+
+        private void end(boolean complete) throws IOException {
+            closed = true;
+            boolean written = false;
+            try {
+                submitBlock(true);
+                while (!pending.isEmpty()) writeCompleted();
+
+                entry.crc = crc.getValue();
+                entry.size = size;
+                entry.compressedSize = compressedSize;
+
+                // Like java.util.zip, 8-byte sizes are only used if they don't fit into 4 bytes
+                ByteBuffer descriptor;
+                if (size >= ZIP64_LIMIT || compressedSize >= ZIP64_LIMIT) {
+                    descriptor = buffer(24);
+                    descriptor.putInt(0x08074b50).putInt((int) entry.crc).putLong(compressedSize).putLong(size);
+                } else {
+                    descriptor = buffer(16);
+                    descriptor.putInt(0x08074b50).putInt((int) entry.crc).putInt((int) compressedSize).putInt((int) size);
+                }
+                out().write(descriptor.array());
+                if (complete) {
+                    entries.add(entry);
+                    written = true;
+                }
+            } finally {
+                for (Future<byte[]> future : pending) future.cancel(true);
+                unlock(written);
+            }
+        }
+    }
+}
@@ -2,6 +2,7 @@ module hearsay.idevice_decryption {
   requires dd.plist;
   requires org.bouncycastle.provider;
   requires java.sql;
+  requires jdk.httpserver;
   requires org.xerial.sqlitejdbc;
   requires org.slf4j;
   requires org.slf4j.simple;